@@ -0,0 +1,88 @@
+import javax.swing.*;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Appends the received messages to a text area in batches: any thread can add messages, the event dispatch thread
+ * takes all the pending ones at most once per frame and appends them in one update. The oldest lines are removed
+ * above a limit so the text area doesn't grow forever in a busy room.
+ */
+public class BatchedAppender {
+
+    // About 60 updates per second
+    public static final int FRAME_MILLIS = 16;
+
+    private final JTextArea textArea;
+    private final int maxLines;
+    private final Queue<String> pending = new ConcurrentLinkedQueue<>();
+    // True while a flush is scheduled (so a burst of messages schedules a single one)
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Timer timer;
+
+    /**
+     * Constructor
+     *
+     * @param textArea the text area
+     * @param maxLines the number of lines kept in the text area
+     */
+    public BatchedAppender(JTextArea textArea, int maxLines) {
+        this.textArea = textArea;
+        this.maxLines = Math.max(1, maxLines);
+        // The Swing timer runs flush() on the event dispatch thread
+        timer = new Timer(FRAME_MILLIS, e -> flush());
+        timer.setRepeats(false);
+        // Not coalesced: a timer restarted while the previous flush is still running would otherwise be dropped
+        timer.setCoalesce(false);
+    }
+
+    /**
+     * Add a message (can be called from any thread)
+     *
+     * @param msg the message (with its line break)
+     */
+    public void append(String msg) {
+        pending.add(msg);
+        // The first message after a flush starts the timer, the next ones wait for it
+        if (scheduled.compareAndSet(false, true)) {
+            timer.restart();
+        }
+    }
+
+    /**
+     * Append all the pending messages to the text area (event dispatch thread)
+     */
+    void flush() {
+        // Cleared first: a message added from now on schedules the next flush
+        scheduled.set(false);
+        StringBuilder batch = new StringBuilder();
+        String msg;
+        while ((msg = pending.poll()) != null) {
+            batch.append(msg);
+        }
+        if (batch.length() == 0) {
+            return;
+        }
+        textArea.append(batch.toString());
+        trim();
+    }
+
+    /**
+     * Remove the oldest lines above the limit
+     */
+    private void trim() {
+        Element root = textArea.getDocument().getDefaultRootElement();
+        // The text ends with a line break, so the last line is empty
+        int excess = root.getElementCount() - 1 - maxLines;
+        if (excess <= 0) {
+            return;
+        }
+        try {
+            textArea.getDocument().remove(0, root.getElement(excess - 1).getEndOffset());
+        } catch (BadLocationException e) {
+            System.out.println("Error trimming the chat area");
+        }
+    }
+}
@@ -3,7 +3,11 @@ import java.awt.*;
 import java.awt.event.*;
 
 public class ChatGUI extends JFrame implements KeyListener, MouseListener {
+    // Lines kept in the chat area (the oldest ones are removed)
+    public static final int MAX_LINES = 5000;
+
     public JTextArea chatArea;
+    private final BatchedAppender appender;
     private final JTextField inputField;
     private final Client client;
 
@@ -22,6 +26,7 @@ public class ChatGUI extends JFrame implements KeyListener, MouseListener {
 
         chatArea = new JTextArea();
         chatArea.setEditable(false);
+        appender = new BatchedAppender(chatArea, MAX_LINES);
 
         JScrollPane scrollPane = new JScrollPane(chatArea);
 
@@ -62,8 +67,8 @@ public class ChatGUI extends JFrame implements KeyListener, MouseListener {
      * @param msg the message
      */
     public void appendMessage(String msg) {
-        // Append the message to the chat area (ensure thread safety)
-        SwingUtilities.invokeLater(() -> chatArea.append(msg));
+        // Appended with the other messages of the same frame (ensure thread safety)
+        appender.append(msg);
     }
 
     public static void main(String[] args) {
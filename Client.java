@@ -2,17 +2,153 @@ import javax.crypto.Cipher;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.*;
-import java.util.Arrays;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DataFormatException;
 
 public class Client implements Runnable {
 
+    // Frames read but not decoded yet (the reader waits when it is full, so a slow client slows the server down instead
+    // of using more memory)
+    private static final int RECEIVE_QUEUE = 1024;
+    // Frames decoded together (one console print for all of them)
+    private static final int DECODE_BATCH = 256;
+    // Put in the queue by the reader when the server closes the connection
+    private static final FrameCodec.Frame END = new FrameCodec.Frame((byte) 0, new byte[0]);
+    // Reconnection after a restart of the server: attempts, and the longest wait between two attempts
+    private static final int RECONNECT_ATTEMPTS = 10;
+    private static final long MAX_RECONNECT_DELAY_MILLIS = 8000;
+    // Where the received files are saved
+    private static final String DOWNLOAD_DIR = "downloads";
+
+    /**
+     * Put in the queue by the reader when a new connection starts: the frames behind it use its session key
+     */
+    private static final class SessionStart extends FrameCodec.Frame {
+        private final MessageCipher cipher;
+
+        /**
+         * Constructor
+         *
+         * @param cipher the ciphers of the new session
+         */
+        SessionStart(MessageCipher cipher) {
+            super((byte) 0, new byte[0]);
+            this.cipher = cipher;
+        }
+    }
+
+    /**
+     * A file sent by the user (its upload thread reads it chunk by chunk)
+     */
+    private static final class Upload {
+        private final String name;
+        // A permit per chunk the server accepts before the receiver acknowledges it
+        private final Semaphore window = new Semaphore(FileTransfer.WINDOW);
+        // Why the transfer was cancelled (null while it goes on)
+        private volatile String cancelled;
+
+        /**
+         * Constructor
+         *
+         * @param name the name of the file
+         */
+        Upload(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Stop the upload thread
+         *
+         * @param reason why the transfer is cancelled
+         */
+        void cancel(String reason) {
+            cancelled = reason;
+            // Wakes the upload thread if it waits for acknowledgements
+            window.release(FileTransfer.WINDOW);
+        }
+    }
+
+    /**
+     * A file received by the user (written by the decoder)
+     */
+    private static final class Download {
+        private final FileTransfer.Offer offer;
+        private final Path path;
+        private final OutputStream file;
+        private long received;
+
+        /**
+         * Constructor
+         *
+         * @param offer the offer of the sender
+         * @param path  where the file is saved
+         * @param file  the output stream of the file
+         */
+        Download(FileTransfer.Offer offer, Path path, OutputStream file) {
+            this.offer = offer;
+            this.path = path;
+            this.file = file;
+        }
+
+        /**
+         * Close the file and delete it (cancelled transfer)
+         */
+        void discard() {
+            try {
+                file.close();
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    private final int port;
     private Socket client;
-    private BufferedReader in;
-    private PrintWriter out;
-    private boolean done;
+    private InputStream in;
+    private OutputStream out;
+    private volatile FrameCodec codec;
+    private volatile boolean done;
     private KeyPair keyPair;
     private Key sessionKey;
+    private volatile MessageCipher messageCipher;
+    // True if the server accepts compressed messages
+    private volatile boolean compression;
+    // True if the server relays files
+    private volatile boolean fileTransfer;
+    // The largest frame the server reads (announced in its preamble), the client never sends a larger one
+    private volatile int maxFrameSize = FrameCodec.DEFAULT_MAX_FRAME_SIZE;
+    // Held from the encryption to the write of a frame, so the nonces reach the server in order (the input handler,
+    // the uploads and the decoder send frames)
+    private final ReentrantLock sendLock = new ReentrantLock();
+    // The files being sent, by id, and the last id
+    private final Map<Integer, Upload> uploads = new ConcurrentHashMap<>();
+    private final AtomicInteger lastUploadId = new AtomicInteger();
+    // The files being received, by id (decoder only)
+    private final Map<Integer, Download> downloads = new HashMap<>();
+    // The ticket of the last session (to skip the key exchange when reconnecting), set by the decoder
+    private volatile SessionTickets.ClientTicket ticket;
+    // The reconnect window announced by a draining server (-1 if the server didn't announce a restart)
+    private volatile long reconnectWindow = -1;
+    private volatile boolean reconnecting;
+    // The session key of the frames being decoded (decoder only)
+    private MessageCipher decodeCipher;
+    private final BlockingQueue<FrameCodec.Frame> received = new ArrayBlockingQueue<>(RECEIVE_QUEUE);
+    // The last room keys received (a broadcast may still use the previous key right after a rotation), decoder only
+    private final Map<Integer, MessageCipher> roomCiphers = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, MessageCipher> eldest) {
+            return size() > 2;
+        }
+    };
     public InputHandler inputHandler;
     public ChatGUI chatGUI;
 
@@ -23,26 +159,29 @@ public class Client implements Runnable {
      * @param port the port
      */
     public Client(int port) {
+        this.port = port;
         done = false;
         try {
-            // Connect to the server
-            client = new Socket("localhost", port);
-
-            // Create a keyPair
-            keyPair = KeyPairGenerator.getInstance("RSA").generateKeyPair();
-
-            // Create the input and output streams
-            in = new BufferedReader(new InputStreamReader(client.getInputStream()));
-            out = new PrintWriter(client.getOutputStream(), true);
+            connect();
         } catch (IOException e) {
             System.out.println("Error connecting to server");
             shutdown();
-        } catch (NoSuchAlgorithmException e) {
-            System.out.println("Error generating keyPair");
-            shutdown();
         }
     }
 
+    /**
+     * Connect to the server
+     *
+     * @throws IOException if the server cannot be reached
+     */
+    private void connect() throws IOException {
+        client = new Socket("localhost", port);
+
+        // Create the input and output streams
+        in = new BufferedInputStream(client.getInputStream());
+        out = client.getOutputStream();
+    }
+
     /**
      * Shutdown the client
      */
@@ -50,6 +189,9 @@ public class Client implements Runnable {
         System.out.println("Shutting down client");
         done = true;
         try {
+            if (codec != null) {
+                codec.close();
+            }
             if (in != null) {
                 in.close();
             }
@@ -65,31 +207,6 @@ public class Client implements Runnable {
         }
     }
 
-    /**
-     * Convert a string (which looks like this: [1, 2, 3, 4]) to a string array
-     *
-     * @param msg the string array
-     * @return the string
-     */
-    public String[] stringToStringArray(String msg) {
-        return Arrays.stream(msg.substring(1, msg.length() - 1).split(", "))
-                .toArray(String[]::new);
-    }
-
-    /**
-     * Convert a string array to a byte array (with the same values)
-     *
-     * @param msg the string array
-     * @return the byte array
-     */
-    public byte[] stringArrayToByteArray(String[] msg) {
-        byte[] messageBytes = new byte[msg.length];
-        for (int i = 0; i < msg.length; i++) {
-            messageBytes[i] = Byte.parseByte(msg[i]);
-        }
-        return messageBytes;
-    }
-
     /**
      * Set the chatGUI
      *
@@ -115,13 +232,71 @@ public class Client implements Runnable {
     @Override
     public void run() {
         try {
+            openSession();
+
+            // Create an input handler
+            inputHandler = new InputHandler();
+
+            // Start the input handler thread
+            Thread thread = new Thread(inputHandler);
+            thread.start();
+
+            // Decrypt on another thread, so reading the socket (and answering the heartbeat) doesn't wait for it
+            Thread decoder = new Thread(this::decode, "client-decoder");
+            decoder.start();
+
+            // Read from the server, and reconnect if it closed the connection to restart
+            while (readFrames() && reconnect()) {
+                // Next connection
+            }
+            // Close the client if the server is down (once the decoder has shown the last messages)
+            received.put(END);
+        } catch (Exception e) {
+            System.out.println("Error running client");
+            shutdown();
+        }
+    }
+
+    /**
+     * Negotiate the wire format and the session key: resume the last session if the client has a ticket, otherwise
+     * do the key exchange
+     *
+     * @throws Exception if the handshake fails
+     */
+    private void openSession() throws Exception {
+        // Announce the binary wire format, with the ticket of the last session (if any) right behind
+        FrameCodec.writePreamble(out, FrameCodec.VERSION, FrameCodec.FEATURE_ECDH | FrameCodec.FEATURE_GCM | FrameCodec.FEATURE_ROOM_KEY
+                | FrameCodec.FEATURE_HEARTBEAT | FrameCodec.FEATURE_COMPRESSION | FrameCodec.FEATURE_RESUMPTION
+                | FrameCodec.FEATURE_FILE_TRANSFER | FrameCodec.FEATURE_MAX_FRAME_SIZE);
+        SessionTickets.ClientTicket last = ticket;
+        byte[] clientNonce = SessionTickets.randomBytes();
+        SessionTickets.writeRequest(out, last == null ? null : last.ticket, clientNonce);
+
+        // Wait for the answer of the server
+        FrameCodec.Preamble preamble = FrameCodec.readPreambleAnswer(in);
+        maxFrameSize = preamble.maxFrameSize;
+        DataInputStream data = new DataInputStream(in);
+        boolean resumed = data.readByte() == SessionTickets.RESUMED;
+
+        if (resumed) {
+            // No key exchange: the key is derived from the secret of the ticket
+            byte[] serverNonce = new byte[SessionTickets.NONCE_SIZE];
+            data.readFully(serverNonce);
+            sessionKey = SessionTickets.resumedKey(last.secret, clientNonce, serverNonce);
+        } else if ((preamble.features & FrameCodec.FEATURE_ECDH) != 0) {
+            // X25519 exchange (no RSA key pair to generate)
+            sessionKey = KeyExchange.clientExchange(in, out);
+        } else {
+            // Create a keyPair (only needed if the server doesn't accept X25519)
+            keyPair = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+
             // Send public key to server
-            ObjectOutputStream objectOutputStream = new ObjectOutputStream(client.getOutputStream());
+            ObjectOutputStream objectOutputStream = new ObjectOutputStream(out);
             objectOutputStream.writeObject(keyPair.getPublic());
             objectOutputStream.flush();
 
             // Create an object input stream
-            ObjectInputStream objectInputStream = new ObjectInputStream(client.getInputStream());
+            ObjectInputStream objectInputStream = new ObjectInputStream(in);
 
             // Receive the session key from the server
             byte[] encryptedSessionKey = (byte[]) objectInputStream.readObject();
@@ -133,53 +308,414 @@ public class Client implements Runnable {
 
             // Transform sessionKeyBytes to a Key object
             sessionKey = new SecretKeySpec(sessionKeyBytes, 0, sessionKeyBytes.length, "AES");
-            System.out.println("Session key: " + sessionKey);
+        }
+        System.out.println((resumed ? "Session resumed, key: " : "Session key: ") + sessionKey);
 
-            // Create an input handler
-            inputHandler = new InputHandler();
+        // Switch to the negotiated wire format and ciphers (created once for the whole session)
+        MessageCipher cipher = MessageCipher.forClient(sessionKey, (preamble.features & FrameCodec.FEATURE_GCM) != 0);
+        compression = (preamble.features & FrameCodec.FEATURE_COMPRESSION) != 0;
+        fileTransfer = (preamble.features & FrameCodec.FEATURE_FILE_TRANSFER) != 0;
+        // The decoder switches keys after the frames of the previous connection
+        received.put(new SessionStart(cipher));
+        messageCipher = cipher;
+        codec = FrameCodec.forPreamble(preamble, in, out, FrameCodec.maxServerFrameSize(maxFrameSize));
+        if (resumed) {
+            // Proves that we have the secret: the server gives the nickname and the room back
+            sendEncrypted(FrameCodec.TYPE_RESUME, new byte[0]);
+        }
+    }
 
-            // Start the input handler thread
-            Thread thread = new Thread(inputHandler);
-            thread.start();
+    /**
+     * Encrypt a payload with the session key and send it
+     *
+     * @param type  the frame type
+     * @param clear the clear payload
+     * @return false if the frame is too large for the server (not sent)
+     * @throws Exception if the payload cannot be encrypted or sent
+     */
+    private boolean sendEncrypted(byte type, byte[] clear) throws Exception {
+        sendLock.lock();
+        try {
+            byte[] encrypted = messageCipher.encrypt(clear);
+            // The type byte counts in the size of a frame
+            if (encrypted.length + 1 > maxFrameSize) {
+                // The server would close the connection (skipping a nonce is fine)
+                return false;
+            }
+            codec.writeFrame(type, encrypted);
+            return true;
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Read the frames of the server until it closes the connection
+     *
+     * @return true if the server announced a restart (the client reconnects)
+     * @throws IOException          if the connection is broken without a restart
+     * @throws InterruptedException if the reader is interrupted
+     */
+    private boolean readFrames() throws IOException, InterruptedException {
+        try {
+            FrameCodec.Frame frame;
+            while ((frame = codec.readFrame()) != null) {
+                if (frame.type == FrameCodec.TYPE_PING) {
+                    // Heartbeat of the server: answer so it knows we are still here
+                    codec.writeFrame(FrameCodec.TYPE_PONG, new byte[0]);
+                } else if (frame.type == FrameCodec.TYPE_GOAWAY && frame.payload.length == 4) {
+                    // The server restarts: reconnect when it closes the connection
+                    reconnectWindow = ((frame.payload[0] & 0xff) << 24) | ((frame.payload[1] & 0xff) << 16)
+                            | ((frame.payload[2] & 0xff) << 8) | (frame.payload[3] & 0xff);
+                } else {
+                    received.put(frame);
+                }
+            }
+        } catch (IOException e) {
+            // Expected if the server closed the connection to restart
+            if (reconnectWindow < 0) {
+                throw e;
+            }
+        }
+        return reconnectWindow >= 0 && !done;
+    }
+
+    /**
+     * Reconnect after a restart of the server: wait a random time within the window it announced (so its clients
+     * don't all come back at once), then retry with an exponential backoff until it is back
+     *
+     * @return true if the client is connected again
+     * @throws InterruptedException if the reader is interrupted
+     */
+    private boolean reconnect() throws InterruptedException {
+        reconnecting = true;
+        closeConnection();
+        sendMessageToGUI("The server is restarting, reconnecting...");
+        // The transfers don't survive the connection
+        for (Upload upload : uploads.values()) {
+            upload.cancel("the connection was lost");
+        }
+        long delay = ThreadLocalRandom.current().nextLong(reconnectWindow + 1);
+        for (int attempt = 0; attempt < RECONNECT_ATTEMPTS && !done; attempt++) {
+            Thread.sleep(delay);
+            try {
+                connect();
+                openSession();
+                reconnectWindow = -1;
+                reconnecting = false;
+                return true;
+            } catch (Exception e) {
+                closeConnection();
+                // Not back yet: wait twice as long (with jitter) before the next attempt
+                delay = Math.min(MAX_RECONNECT_DELAY_MILLIS, Math.max(250, delay * 2));
+                delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+            }
+        }
+        System.out.println("Error reconnecting to server");
+        return false;
+    }
 
-            // Read from the server
-            String inMessage;
-            while ((inMessage = in.readLine()) != null) {
-                // Decrypt the message with the session key
-                Cipher cipherAES = Cipher.getInstance("AES");
-                cipherAES.init(Cipher.DECRYPT_MODE, sessionKey);
+    /**
+     * Close the connection with the server and ignore the errors
+     */
+    private void closeConnection() {
+        try {
+            if (client != null) {
+                client.close();
+            }
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
 
-                String decryptedMessage = new String(cipherAES.doFinal(stringArrayToByteArray(stringToStringArray(inMessage))));
-                // Print in the console
-                System.out.println("Message crypté: " + inMessage);
-                System.out.println("Message décrypté: " + decryptedMessage);
+    /**
+     * Decode the frames read from the server and show the messages (decoder thread)
+     */
+    private void decode() {
+        List<FrameCodec.Frame> batch = new ArrayList<>(DECODE_BATCH);
+        StringBuilder console = new StringBuilder();
+        try {
+            while (true) {
+                // Wait for a frame, then take the ones already waiting behind it
+                batch.add(received.take());
+                received.drainTo(batch, DECODE_BATCH - 1);
+                for (FrameCodec.Frame frame : batch) {
+                    if (frame instanceof SessionStart) {
+                        // The frames from now on come from a new connection
+                        decodeCipher = ((SessionStart) frame).cipher;
+                        roomCiphers.clear();
+                        discardDownloads();
+                        continue;
+                    }
+                    if (FrameCodec.isFileFrame(frame.type)) {
+                        onFileFrame(frame);
+                        continue;
+                    }
+                    if (frame == END) {
+                        discardDownloads();
+                        System.out.print(console);
+                        shutdown();
+                        return;
+                    }
+                    String decryptedMessage = decrypt(frame);
+                    if (decryptedMessage == null) {
+                        continue;
+                    }
+                    // Print in the console
+                    console.append("Message crypté: ").append(FrameCodec.toLegacyString(frame.payload)).append('\n');
+                    console.append("Message décrypté: ").append(decryptedMessage).append('\n');
 
-                sendMessageToGUI(decryptedMessage);
+                    sendMessageToGUI(decryptedMessage);
+                }
+                // One print for the whole batch
+                System.out.print(console);
+                console.setLength(0);
+                batch.clear();
             }
-            // Close the client if the server is down
-            shutdown();
         } catch (Exception e) {
-            System.out.println("Error running client");
+            System.out.println("Error decoding message");
             shutdown();
         }
     }
 
-    class InputHandler implements Runnable {
+    /**
+     * Decrypt a frame of the server
+     *
+     * @param frame the frame
+     * @return the message, or null if the frame is not a message (or uses an unknown room key)
+     * @throws GeneralSecurityException if the frame can't be decrypted
+     * @throws DataFormatException       if a compressed message is invalid
+     */
+    private String decrypt(FrameCodec.Frame frame) throws GeneralSecurityException, DataFormatException {
+        if (frame.type == FrameCodec.TYPE_ROOM_KEY) {
+            // New room key (encrypted with the session key)
+            receiveRoomKey(decodeCipher.decrypt(frame.payload));
+            return null;
+        } else if (frame.type == FrameCodec.TYPE_TICKET) {
+            // Kept for the next connection
+            ticket = SessionTickets.ClientTicket.fromPayload(decodeCipher.decrypt(frame.payload));
+            return null;
+        } else if (frame.type == FrameCodec.TYPE_ROOM_MESSAGE || frame.type == FrameCodec.TYPE_COMPRESSED_ROOM_MESSAGE) {
+            // Broadcast encrypted with a room key
+            MessageCipher roomCipher = roomCiphers.get(GroupKey.readId(frame.payload));
+            if (roomCipher == null) {
+                System.out.println("Unknown room key");
+                return null;
+            }
+            byte[] ciphertext = Arrays.copyOfRange(frame.payload, GroupKey.ID_SIZE, frame.payload.length);
+            byte[] clear = roomCipher.decrypt(ciphertext);
+            if (frame.type == FrameCodec.TYPE_COMPRESSED_ROOM_MESSAGE) {
+                clear = MessageCompressor.decompress(clear, FrameCodec.maxServerFrameSize(maxFrameSize));
+            }
+            return new String(clear, StandardCharsets.UTF_8);
+        } else if (frame.type == FrameCodec.TYPE_MESSAGE) {
+            // Decrypt the message with the session key
+            return new String(decodeCipher.decrypt(frame.payload), StandardCharsets.UTF_8);
+        } else if (frame.type == FrameCodec.TYPE_COMPRESSED_MESSAGE) {
+            // Decrypt, then decompress
+            return new String(MessageCompressor.decompress(decodeCipher.decrypt(frame.payload), FrameCodec.maxServerFrameSize(maxFrameSize)),
+                    StandardCharsets.UTF_8);
+        }
+        return null;
+    }
 
-        private Cipher cipher;
+    /**
+     * Keep a room key sent by the server
+     *
+     * @param keyPayload the decrypted payload ([id][key])
+     * @throws GeneralSecurityException if the key is invalid
+     */
+    private void receiveRoomKey(byte[] keyPayload) throws GeneralSecurityException {
+        int id = GroupKey.readId(keyPayload);
+        Key roomKey = new SecretKeySpec(keyPayload, GroupKey.ID_SIZE, keyPayload.length - GroupKey.ID_SIZE, "AES");
+        roomCiphers.put(id, MessageCipher.forClient(roomKey, true));
+    }
 
-        /**
-         * Constructor for the input handler
-         */
-        public InputHandler() {
-            try {
-                cipher = Cipher.getInstance("AES");
-                cipher.init(Cipher.ENCRYPT_MODE, sessionKey);
-            } catch (Exception e) {
-                System.out.println("Error initializing cipher");
-                shutdown();
+    /**
+     * Handle a file transfer frame of the server (decoder thread)
+     *
+     * @param frame the frame
+     * @throws GeneralSecurityException if the frame can't be decrypted
+     */
+    private void onFileFrame(FrameCodec.Frame frame) throws GeneralSecurityException {
+        byte[] clear = decodeCipher.decrypt(frame.payload);
+        try {
+            switch (frame.type) {
+                case FrameCodec.TYPE_FILE_OFFER -> onFileOffer(FileTransfer.readOffer(clear));
+                case FrameCodec.TYPE_FILE_CHUNK -> onFileChunk(clear);
+                case FrameCodec.TYPE_FILE_ACK -> {
+                    Upload upload = uploads.get(FileTransfer.readId(clear));
+                    if (upload != null) {
+                        // Room for as many chunks
+                        upload.window.release(FileTransfer.ackChunks(clear));
+                    }
+                }
+                case FrameCodec.TYPE_FILE_CANCEL -> onFileCancel(FileTransfer.readCancel(clear));
+                default -> {
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Invalid file transfer frame");
+        }
+    }
+
+    /**
+     * A file offered by another user: create it in the download directory
+     *
+     * @param offer the offer (the nickname is the sender)
+     */
+    private void onFileOffer(FileTransfer.Offer offer) {
+        Path path = null;
+        try {
+            Path directory = Files.createDirectories(Path.of(DOWNLOAD_DIR));
+            String name = FileTransfer.safeName(offer.name);
+            path = directory.resolve(name);
+            // Never overwrite a file: name (2).ext, name (3).ext...
+            int dot = name.lastIndexOf('.') > 0 ? name.lastIndexOf('.') : name.length();
+            for (int copy = 2; Files.exists(path); copy++) {
+                path = directory.resolve(name.substring(0, dot) + " (" + copy + ")" + name.substring(dot));
+            }
+            OutputStream file = new BufferedOutputStream(Files.newOutputStream(path, StandardOpenOption.CREATE_NEW));
+            downloads.put(offer.id, new Download(offer, path, file));
+            sendMessageToGUI(offer.nickname + " is sending you " + offer.name + " (" + FileTransfer.describeSize(offer.size) + ")");
+        } catch (IOException e) {
+            sendMessageToGUI("Cannot save " + offer.name + " from " + offer.nickname + " to " + (path != null ? path : DOWNLOAD_DIR));
+            sendFileFrame(FrameCodec.TYPE_FILE_CANCEL, FileTransfer.cancel(offer.id, false, "the file cannot be saved"));
+        }
+    }
+
+    /**
+     * A chunk of a file received: write it, then acknowledge it so the sender goes on
+     *
+     * @param clear the decrypted payload
+     * @throws IOException if the payload is malformed
+     */
+    private void onFileChunk(byte[] clear) throws IOException {
+        int id = FileTransfer.readId(clear);
+        Download download = downloads.get(id);
+        if (download == null) {
+            // Cancelled while the chunk was on its way
+            return;
+        }
+        int length = FileTransfer.chunkLength(clear);
+        try {
+            if (length == 0) {
+                // The end of the file: it must hold every byte of the offer (else a chunk was lost on the way)
+                if (download.received != download.offer.size) {
+                    throw new StreamCorruptedException("File smaller than announced");
+                }
+                downloads.remove(id);
+                download.file.close();
+                sendMessageToGUI("Received " + download.offer.name + " from " + download.offer.nickname + ", saved to " + download.path);
+                return;
+            }
+            if (download.received + length > download.offer.size) {
+                throw new StreamCorruptedException("File larger than announced");
+            }
+            FileTransfer.writeChunk(clear, download.file);
+            download.received += length;
+        } catch (IOException e) {
+            downloads.remove(id);
+            download.discard();
+            sendMessageToGUI("The transfer of " + download.offer.name + " failed: " + e.getMessage());
+            sendFileFrame(FrameCodec.TYPE_FILE_CANCEL, FileTransfer.cancel(id, false, "the file cannot be saved"));
+            return;
+        }
+        sendFileFrame(FrameCodec.TYPE_FILE_ACK, FileTransfer.ack(id, 1));
+    }
+
+    /**
+     * A transfer cancelled by the server or the other user
+     *
+     * @param cancel the cancellation
+     */
+    private void onFileCancel(FileTransfer.Cancel cancel) {
+        String name;
+        if (cancel.upload) {
+            Upload upload = uploads.remove(cancel.id);
+            if (upload == null) {
+                return;
             }
+            upload.cancel(cancel.reason);
+            name = upload.name;
+        } else {
+            Download download = downloads.remove(cancel.id);
+            if (download == null) {
+                return;
+            }
+            download.discard();
+            name = download.offer.name;
         }
+        sendMessageToGUI("The transfer of " + name + " was cancelled: " + cancel.reason);
+    }
+
+    /**
+     * Delete the files being received (the connection is lost)
+     */
+    private void discardDownloads() {
+        for (Download download : downloads.values()) {
+            download.discard();
+            sendMessageToGUI("The transfer of " + download.offer.name + " was cancelled: the connection was lost");
+        }
+        downloads.clear();
+    }
+
+    /**
+     * Send a file transfer frame (the errors of the connection are left to its reader)
+     *
+     * @param type  the frame type
+     * @param clear the clear payload
+     */
+    private void sendFileFrame(byte type, byte[] clear) {
+        try {
+            sendEncrypted(type, clear);
+        } catch (Exception e) {
+            // The reader sees the broken connection
+        }
+    }
+
+    /**
+     * Send a file to another user, chunk by chunk (upload thread)
+     *
+     * @param receiver the nickname of the receiver
+     * @param path     the file
+     */
+    private void upload(String receiver, Path path) {
+        int id = lastUploadId.incrementAndGet();
+        Upload upload = new Upload(path.getFileName().toString());
+        uploads.put(id, upload);
+        try (InputStream file = Files.newInputStream(path)) {
+            long size = Files.size(path);
+            sendMessageToGUI("Sending " + upload.name + " (" + FileTransfer.describeSize(size) + ") to " + receiver);
+            sendEncrypted(FrameCodec.TYPE_FILE_OFFER, FileTransfer.offer(id, size, receiver, upload.name));
+            // One buffer for the whole file: never more than a chunk in memory (plus the window on the wire)
+            byte[] buffer = new byte[FileTransfer.CHUNK_SIZE];
+            long sent = 0;
+            while (true) {
+                upload.window.acquire();
+                if (upload.cancelled != null) {
+                    return;
+                }
+                int length = file.readNBytes(buffer, 0, (int) Math.min(buffer.length, size - sent));
+                sendEncrypted(FrameCodec.TYPE_FILE_CHUNK, FileTransfer.chunk(id, buffer, length));
+                if (length == 0) {
+                    // The empty chunk ends the file
+                    sendMessageToGUI("Sent " + upload.name + " to " + receiver);
+                    return;
+                }
+                sent += length;
+            }
+        } catch (Exception e) {
+            if (upload.cancelled == null) {
+                sendMessageToGUI("The transfer of " + upload.name + " failed");
+                sendFileFrame(FrameCodec.TYPE_FILE_CANCEL, FileTransfer.cancel(id, true, "the file cannot be read"));
+            }
+        } finally {
+            uploads.remove(id);
+        }
+    }
+
+    class InputHandler implements Runnable {
 
         /**
          * Send a message to the server (encrypted with the session key)
@@ -187,29 +723,83 @@ public class Client implements Runnable {
          * @param message the message
          */
         public void sendMessage(String message) {
+            if (message.startsWith("/send ")) {
+                sendFile(message);
+                return;
+            }
             try {
-                // Encrypt the message with the session key
-                byte[] encryptedMessage = cipher.doFinal(message.getBytes());
-                // Send the message
-                out.println(Arrays.toString(encryptedMessage));
+                byte[] clearMessage = message.getBytes(StandardCharsets.UTF_8);
+                // Compress the large messages (pasted logs, code) before encrypting them
+                byte[] compressed = compression ? MessageCompressor.compress(clearMessage, MessageCompressor.DEFAULT_THRESHOLD) : null;
+                // Encrypt the message with the session key and send it
+                if (!sendEncrypted(compressed != null ? FrameCodec.TYPE_COMPRESSED_MESSAGE : FrameCodec.TYPE_MESSAGE,
+                        compressed != null ? compressed : clearMessage)) {
+                    sendMessageToGUI("The message is too long (" + FileTransfer.describeSize(clearMessage.length)
+                            + "), send it as a file with /send <nickname> <file>");
+                }
             } catch (Exception e) {
+                if (reconnecting) {
+                    // Not lost silently: the user can send it again once reconnected
+                    sendMessageToGUI("Not connected, the message was not sent");
+                    return;
+                }
                 // System.out.println(e.getMessage());
                 System.out.println("Error sending message");
                 shutdown();
             }
         }
 
+        /**
+         * /send nickname file: send a file to another user (on its own thread, the chat goes on)
+         *
+         * @param command the command
+         */
+        private void sendFile(String command) {
+            String[] arguments = command.split(" ", 3);
+            if (arguments.length < 3 || arguments[1].isEmpty() || arguments[2].isBlank()) {
+                sendMessageToGUI("Usage: /send <nickname> <file>");
+                return;
+            }
+            if (!fileTransfer) {
+                sendMessageToGUI("The server doesn't relay files");
+                return;
+            }
+            Path path = Path.of(arguments[2].trim());
+            if (!Files.isRegularFile(path) || !Files.isReadable(path)) {
+                sendMessageToGUI("File not found: " + path);
+                return;
+            }
+            if (uploads.size() >= FileTransfer.MAX_TRANSFERS) {
+                sendMessageToGUI("Too many files at the same time, wait for one to finish");
+                return;
+            }
+            Thread thread = new Thread(() -> upload(arguments[1], path), "client-upload");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
         /**
          * Run the input handler
          */
         @Override
         public void run() {
             try {
-                // Read from the console
-                BufferedReader inReader = new BufferedReader(new InputStreamReader(System.in));
+                // Read from the console (a line longer than the largest frame of the protocol is refused, not buffered)
+                FrameCodec.LineReader inReader = new FrameCodec.LineReader(System.in, FrameCodec.MAX_FRAME_SIZE);
 
                 while (!done) {
-                    String message = inReader.readLine();
+                    String message;
+                    try {
+                        byte[] line = inReader.readLine();
+                        if (line == null) {
+                            throw new EOFException();
+                        }
+                        message = new String(line, StandardCharsets.UTF_8);
+                    } catch (StreamCorruptedException e) {
+                        inReader.skipLine();
+                        sendMessageToGUI("The message is too long, send it as a file with /send <nickname> <file>");
+                        continue;
+                    }
 
                     // Send the message to the server (encrypted with the session key)
                     sendMessage(message);
@@ -0,0 +1,651 @@
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The link between the servers of a cluster: every node connects to every other node over TCP (no broker) and relays
+ * the room messages, the private messages and the nicknames of its clients.
+ * <p>
+ * Each node sends on the connections it opened to its peers and receives on the connections its peers opened to it, so
+ * each direction is one ordered stream. The frames use the binary format of the clients and are written through an
+ * outbound queue like the frames to the clients.
+ * <p>
+ * The links are authenticated with the secret shared by the nodes (--cluster-secret): the accepting node starts each
+ * link with a random challenge, and every frame carries [sequence number (long)][fields][HMAC-SHA256 of the challenge,
+ * the type, the sequence number and the fields]. A node only reads frames signed with the secret for this link, in
+ * order, so a recorded link cannot be replayed. The frames are not encrypted: the cluster port listens on the loopback
+ * interface unless --cluster-bind names a private one.
+ * <p>
+ * The nickname directory is replicated: a node announces the nicknames of its clients to the others, and refuses a
+ * nickname of its directory (checked under the same lock as the claims of the other nodes, so a claim is either seen
+ * or sees ours). Two claims only meet when two nodes accept the same nickname before hearing of each other: both nodes
+ * then compare the same two claims, and the oldest one wins (by the clock of its node, then the smallest node id). The
+ * client of the other node is renamed, after the lock of the bus is released.
+ */
+public class ClusterBus {
+
+    // Frame types of the link (payload: length-prefixed UTF-8 fields)
+    static final byte HELLO = 1;
+    static final byte ROOM_MESSAGE = 2;
+    static final byte PRIVATE_MESSAGE = 3;
+    static final byte CLAIM = 4;
+    static final byte RELEASE = 5;
+
+    // Random challenge at the start of a link, sequence number and MAC of each frame, and the shared secret
+    static final int CHALLENGE_SIZE = 16;
+    static final int SEQUENCE_SIZE = 8;
+    static final int MAC_SIZE = 32;
+    static final int SECRET_SIZE = 32;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // Frames queued to a peer before the oldest relayed messages are dropped
+    private static final int QUEUE_SIZE = 64 * 1024;
+    private static final long RECONNECT_MILLIS = 1000;
+
+    private final Server server;
+    private final String nodeId;
+    private final SecretKeySpec secret;
+    private final ServerSocket listener;
+    private final List<Peer> peers = new ArrayList<>();
+    // Writer tasks of the links, accept loop, readers and connectors
+    private final ExecutorService threads = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "chat-cluster");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // The nicknames of the clients of this node (claim time), and those of the other nodes
+    private final Map<String, Long> localClaims = new ConcurrentHashMap<>();
+    private final Map<String, Claim> directory = new ConcurrentHashMap<>();
+    private final LongAdder dropped = new LongAdder();
+    final LongAdder framesOut = new LongAdder();
+    final LongAdder framesIn = new LongAdder();
+    private volatile boolean done;
+
+    /**
+     * A nickname taken on another node
+     */
+    private static class Claim {
+        final String node;
+        final long time;
+
+        /**
+         * Constructor
+         *
+         * @param node the node of the client
+         * @param time when the nickname was taken (milliseconds since the epoch)
+         */
+        Claim(String node, long time) {
+            this.node = node;
+            this.time = time;
+        }
+
+        /**
+         * @param node the node of the other claim
+         * @param time the time of the other claim
+         * @return true if this claim wins against the other one (older, then smaller node id)
+         */
+        boolean winsAgainst(String node, long time) {
+            return this.time != time ? this.time < time : this.node.compareTo(node) < 0;
+        }
+    }
+
+    /**
+     * The connection to another node (we only send on it)
+     */
+    private class Peer implements Runnable {
+        final String host;
+        final int port;
+        // The current link (null when disconnected), its challenge, MAC and last sequence number (guarded by the peer)
+        volatile FrameWriter codec;
+        private byte[] challenge;
+        private Mac mac;
+        private long sequence;
+
+        /**
+         * Constructor
+         *
+         * @param address the address of the peer (host:port)
+         */
+        Peer(String address) {
+            int colon = address.lastIndexOf(':');
+            host = colon > 0 ? address.substring(0, colon) : "localhost";
+            port = Integer.parseInt(address.substring(colon + 1));
+        }
+
+        /**
+         * Keep the connection open: connect, announce this node and its nicknames, then wait for the connection to
+         * break and connect again
+         */
+        @Override
+        public void run() {
+            boolean reported = false;
+            while (!done) {
+                try (Socket socket = new Socket()) {
+                    socket.connect(new InetSocketAddress(host, port));
+                    socket.setTcpNoDelay(true);
+                    InputStream in = socket.getInputStream();
+                    // The peer starts the link with its challenge
+                    byte[] linkChallenge = in.readNBytes(CHALLENGE_SIZE);
+                    if (linkChallenge.length != CHALLENGE_SIZE) {
+                        throw new EOFException("No challenge from the node");
+                    }
+                    // Only the relayed messages can be dropped: the claims and releases keep the registries in step
+                    FrameWriter link = FrameCodec.queued(FrameCodec.binary(InputStream.nullInputStream(), socket.getOutputStream()),
+                            new OutboundQueue<>(QUEUE_SIZE, ServerConfig.OverflowPolicy.DROP_OLDEST, dropped),
+                            ClusterBus::isMessageFrame, threads, () -> {
+                            }, server.writeBatching());
+                    connected(this, link, linkChallenge);
+                    ServerLog.info("Connected to the node " + host + ":" + port);
+                    reported = false;
+
+                    // Then it never writes on this connection: the read returns when it is closed
+                    while (in.read() >= 0) {
+                        // Ignore
+                    }
+                } catch (IOException | GeneralSecurityException e) {
+                    if (!reported && !done) {
+                        ServerLog.warn("Cannot reach the node " + host + ":" + port + ", retrying");
+                        reported = true;
+                    }
+                }
+                detach();
+                sleep(RECONNECT_MILLIS);
+            }
+        }
+
+        /**
+         * Start sending on a new link, with the HELLO of this node
+         *
+         * @param link          the codec of the link
+         * @param linkChallenge the challenge of the link
+         * @throws GeneralSecurityException if the MAC cannot be created
+         */
+        synchronized void open(FrameWriter link, byte[] linkChallenge) throws GeneralSecurityException {
+            mac = newMac();
+            challenge = linkChallenge;
+            sequence = 0;
+            codec = link;
+            send(HELLO, encode(nodeId));
+        }
+
+        /**
+         * Stop sending on the link (it is broken)
+         */
+        synchronized void detach() {
+            codec = null;
+        }
+
+        /**
+         * Sign a frame for the link and queue it
+         *
+         * @param type   the type of the frame
+         * @param fields the encoded fields
+         */
+        synchronized void send(byte type, byte[] fields) {
+            FrameWriter link = codec;
+            if (link != null) {
+                try {
+                    link.writeEncodedFrame(FrameCodec.encodeFrame(type, sign(mac, challenge, type, ++sequence, fields)));
+                    framesOut.increment();
+                } catch (IOException e) {
+                    // The connector sees the broken link
+                }
+            }
+        }
+    }
+
+    /**
+     * Constructor (the bus starts with start())
+     *
+     * @param server the server of this node
+     * @param config the config (cluster port, peers and node id)
+     * @throws IOException if the cluster port cannot be bound
+     */
+    public ClusterBus(Server server, ServerConfig config) throws IOException {
+        this.server = server;
+        secret = new SecretKeySpec(SessionTickets.readKeyFile(config.clusterSecretFile, SECRET_SIZE), MAC_ALGORITHM);
+        // The loopback interface unless another one is named: the links are not encrypted
+        InetAddress bind = config.clusterBind != null ? InetAddress.getByName(config.clusterBind) : InetAddress.getLoopbackAddress();
+        listener = new ServerSocket(config.clusterPort, 50, bind);
+        nodeId = config.nodeId != null ? config.nodeId : defaultNodeId(listener.getLocalPort());
+        for (String address : config.peers) {
+            peers.add(new Peer(address));
+        }
+    }
+
+    /**
+     * @param port the cluster port
+     * @return the host name and the cluster port
+     */
+    private static String defaultNodeId(int port) {
+        try {
+            return InetAddress.getLocalHost().getHostName() + ":" + port;
+        } catch (IOException e) {
+            return "localhost:" + port;
+        }
+    }
+
+    /**
+     * @return the cluster port (chosen by the system if --cluster-port=0)
+     */
+    int port() {
+        return listener.getLocalPort();
+    }
+
+    /**
+     * @return the id of this node
+     */
+    public String nodeId() {
+        return nodeId;
+    }
+
+    /**
+     * @return the number of peers this node is connected to
+     */
+    public int connectedPeers() {
+        int connected = 0;
+        for (Peer peer : peers) {
+            if (peer.codec != null) {
+                connected++;
+            }
+        }
+        return connected;
+    }
+
+    /**
+     * @return the number of frames to the other nodes dropped because a link was too slow
+     */
+    public long droppedFrames() {
+        return dropped.sum();
+    }
+
+    /**
+     * Accept the links of the other nodes and connect to them
+     */
+    public void start() {
+        threads.execute(this::acceptLinks);
+        for (Peer peer : peers) {
+            threads.execute(peer);
+        }
+        ServerLog.info("Cluster node " + nodeId + " on " + listener.getInetAddress().getHostAddress() + ":"
+                + listener.getLocalPort() + " (" + peers.size() + " peers)");
+    }
+
+    /**
+     * Close the links
+     */
+    public void close() {
+        done = true;
+        try {
+            listener.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+        for (Peer peer : peers) {
+            FrameWriter codec = peer.codec;
+            if (codec != null) {
+                try {
+                    codec.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+        threads.shutdown();
+    }
+
+    /**
+     * Send a message to the members of a room on the other nodes
+     *
+     * @param room    the name of the room
+     * @param message the message
+     * @param record  true to keep the message in the history of the room (chat messages, not notifications)
+     */
+    public void publishRoomMessage(String room, String message, boolean record) {
+        if (!peers.isEmpty()) {
+            sendToAll(ROOM_MESSAGE, encode(room, message, record ? "1" : "0"));
+        }
+    }
+
+    /**
+     * Send a private message to a client of another node
+     *
+     * @param receiver the nickname of the receiver
+     * @param sender   the nickname of the sender
+     * @param message  the message
+     * @return false if no node has a client with this nickname
+     */
+    public boolean sendPrivateMessage(String receiver, String sender, String message) {
+        Claim claim = directory.get(receiver);
+        if (claim == null) {
+            return false;
+        }
+        // Every node gets it, only the node of the receiver delivers it (the links don't know the node ids of the peers)
+        sendToAll(PRIVATE_MESSAGE, encode(receiver, sender, message));
+        return true;
+    }
+
+    /**
+     * @param nickname a nickname
+     * @return true if a client of another node uses this nickname
+     */
+    public boolean isTakenRemotely(String nickname) {
+        return directory.containsKey(nickname);
+    }
+
+    /**
+     * Announce a nickname taken on this node (and release the nickname it replaces)
+     *
+     * @param nickname    the new nickname
+     * @param oldNickname the previous nickname (null if none)
+     * @return false if a client of another node has this nickname (nothing is announced or released)
+     */
+    public synchronized boolean claimed(String nickname, String oldNickname) {
+        // Under the lock of onClaim(): a claim of another node is either in the directory now, or will see ours
+        if (directory.containsKey(nickname)) {
+            return false;
+        }
+        if (nickname.equals(oldNickname)) {
+            // Already ours: keep the time of the claim
+            return true;
+        }
+        if (oldNickname != null) {
+            released(oldNickname);
+        }
+        long time = System.currentTimeMillis();
+        localClaims.put(nickname, time);
+        sendToAll(CLAIM, encode(nickname, nodeId, Long.toString(time)));
+        return true;
+    }
+
+    /**
+     * Announce a nickname released on this node
+     *
+     * @param nickname the nickname
+     */
+    public synchronized void released(String nickname) {
+        if (localClaims.remove(nickname) != null) {
+            sendToAll(RELEASE, encode(nickname, nodeId));
+        }
+    }
+
+    /**
+     * A link to a peer is open: announce this node and its nicknames on it (no claim or release meanwhile)
+     *
+     * @param peer      the peer
+     * @param link      the codec of the link
+     * @param challenge the challenge of the link
+     * @throws GeneralSecurityException if the MAC cannot be created
+     */
+    private synchronized void connected(Peer peer, FrameWriter link, byte[] challenge) throws GeneralSecurityException {
+        peer.open(link, challenge);
+        for (Map.Entry<String, Long> claim : localClaims.entrySet()) {
+            peer.send(CLAIM, encode(claim.getKey(), nodeId, Long.toString(claim.getValue())));
+        }
+    }
+
+    /**
+     * Send a frame to all the connected peers (signed for each link)
+     *
+     * @param type   the type of the frame
+     * @param fields the encoded fields
+     */
+    private void sendToAll(byte type, byte[] fields) {
+        for (Peer peer : peers) {
+            peer.send(type, fields);
+        }
+    }
+
+    /**
+     * @return a MAC keyed with the secret of the cluster
+     * @throws GeneralSecurityException if HMAC-SHA256 is not available
+     */
+    private Mac newMac() throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(MAC_ALGORITHM);
+        mac.init(secret);
+        return mac;
+    }
+
+    /**
+     * Build the payload of a frame of a link
+     *
+     * @param mac       the MAC of the link
+     * @param challenge the challenge of the link
+     * @param type      the type of the frame
+     * @param sequence  the sequence number of the frame on the link
+     * @param fields    the encoded fields
+     * @return [sequence number][fields][MAC]
+     */
+    static byte[] sign(Mac mac, byte[] challenge, byte type, long sequence, byte[] fields) {
+        ByteBuffer payload = ByteBuffer.allocate(SEQUENCE_SIZE + fields.length + MAC_SIZE);
+        payload.putLong(sequence).put(fields);
+        mac.update(challenge);
+        mac.update(type);
+        mac.update(payload.array(), 0, payload.position());
+        payload.put(mac.doFinal());
+        return payload.array();
+    }
+
+    /**
+     * Check the MAC and the sequence number of a frame of a link
+     *
+     * @param mac       the MAC of the link
+     * @param challenge the challenge of the link
+     * @param frame     the frame
+     * @param last      the sequence number of the previous frame (0 for none)
+     * @return the sequence number of the frame
+     * @throws GeneralSecurityException if the frame is not signed with the secret for this link, or is not newer
+     */
+    static long verify(Mac mac, byte[] challenge, FrameCodec.Frame frame, long last) throws GeneralSecurityException {
+        byte[] payload = frame.payload;
+        if (payload.length < SEQUENCE_SIZE + MAC_SIZE) {
+            throw new GeneralSecurityException("Unsigned cluster frame");
+        }
+        mac.update(challenge);
+        mac.update(frame.type);
+        mac.update(payload, 0, payload.length - MAC_SIZE);
+        if (!MessageDigest.isEqual(mac.doFinal(), Arrays.copyOfRange(payload, payload.length - MAC_SIZE, payload.length))) {
+            throw new GeneralSecurityException("Invalid cluster frame MAC");
+        }
+        // Dropped messages leave gaps, a replayed frame goes back
+        long sequence = ByteBuffer.wrap(payload).getLong();
+        if (sequence <= last) {
+            throw new GeneralSecurityException("Replayed cluster frame");
+        }
+        return sequence;
+    }
+
+    /**
+     * Accept the links opened by the other nodes (one reader per link)
+     */
+    private void acceptLinks() {
+        while (!done) {
+            try {
+                Socket socket = listener.accept();
+                socket.setTcpNoDelay(true);
+                threads.execute(() -> readLink(socket));
+            } catch (IOException e) {
+                if (!done) {
+                    ServerLog.error("Error accepting a cluster link");
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the frames of a link opened by another node until it is closed
+     *
+     * @param socket the socket of the link
+     */
+    private void readLink(Socket socket) {
+        String node = null;
+        try (socket) {
+            // A new challenge for each link: the frames of another link (or of a recording) don't verify on this one
+            byte[] challenge = new byte[CHALLENGE_SIZE];
+            RANDOM.nextBytes(challenge);
+            OutputStream out = socket.getOutputStream();
+            out.write(challenge);
+            out.flush();
+            Mac mac = newMac();
+            long sequence = 0;
+
+            FrameCodec codec = FrameCodec.binary(new BufferedInputStream(socket.getInputStream()), OutputStream.nullOutputStream());
+            FrameCodec.Frame frame;
+            while ((frame = codec.readFrame()) != null) {
+                sequence = verify(mac, challenge, frame, sequence);
+                String[] fields = decode(Arrays.copyOfRange(frame.payload, SEQUENCE_SIZE, frame.payload.length - MAC_SIZE));
+                framesIn.increment();
+                if (frame.type == HELLO) {
+                    node = fields[0];
+                    ServerLog.info("The node " + node + " joined the cluster");
+                } else if (frame.type == ROOM_MESSAGE) {
+                    server.onClusterRoomMessage(fields[0], fields[1], fields[2].equals("1"));
+                } else if (frame.type == PRIVATE_MESSAGE) {
+                    server.onClusterPrivateMessage(fields[0], fields[1], fields[2]);
+                } else if (frame.type == CLAIM) {
+                    if (onClaim(fields[0], fields[1], Long.parseLong(fields[2]))) {
+                        // Renamed outside the lock of the bus (the rename claims a new nickname and notifies the room)
+                        server.onClusterNicknameConflict(fields[0]);
+                    }
+                } else if (frame.type == RELEASE) {
+                    onRelease(fields[0], fields[1]);
+                }
+            }
+        } catch (GeneralSecurityException e) {
+            ServerLog.warn("Refused a cluster link from " + socket.getInetAddress().getHostAddress() + " (not authenticated)");
+        } catch (IOException | RuntimeException e) {
+            if (!done) {
+                ServerLog.warn("Error reading a cluster link");
+            }
+        }
+        if (node != null) {
+            // Its clients are gone with it
+            String left = node;
+            directory.values().removeIf(claim -> claim.node.equals(left));
+            if (!done) {
+                ServerLog.warn("The node " + node + " left the cluster");
+            }
+        }
+    }
+
+    /**
+     * A nickname was taken on another node: keep the winner in the directory, and tell if our client loses it
+     *
+     * @param nickname the nickname
+     * @param node     the node of the client
+     * @param time     when the nickname was taken
+     * @return true if our client had the nickname and loses it: the caller renames it (without the lock of the bus)
+     */
+    private synchronized boolean onClaim(String nickname, String node, long time) {
+        Long localTime = localClaims.get(nickname);
+        if (localTime != null && new Claim(nodeId, localTime).winsAgainst(node, time)) {
+            // Our client keeps it, the other node renames its client
+            return false;
+        }
+        Claim current = directory.get(nickname);
+        if (current == null || current.node.equals(node) || !current.winsAgainst(node, time)) {
+            directory.put(nickname, new Claim(node, time));
+        }
+        if (localTime != null) {
+            localClaims.remove(nickname);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * A nickname was released on another node
+     *
+     * @param nickname the nickname
+     * @param node     the node of the client
+     */
+    private synchronized void onRelease(String nickname, String node) {
+        Claim claim = directory.get(nickname);
+        if (claim != null && claim.node.equals(node)) {
+            directory.remove(nickname);
+        }
+    }
+
+    /**
+     * Tell if an encoded frame of the link is a relayed message, the only frames the queue of a peer may drop
+     *
+     * @param frame the encoded frame (header included)
+     * @return true for a room or private message
+     */
+    static boolean isMessageFrame(byte[] frame) {
+        byte type = frame[FrameCodec.HEADER_SIZE - 1];
+        return type == ROOM_MESSAGE || type == PRIVATE_MESSAGE;
+    }
+
+    /**
+     * Encode the fields of a frame ([length (int)][UTF-8 bytes] per field)
+     *
+     * @param fields the fields
+     * @return the payload
+     */
+    static byte[] encode(String... fields) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            for (String field : fields) {
+                byte[] utf8 = field.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(utf8.length);
+                out.write(utf8);
+            }
+        } catch (IOException e) {
+            // Not thrown by a ByteArrayOutputStream
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decode the fields of a frame
+     *
+     * @param payload the payload
+     * @return the fields
+     * @throws IOException if the payload is malformed
+     */
+    static String[] decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        List<String> fields = new ArrayList<>();
+        while (in.available() > 0) {
+            int length = in.readInt();
+            if (length < 0 || length > in.available()) {
+                throw new StreamCorruptedException("Invalid cluster frame");
+            }
+            fields.add(new String(in.readNBytes(length), StandardCharsets.UTF_8));
+        }
+        return fields.toArray(new String[0]);
+    }
+
+    /**
+     * Sleep and ignore the interruptions
+     *
+     * @param millis the time to sleep
+     */
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,165 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The chat commands ("/nick", "/mp"...) indexed by the first letter of their name.
+ * <p>
+ * A message that doesn't start with '/' costs one character check. A command is found by comparing its name in place
+ * with the few commands sharing its first letter, so adding commands doesn't slow down the other messages. The
+ * arguments are read with indexes in the message (no split, no rebuilt strings).
+ *
+ * @param <C> the type of the context given to the commands (the connection of the sender)
+ */
+public class CommandDispatcher<C> {
+
+    /**
+     * A command
+     *
+     * @param <C> the type of the context
+     */
+    @FunctionalInterface
+    public interface Command<C> {
+        /**
+         * Execute the command
+         *
+         * @param context   the context (the connection of the sender)
+         * @param arguments the arguments after the name of the command
+         */
+        void execute(C context, Arguments arguments);
+    }
+
+    /**
+     * The arguments of a command, read from left to right
+     */
+    public static class Arguments {
+        private final String message;
+        private int position;
+
+        /**
+         * Constructor
+         *
+         * @param message  the message
+         * @param position the index of the first argument
+         */
+        Arguments(String message, int position) {
+            this.message = message;
+            this.position = position;
+            skipSpaces();
+        }
+
+        /**
+         * Skip the spaces before the next argument
+         */
+        private void skipSpaces() {
+            while (position < message.length() && message.charAt(position) == ' ') {
+                position++;
+            }
+        }
+
+        /**
+         * @return true if there are no more arguments
+         */
+        public boolean isEmpty() {
+            return position >= message.length();
+        }
+
+        /**
+         * Read the next word
+         *
+         * @return the word, or null if there are no more arguments
+         */
+        public String next() {
+            if (isEmpty()) {
+                return null;
+            }
+            int end = message.indexOf(' ', position);
+            if (end < 0) {
+                end = message.length();
+            }
+            String word = message.substring(position, end);
+            position = end;
+            skipSpaces();
+            return word;
+        }
+
+        /**
+         * Read the rest of the message
+         *
+         * @return the rest of the message, or null if there are no more arguments
+         */
+        public String rest() {
+            if (isEmpty()) {
+                return null;
+            }
+            String rest = message.substring(position);
+            position = message.length();
+            return rest;
+        }
+    }
+
+    /**
+     * A registered command and its name
+     */
+    private static class Entry<C> {
+        final String name;
+        final Command<C> command;
+
+        /**
+         * Constructor
+         *
+         * @param name    the name of the command (without '/')
+         * @param command the command
+         */
+        Entry(String name, Command<C> command) {
+            this.name = name;
+            this.command = command;
+        }
+    }
+
+    // The commands by the first letter of their name (ASCII names)
+    private final List<List<Entry<C>>> byFirstLetter = new ArrayList<>();
+
+    /**
+     * Constructor
+     */
+    public CommandDispatcher() {
+        for (int i = 0; i < 128; i++) {
+            byFirstLetter.add(new ArrayList<>());
+        }
+    }
+
+    /**
+     * Register a command
+     *
+     * @param name    the name of the command, without '/' (e.g. "nick")
+     * @param command the command
+     */
+    public void register(String name, Command<C> command) {
+        if (name.isEmpty() || name.charAt(0) >= 128 || name.indexOf(' ') >= 0) {
+            throw new IllegalArgumentException("Invalid command name: " + name);
+        }
+        byFirstLetter.get(name.charAt(0)).add(new Entry<>(name, command));
+    }
+
+    /**
+     * Execute the command of a message
+     *
+     * @param context the context given to the command
+     * @param message the message
+     * @return false if the message is not a registered command
+     */
+    public boolean dispatch(C context, String message) {
+        if (message.length() < 2 || message.charAt(0) != '/' || message.charAt(1) >= 128) {
+            return false;
+        }
+        for (Entry<C> entry : byFirstLetter.get(message.charAt(1))) {
+            int end = entry.name.length() + 1;
+            // The name must be followed by the end of the message or a space ("/nickname" is not "/nick")
+            if (message.startsWith(entry.name, 1) && (message.length() == end || message.charAt(end) == ' ')) {
+                entry.command.execute(context, new Arguments(message, end));
+                return true;
+            }
+        }
+        return false;
+    }
+}
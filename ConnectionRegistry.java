@@ -0,0 +1,96 @@
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The connected clients of the server, without a global lock.
+ * <p>
+ * Broadcasts iterate a copy-on-write list: the iteration takes no lock and sees a snapshot, clients that join or leave
+ * meanwhile don't disturb it (adding and removing a client copies the list, which is rare compared to the messages).
+ * The nicknames are indexed in a concurrent map, so private messages find their receiver in constant time and two
+ * clients cannot take the same nickname.
+ *
+ * @param <C> the type of the connections
+ */
+public class ConnectionRegistry<C> {
+
+    private final List<C> connections = new CopyOnWriteArrayList<>();
+    private final ConcurrentHashMap<String, C> nicknames = new ConcurrentHashMap<>();
+
+    /**
+     * Add a connection (it has no nickname yet)
+     *
+     * @param connection the connection
+     */
+    public void add(C connection) {
+        connections.add(connection);
+    }
+
+    /**
+     * Remove a connection and free its nickname
+     *
+     * @param connection the connection
+     * @param nickname   its nickname (null if it has none)
+     * @return true if the connection was registered
+     */
+    public boolean remove(C connection, String nickname) {
+        if (nickname != null) {
+            nicknames.remove(nickname, connection);
+        }
+        return connections.remove(connection);
+    }
+
+    /**
+     * Take a nickname for a connection (and free its previous one)
+     *
+     * @param connection  the connection
+     * @param nickname    the new nickname
+     * @param oldNickname the previous nickname (null for the first one)
+     * @return false if another connection uses this nickname
+     */
+    public boolean claimNickname(C connection, String nickname, String oldNickname) {
+        C owner = nicknames.putIfAbsent(nickname, connection);
+        if (owner != null && owner != connection) {
+            return false;
+        }
+        if (oldNickname != null && !oldNickname.equals(nickname)) {
+            nicknames.remove(oldNickname, connection);
+        }
+        return true;
+    }
+
+    /**
+     * Free a nickname
+     *
+     * @param connection the connection using it
+     * @param nickname   the nickname
+     */
+    public void releaseNickname(C connection, String nickname) {
+        nicknames.remove(nickname, connection);
+    }
+
+    /**
+     * Find the connection using a nickname
+     *
+     * @param nickname the nickname
+     * @return the connection, or null if nobody uses this nickname
+     */
+    public C find(String nickname) {
+        return nicknames.get(nickname);
+    }
+
+    /**
+     * @return a snapshot of the connections (to iterate without lock)
+     */
+    public List<C> all() {
+        return Collections.unmodifiableList(connections);
+    }
+
+    /**
+     * @return the number of connections
+     */
+    public int size() {
+        return connections.size();
+    }
+}
@@ -0,0 +1,333 @@
+import java.io.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A file sent by a client to another one (negotiated with FrameCodec.FEATURE_FILE_TRANSFER), relayed by the server.
+ * <p>
+ * The sender offers the file (TYPE_FILE_OFFER: [transfer id][size][nickname][file name]), then streams it in chunks
+ * of at most CHUNK_SIZE bytes (TYPE_FILE_CHUNK: [transfer id][data], an empty chunk ends the file). The receiver
+ * acknowledges the chunks it has written to disk (TYPE_FILE_ACK: [transfer id][chunks]) and the sender never has more
+ * than WINDOW chunks unacknowledged: the server relays each chunk as it arrives and holds at most WINDOW chunks per
+ * transfer, whatever the size of the file. Either side can cancel (TYPE_FILE_CANCEL: [transfer id][upload][reason]).
+ * <p>
+ * Every payload is encrypted with the session key of its hop, like the messages. A client chooses the ids of its
+ * uploads and the server the ids of the downloads of a client; the nickname of an offer is the receiver (from the
+ * sender) or the sender (to the receiver).
+ */
+public class FileTransfer {
+
+    public static final int CHUNK_SIZE = 16 * 1024;
+    // Chunks sent and not acknowledged yet (WINDOW * CHUNK_SIZE in flight per transfer)
+    public static final int WINDOW = 8;
+    // Files a client can send, and receive, at the same time
+    public static final int MAX_TRANSFERS = 4;
+    public static final int MAX_NAME_LENGTH = 255;
+    private static final int ID_SIZE = 4;
+
+    public final Server.ConnectionHandler sender;
+    public final int senderId;
+    public final Server.ConnectionHandler receiver;
+    public final int receiverId;
+    public final long size;
+    public final String name;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicBoolean finished = new AtomicBoolean();
+    // Bytes relayed so far (reader of the sender only)
+    private long relayed;
+
+    /**
+     * An offer (decoded TYPE_FILE_OFFER payload)
+     */
+    public static final class Offer {
+        public final int id;
+        public final long size;
+        public final String nickname;
+        public final String name;
+
+        /**
+         * Constructor
+         *
+         * @param id       the transfer id
+         * @param size     the size of the file
+         * @param nickname the receiver (from the sender) or the sender (to the receiver)
+         * @param name     the name of the file
+         */
+        Offer(int id, long size, String nickname, String name) {
+            this.id = id;
+            this.size = size;
+            this.nickname = nickname;
+            this.name = name;
+        }
+    }
+
+    /**
+     * A cancellation (decoded TYPE_FILE_CANCEL payload)
+     */
+    public static final class Cancel {
+        public final int id;
+        public final boolean upload;
+        public final String reason;
+
+        /**
+         * Constructor
+         *
+         * @param id     the transfer id
+         * @param upload true if the transfer is sent by the client, false if the client receives it
+         * @param reason why the transfer was cancelled
+         */
+        Cancel(int id, boolean upload, String reason) {
+            this.id = id;
+            this.upload = upload;
+            this.reason = reason;
+        }
+    }
+
+    /**
+     * Constructor (a transfer relayed by the server)
+     *
+     * @param sender     the connection of the sender
+     * @param senderId   the id of the transfer for the sender
+     * @param receiver   the connection of the receiver
+     * @param receiverId the id of the transfer for the receiver
+     * @param size       the size of the file
+     * @param name       the name of the file
+     */
+    public FileTransfer(Server.ConnectionHandler sender, int senderId, Server.ConnectionHandler receiver, int receiverId,
+                        long size, String name) {
+        this.sender = sender;
+        this.senderId = senderId;
+        this.receiver = receiver;
+        this.receiverId = receiverId;
+        this.size = size;
+        this.name = name;
+    }
+
+    /**
+     * Count a chunk received from the sender
+     *
+     * @param length the length of its data
+     * @return false if the sender doesn't respect the window or sends more than the size of the file
+     */
+    public boolean onChunk(int length) {
+        relayed += length;
+        return length <= CHUNK_SIZE && relayed <= size && inFlight.incrementAndGet() <= WINDOW;
+    }
+
+    /**
+     * Count the chunks acknowledged by the receiver
+     *
+     * @param chunks the number of chunks
+     */
+    public void onAck(int chunks) {
+        // Never below 0: acknowledging chunks that were not sent doesn't give the sender more room
+        inFlight.updateAndGet(current -> Math.max(0, current - chunks));
+    }
+
+    /**
+     * @return true if the whole file was relayed
+     */
+    public boolean isComplete() {
+        return relayed == size;
+    }
+
+    /**
+     * Mark the transfer as finished (completed or cancelled)
+     *
+     * @return true for the first caller only
+     */
+    public boolean finish() {
+        return finished.compareAndSet(false, true);
+    }
+
+    /**
+     * Encode an offer
+     *
+     * @param id       the transfer id
+     * @param size     the size of the file
+     * @param nickname the receiver (from the sender) or the sender (to the receiver)
+     * @param name     the name of the file
+     * @return the payload
+     */
+    public static byte[] offer(int id, long size, String nickname, String name) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream data = new DataOutputStream(bytes)) {
+            data.writeInt(id);
+            data.writeLong(size);
+            data.writeUTF(nickname);
+            data.writeUTF(name);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decode an offer
+     *
+     * @param payload the payload
+     * @return the offer
+     * @throws IOException if the payload is malformed
+     */
+    public static Offer readOffer(byte[] payload) throws IOException {
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(payload));
+        Offer offer = new Offer(data.readInt(), data.readLong(), data.readUTF(), data.readUTF());
+        if (offer.size < 0 || offer.name.isEmpty() || offer.name.length() > MAX_NAME_LENGTH) {
+            throw new StreamCorruptedException("Invalid file offer");
+        }
+        return offer;
+    }
+
+    /**
+     * Encode a chunk
+     *
+     * @param id     the transfer id
+     * @param data   the buffer of the data
+     * @param length the length of the data (0 for the end of the file)
+     * @return the payload
+     */
+    public static byte[] chunk(int id, byte[] data, int length) {
+        byte[] payload = new byte[ID_SIZE + length];
+        writeId(payload, id);
+        System.arraycopy(data, 0, payload, ID_SIZE, length);
+        return payload;
+    }
+
+    /**
+     * @param payload a chunk payload
+     * @return the length of its data
+     */
+    public static int chunkLength(byte[] payload) {
+        return payload.length - ID_SIZE;
+    }
+
+    /**
+     * Write the data of a chunk
+     *
+     * @param payload the chunk payload
+     * @param out     the destination
+     * @throws IOException if the data cannot be written
+     */
+    public static void writeChunk(byte[] payload, OutputStream out) throws IOException {
+        out.write(payload, ID_SIZE, payload.length - ID_SIZE);
+    }
+
+    /**
+     * Encode an acknowledgement
+     *
+     * @param id     the transfer id
+     * @param chunks the number of chunks written by the receiver
+     * @return the payload
+     */
+    public static byte[] ack(int id, int chunks) {
+        byte[] payload = new byte[2 * ID_SIZE];
+        writeId(payload, id);
+        payload[4] = (byte) (chunks >>> 24);
+        payload[5] = (byte) (chunks >>> 16);
+        payload[6] = (byte) (chunks >>> 8);
+        payload[7] = (byte) chunks;
+        return payload;
+    }
+
+    /**
+     * @param payload an acknowledgement payload
+     * @return the number of chunks it acknowledges
+     * @throws StreamCorruptedException if the payload is malformed
+     */
+    public static int ackChunks(byte[] payload) throws StreamCorruptedException {
+        if (payload.length != 2 * ID_SIZE) {
+            throw new StreamCorruptedException("Invalid file acknowledgement");
+        }
+        int chunks = ((payload[4] & 0xff) << 24) | ((payload[5] & 0xff) << 16) | ((payload[6] & 0xff) << 8) | (payload[7] & 0xff);
+        return Math.max(0, chunks);
+    }
+
+    /**
+     * Encode a cancellation
+     *
+     * @param id     the transfer id
+     * @param upload true if the transfer is sent by the client, false if the client receives it
+     * @param reason why the transfer was cancelled
+     * @return the payload
+     */
+    public static byte[] cancel(int id, boolean upload, String reason) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream data = new DataOutputStream(bytes)) {
+            data.writeInt(id);
+            data.writeBoolean(upload);
+            data.writeUTF(reason);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decode a cancellation
+     *
+     * @param payload the payload
+     * @return the cancellation
+     * @throws IOException if the payload is malformed
+     */
+    public static Cancel readCancel(byte[] payload) throws IOException {
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(payload));
+        return new Cancel(data.readInt(), data.readBoolean(), data.readUTF());
+    }
+
+    /**
+     * Read the transfer id at the start of a payload
+     *
+     * @param payload the payload
+     * @return the transfer id
+     * @throws StreamCorruptedException if the payload is too short
+     */
+    public static int readId(byte[] payload) throws StreamCorruptedException {
+        if (payload.length < ID_SIZE) {
+            throw new StreamCorruptedException("Invalid file transfer frame");
+        }
+        return ((payload[0] & 0xff) << 24) | ((payload[1] & 0xff) << 16) | ((payload[2] & 0xff) << 8) | (payload[3] & 0xff);
+    }
+
+    /**
+     * Write the transfer id at the start of a payload (the server relays a chunk under the id of the receiver)
+     *
+     * @param payload the payload
+     * @param id      the transfer id
+     */
+    public static void writeId(byte[] payload, int id) {
+        payload[0] = (byte) (id >>> 24);
+        payload[1] = (byte) (id >>> 16);
+        payload[2] = (byte) (id >>> 8);
+        payload[3] = (byte) id;
+    }
+
+    /**
+     * Make the name of a received file safe to create in the download directory (no directories, no special names)
+     *
+     * @param name the name given by the sender
+     * @return the file name
+     */
+    public static String safeName(String name) {
+        String safe = name.replaceAll("[\\\\/:*?\"<>|\\p{Cntrl}]", "_").trim();
+        if (safe.isEmpty() || safe.chars().allMatch(c -> c == '.')) {
+            return "file";
+        }
+        return safe;
+    }
+
+    /**
+     * Describe a size for the users (e.g. 12.5 KB)
+     *
+     * @param bytes the size in bytes
+     * @return the description
+     */
+    public static String describeSize(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " bytes";
+        }
+        if (bytes < 1024 * 1024) {
+            return String.format("%.1f KB", bytes / 1024.0);
+        }
+        return String.format("%.1f MB", bytes / (1024.0 * 1024));
+    }
+}
@@ -0,0 +1,905 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * Wire format of the encrypted messages exchanged between the server and the clients.
+ * <p>
+ * Binary frames look like this: [length (int)][type (byte)][payload (length - 1 bytes)].
+ * Legacy frames are one text line per message containing Arrays.toString(ciphertext).
+ * <p>
+ * A client that speaks the binary format sends a preamble (MAGIC, version, features) before the key exchange.
+ * Old clients start directly with the Java serialization stream, so the server can tell them apart.
+ */
+public abstract class FrameCodec implements FrameWriter {
+
+    public static final byte[] MAGIC = {'C', 'H', 'A', 'T'};
+    public static final byte VERSION = 1;
+    public static final byte LEGACY_VERSION = 0;
+
+    public static final byte TYPE_MESSAGE = 1;
+    public static final byte TYPE_ROOM_KEY = 2;
+    public static final byte TYPE_ROOM_MESSAGE = 3;
+    // Heartbeat (empty payload, not encrypted): the server pings a silent client, which answers with a pong
+    public static final byte TYPE_PING = 4;
+    public static final byte TYPE_PONG = 5;
+    // TYPE_MESSAGE and TYPE_ROOM_MESSAGE whose clear payload is compressed (MessageCompressor)
+    public static final byte TYPE_COMPRESSED_MESSAGE = 6;
+    public static final byte TYPE_COMPRESSED_ROOM_MESSAGE = 7;
+    // The server is draining (not encrypted): [reconnect window in ms (int)], the client reconnects at a random time
+    // within the window once the connection is closed
+    public static final byte TYPE_GOAWAY = 8;
+    // A resumption ticket for the next connection (encrypted with the session key): [length (short)][ticket][secret]
+    public static final byte TYPE_TICKET = 9;
+    // First frame of a resumed session (empty payload encrypted with the new key): proves that the client has the secret
+    public static final byte TYPE_RESUME = 10;
+    // File transfers, encrypted with the session key (see FileTransfer for the payloads)
+    public static final byte TYPE_FILE_OFFER = 11;
+    public static final byte TYPE_FILE_CHUNK = 12;
+    public static final byte TYPE_FILE_ACK = 13;
+    public static final byte TYPE_FILE_CANCEL = 14;
+
+    // Feature flags of the preamble (the server answers with the subset it accepts)
+    public static final int FEATURE_ECDH = 1;
+    public static final int FEATURE_GCM = 2;
+    public static final int FEATURE_ROOM_KEY = 4;
+    public static final int FEATURE_HEARTBEAT = 8;
+    public static final int FEATURE_COMPRESSION = 16;
+    public static final int FEATURE_RESUMPTION = 32;
+    public static final int FEATURE_FILE_TRANSFER = 64;
+    // The answer of the server ends with the largest frame it reads: [max frame size (int)]
+    public static final int FEATURE_MAX_FRAME_SIZE = 128;
+
+    public static final int HEADER_SIZE = 5;
+    // Largest frame of the protocol, and largest frame a server accepts from its clients by default (--max-frame-size)
+    public static final int MAX_FRAME_SIZE = 1 << 20;
+    public static final int DEFAULT_MAX_FRAME_SIZE = 64 * 1024;
+    // A frame of the server carries at most a message of a client plus the nickname of its sender (and a notice prefix)
+    private static final int SERVER_FRAME_MARGIN = 4 * 1024;
+    // Frames written together are copied in a buffer of this size (larger frames are written on their own)
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * A decoded frame
+     */
+    public static class Frame {
+        public final byte type;
+        public final byte[] payload;
+
+        /**
+         * Constructor
+         *
+         * @param type    the frame type
+         * @param payload the payload (ciphertext)
+         */
+        public Frame(byte type, byte[] payload) {
+            this.type = type;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * How the writer task of a queued codec groups the frames
+     */
+    public static class WriteBatching {
+        public final int maxFrames;
+        public final long lingerNanos;
+        public final LongAdder writes;
+
+        /**
+         * Constructor
+         *
+         * @param maxFrames   the maximum number of frames written with one write (1 to write them one by one)
+         * @param lingerNanos how long the writer waits for more frames before writing (0 to write what is queued)
+         * @param writes      the counter of the writes to the sockets
+         */
+        public WriteBatching(int maxFrames, long lingerNanos, LongAdder writes) {
+            this.maxFrames = Math.max(1, maxFrames);
+            this.lingerNanos = lingerNanos;
+            this.writes = writes;
+        }
+    }
+
+    /**
+     * The result of the preamble negotiation
+     */
+    public static class Preamble {
+        public final byte version;
+        public final int features;
+        // The largest frame the server reads (announced with FEATURE_MAX_FRAME_SIZE)
+        public final int maxFrameSize;
+
+        /**
+         * Constructor (a server that doesn't announce its limit reads frames up to DEFAULT_MAX_FRAME_SIZE)
+         *
+         * @param version  the protocol version (LEGACY_VERSION for old text clients)
+         * @param features the feature flags
+         */
+        public Preamble(byte version, int features) {
+            this(version, features, DEFAULT_MAX_FRAME_SIZE);
+        }
+
+        /**
+         * Constructor
+         *
+         * @param version      the protocol version (LEGACY_VERSION for old text clients)
+         * @param features     the feature flags
+         * @param maxFrameSize the largest frame the server reads
+         */
+        public Preamble(byte version, int features, int maxFrameSize) {
+            this.version = version;
+            this.features = features;
+            this.maxFrameSize = maxFrameSize;
+        }
+
+        /**
+         * @return true if the peer speaks the binary format
+         */
+        public boolean isBinary() {
+            return version != LEGACY_VERSION;
+        }
+    }
+
+    /**
+     * Read the next frame
+     *
+     * @return the frame, or null if the stream is closed
+     * @throws IOException if the stream is broken or the frame is malformed
+     */
+    public abstract Frame readFrame() throws IOException;
+
+    /**
+     * @param type a frame type
+     * @return true if the frame is part of a file transfer
+     */
+    public static boolean isFileFrame(byte type) {
+        return type >= TYPE_FILE_OFFER && type <= TYPE_FILE_CANCEL;
+    }
+
+    /**
+     * Create a binary (length-prefixed) codec
+     *
+     * @param in  the input stream
+     * @param out the output stream
+     * @return the codec
+     */
+    public static FrameCodec binary(InputStream in, OutputStream out) {
+        return binary(in, out, MAX_FRAME_SIZE);
+    }
+
+    /**
+     * Create a binary (length-prefixed) codec that refuses large frames
+     *
+     * @param in           the input stream
+     * @param out          the output stream
+     * @param maxFrameSize the largest frame read
+     * @return the codec
+     */
+    public static FrameCodec binary(InputStream in, OutputStream out, int maxFrameSize) {
+        return new BinaryCodec(in, out, maxFrameSize);
+    }
+
+    /**
+     * Create a legacy (text line) codec
+     *
+     * @param in  the input stream
+     * @param out the output stream
+     * @return the codec
+     */
+    public static FrameCodec legacy(InputStream in, OutputStream out) {
+        return legacy(in, out, MAX_FRAME_SIZE);
+    }
+
+    /**
+     * Create a legacy (text line) codec that refuses long lines
+     *
+     * @param in           the input stream
+     * @param out          the output stream
+     * @param maxFrameSize the largest frame read (its line is about 6 times longer)
+     * @return the codec
+     */
+    public static FrameCodec legacy(InputStream in, OutputStream out, int maxFrameSize) {
+        return new LegacyCodec(in, out, maxFrameSize);
+    }
+
+    /**
+     * Wrap the write side of a codec so the frames are written by a writer task through a bounded queue: the thread
+     * that sends a frame never blocks on a slow client (the frames are still read from the codec)
+     *
+     * @param codec      the codec writing to the client
+     * @param queue      the queue of the encoded frames
+     * @param writer     the executor running the writer task
+     * @param onOverflow called when the queue overflows (the codec is already closed)
+     * @param batching   how the queued frames are grouped into writes
+     * @return the writer
+     */
+    public static FrameWriter queued(FrameWriter codec, OutboundQueue<byte[]> queue, Executor writer, Runnable onOverflow,
+                                     WriteBatching batching) {
+        return queued(codec, queue, FrameCodec::isChatFrame, writer, onOverflow, batching);
+    }
+
+    /**
+     * Wrap the write side of a codec so the frames are written by a writer task through a bounded queue
+     *
+     * @param codec      the codec writing to the client
+     * @param queue      the queue of the encoded frames
+     * @param droppable  tells which encoded frames the queue may drop when it is full
+     * @param writer     the executor running the writer task
+     * @param onOverflow called when the queue overflows (the codec is already closed)
+     * @param batching   how the queued frames are grouped into writes
+     * @return the writer
+     */
+    public static FrameWriter queued(FrameWriter codec, OutboundQueue<byte[]> queue, Predicate<byte[]> droppable,
+                                     Executor writer, Runnable onOverflow, WriteBatching batching) {
+        return new QueuedWriter(codec, queue, droppable, writer, onOverflow, batching);
+    }
+
+    /**
+     * Tell if an encoded frame is a chat message, the only frames an outbound queue may drop: a client that misses a
+     * room key, a control frame or a file chunk cannot go on
+     *
+     * @param frame the encoded frame (header included)
+     * @return true for a message or a room message, compressed or not
+     */
+    public static boolean isChatFrame(byte[] frame) {
+        if (frame.length < HEADER_SIZE) {
+            return false;
+        }
+        byte type = frame[HEADER_SIZE - 1];
+        return type == TYPE_MESSAGE || type == TYPE_ROOM_MESSAGE || type == TYPE_COMPRESSED_MESSAGE
+                || type == TYPE_COMPRESSED_ROOM_MESSAGE;
+    }
+
+    /**
+     * Create the codec matching a negotiated preamble
+     *
+     * @param preamble the preamble
+     * @param in       the input stream
+     * @param out      the output stream
+     * @return the codec
+     */
+    public static FrameCodec forPreamble(Preamble preamble, InputStream in, OutputStream out) {
+        return forPreamble(preamble, in, out, MAX_FRAME_SIZE);
+    }
+
+    /**
+     * Create the codec matching a negotiated preamble, refusing large frames
+     *
+     * @param preamble     the preamble
+     * @param in           the input stream
+     * @param out          the output stream
+     * @param maxFrameSize the largest frame read
+     * @return the codec
+     */
+    public static FrameCodec forPreamble(Preamble preamble, InputStream in, OutputStream out, int maxFrameSize) {
+        return preamble.isBinary() ? binary(in, out, maxFrameSize) : legacy(in, out, maxFrameSize);
+    }
+
+    /**
+     * @param maxFrameSize the largest frame
+     * @return the length of its legacy text line (up to 4 characters and a separator of 2 per byte, and the brackets)
+     */
+    public static int maxLegacyLineSize(int maxFrameSize) {
+        return maxFrameSize * 6 + 2;
+    }
+
+    /**
+     * Write a preamble (used by the client to announce itself and by the server to answer)
+     *
+     * @param out      the output stream
+     * @param version  the protocol version
+     * @param features the feature flags
+     * @throws IOException if the stream is broken
+     */
+    public static void writePreamble(OutputStream out, byte version, int features) throws IOException {
+        DataOutputStream dataOut = new DataOutputStream(out);
+        dataOut.write(MAGIC);
+        dataOut.writeByte(version);
+        dataOut.writeInt(features);
+        dataOut.flush();
+    }
+
+    /**
+     * Write the answer of the server to a preamble (its limit follows if FEATURE_MAX_FRAME_SIZE is accepted)
+     *
+     * @param out    the output stream
+     * @param answer the accepted preamble
+     * @throws IOException if the stream is broken
+     */
+    public static void writePreambleAnswer(OutputStream out, Preamble answer) throws IOException {
+        DataOutputStream dataOut = new DataOutputStream(out);
+        dataOut.write(MAGIC);
+        dataOut.writeByte(answer.version);
+        dataOut.writeInt(answer.features);
+        if ((answer.features & FEATURE_MAX_FRAME_SIZE) != 0) {
+            dataOut.writeInt(answer.maxFrameSize);
+        }
+        dataOut.flush();
+    }
+
+    /**
+     * Read a preamble. If the stream does not start with MAGIC, nothing is consumed and the legacy version is returned.
+     *
+     * @param in the input stream (must support mark/reset)
+     * @return the preamble
+     * @throws IOException if the stream is broken
+     */
+    public static Preamble readPreamble(InputStream in) throws IOException {
+        in.mark(MAGIC.length);
+        byte[] magic = in.readNBytes(MAGIC.length);
+        if (!Arrays.equals(magic, MAGIC)) {
+            // Old client: give the bytes back to the Java serialization stream
+            in.reset();
+            return new Preamble(LEGACY_VERSION, 0);
+        }
+        DataInputStream dataIn = new DataInputStream(in);
+        return new Preamble(dataIn.readByte(), dataIn.readInt());
+    }
+
+    /**
+     * Read the answer of the server to our preamble
+     *
+     * @param in the input stream
+     * @return the preamble accepted by the server
+     * @throws IOException if the server did not answer with a valid preamble
+     */
+    public static Preamble readPreambleAnswer(InputStream in) throws IOException {
+        DataInputStream dataIn = new DataInputStream(in);
+        byte[] magic = new byte[MAGIC.length];
+        dataIn.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new StreamCorruptedException("Invalid preamble");
+        }
+        byte version = dataIn.readByte();
+        int features = dataIn.readInt();
+        if ((features & FEATURE_MAX_FRAME_SIZE) == 0) {
+            return new Preamble(version, features);
+        }
+        int maxFrameSize = dataIn.readInt();
+        if (maxFrameSize < 2 || maxFrameSize > MAX_FRAME_SIZE) {
+            throw new StreamCorruptedException("Invalid max frame size: " + maxFrameSize);
+        }
+        return new Preamble(version, features, maxFrameSize);
+    }
+
+    /**
+     * @param maxFrameSize the largest frame a server reads
+     * @return the largest frame it sends (a message of a client of the largest size, relayed with its sender)
+     */
+    public static int maxServerFrameSize(int maxFrameSize) {
+        return Math.min(MAX_FRAME_SIZE, maxFrameSize + SERVER_FRAME_MARGIN);
+    }
+
+    /**
+     * Convert a ciphertext to the legacy text format (which looks like this: [1, 2, 3, 4])
+     *
+     * @param bytes the ciphertext
+     * @return the text line (without the line separator)
+     */
+    public static String toLegacyString(byte[] bytes) {
+        return Arrays.toString(bytes);
+    }
+
+    /**
+     * Parse a legacy text line (which looks like this: [1, 2, 3, 4]) in a single pass
+     *
+     * @param line the text line
+     * @return the ciphertext
+     * @throws StreamCorruptedException if the line is malformed
+     */
+    public static byte[] parseLegacyString(String line) throws StreamCorruptedException {
+        int length = line.length();
+        if (length < 2 || line.charAt(0) != '[' || line.charAt(length - 1) != ']') {
+            throw new StreamCorruptedException("Invalid legacy frame");
+        }
+        if (length == 2) {
+            return new byte[0];
+        }
+
+        // Count the values to allocate the array once
+        int count = 1;
+        for (int i = 1; i < length - 1; i++) {
+            if (line.charAt(i) == ',') {
+                count++;
+            }
+        }
+
+        byte[] bytes = new byte[count];
+        int index = 0;
+        int value = 0;
+        boolean negative = false;
+        boolean digits = false;
+        // The closing bracket is the last character (checked above): a ']' before it is malformed
+        for (int i = 1; i < length; i++) {
+            char c = line.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                // Checked at every digit, so a long number cannot overflow back into the range of a byte
+                if (value > Byte.MAX_VALUE + 1) {
+                    throw new StreamCorruptedException("Invalid legacy frame");
+                }
+                digits = true;
+            } else if (c == '-' && !negative && !digits) {
+                negative = true;
+            } else if (c == ',' && i < length - 1 || c == ']' && i == length - 1) {
+                int signed = negative ? -value : value;
+                if (!digits || signed > Byte.MAX_VALUE) {
+                    throw new StreamCorruptedException("Invalid legacy frame");
+                }
+                bytes[index++] = (byte) signed;
+                value = 0;
+                negative = false;
+                digits = false;
+            } else if (c != ' ' || digits || negative) {
+                // Spaces only after a comma ("1, 2", never "1 2" or "- 1")
+                throw new StreamCorruptedException("Invalid legacy frame");
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Encode a frame (header and payload) in a single array
+     *
+     * @param type    the frame type
+     * @param payload the payload
+     * @return the encoded frame
+     */
+    public static byte[] encodeFrame(byte type, byte[] payload) {
+        int length = payload.length + 1;
+        byte[] frame = new byte[HEADER_SIZE + payload.length];
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+        frame[4] = type;
+        System.arraycopy(payload, 0, frame, HEADER_SIZE, payload.length);
+        return frame;
+    }
+
+    /**
+     * Reads lines of bounded length (BufferedReader.readLine() keeps reading a line of any length into memory)
+     */
+    public static class LineReader {
+
+        private final InputStream in;
+        private final int maxLength;
+        private final byte[] buffer = new byte[8192];
+        private int position;
+        private int limit;
+
+        /**
+         * Constructor
+         *
+         * @param in        the input stream
+         * @param maxLength the longest line accepted (in bytes, without the line break)
+         */
+        public LineReader(InputStream in, int maxLength) {
+            this.in = in;
+            this.maxLength = maxLength;
+        }
+
+        /**
+         * Read the next line
+         *
+         * @return the bytes of the line without its line break, or null at the end of the stream
+         * @throws StreamCorruptedException if the line is too long (the rest of the line is left in the stream)
+         * @throws IOException              if the stream is broken
+         */
+        public byte[] readLine() throws IOException {
+            // Only for the lines longer than what is left in the buffer
+            ByteArrayOutputStream line = null;
+            while (true) {
+                if (position == limit && !fill()) {
+                    // The last line may have no line break
+                    return line == null ? null : trim(line.toByteArray());
+                }
+                int start = position;
+                while (position < limit && buffer[position] != '\n') {
+                    position++;
+                }
+                int length = position - start;
+                if ((line == null ? 0 : line.size()) + length > maxLength) {
+                    throw new StreamCorruptedException("Line too long");
+                }
+                if (position < limit) {
+                    // Skip the line break
+                    position++;
+                    if (line == null) {
+                        return trim(Arrays.copyOfRange(buffer, start, start + length));
+                    }
+                    line.write(buffer, start, length);
+                    return trim(line.toByteArray());
+                }
+                if (line == null) {
+                    line = new ByteArrayOutputStream();
+                }
+                line.write(buffer, start, length);
+            }
+        }
+
+        /**
+         * Skip the rest of the current line (after a line that was too long)
+         *
+         * @throws IOException if the stream is broken
+         */
+        public void skipLine() throws IOException {
+            while (position < limit || fill()) {
+                if (buffer[position++] == '\n') {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Close the input stream
+         *
+         * @throws IOException if the stream cannot be closed
+         */
+        public void close() throws IOException {
+            in.close();
+        }
+
+        /**
+         * Read more bytes in the buffer
+         *
+         * @return false at the end of the stream
+         * @throws IOException if the stream is broken
+         */
+        private boolean fill() throws IOException {
+            int read = in.read(buffer);
+            position = 0;
+            limit = Math.max(0, read);
+            return read > 0;
+        }
+
+        /**
+         * Remove the carriage return of a line ending with \r\n
+         *
+         * @param line the line
+         * @return the line without its carriage return
+         */
+        private static byte[] trim(byte[] line) {
+            return line.length > 0 && line[line.length - 1] == '\r' ? Arrays.copyOf(line, line.length - 1) : line;
+        }
+    }
+
+    /**
+     * Length-prefixed binary frames
+     */
+    private static class BinaryCodec extends FrameCodec {
+
+        private final DataInputStream in;
+        private final OutputStream out;
+        private final int maxFrameSize;
+        // Not a synchronized block: a virtual thread blocked in a socket write must not pin its carrier thread
+        private final ReentrantLock writeLock = new ReentrantLock();
+        // Guarded by writeLock, allocated by the first batch
+        private byte[] writeBuffer;
+
+        /**
+         * Constructor
+         *
+         * @param in           the input stream
+         * @param out          the output stream
+         * @param maxFrameSize the largest frame read
+         */
+        BinaryCodec(InputStream in, OutputStream out, int maxFrameSize) {
+            this.in = new DataInputStream(in);
+            this.out = out;
+            this.maxFrameSize = maxFrameSize;
+        }
+
+        @Override
+        public Frame readFrame() throws IOException {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                // The peer closed the connection between two frames
+                return null;
+            }
+            if (length < 1 || length > maxFrameSize) {
+                // Checked before allocating: the length comes from the peer
+                throw new StreamCorruptedException("Invalid frame length: " + length);
+            }
+            byte type = in.readByte();
+            byte[] payload = new byte[length - 1];
+            in.readFully(payload);
+            return new Frame(type, payload);
+        }
+
+        @Override
+        public void writeFrame(byte type, byte[] payload) throws IOException {
+            // One write per frame, the header and the payload go out together
+            writeEncodedFrame(encodeFrame(type, payload));
+        }
+
+        @Override
+        public void writeEncodedFrame(byte[] frame) throws IOException {
+            writeLock.lock();
+            try {
+                out.write(frame);
+                out.flush();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public void writeEncodedFrames(List<byte[]> frames) throws IOException {
+            if (frames.size() == 1) {
+                writeEncodedFrame(frames.get(0));
+                return;
+            }
+            writeLock.lock();
+            try {
+                if (writeBuffer == null) {
+                    writeBuffer = new byte[WRITE_BUFFER_SIZE];
+                }
+                // Copy the frames one after the other, write when the buffer is full
+                int position = 0;
+                for (byte[] frame : frames) {
+                    if (position + frame.length > writeBuffer.length && position > 0) {
+                        out.write(writeBuffer, 0, position);
+                        position = 0;
+                    }
+                    if (frame.length > writeBuffer.length) {
+                        out.write(frame);
+                    } else {
+                        System.arraycopy(frame, 0, writeBuffer, position, frame.length);
+                        position += frame.length;
+                    }
+                }
+                if (position > 0) {
+                    out.write(writeBuffer, 0, position);
+                }
+                out.flush();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+            out.close();
+        }
+
+        @Override
+        public boolean isBinary() {
+            return true;
+        }
+    }
+
+    /**
+     * Frames queued by the senders and written by one writer task at a time (started when frames are queued, it stops
+     * when the queue is empty)
+     */
+    private static class QueuedWriter implements FrameWriter {
+
+        private final FrameWriter codec;
+        private final OutboundQueue<byte[]> queue;
+        private final Predicate<byte[]> droppable;
+        private final Executor writer;
+        private final Runnable onOverflow;
+        private final WriteBatching batching;
+        // Used by the writer task only (one at a time)
+        private final List<byte[]> batch = new ArrayList<>();
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private final AtomicBoolean released = new AtomicBoolean();
+        private volatile boolean closed;
+
+        /**
+         * Constructor
+         *
+         * @param codec      the codec writing to the client
+         * @param queue      the queue of the encoded frames
+         * @param droppable  tells which encoded frames the queue may drop
+         * @param writer     the executor running the writer task
+         * @param onOverflow called when the queue overflows
+         * @param batching   how the queued frames are grouped into writes
+         */
+        QueuedWriter(FrameWriter codec, OutboundQueue<byte[]> queue, Predicate<byte[]> droppable, Executor writer,
+                     Runnable onOverflow, WriteBatching batching) {
+            this.codec = codec;
+            this.queue = queue;
+            this.droppable = droppable;
+            this.writer = writer;
+            this.onOverflow = onOverflow;
+            this.batching = batching;
+        }
+
+        @Override
+        public void writeFrame(byte type, byte[] payload) throws IOException {
+            writeEncodedFrame(encodeFrame(type, payload));
+        }
+
+        @Override
+        public void writeEncodedFrame(byte[] frame) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (queue.offer(frame, droppable.test(frame)) == OutboundQueue.Result.OVERFLOW) {
+                // Slow client: close it now, even if the writer is blocked on it
+                abort();
+                onOverflow.run();
+                return;
+            }
+            scheduleDrain();
+        }
+
+        /**
+         * Start the writer task if it is not running
+         */
+        private void scheduleDrain() {
+            if (draining.compareAndSet(false, true)) {
+                try {
+                    writer.execute(this::drain);
+                } catch (RejectedExecutionException e) {
+                    // The server is shutting down
+                    draining.set(false);
+                    abort();
+                }
+            }
+        }
+
+        /**
+         * Write the queued frames until the queue is empty, several frames per write
+         */
+        private void drain() {
+            try {
+                if (batching.lingerNanos > 0 && !closed && queue.size() < batching.maxFrames) {
+                    // Give the other frames of a broadcast storm a chance to join this write
+                    LockSupport.parkNanos(batching.lingerNanos);
+                }
+                int count;
+                while ((count = queue.peekBatch(batch, batching.maxFrames)) > 0) {
+                    codec.writeEncodedFrames(batch);
+                    batching.writes.increment();
+                    queue.remove(count);
+                }
+            } catch (IOException e) {
+                // The reader of the connection sees the broken socket
+                abort();
+            } finally {
+                batch.clear();
+                draining.set(false);
+            }
+            // Frames queued (or close requested) while the task was stopping
+            if (!queue.isEmpty()) {
+                scheduleDrain();
+            } else if (closed) {
+                release();
+            }
+        }
+
+        /**
+         * Drop the queued frames and close the codec now
+         */
+        private void abort() {
+            closed = true;
+            queue.clear();
+            release();
+        }
+
+        /**
+         * Close the wrapped codec (once)
+         */
+        private void release() {
+            if (released.compareAndSet(false, true)) {
+                try {
+                    codec.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            // The writer task closes the codec once the queued frames are written
+            closed = true;
+            scheduleDrain();
+        }
+
+        @Override
+        public boolean isBinary() {
+            return codec.isBinary();
+        }
+
+        @Override
+        public int pendingWrites() {
+            return queue.size();
+        }
+    }
+
+    /**
+     * Text frames of the first version of the protocol (only messages can be sent)
+     */
+    private static class LegacyCodec extends FrameCodec {
+
+        private final LineReader in;
+        private final OutputStream out;
+        private final ReentrantLock writeLock = new ReentrantLock();
+
+        /**
+         * Constructor
+         *
+         * @param in           the input stream
+         * @param out          the output stream
+         * @param maxFrameSize the largest frame read
+         */
+        LegacyCodec(InputStream in, OutputStream out, int maxFrameSize) {
+            this.in = new LineReader(in, maxLegacyLineSize(maxFrameSize));
+            this.out = out;
+        }
+
+        @Override
+        public Frame readFrame() throws IOException {
+            byte[] line = in.readLine();
+            if (line == null) {
+                return null;
+            }
+            return new Frame(TYPE_MESSAGE, parseLegacyString(new String(line, StandardCharsets.ISO_8859_1)));
+        }
+
+        @Override
+        public void writeFrame(byte type, byte[] payload) throws IOException {
+            if (type != TYPE_MESSAGE) {
+                // Old clients only understand messages
+                return;
+            }
+            byte[] line = (toLegacyString(payload) + System.lineSeparator()).getBytes(StandardCharsets.ISO_8859_1);
+            writeLock.lock();
+            try {
+                out.write(line);
+                out.flush();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public void writeEncodedFrames(List<byte[]> frames) throws IOException {
+            // All the lines in one write
+            StringBuilder lines = new StringBuilder();
+            for (byte[] frame : frames) {
+                if (frame[HEADER_SIZE - 1] == TYPE_MESSAGE) {
+                    lines.append(toLegacyString(Arrays.copyOfRange(frame, HEADER_SIZE, frame.length))).append(System.lineSeparator());
+                }
+            }
+            if (lines.length() == 0) {
+                return;
+            }
+            byte[] bytes = lines.toString().getBytes(StandardCharsets.ISO_8859_1);
+            writeLock.lock();
+            try {
+                out.write(bytes);
+                out.flush();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+            out.close();
+        }
+
+        @Override
+        public boolean isBinary() {
+            return false;
+        }
+    }
+}
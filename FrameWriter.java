@@ -0,0 +1,61 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The write side of a connection: what a connection handler needs to send frames to its client, whoever reads the
+ * frames of the client (a FrameCodec in the blocking modes, the event loop in the NIO mode)
+ */
+public interface FrameWriter {
+
+    /**
+     * Write a frame and flush it
+     *
+     * @param type    the frame type
+     * @param payload the payload
+     * @throws IOException if the stream is broken
+     */
+    void writeFrame(byte type, byte[] payload) throws IOException;
+
+    /**
+     * Write a frame already encoded with FrameCodec.encodeFrame (the same array can be written to several clients)
+     *
+     * @param frame the encoded frame
+     * @throws IOException if the stream is broken
+     */
+    default void writeEncodedFrame(byte[] frame) throws IOException {
+        byte[] payload = Arrays.copyOfRange(frame, FrameCodec.HEADER_SIZE, frame.length);
+        writeFrame(frame[FrameCodec.HEADER_SIZE - 1], payload);
+    }
+
+    /**
+     * Write several encoded frames and flush them together (one write to the socket when they fit in the write buffer)
+     *
+     * @param frames the encoded frames
+     * @throws IOException if the stream is broken
+     */
+    default void writeEncodedFrames(List<byte[]> frames) throws IOException {
+        for (byte[] frame : frames) {
+            writeEncodedFrame(frame);
+        }
+    }
+
+    /**
+     * Close the underlying streams
+     *
+     * @throws IOException if the streams cannot be closed
+     */
+    void close() throws IOException;
+
+    /**
+     * @return true if the frames are written in the binary format
+     */
+    boolean isBinary();
+
+    /**
+     * @return the number of frames waiting to be written (0 if the frames are written by the caller)
+     */
+    default int pendingWrites() {
+        return 0;
+    }
+}
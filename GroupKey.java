@@ -0,0 +1,94 @@
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A room key shared by the members of a room that negotiated FrameCodec.FEATURE_ROOM_KEY.
+ * <p>
+ * The server sends the key to each member wrapped with its session key (TYPE_ROOM_KEY: [id][key]), then encrypts each
+ * broadcast once with AES-GCM and writes the same frame to all of them (TYPE_ROOM_MESSAGE: [id][nonce][ciphertext]).
+ * Large broadcasts are also compressed once for the members that accept it (TYPE_COMPRESSED_ROOM_MESSAGE).
+ * A new key (with a new id) is generated when the members change.
+ */
+public class GroupKey {
+
+    public static final int ID_SIZE = 4;
+    private static final AtomicInteger NEXT_ID = new AtomicInteger(1);
+
+    public final int id;
+    private final byte[] encoded;
+    private final MessageCipher cipher;
+
+    /**
+     * Constructor
+     *
+     * @param id  the id of the key
+     * @param key the AES key
+     * @throws GeneralSecurityException if the cipher cannot be created
+     */
+    private GroupKey(int id, Key key) throws GeneralSecurityException {
+        this.id = id;
+        this.encoded = key.getEncoded();
+        // Only the server encrypts with a room key
+        this.cipher = MessageCipher.forServer(key, true);
+    }
+
+    /**
+     * Generate a new room key
+     *
+     * @return the room key
+     * @throws GeneralSecurityException if AES is not available
+     */
+    public static GroupKey generate() throws GeneralSecurityException {
+        return new GroupKey(NEXT_ID.getAndIncrement(), Server.generateSessionKey());
+    }
+
+    /**
+     * @return the clear payload of a TYPE_ROOM_KEY frame (to encrypt with the session key of each member)
+     */
+    public byte[] keyPayload() {
+        byte[] payload = new byte[ID_SIZE + encoded.length];
+        writeId(payload, id);
+        System.arraycopy(encoded, 0, payload, ID_SIZE, encoded.length);
+        return payload;
+    }
+
+    /**
+     * Encrypt a clear payload once and encode the frame shared by all the members
+     *
+     * @param type  the frame type (TYPE_ROOM_MESSAGE, or TYPE_COMPRESSED_ROOM_MESSAGE for a compressed message)
+     * @param clear the clear payload
+     * @return the encoded frame
+     * @throws GeneralSecurityException if the payload cannot be encrypted
+     */
+    public byte[] encodeMessageFrame(byte type, byte[] clear) throws GeneralSecurityException {
+        byte[] ciphertext = cipher.encrypt(clear);
+        byte[] payload = new byte[ID_SIZE + ciphertext.length];
+        writeId(payload, id);
+        System.arraycopy(ciphertext, 0, payload, ID_SIZE, ciphertext.length);
+        return FrameCodec.encodeFrame(type, payload);
+    }
+
+    /**
+     * Write a key id at the start of a payload
+     *
+     * @param payload the payload
+     * @param id      the key id
+     */
+    private static void writeId(byte[] payload, int id) {
+        payload[0] = (byte) (id >>> 24);
+        payload[1] = (byte) (id >>> 16);
+        payload[2] = (byte) (id >>> 8);
+        payload[3] = (byte) id;
+    }
+
+    /**
+     * Read the key id at the start of a payload
+     *
+     * @param payload the payload
+     * @return the key id
+     */
+    public static int readId(byte[] payload) {
+        return ((payload[0] & 0xff) << 24) | ((payload[1] & 0xff) << 16) | ((payload[2] & 0xff) << 8) | (payload[3] & 0xff);
+    }
+}
@@ -0,0 +1,165 @@
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.security.interfaces.XECPublicKey;
+import java.security.spec.NamedParameterSpec;
+import java.security.spec.XECPublicKeySpec;
+
+/**
+ * Compact key exchange (negotiated with FrameCodec.FEATURE_ECDH): each side sends a raw 32-byte X25519 public key and
+ * the AES session key is derived from the shared secret with HKDF-SHA256.
+ * <p>
+ * The server sends its key right after the preamble answer, so the whole exchange takes one round trip and no Java
+ * serialization.
+ */
+public class KeyExchange {
+
+    public static final int PUBLIC_KEY_SIZE = 32;
+    public static final int SESSION_KEY_SIZE = 32;
+    private static final byte[] INFO = "chat session key".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Generate an X25519 key pair
+     *
+     * @return the key pair
+     * @throws GeneralSecurityException if X25519 is not available
+     */
+    public static KeyPair generateKeyPair() throws GeneralSecurityException {
+        return KeyPairGenerator.getInstance("X25519").generateKeyPair();
+    }
+
+    /**
+     * Encode a public key as the raw 32-byte u-coordinate (little-endian, RFC 7748)
+     *
+     * @param publicKey the public key
+     * @return the raw key
+     */
+    public static byte[] encodePublicKey(PublicKey publicKey) {
+        byte[] bigEndian = ((XECPublicKey) publicKey).getU().toByteArray();
+        byte[] raw = new byte[PUBLIC_KEY_SIZE];
+        // toByteArray() is big-endian and may have a leading sign byte
+        for (int i = 0; i < PUBLIC_KEY_SIZE && i < bigEndian.length; i++) {
+            raw[i] = bigEndian[bigEndian.length - 1 - i];
+        }
+        return raw;
+    }
+
+    /**
+     * Decode a raw 32-byte public key
+     *
+     * @param raw the raw key
+     * @return the public key
+     * @throws GeneralSecurityException if the key is invalid
+     */
+    public static PublicKey decodePublicKey(byte[] raw) throws GeneralSecurityException {
+        if (raw.length != PUBLIC_KEY_SIZE) {
+            throw new InvalidKeyException("Invalid public key size: " + raw.length);
+        }
+        byte[] bigEndian = new byte[PUBLIC_KEY_SIZE];
+        for (int i = 0; i < PUBLIC_KEY_SIZE; i++) {
+            bigEndian[i] = raw[PUBLIC_KEY_SIZE - 1 - i];
+        }
+        // The most significant bit is ignored (RFC 7748)
+        bigEndian[0] &= 0x7f;
+        XECPublicKeySpec spec = new XECPublicKeySpec(NamedParameterSpec.X25519, new BigInteger(1, bigEndian));
+        return KeyFactory.getInstance("X25519").generatePublic(spec);
+    }
+
+    /**
+     * Derive the session key from our private key and the raw public key of the peer
+     *
+     * @param privateKey      our private key
+     * @param clientPublicKey the raw public key of the client
+     * @param serverPublicKey the raw public key of the server
+     * @param peerIsClient    true on the server (the peer key is the client key)
+     * @return the AES session key
+     * @throws GeneralSecurityException if the peer key is invalid
+     */
+    public static Key deriveSessionKey(PrivateKey privateKey, byte[] clientPublicKey, byte[] serverPublicKey,
+                                       boolean peerIsClient) throws GeneralSecurityException {
+        KeyAgreement agreement = KeyAgreement.getInstance("X25519");
+        agreement.init(privateKey);
+        agreement.doPhase(decodePublicKey(peerIsClient ? clientPublicKey : serverPublicKey), true);
+        byte[] sharedSecret = agreement.generateSecret();
+
+        // Both public keys are part of the salt, so the key is bound to this exchange
+        byte[] salt = new byte[2 * PUBLIC_KEY_SIZE];
+        System.arraycopy(clientPublicKey, 0, salt, 0, PUBLIC_KEY_SIZE);
+        System.arraycopy(serverPublicKey, 0, salt, PUBLIC_KEY_SIZE, PUBLIC_KEY_SIZE);
+        return new SecretKeySpec(hkdf(sharedSecret, salt, INFO, SESSION_KEY_SIZE), "AES");
+    }
+
+    /**
+     * HKDF-SHA256 (RFC 5869): extract then expand
+     *
+     * @param inputKey the input key material
+     * @param salt     the salt
+     * @param info     the context
+     * @param length   the number of bytes to derive (at most 32 * 255)
+     * @return the derived bytes
+     * @throws GeneralSecurityException if HmacSHA256 is not available
+     */
+    public static byte[] hkdf(byte[] inputKey, byte[] salt, byte[] info, int length) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(salt, "HmacSHA256"));
+        byte[] pseudoRandomKey = mac.doFinal(inputKey);
+
+        mac.init(new SecretKeySpec(pseudoRandomKey, "HmacSHA256"));
+        byte[] output = new byte[length];
+        byte[] block = new byte[0];
+        for (int offset = 0, counter = 1; offset < length; counter++) {
+            mac.update(block);
+            mac.update(info);
+            mac.update((byte) counter);
+            block = mac.doFinal();
+            int size = Math.min(block.length, length - offset);
+            System.arraycopy(block, 0, output, offset, size);
+            offset += size;
+        }
+        return output;
+    }
+
+    /**
+     * Server side of the exchange on blocking streams (called right after the preamble answer)
+     *
+     * @param in  the input stream of the client
+     * @param out the output stream of the client
+     * @return the session key
+     * @throws IOException              if the stream is broken
+     * @throws GeneralSecurityException if the client key is invalid
+     */
+    public static Key serverExchange(InputStream in, OutputStream out) throws IOException, GeneralSecurityException {
+        KeyPair keyPair = generateKeyPair();
+        byte[] serverPublicKey = encodePublicKey(keyPair.getPublic());
+        out.write(serverPublicKey);
+        out.flush();
+
+        byte[] clientPublicKey = new byte[PUBLIC_KEY_SIZE];
+        new DataInputStream(in).readFully(clientPublicKey);
+        return deriveSessionKey(keyPair.getPrivate(), clientPublicKey, serverPublicKey, true);
+    }
+
+    /**
+     * Client side of the exchange on blocking streams (called right after reading the preamble answer)
+     *
+     * @param in  the input stream of the server
+     * @param out the output stream of the server
+     * @return the session key
+     * @throws IOException              if the stream is broken
+     * @throws GeneralSecurityException if the server key is invalid
+     */
+    public static Key clientExchange(InputStream in, OutputStream out) throws IOException, GeneralSecurityException {
+        KeyPair keyPair = generateKeyPair();
+        byte[] clientPublicKey = encodePublicKey(keyPair.getPublic());
+        out.write(clientPublicKey);
+        out.flush();
+
+        byte[] serverPublicKey = new byte[PUBLIC_KEY_SIZE];
+        new DataInputStream(in).readFully(serverPublicKey);
+        return deriveSessionKey(keyPair.getPrivate(), clientPublicKey, serverPublicKey, false);
+    }
+}
@@ -0,0 +1,204 @@
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The encryption of the messages of one session, with Cipher instances created once and reused for every message.
+ * <p>
+ * Sessions that negotiated FrameCodec.FEATURE_GCM use AES-GCM: each payload is [nonce (12 bytes)][ciphertext + tag].
+ * The nonce is a direction prefix (4 bytes) and a message counter (8 bytes), so the server and the client never use the
+ * same nonce with the session key, and replayed or reordered messages are rejected. Other sessions keep the default
+ * "AES" transformation of the first version of the protocol.
+ * <p>
+ * encrypt() can be called by several threads (e.g. broadcasts), decrypt() is called by the reader of the session.
+ */
+public class MessageCipher {
+
+    public static final int NONCE_SIZE = 12;
+    public static final int TAG_BITS = 128;
+    private static final int SERVER_TO_CLIENT = 1;
+    private static final int CLIENT_TO_SERVER = 2;
+
+    private final Key key;
+    private final boolean gcm;
+    private final int sendDirection;
+    private final int receiveDirection;
+    private final Cipher encryptCipher;
+    private final Cipher decryptCipher;
+    private final ReentrantLock encryptLock = new ReentrantLock();
+    private final ReentrantLock decryptLock = new ReentrantLock();
+    private long sendCounter;
+    private long receiveCounter = -1;
+
+    /**
+     * Constructor
+     *
+     * @param key           the session key
+     * @param gcm           true to use AES-GCM
+     * @param sendDirection the direction prefix of the nonces we send
+     * @throws GeneralSecurityException if the cipher cannot be created
+     */
+    private MessageCipher(Key key, boolean gcm, int sendDirection) throws GeneralSecurityException {
+        this.key = key;
+        this.gcm = gcm;
+        this.sendDirection = sendDirection;
+        this.receiveDirection = sendDirection == SERVER_TO_CLIENT ? CLIENT_TO_SERVER : SERVER_TO_CLIENT;
+        if (gcm) {
+            // Initialized for every message (each message has its own nonce)
+            encryptCipher = Cipher.getInstance("AES/GCM/NoPadding");
+            decryptCipher = Cipher.getInstance("AES/GCM/NoPadding");
+        } else {
+            encryptCipher = Cipher.getInstance("AES");
+            encryptCipher.init(Cipher.ENCRYPT_MODE, key);
+            decryptCipher = Cipher.getInstance("AES");
+            decryptCipher.init(Cipher.DECRYPT_MODE, key);
+        }
+    }
+
+    /**
+     * Create the cipher of the server side of a session
+     *
+     * @param key the session key
+     * @param gcm true if the session negotiated AES-GCM
+     * @return the cipher
+     * @throws GeneralSecurityException if the cipher cannot be created
+     */
+    public static MessageCipher forServer(Key key, boolean gcm) throws GeneralSecurityException {
+        return new MessageCipher(key, gcm, SERVER_TO_CLIENT);
+    }
+
+    /**
+     * Create the cipher of the client side of a session
+     *
+     * @param key the session key
+     * @param gcm true if the session negotiated AES-GCM
+     * @return the cipher
+     * @throws GeneralSecurityException if the cipher cannot be created
+     */
+    public static MessageCipher forClient(Key key, boolean gcm) throws GeneralSecurityException {
+        return new MessageCipher(key, gcm, CLIENT_TO_SERVER);
+    }
+
+    /**
+     * @return true if the session uses AES-GCM
+     */
+    public boolean isGcm() {
+        return gcm;
+    }
+
+    /**
+     * Encrypt a message
+     *
+     * @param plaintext the message
+     * @return the payload to send
+     * @throws GeneralSecurityException if the message cannot be encrypted
+     */
+    public byte[] encrypt(byte[] plaintext) throws GeneralSecurityException {
+        encryptLock.lock();
+        try {
+            if (!gcm) {
+                return encryptCipher.doFinal(plaintext);
+            }
+            byte[] nonce = new byte[NONCE_SIZE];
+            writeInt(nonce, 0, sendDirection);
+            writeLong(nonce, 4, sendCounter++);
+            encryptCipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, nonce));
+
+            byte[] payload = new byte[NONCE_SIZE + encryptCipher.getOutputSize(plaintext.length)];
+            System.arraycopy(nonce, 0, payload, 0, NONCE_SIZE);
+            encryptCipher.doFinal(plaintext, 0, plaintext.length, payload, NONCE_SIZE);
+            return payload;
+        } finally {
+            encryptLock.unlock();
+        }
+    }
+
+    /**
+     * Decrypt a message
+     *
+     * @param payload the payload received
+     * @return the message
+     * @throws GeneralSecurityException if the payload is invalid (wrong key, tampered, replayed...)
+     */
+    public byte[] decrypt(byte[] payload) throws GeneralSecurityException {
+        decryptLock.lock();
+        try {
+            if (!gcm) {
+                return decryptCipher.doFinal(payload);
+            }
+            if (payload.length < NONCE_SIZE + TAG_BITS / 8) {
+                throw new GeneralSecurityException("Payload too short");
+            }
+            long counter = readLong(payload, 4);
+            if (readInt(payload, 0) != receiveDirection || counter <= receiveCounter) {
+                throw new GeneralSecurityException("Unexpected nonce");
+            }
+            decryptCipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, payload, 0, NONCE_SIZE));
+            byte[] plaintext = decryptCipher.doFinal(payload, NONCE_SIZE, payload.length - NONCE_SIZE);
+            receiveCounter = counter;
+            return plaintext;
+        } finally {
+            decryptLock.unlock();
+        }
+    }
+
+    /**
+     * Write an int (big-endian) in an array
+     *
+     * @param bytes  the array
+     * @param offset the offset
+     * @param value  the value
+     */
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        for (int i = 3; i >= 0; i--) {
+            bytes[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    /**
+     * Write a long (big-endian) in an array
+     *
+     * @param bytes  the array
+     * @param offset the offset
+     * @param value  the value
+     */
+    private static void writeLong(byte[] bytes, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            bytes[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    /**
+     * Read an int (big-endian) from an array
+     *
+     * @param bytes  the array
+     * @param offset the offset
+     * @return the value
+     */
+    private static int readInt(byte[] bytes, int offset) {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    /**
+     * Read a long (big-endian) from an array
+     *
+     * @param bytes  the array
+     * @param offset the offset
+     * @return the value
+     */
+    private static long readLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xff);
+        }
+        return value;
+    }
+}
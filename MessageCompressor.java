@@ -0,0 +1,145 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of the large messages (pasted logs, code blocks) of the sessions that negotiated
+ * FrameCodec.FEATURE_COMPRESSION. A message is compressed before it is encrypted and sent in a TYPE_COMPRESSED_MESSAGE
+ * or TYPE_COMPRESSED_ROOM_MESSAGE frame: [original length (4 bytes)][raw deflate].
+ * <p>
+ * Each message is compressed on its own with a preset dictionary of common chat, log and code strings, instead of a
+ * stream per connection: a room broadcast is encrypted once for all the members, and the messages of different users
+ * never share a window (so the length of a ciphertext doesn't tell how much it has in common with another user's
+ * message). Deflaters hold native memory, so they are pooled instead of kept per thread (thousands of virtual threads).
+ */
+public final class MessageCompressor {
+
+    // Messages smaller than this are not worth compressing (the header and the deflate block cost a few bytes)
+    public static final int DEFAULT_THRESHOLD = 256;
+    private static final int LENGTH_SIZE = 4;
+
+    // Common strings of the messages (the most frequent ones last: deflate codes short distances with fewer bits)
+    private static final byte[] DICTIONARY = (
+            "\tat java.base/java.util.concurrent.ThreadPoolExecutor.runWorker(ThreadPoolExecutor.java:"
+                    + "\tat java.base/java.lang.Thread.run(Thread.java:\n"
+                    + "Caused by: java.lang.NullPointerException: Cannot invoke \"\" because \"\" is null\n"
+                    + "java.lang.IllegalStateException: Exception in thread \"main\" \n\t... more\n"
+                    + "Traceback (most recent call last):\n  File \"\", line , in <module>\n"
+                    + "Error: Failed to TypeError: undefined is not a function\n"
+                    + "public static void main(String[] args) {\n    }\n"
+                    + "private final public class interface extends implements import java.util.;\n"
+                    + "    @Override\n    public String toString() {\n        return \n    }\n"
+                    + "function const let var => { return null; } if (else for (int i = 0; i < ; i++) {\n"
+                    + "def self.__init__(self, import from return None True False\n"
+                    + "```java\n```python\n```\n"
+                    + "2024-01-01T00:00:00.000Z DEBUG INFO WARN ERROR [main] [pool-1-thread-1] "
+                    + "https://github.com/ http://localhost:8080/ .com/ "
+                    + "the and that this with for you have not are was but what can just don't it's I'm "
+                    + " joined the chat! left the chat changed their nickname to has been disconnected: "
+    ).getBytes(StandardCharsets.UTF_8);
+
+    private static final Queue<Deflater> DEFLATERS = new ConcurrentLinkedQueue<>();
+    private static final Queue<Inflater> INFLATERS = new ConcurrentLinkedQueue<>();
+
+    private MessageCompressor() {
+    }
+
+    /**
+     * Compress a message if it is large enough and compression makes it smaller
+     *
+     * @param message   the message
+     * @param threshold the smallest size to compress (0 to never compress)
+     * @return the compressed payload, or null to send the message as it is
+     */
+    public static byte[] compress(byte[] message, int threshold) {
+        if (threshold <= 0 || message.length < threshold) {
+            return null;
+        }
+        Deflater deflater = DEFLATERS.poll();
+        if (deflater == null) {
+            // Raw deflate: the length is our header, no zlib header and checksum (GCM already protects the payload)
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+        try {
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(message);
+            deflater.finish();
+            // Not worth it if it doesn't fit in the size of the message
+            byte[] output = new byte[message.length];
+            writeLength(output, message.length);
+            int size = LENGTH_SIZE;
+            while (!deflater.finished() && size < output.length) {
+                size += deflater.deflate(output, size, output.length - size);
+            }
+            if (!deflater.finished()) {
+                return null;
+            }
+            byte[] payload = new byte[size];
+            System.arraycopy(output, 0, payload, 0, size);
+            return payload;
+        } finally {
+            deflater.reset();
+            DEFLATERS.add(deflater);
+        }
+    }
+
+    /**
+     * Decompress a payload
+     *
+     * @param payload the compressed payload
+     * @param maxSize the largest message accepted (a small payload can inflate to a huge message)
+     * @return the message
+     * @throws DataFormatException if the payload is invalid or too large once decompressed
+     */
+    public static byte[] decompress(byte[] payload, int maxSize) throws DataFormatException {
+        if (payload.length < LENGTH_SIZE) {
+            throw new DataFormatException("Truncated compressed message");
+        }
+        int length = ((payload[0] & 0xff) << 24) | ((payload[1] & 0xff) << 16) | ((payload[2] & 0xff) << 8) | (payload[3] & 0xff);
+        if (length < 0 || length > maxSize) {
+            throw new DataFormatException("Compressed message too large: " + length);
+        }
+        Inflater inflater = INFLATERS.poll();
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        try {
+            inflater.setDictionary(DICTIONARY);
+            inflater.setInput(payload, LENGTH_SIZE, payload.length - LENGTH_SIZE);
+            byte[] message = new byte[length];
+            int size = 0;
+            while (size < length) {
+                int read = inflater.inflate(message, size, length - size);
+                if (read == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                size += read;
+            }
+            // Exactly the announced length, and nothing left (no more output, no bytes after the end of the stream)
+            if (size != length || !inflater.finished() && inflater.inflate(new byte[1]) > 0
+                    || inflater.finished() && inflater.getRemaining() > 0) {
+                throw new DataFormatException("Compressed message of the wrong length");
+            }
+            return message;
+        } finally {
+            inflater.reset();
+            INFLATERS.add(inflater);
+        }
+    }
+
+    /**
+     * Write the length of the message at the start of a payload
+     *
+     * @param payload the payload
+     * @param length  the length
+     */
+    private static void writeLength(byte[] payload, int length) {
+        payload[0] = (byte) (length >>> 24);
+        payload[1] = (byte) (length >>> 16);
+        payload[2] = (byte) (length >>> 8);
+        payload[3] = (byte) length;
+    }
+}
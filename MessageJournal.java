@@ -0,0 +1,425 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of the chat messages on the local disk, to replay the recent messages of a room.
+ * <p>
+ * The journal is a directory of segments (segment-00000001.log...). Each record is
+ * [length (int)][crc32 (int)][time (long)][room length (short)][room][message], in UTF-8. The connection threads only
+ * queue the messages: one writer thread appends them by batches and syncs the file once per batch (group commit), or
+ * at most every --journal-sync milliseconds. A new segment starts when the current one is full, and the oldest
+ * segments are deleted beyond --journal-segments. A record torn by a crash is cut off when the journal is reopened.
+ * The names of the rooms found in the journal are kept in memory, so looking for the messages of a room that never
+ * had any (e.g. a new room) doesn't read the segments.
+ */
+public class MessageJournal implements Closeable {
+
+    private static final String PREFIX = "segment-";
+    private static final String SUFFIX = ".log";
+    // The largest segment (its offsets are ints)
+    public static final long MAX_SEGMENT_SIZE = 1L << 30;
+    private static final int RECORD_HEADER_SIZE = 8;
+    // The length of a room name is stored in a short
+    private static final int MAX_ROOM_SIZE = 0xffff;
+    // A record holds at least its time and the length of its room
+    private static final int MIN_RECORD_LENGTH = 10;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int QUEUE_CAPACITY = 65536;
+    private static final int BATCH_SIZE = 1024;
+
+    /**
+     * A message waiting to be written
+     */
+    private static class Entry {
+        final long time = System.currentTimeMillis();
+        final String room;
+        final String message;
+
+        /**
+         * Constructor
+         *
+         * @param room    the room of the message
+         * @param message the message
+         */
+        Entry(String room, String message) {
+            this.room = room;
+            this.message = message;
+        }
+    }
+
+    private final Path directory;
+    private final long segmentSize;
+    private final int maxSegments;
+    private final long syncIntervalMillis;
+    private final ArrayBlockingQueue<Entry> pending = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final ConcurrentSkipListSet<Long> segments = new ConcurrentSkipListSet<>();
+    private final AtomicLong dropped = new AtomicLong();
+    // The rooms with messages in the journal (a room may stay after its segments are deleted: recent() finds nothing)
+    private final Set<String> rooms = ConcurrentHashMap.newKeySet();
+    private final Thread writer;
+    private volatile boolean closed;
+
+    // Used by the writer thread only (the readers stop at the first incomplete record of a segment)
+    private FileChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    private long currentSegment;
+    private long writtenPosition;
+    private long lastSync;
+    private boolean unsynced;
+
+    /**
+     * Open (or create) a journal and start its writer thread
+     *
+     * @param directory          the directory of the segments
+     * @param segmentSize        the size of a segment in bytes
+     * @param maxSegments        the number of segments kept
+     * @param syncIntervalMillis the maximum time between two syncs (0 to sync every batch)
+     * @throws IOException if the directory cannot be read or created
+     */
+    public MessageJournal(Path directory, long segmentSize, int maxSegments, long syncIntervalMillis) throws IOException {
+        this.directory = directory;
+        this.segmentSize = Math.min(segmentSize, MAX_SEGMENT_SIZE);
+        this.maxSegments = Math.max(1, maxSegments);
+        this.syncIntervalMillis = syncIntervalMillis;
+        Files.createDirectories(directory);
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.startsWith(PREFIX) && name.endsWith(SUFFIX))
+                    .forEach(name -> segments.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()))));
+        } catch (NumberFormatException e) {
+            throw new IOException("Unexpected file in the journal directory", e);
+        }
+
+        if (segments.isEmpty()) {
+            openSegment(1);
+        } else {
+            // Learn the rooms of the journal
+            for (Long segment : segments.headSet(segments.last())) {
+                readRecords(segmentPath(segment), null, null, rooms);
+            }
+            // Continue the last segment after its last complete record
+            long last = segments.last();
+            long end = readRecords(segmentPath(last), null, null, rooms);
+            channel = FileChannel.open(segmentPath(last), StandardOpenOption.WRITE);
+            channel.truncate(end);
+            channel.position(end);
+            currentSegment = last;
+            writtenPosition = end;
+        }
+
+        writer = new Thread(this::write, "chat-journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queue a message (never blocks: the message is dropped if the writer is too far behind)
+     *
+     * @param room    the room of the message
+     * @param message the message
+     */
+    public void append(String room, String message) {
+        if (closed || !pending.offer(new Entry(room, message))) {
+            dropped.incrementAndGet();
+            return;
+        }
+        rooms.add(room);
+    }
+
+    /**
+     * @return the number of messages dropped because the writer was too far behind
+     */
+    public long droppedMessages() {
+        return dropped.get();
+    }
+
+    /**
+     * Read the last messages of a room (from the newest segment to the oldest until enough are found, nothing is read
+     * for a room without messages in the journal)
+     *
+     * @param room  the room
+     * @param count the number of messages
+     * @return the messages, oldest first
+     * @throws IOException if a segment cannot be read
+     */
+    public List<String> recent(String room, int count) throws IOException {
+        ArrayDeque<String> messages = new ArrayDeque<>();
+        if (count <= 0 || !rooms.contains(room)) {
+            return new ArrayList<>();
+        }
+        for (Long segment : segments.descendingSet()) {
+            ArrayDeque<String> segmentMessages = new ArrayDeque<>();
+            try {
+                readRecords(segmentPath(segment), room, message -> {
+                    segmentMessages.addLast(message);
+                    if (segmentMessages.size() > count) {
+                        segmentMessages.removeFirst();
+                    }
+                }, null);
+            } catch (NoSuchFileException e) {
+                // Deleted by the retention meanwhile
+                break;
+            }
+            while (!segmentMessages.isEmpty() && messages.size() < count) {
+                messages.addFirst(segmentMessages.removeLast());
+            }
+            if (messages.size() >= count) {
+                break;
+            }
+        }
+        return new ArrayList<>(messages);
+    }
+
+    /**
+     * Read the complete records of a segment (a record being written is incomplete or fails its checksum)
+     *
+     * @param file     the segment
+     * @param room     the room of the messages to give to the consumer (or null)
+     * @param consumer the consumer of the messages (or null to only validate the records)
+     * @param rooms    the set to add the room of every record to (or null)
+     * @return the end of the last complete record
+     * @throws IOException if the segment cannot be read
+     */
+    private static long readRecords(Path file, String room, Consumer<String> consumer, Set<String> rooms) throws IOException {
+        byte[] roomBytes = room != null ? room.getBytes(StandardCharsets.UTF_8) : null;
+        CRC32 crc = new CRC32();
+        try (FileChannel reader = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = reader.size();
+            // The records are read through one buffer (larger only for a record that doesn't fit), never the whole segment
+            ByteBuffer data = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            data.flip();
+            long end = 0;
+            while (true) {
+                int needed = RECORD_HEADER_SIZE;
+                int length = 0;
+                if (data.remaining() >= RECORD_HEADER_SIZE) {
+                    length = data.getInt(data.position());
+                    if (length < MIN_RECORD_LENGTH || length > size - end - RECORD_HEADER_SIZE) {
+                        // Torn record (or not a record): the journal ends here
+                        return end;
+                    }
+                    needed += length;
+                }
+                if (data.remaining() < needed) {
+                    data = fill(reader, data, needed);
+                    if (data.remaining() < needed) {
+                        // End of the segment
+                        return end;
+                    }
+                    continue;
+                }
+                int start = data.position();
+                int checksum = data.getInt(start + 4);
+                int payload = start + RECORD_HEADER_SIZE;
+                crc.reset();
+                crc.update(data.array(), payload, length);
+                if ((int) crc.getValue() != checksum) {
+                    // Torn or corrupted record: the journal ends here
+                    return end;
+                }
+                int roomStart = payload + 10;
+                int roomLength = data.getShort(payload + 8) & 0xffff;
+                if (roomLength > length - MIN_RECORD_LENGTH) {
+                    return end;
+                }
+                if (rooms != null) {
+                    rooms.add(new String(data.array(), roomStart, roomLength, StandardCharsets.UTF_8));
+                }
+                if (consumer != null && roomLength == roomBytes.length
+                        && Arrays.equals(data.array(), roomStart, roomStart + roomLength, roomBytes, 0, roomLength)) {
+                    int messageStart = roomStart + roomLength;
+                    consumer.accept(new String(data.array(), messageStart, payload + length - messageStart, StandardCharsets.UTF_8));
+                }
+                data.position(payload + length);
+                end += RECORD_HEADER_SIZE + length;
+            }
+        }
+    }
+
+    /**
+     * Read a segment until the buffer holds the next bytes needed (or the segment ends)
+     *
+     * @param reader the segment
+     * @param data   the buffer (ready to be read)
+     * @param needed the number of bytes needed
+     * @return the buffer (a larger one if needed), ready to be read
+     * @throws IOException if the segment cannot be read
+     */
+    private static ByteBuffer fill(FileChannel reader, ByteBuffer data, int needed) throws IOException {
+        if (data.capacity() < needed) {
+            ByteBuffer larger = ByteBuffer.allocate(needed);
+            larger.put(data);
+            data = larger;
+        } else {
+            data.compact();
+        }
+        while (data.position() < needed && reader.read(data) > 0) {
+            // Read until the record is complete
+        }
+        data.flip();
+        return data;
+    }
+
+    /**
+     * The writer thread: append the queued messages by batches
+     */
+    private void write() {
+        List<Entry> batch = new ArrayList<>(BATCH_SIZE);
+        while (!closed || !pending.isEmpty()) {
+            try {
+                Entry first = pending.poll(100, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    pending.drainTo(batch, BATCH_SIZE - 1);
+                    for (Entry entry : batch) {
+                        appendRecord(entry);
+                    }
+                    flushBuffer();
+                    unsynced = true;
+                }
+                // Group commit: one sync for all the messages of the batch (or of the interval)
+                long now = System.currentTimeMillis();
+                if (unsynced && now - lastSync >= syncIntervalMillis) {
+                    channel.force(false);
+                    lastSync = now;
+                    unsynced = false;
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (IOException e) {
+                ServerLog.error("Error writing the journal");
+                dropped.addAndGet(batch.size());
+            } finally {
+                batch.clear();
+            }
+        }
+        try {
+            channel.force(false);
+            channel.close();
+        } catch (IOException e) {
+            ServerLog.error("Error closing the journal");
+        }
+    }
+
+    /**
+     * Encode a record in the buffer (the segment is rolled first if the record doesn't fit), or drop it if its room
+     * name is too long to be stored
+     *
+     * @param entry the message
+     * @throws IOException if the segment cannot be rolled
+     */
+    private void appendRecord(Entry entry) throws IOException {
+        byte[] room = entry.room.getBytes(StandardCharsets.UTF_8);
+        if (room.length > MAX_ROOM_SIZE) {
+            // Its length would be truncated: no read would ever find the record
+            ServerLog.warn("Room name too long for the journal, message dropped");
+            dropped.incrementAndGet();
+            return;
+        }
+        byte[] message = entry.message.getBytes(StandardCharsets.UTF_8);
+        int length = 8 + 2 + room.length + message.length;
+        int recordSize = RECORD_HEADER_SIZE + length;
+
+        if (writtenPosition + buffer.position() + recordSize > segmentSize && writtenPosition + buffer.position() > 0) {
+            flushBuffer();
+            rollSegment();
+        }
+        if (buffer.remaining() < recordSize) {
+            flushBuffer();
+            if (buffer.capacity() < recordSize) {
+                buffer = ByteBuffer.allocate(recordSize);
+            }
+        }
+
+        int start = buffer.position();
+        buffer.putInt(length);
+        buffer.putInt(0);
+        buffer.putLong(entry.time);
+        buffer.putShort((short) room.length);
+        buffer.put(room);
+        buffer.put(message);
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), start + RECORD_HEADER_SIZE, length);
+        buffer.putInt(start + 4, (int) crc.getValue());
+    }
+
+    /**
+     * Write the encoded records to the segment
+     *
+     * @throws IOException if the segment cannot be written
+     */
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        writtenPosition = channel.position();
+        buffer.clear();
+    }
+
+    /**
+     * Close the current segment, start the next one and delete the oldest segments beyond the retention
+     *
+     * @throws IOException if the segments cannot be created or deleted
+     */
+    private void rollSegment() throws IOException {
+        channel.force(false);
+        channel.close();
+        openSegment(currentSegment + 1);
+        while (segments.size() > maxSegments) {
+            Files.deleteIfExists(segmentPath(segments.pollFirst()));
+        }
+    }
+
+    /**
+     * Create a segment and make it the current one
+     *
+     * @param id the id of the segment
+     * @throws IOException if the segment cannot be created
+     */
+    private void openSegment(long id) throws IOException {
+        channel = FileChannel.open(segmentPath(id), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        writtenPosition = 0;
+        currentSegment = id;
+        segments.add(id);
+    }
+
+    /**
+     * @param id the id of a segment
+     * @return the path of the segment
+     */
+    private Path segmentPath(long id) {
+        return directory.resolve(String.format("%s%08d%s", PREFIX, id, SUFFIX));
+    }
+
+    /**
+     * Write the queued messages and close the journal
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,803 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Non-blocking server core: one acceptor and N selector event loops shared by all the client connections.
+ * <p>
+ * Each event loop drives the key exchange, the framing, the decryption and the dispatch of the connections registered
+ * on it, so the number of threads does not depend on the number of connected clients. The frames queued to a channel
+ * while the loop handles its events are written together at the end of the loop iteration, with one gathering write.
+ */
+public class NioServerEngine implements Runnable {
+
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int MAX_HANDSHAKE_SIZE = 64 * 1024;
+
+    private final Server server;
+    private final ServerSocketChannel serverChannel;
+    private final Selector acceptSelector;
+    private final EventLoop[] loops;
+    private int nextLoop;
+    private volatile boolean done;
+    // Set by stopAccepting(): the accept loop ends, the event loops go on
+    private volatile boolean acceptClosed;
+
+    /**
+     * Constructor
+     *
+     * @param server     the server (owner of the connections)
+     * @param port       the port
+     * @param backlog    the number of connections waiting to be accepted
+     * @param eventLoops the number of event loops
+     * @throws IOException if the port cannot be bound
+     */
+    public NioServerEngine(Server server, int port, int backlog, int eventLoops) throws IOException {
+        this.server = server;
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), backlog);
+        serverChannel.configureBlocking(false);
+        acceptSelector = Selector.open();
+        serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+        loops = new EventLoop[eventLoops];
+        for (int i = 0; i < eventLoops; i++) {
+            loops[i] = new EventLoop(i);
+        }
+    }
+
+    /**
+     * Accept the clients and spread them over the event loops (round robin)
+     */
+    @Override
+    public void run() {
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+        while (!done) {
+            try {
+                // Backpressure: don't accept more clients while too many key exchanges are in flight
+                server.awaitHandshakeSlot();
+            } catch (InterruptedException e) {
+                break;
+            }
+            SocketChannel channel = null;
+            try {
+                while (channel == null && !done && !acceptClosed) {
+                    acceptSelector.select();
+                    acceptSelector.selectedKeys().clear();
+                    channel = serverChannel.accept();
+                }
+                if (channel == null) {
+                    server.releaseHandshakeSlot();
+                    break;
+                }
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                EventLoop loop = loops[nextLoop++ % loops.length];
+                // From now on the connection frees the slot when its key exchange ends (or fails to register)
+                loop.register(channel);
+            } catch (ClosedSelectorException e) {
+                server.releaseHandshakeSlot();
+                closeQuietly(channel);
+                break;
+            } catch (IOException e) {
+                // The key exchange never started: give its slot back, or the server ends up accepting nobody
+                server.releaseHandshakeSlot();
+                closeQuietly(channel);
+                if (!done && !acceptClosed) {
+                    ServerLog.error("Error accepting client");
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop accepting clients (the connected ones stay on the event loops)
+     *
+     * @throws IOException if the port cannot be closed
+     */
+    public void stopAccepting() throws IOException {
+        acceptClosed = true;
+        acceptSelector.close();
+        serverChannel.close();
+    }
+
+    /**
+     * Stop accepting clients and stop the event loops
+     */
+    public void shutdown() {
+        done = true;
+        try {
+            stopAccepting();
+        } catch (IOException e) {
+            ServerLog.error("Error shutting down server");
+        }
+        for (EventLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+    }
+
+    /**
+     * A selector thread multiplexing a subset of the connections
+     */
+    private class EventLoop implements Runnable {
+
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // The connections with frames queued during this iteration (loop thread only)
+        private final List<ChannelConnection> pendingFlushes = new ArrayList<>();
+        private final Thread thread;
+
+        /**
+         * Constructor
+         *
+         * @param index the index of the loop (used in the thread name)
+         * @throws IOException if the selector cannot be opened
+         */
+        EventLoop(int index) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, "chat-event-loop-" + index);
+            thread.setDaemon(true);
+        }
+
+        /**
+         * Run a task on the loop thread
+         *
+         * @param task the task
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        /**
+         * @return true if the caller is the loop thread
+         */
+        boolean inLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        /**
+         * Register a freshly accepted channel on this loop
+         *
+         * @param channel the channel
+         */
+        void register(SocketChannel channel) {
+            execute(() -> {
+                ChannelConnection connection = new ChannelConnection(channel, this);
+                try {
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (IOException e) {
+                    ServerLog.error("Error accepting client");
+                    connection.close();
+                }
+            });
+        }
+
+        /**
+         * Defer the flush of a connection to the end of the iteration (loop thread only)
+         *
+         * @param connection the connection
+         */
+        void flushLater(ChannelConnection connection) {
+            if (!connection.flushPending) {
+                connection.flushPending = true;
+                pendingFlushes.add(connection);
+            }
+        }
+
+        /**
+         * Write the frames queued during the iteration
+         */
+        private void flushPending() {
+            for (int i = 0; i < pendingFlushes.size(); i++) {
+                ChannelConnection connection = pendingFlushes.get(i);
+                connection.flushPending = false;
+                connection.flush();
+            }
+            pendingFlushes.clear();
+        }
+
+        @Override
+        public void run() {
+            while (!done) {
+                try {
+                    selector.select();
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        // A failing task must not stop the loop: the other connections of the loop still need it
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            ServerLog.error("Error running event loop task");
+                        }
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        ChannelConnection connection = (ChannelConnection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable();
+                            }
+                        } catch (RuntimeException e) {
+                            // Only this connection is lost
+                            ServerLog.error("Error running connection handler");
+                            connection.disconnect(new IOException(e));
+                        }
+                    }
+                    flushPending();
+                } catch (IOException | ClosedSelectorException e) {
+                    if (!done) {
+                        ServerLog.error("Error in event loop");
+                    }
+                }
+            }
+            // Close the connections still registered on this loop
+            for (SelectionKey key : selector.keys()) {
+                closeQuietly(key.channel());
+            }
+            closeQuietly(selector);
+        }
+    }
+
+    /**
+     * The state of one client channel (handshake, then frames)
+     */
+    private class ChannelConnection {
+
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private final OutboundQueue<ByteBuffer> outbound = server.newOutboundQueue();
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private final FrameCodec.WriteBatching batching = server.writeBatching();
+        private final int maxFrameSize = server.maxFrameSize();
+        // Used by flush() only
+        private final List<ByteBuffer> batch = new ArrayList<>();
+        private ByteBuffer[] gather = new ByteBuffer[0];
+        // Set by the event loop when this connection waits for the end of the iteration to be flushed
+        private boolean flushPending;
+        private SelectionKey key;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        // The preamble sent by the client, and the answer (once the ticket that may follow it is read)
+        private FrameCodec.Preamble requested;
+        private FrameCodec.Preamble preamble;
+        private KeyPair ecdhKeyPair;
+        private byte[] ecdhPublicKey;
+        private Server.ConnectionHandler handler;
+        private ScheduledFuture<?> handshakeTimer;
+        // A frame received above the rate limits, handled when it is due (loop thread only, no reads meanwhile)
+        private FrameCodec.Frame delayedFrame;
+        private boolean closed;
+
+        /**
+         * Constructor
+         *
+         * @param channel the client channel
+         * @param loop    the event loop of the channel
+         */
+        ChannelConnection(SocketChannel channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+            // The connection is closed if the key exchange takes too long
+            handshakeTimer = server.startHandshakeTimer(() -> {
+                ServerLog.warn("Handshake timed out");
+                close();
+            });
+        }
+
+        /**
+         * Free the key exchange slot of this connection (only once)
+         *
+         * @return false if the key exchange timed out
+         */
+        private synchronized boolean endHandshake() {
+            if (handshakeTimer == null) {
+                return true;
+            }
+            boolean inTime = server.endHandshake(handshakeTimer);
+            handshakeTimer = null;
+            return inTime;
+        }
+
+        /**
+         * Read what is available and process the complete frames
+         */
+        void onReadable() {
+            int read;
+            try {
+                read = channel.read(readBuffer);
+            } catch (IOException e) {
+                disconnect(e);
+                return;
+            }
+            if (read < 0) {
+                disconnect(null);
+                return;
+            }
+            processBuffer();
+        }
+
+        /**
+         * Handle the delayed frame when it is due, then the frames buffered behind it, and read again
+         */
+        private void resume() {
+            FrameCodec.Frame frame = delayedFrame;
+            delayedFrame = null;
+            if (closed || frame == null) {
+                return;
+            }
+            try {
+                handler.onFrame(frame);
+            } catch (RuntimeException e) {
+                // Like a frame handled by processBuffer(): only this connection is lost
+                ServerLog.error("Error running connection handler");
+                disconnect(new IOException(e));
+                return;
+            }
+            updateInterest(!outbound.isEmpty());
+            processBuffer();
+        }
+
+        /**
+         * Run the handshake or decode the complete frames of the read buffer
+         */
+        private void processBuffer() {
+            readBuffer.flip();
+            try {
+                if (handler == null) {
+                    handshake();
+                }
+                while (handler != null && !closed && delayedFrame == null && decodeFrame()) {
+                    // Keep decoding while complete frames are buffered
+                }
+            } catch (Exception e) {
+                ServerLog.error(handler == null ? "Error accepting client" : "Error running connection handler");
+                disconnect(e instanceof IOException ? (IOException) e : new IOException(e));
+                return;
+            }
+            readBuffer.compact();
+        }
+
+        /**
+         * Read the preamble and the public key of the client, then answer with the encrypted session key (or finish the
+         * X25519 exchange)
+         *
+         * @throws Exception if the handshake is invalid
+         */
+        private void handshake() throws Exception {
+            // Negotiate the wire format (old clients don't send a preamble and keep the text format)
+            if (requested == null) {
+                if (readBuffer.remaining() < FrameCodec.MAGIC.length) {
+                    ensureCapacity(FrameCodec.MAGIC.length, MAX_HANDSHAKE_SIZE);
+                    return;
+                }
+                byte[] magic = new byte[FrameCodec.MAGIC.length];
+                readBuffer.get(readBuffer.position(), magic);
+                if (!Arrays.equals(magic, FrameCodec.MAGIC)) {
+                    requested = preamble = new FrameCodec.Preamble(FrameCodec.LEGACY_VERSION, 0);
+                } else if (readBuffer.remaining() < FrameCodec.MAGIC.length + 5) {
+                    return;
+                } else {
+                    readBuffer.position(readBuffer.position() + FrameCodec.MAGIC.length);
+                    requested = new FrameCodec.Preamble(readBuffer.get(), readBuffer.getInt());
+                }
+            }
+            if (preamble == null) {
+                FrameCodec.Preamble accepted = server.answerPreamble(requested);
+                boolean resumption = (requested.features & FrameCodec.FEATURE_RESUMPTION) != 0;
+                SessionTickets.Ticket ticket = null;
+                byte[] clientNonce = null;
+                if (resumption) {
+                    // Wait for the ticket of the last session (it follows the preamble)
+                    if (readBuffer.remaining() < 2) {
+                        return;
+                    }
+                    int length = readBuffer.getShort(readBuffer.position()) & 0xffff;
+                    if (length > SessionTickets.MAX_TICKET_SIZE) {
+                        throw new IOException("Ticket too large: " + length);
+                    }
+                    int size = 2 + (length > 0 ? length + SessionTickets.NONCE_SIZE : 0);
+                    if (readBuffer.remaining() < size) {
+                        ensureCapacity(size, MAX_HANDSHAKE_SIZE);
+                        return;
+                    }
+                    readBuffer.getShort();
+                    if (length > 0) {
+                        byte[] presented = new byte[length];
+                        readBuffer.get(presented);
+                        clientNonce = new byte[SessionTickets.NONCE_SIZE];
+                        readBuffer.get(clientNonce);
+                        ticket = server.openTicket(presented, accepted.features);
+                    }
+                }
+                preamble = accepted;
+
+                // The client waits for the answer before starting the key exchange
+                ByteArrayOutputStream answer = new ByteArrayOutputStream();
+                FrameCodec.writePreambleAnswer(answer, preamble);
+                if (ticket != null) {
+                    // No key exchange: the key is derived from the secret of the ticket and a nonce of each side
+                    byte[] serverNonce = SessionTickets.randomBytes();
+                    answer.write(SessionTickets.RESUMED);
+                    answer.write(serverNonce);
+                    send(ByteBuffer.wrap(answer.toByteArray()), false);
+                    registerHandler(SessionTickets.resumedKey(ticket.secret, clientNonce, serverNonce), ticket);
+                    return;
+                }
+                if (resumption) {
+                    answer.write(SessionTickets.NOT_RESUMED);
+                }
+                if ((preamble.features & FrameCodec.FEATURE_ECDH) != 0) {
+                    // Our X25519 key goes out with the answer (one round trip for the whole exchange)
+                    ecdhKeyPair = KeyExchange.generateKeyPair();
+                    ecdhPublicKey = KeyExchange.encodePublicKey(ecdhKeyPair.getPublic());
+                    answer.write(ecdhPublicKey);
+                }
+                send(ByteBuffer.wrap(answer.toByteArray()), false);
+            }
+
+            if (ecdhKeyPair != null) {
+                // Wait for the raw public key of the client
+                if (readBuffer.remaining() < KeyExchange.PUBLIC_KEY_SIZE) {
+                    return;
+                }
+                byte[] clientPublicKey = new byte[KeyExchange.PUBLIC_KEY_SIZE];
+                readBuffer.get(clientPublicKey);
+                Key sessionKey = KeyExchange.deriveSessionKey(ecdhKeyPair.getPrivate(), clientPublicKey, ecdhPublicKey, true);
+                ecdhKeyPair = null;
+                registerHandler(sessionKey, null);
+                return;
+            }
+
+            // Receive the public key from the client (Java serialization, wait until the object is complete)
+            byte[] pending = new byte[readBuffer.remaining()];
+            readBuffer.get(readBuffer.position(), pending);
+            ByteArrayInputStream bytesIn = new ByteArrayInputStream(pending);
+            PublicKey clientPublicKey;
+            try {
+                clientPublicKey = (PublicKey) new ObjectInputStream(bytesIn).readObject();
+            } catch (EOFException e) {
+                ensureCapacity(pending.length + 1, MAX_HANDSHAKE_SIZE);
+                return;
+            }
+            readBuffer.position(readBuffer.position() + pending.length - bytesIn.available());
+
+            // Create a session key and encrypt it with the client's public key
+            Key sessionKey = Server.generateSessionKey();
+            byte[] encryptedSessionKey = Server.encryptSessionKey(sessionKey, clientPublicKey);
+
+            // Send the encrypted session key to the client
+            ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+            ObjectOutputStream objectOutputStream = new ObjectOutputStream(bytesOut);
+            objectOutputStream.writeObject(encryptedSessionKey);
+            objectOutputStream.flush();
+            send(ByteBuffer.wrap(bytesOut.toByteArray()), false);
+            registerHandler(sessionKey, null);
+        }
+
+        /**
+         * End the key exchange and create the connection handler of the client
+         *
+         * @param sessionKey the session key
+         * @param ticket     the ticket of a resumed session (null after a key exchange)
+         * @throws GeneralSecurityException if the ciphers of the session cannot be created
+         */
+        private void registerHandler(Key sessionKey, SessionTickets.Ticket ticket) throws GeneralSecurityException {
+            if (!endHandshake() || closed) {
+                // Closed by the handshake timer
+                return;
+            }
+
+            // Create a connection handler for the client (it runs on this event loop)
+            handler = server.register(channel.socket(), null, new ChannelWriter(this, preamble.isBinary()), sessionKey, preamble.features);
+            if (ticket != null) {
+                handler.resumeFrom(ticket);
+            }
+            handler.start();
+        }
+
+        /**
+         * Decode one frame from the read buffer and dispatch it
+         *
+         * @return true if a frame was decoded
+         * @throws IOException if the frame is malformed
+         */
+        private boolean decodeFrame() throws IOException {
+            FrameCodec.Frame frame = preamble.isBinary() ? decodeBinary() : decodeLegacy();
+            if (frame == null) {
+                return false;
+            }
+            long wait = handler.admit(frame);
+            if (wait > 0) {
+                // Above the rate: stop reading from this client until the frame is due (TCP slows the client down)
+                delayedFrame = frame;
+                updateInterest(!outbound.isEmpty());
+                server.schedule(() -> loop.execute(this::resume), wait);
+                return false;
+            }
+            if (wait == 0) {
+                handler.onFrame(frame);
+            }
+            return true;
+        }
+
+        /**
+         * Select the events of the channel: reads unless a frame is delayed, writes when the socket buffer was full
+         *
+         * @param write true to wait for the socket to be writable
+         */
+        private void updateInterest(boolean write) {
+            if (key != null && key.isValid()) {
+                key.interestOps((delayedFrame == null ? SelectionKey.OP_READ : 0) | (write ? SelectionKey.OP_WRITE : 0));
+            }
+        }
+
+        /**
+         * Decode a length-prefixed frame
+         *
+         * @return the frame, or null if it is not complete yet
+         * @throws IOException if the length is invalid
+         */
+        private FrameCodec.Frame decodeBinary() throws IOException {
+            if (readBuffer.remaining() < 4) {
+                return null;
+            }
+            int length = readBuffer.getInt(readBuffer.position());
+            if (length < 1 || length > maxFrameSize) {
+                throw new StreamCorruptedException("Invalid frame length: " + length);
+            }
+            if (readBuffer.remaining() < 4 + length) {
+                ensureCapacity(4 + length, 4 + maxFrameSize);
+                return null;
+            }
+            readBuffer.getInt();
+            byte type = readBuffer.get();
+            byte[] payload = new byte[length - 1];
+            readBuffer.get(payload);
+            return new FrameCodec.Frame(type, payload);
+        }
+
+        /**
+         * Decode a legacy text line
+         *
+         * @return the frame, or null if the line is not complete yet
+         * @throws IOException if the line is malformed
+         */
+        private FrameCodec.Frame decodeLegacy() throws IOException {
+            int start = readBuffer.position();
+            for (int i = start; i < readBuffer.limit(); i++) {
+                if (readBuffer.get(i) == '\n') {
+                    int end = i > start && readBuffer.get(i - 1) == '\r' ? i - 1 : i;
+                    byte[] line = new byte[end - start];
+                    readBuffer.get(start, line);
+                    readBuffer.position(i + 1);
+                    return new FrameCodec.Frame(FrameCodec.TYPE_MESSAGE,
+                            FrameCodec.parseLegacyString(new String(line, StandardCharsets.ISO_8859_1)));
+                }
+            }
+            ensureCapacity(readBuffer.remaining() + 1, FrameCodec.maxLegacyLineSize(maxFrameSize));
+            return null;
+        }
+
+        /**
+         * Grow the read buffer (in read mode) so that it can hold at least the given number of bytes
+         *
+         * @param needed the number of bytes
+         * @param max    the maximum size allowed
+         * @throws StreamCorruptedException if the client sends more than allowed
+         */
+        private void ensureCapacity(int needed, int max) throws StreamCorruptedException {
+            if (needed > max) {
+                throw new StreamCorruptedException("Frame too large");
+            }
+            if (needed > readBuffer.capacity()) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.min(max, Math.max(needed, readBuffer.capacity() * 2)));
+                bigger.put(readBuffer);
+                bigger.flip();
+                readBuffer = bigger;
+            }
+        }
+
+        /**
+         * Queue bytes to send (can be called from any thread)
+         *
+         * @param buffer    the bytes
+         * @param droppable true if the bytes are a chat message the overflow policy may drop
+         */
+        void send(ByteBuffer buffer, boolean droppable) {
+            if (closed) {
+                return;
+            }
+            if (outbound.offer(buffer, droppable) == OutboundQueue.Result.OVERFLOW) {
+                // Slow client: drop what it did not read yet and disconnect it
+                outbound.clear();
+                if (handler != null) {
+                    handler.onSlowConsumer();
+                } else {
+                    close();
+                }
+                return;
+            }
+            if (loop.inLoop()) {
+                if (batching.maxFrames > 1) {
+                    // The other frames of the iteration (e.g. of a broadcast) go out with the same write
+                    loop.flushLater(this);
+                } else {
+                    flush();
+                }
+            } else if (flushScheduled.compareAndSet(false, true)) {
+                loop.execute(() -> {
+                    flushScheduled.set(false);
+                    flush();
+                });
+            }
+        }
+
+        /**
+         * Write the queued bytes until the socket buffer is full (several frames per write)
+         */
+        synchronized void flush() {
+            if (!channel.isOpen()) {
+                return;
+            }
+            try {
+                int count;
+                while ((count = outbound.peekBatch(batch, batching.maxFrames)) > 0) {
+                    if (gather.length < count) {
+                        gather = new ByteBuffer[batching.maxFrames];
+                    }
+                    batch.toArray(gather);
+                    channel.write(gather, 0, count);
+                    batching.writes.increment();
+                    int written = 0;
+                    while (written < count && !gather[written].hasRemaining()) {
+                        written++;
+                    }
+                    outbound.remove(written);
+                    if (written < count) {
+                        // Wait for the socket to be writable again
+                        Arrays.fill(gather, null);
+                        updateInterest(true);
+                        return;
+                    }
+                }
+                Arrays.fill(gather, null);
+                batch.clear();
+                updateInterest(false);
+            } catch (IOException e) {
+                disconnect(e);
+            }
+        }
+
+        /**
+         * Handle the end of the connection
+         *
+         * @param e the error (null if the client closed the connection)
+         */
+        private void disconnect(IOException e) {
+            if (handler != null) {
+                handler.onDisconnect(e);
+            }
+            close();
+        }
+
+        /**
+         * Try to write what is still queued, then close the channel
+         */
+        synchronized void close() {
+            if (closed) {
+                return;
+            }
+            // Closed first: a failed flush calls disconnect() again
+            closed = true;
+            endHandshake();
+            flush();
+            outbound.clear();
+            if (key != null) {
+                key.cancel();
+            }
+            closeQuietly(channel);
+        }
+    }
+
+    /**
+     * The writer given to the connection handlers of this engine: frames are encoded into the outbound queue of the
+     * channel (the frames of the client are read by the event loop)
+     */
+    private static class ChannelWriter implements FrameWriter {
+
+        private final ChannelConnection connection;
+        private final boolean binary;
+
+        /**
+         * Constructor
+         *
+         * @param connection the channel connection
+         * @param binary     true for the binary format, false for the legacy text format
+         */
+        ChannelWriter(ChannelConnection connection, boolean binary) {
+            this.connection = connection;
+            this.binary = binary;
+        }
+
+        @Override
+        public void writeFrame(byte type, byte[] payload) throws IOException {
+            if (connection.closed) {
+                throw new IOException("Stream closed");
+            }
+            if (binary) {
+                writeEncodedFrame(FrameCodec.encodeFrame(type, payload));
+            } else if (type == FrameCodec.TYPE_MESSAGE) {
+                // Old clients only understand messages
+                String line = FrameCodec.toLegacyString(payload) + System.lineSeparator();
+                connection.send(ByteBuffer.wrap(line.getBytes(StandardCharsets.ISO_8859_1)), true);
+            }
+        }
+
+        @Override
+        public void writeEncodedFrame(byte[] frame) throws IOException {
+            if (!binary) {
+                FrameWriter.super.writeEncodedFrame(frame);
+                return;
+            }
+            if (connection.closed) {
+                throw new IOException("Stream closed");
+            }
+            // The array may be shared with other connections, each one gets its own buffer position
+            connection.send(ByteBuffer.wrap(frame), FrameCodec.isChatFrame(frame));
+        }
+
+        @Override
+        public void close() {
+            connection.close();
+        }
+
+        @Override
+        public boolean isBinary() {
+            return binary;
+        }
+
+        @Override
+        public int pendingWrites() {
+            return connection.outbound.size();
+        }
+    }
+
+    /**
+     * Close a resource and ignore the errors
+     *
+     * @param closeable the resource (nothing to do if null)
+     */
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+}
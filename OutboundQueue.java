@@ -0,0 +1,206 @@
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The bounded queue of the messages waiting to be written to one client.
+ * <p>
+ * Any thread can add messages (broadcasts, private messages...), one writer at a time takes them: peekBatch() the
+ * first messages, write them, then remove() the ones written. When the queue is full, the overflow policy of the
+ * server either drops the oldest message or reports the overflow so the slow client can be disconnected. Only the
+ * messages queued as droppable (chat messages) are ever dropped: room keys, control frames and file chunks are kept,
+ * and a queue full of them overflows.
+ *
+ * @param <T> the type of the queued messages
+ */
+public class OutboundQueue<T> {
+
+    /**
+     * The result of offer()
+     */
+    public enum Result {
+        QUEUED, DROPPED_OLDEST, OVERFLOW
+    }
+
+    private final ArrayDeque<Entry<T>> items = new ArrayDeque<>();
+    private final int capacity;
+    private final ServerConfig.OverflowPolicy policy;
+    private final LongAdder serverDrops;
+    private final ReentrantLock lock = new ReentrantLock();
+    // The writer took the first messages and may have written part of them: they must not be dropped
+    private int inFlight;
+
+    /**
+     * A queued message
+     *
+     * @param <T> the type of the message
+     */
+    private static final class Entry<T> {
+        private final T item;
+        private final boolean droppable;
+
+        /**
+         * Constructor
+         *
+         * @param item      the message
+         * @param droppable true if the overflow policy may drop it
+         */
+        Entry(T item, boolean droppable) {
+            this.item = item;
+            this.droppable = droppable;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param capacity    the maximum number of queued messages (0 for no limit)
+     * @param policy      what to do when the queue is full
+     * @param serverDrops the counter of the messages dropped by all the queues of the server
+     */
+    public OutboundQueue(int capacity, ServerConfig.OverflowPolicy policy, LongAdder serverDrops) {
+        this.capacity = capacity > 0 ? capacity : Integer.MAX_VALUE;
+        this.policy = policy;
+        this.serverDrops = serverDrops;
+    }
+
+    /**
+     * Add a message at the end of the queue
+     *
+     * @param item      the message
+     * @param droppable true if the message can be dropped when the queue is full (a chat message), false if the client
+     *                  needs it (a room key, a control frame, a file chunk)
+     * @return QUEUED, DROPPED_OLDEST if a message was dropped to make room, or OVERFLOW if the queue is full and the
+     * client should be disconnected (the message is not queued)
+     */
+    public Result offer(T item, boolean droppable) {
+        lock.lock();
+        try {
+            Result result = Result.QUEUED;
+            if (items.size() >= capacity) {
+                if (policy == ServerConfig.OverflowPolicy.DISCONNECT) {
+                    return Result.OVERFLOW;
+                }
+                // Drop the oldest droppable message the writer has not started
+                if (!dropOldest()) {
+                    if (!droppable) {
+                        // Nothing can make room for a message the client needs
+                        return Result.OVERFLOW;
+                    }
+                    // Only messages being written or needed are queued: drop the new one instead
+                    drop();
+                    return Result.DROPPED_OLDEST;
+                }
+                result = Result.DROPPED_OLDEST;
+            }
+            items.addLast(new Entry<>(item, droppable));
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove the oldest droppable message that is not in flight (lock held)
+     *
+     * @return false if there is none
+     */
+    private boolean dropOldest() {
+        Iterator<Entry<T>> iterator = items.iterator();
+        // The first inFlight messages may be partly written
+        for (int i = 0; i < inFlight && iterator.hasNext(); i++) {
+            iterator.next();
+        }
+        while (iterator.hasNext()) {
+            if (iterator.next().droppable) {
+                iterator.remove();
+                drop();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Count a dropped message
+     */
+    private void drop() {
+        serverDrops.increment();
+    }
+
+    /**
+     * Get the next messages to write in one go (they stay in the queue until remove(count) is called)
+     *
+     * @param batch the list to fill (cleared first)
+     * @param max   the maximum number of messages
+     * @return the number of messages added to the list
+     */
+    public int peekBatch(List<T> batch, int max) {
+        batch.clear();
+        lock.lock();
+        try {
+            for (Entry<T> entry : items) {
+                if (batch.size() >= max) {
+                    break;
+                }
+                batch.add(entry.item);
+            }
+            inFlight = batch.size();
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove the first messages once they are written (the others returned by peekBatch() stay in flight, the first
+     * one may be partly written)
+     *
+     * @param count the number of messages written
+     */
+    public void remove(int count) {
+        lock.lock();
+        try {
+            for (int i = 0; i < count; i++) {
+                items.pollFirst();
+            }
+            inFlight = Math.max(0, inFlight - count);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove all the messages (the connection is closed)
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            items.clear();
+            inFlight = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of queued messages
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return items.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if no message is queued
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+}
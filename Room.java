@@ -0,0 +1,253 @@
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A chat room: its members and its room key.
+ * <p>
+ * The messages of a member only fan out to the members of its room, so the cost of a message depends on the size of
+ * the room, not on the number of clients of the server.
+ */
+public class Room {
+
+    public static final String DEFAULT = "general";
+    // The compressed frame of a broadcast when compression doesn't make it smaller
+    private static final byte[] NOT_COMPRESSED = new byte[0];
+
+    public final String name;
+    // The last messages of the room (replayed to the clients that join it)
+    public final RoomHistory history;
+    private final boolean roomKeys;
+    private final int compressThreshold;
+    private final ServerMetrics metrics;
+    private final List<Server.ConnectionHandler> members = new CopyOnWriteArrayList<>();
+    private final ReentrantLock rekeyLock = new ReentrantLock();
+    // Held from the encryption of a broadcast with the room key to its last write: the members must get the frames in
+    // the order of the nonces of the key (GCM refuses a lower one), so two broadcasts never interleave
+    private final ReentrantLock broadcastLock = new ReentrantLock();
+    private volatile GroupKey roomKey;
+    private volatile boolean membersChanged;
+
+    /**
+     * Constructor
+     *
+     * @param name     the name of the room
+     * @param roomKeys          true to encrypt the broadcasts with a room key (--room-key)
+     * @param compressThreshold the smallest broadcast compressed for the members that accept it (0 to never compress)
+     * @param history           the last messages of the room
+     * @param metrics           the metrics of the server
+     */
+    public Room(String name, boolean roomKeys, int compressThreshold, RoomHistory history, ServerMetrics metrics) {
+        this.name = name;
+        this.roomKeys = roomKeys;
+        this.compressThreshold = compressThreshold;
+        this.history = history;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Add a member
+     *
+     * @param member the member
+     */
+    void add(Server.ConnectionHandler member) {
+        members.add(member);
+        membersChanged = true;
+    }
+
+    /**
+     * Remove a member
+     *
+     * @param member the member
+     * @return true if it was a member
+     */
+    boolean remove(Server.ConnectionHandler member) {
+        boolean removed = members.remove(member);
+        if (removed) {
+            membersChanged = true;
+        }
+        return removed;
+    }
+
+    /**
+     * @return the number of members
+     */
+    public int size() {
+        return members.size();
+    }
+
+    /**
+     * @return true if the room has no member
+     */
+    public boolean isEmpty() {
+        return members.isEmpty();
+    }
+
+    /**
+     * Broadcast a message to the members except one. The members that have the current room key share one encryption
+     * of the message (one for the members that accept compression, one for the others), the other members get it
+     * encrypted with their session key.
+     *
+     * @param message the message to broadcast
+     * @param exclude the member to exclude (or null)
+     */
+    void broadcast(String message, Server.ConnectionHandler exclude) {
+        long start = System.nanoTime();
+        GroupKey groupKey = currentRoomKey();
+        if (groupKey == null) {
+            // Session keys only: each member orders its own nonces
+            fanOut(message, exclude, null);
+        } else {
+            broadcastLock.lock();
+            try {
+                fanOut(message, exclude, groupKey);
+            } finally {
+                broadcastLock.unlock();
+            }
+        }
+        metrics.broadcastTime.recordSince(start);
+    }
+
+    /**
+     * Write a broadcast to the members except one
+     *
+     * @param message  the message to broadcast
+     * @param exclude  the member to exclude (or null)
+     * @param groupKey the room key (null to use the session keys)
+     */
+    private void fanOut(String message, Server.ConnectionHandler exclude, GroupKey groupKey) {
+        byte[] sharedFrame = null;
+        byte[] compressedFrame = null;
+        int sharedWrites = 0;
+        int compressedWrites = 0;
+        int savedBytes = 0;
+        // The iteration is on a snapshot, a failed write can remove the member meanwhile
+        for (Server.ConnectionHandler member : members) {
+            if (member == exclude) {
+                continue;
+            }
+            if (groupKey != null && member.roomKeyId() == groupKey.id) {
+                // Compress once (lazily) for the members that accept it
+                if (member.acceptsCompression() && compressedFrame == null) {
+                    byte[] clear = message.getBytes(StandardCharsets.UTF_8);
+                    byte[] compressed = compress(clear);
+                    compressedFrame = compressed == null ? null
+                            : encodeRoomMessage(groupKey, FrameCodec.TYPE_COMPRESSED_ROOM_MESSAGE, compressed);
+                    if (compressedFrame == null) {
+                        compressedFrame = NOT_COMPRESSED;
+                    } else {
+                        savedBytes = clear.length - compressed.length;
+                    }
+                }
+                if (member.acceptsCompression() && compressedFrame != NOT_COMPRESSED) {
+                    member.sendEncodedFrame(compressedFrame);
+                    compressedWrites++;
+                    continue;
+                }
+                // Encrypt once (lazily) and write the same frame to every member
+                if (sharedFrame == null) {
+                    sharedFrame = encodeRoomMessage(groupKey, FrameCodec.TYPE_ROOM_MESSAGE, message.getBytes(StandardCharsets.UTF_8));
+                    if (sharedFrame == null) {
+                        groupKey = null;
+                        member.sendMessage(message);
+                        continue;
+                    }
+                }
+                member.sendEncodedFrame(sharedFrame);
+                sharedWrites++;
+            } else {
+                member.sendMessage(message);
+            }
+        }
+        if (sharedWrites > 0) {
+            // Counted once for all the members that share the frame
+            metrics.outboundMessages.add(sharedWrites);
+            metrics.outboundBytes.add((long) sharedWrites * sharedFrame.length);
+        }
+        if (compressedWrites > 0) {
+            metrics.outboundMessages.add(compressedWrites);
+            metrics.outboundBytes.add((long) compressedWrites * compressedFrame.length);
+            metrics.onCompressed(compressedWrites, savedBytes);
+        }
+    }
+
+    /**
+     * Encrypt a broadcast with a room key
+     *
+     * @param groupKey the room key
+     * @param type     the frame type
+     * @param clear    the message (compressed for TYPE_COMPRESSED_ROOM_MESSAGE)
+     * @return the encoded frame, or null if the message cannot be encrypted
+     */
+    private byte[] encodeRoomMessage(GroupKey groupKey, byte type, byte[] clear) {
+        long start = System.nanoTime();
+        try {
+            return groupKey.encodeMessageFrame(type, clear);
+        } catch (GeneralSecurityException e) {
+            ServerLog.error("Error encrypting message");
+            return null;
+        } finally {
+            metrics.encryptTime.recordSince(start);
+        }
+    }
+
+    /**
+     * Compress a broadcast
+     *
+     * @param clear the message
+     * @return the compressed message, or null if it is too small or compression doesn't make it smaller
+     */
+    private byte[] compress(byte[] clear) {
+        long start = System.nanoTime();
+        byte[] compressed = MessageCompressor.compress(clear, compressThreshold);
+        if (compressed != null) {
+            metrics.compressTime.recordSince(start);
+        }
+        return compressed;
+    }
+
+    /**
+     * Get the room key of the broadcasts. A new key is generated and sent to the members if the members changed since
+     * the last broadcast (so a reconnect storm costs one key rotation, not one per client).
+     *
+     * @return the room key, or null if room keys are disabled
+     */
+    private GroupKey currentRoomKey() {
+        if (!roomKeys) {
+            return null;
+        }
+        if (membersChanged) {
+            rekeyLock.lock();
+            try {
+                if (membersChanged) {
+                    membersChanged = false;
+                    rekey();
+                }
+            } finally {
+                rekeyLock.unlock();
+            }
+        }
+        return roomKey;
+    }
+
+    /**
+     * Generate a new room key and send it to the members (wrapped with their session key)
+     */
+    private void rekey() {
+        try {
+            GroupKey groupKey = GroupKey.generate();
+            for (Server.ConnectionHandler member : members) {
+                if (member.usesRoomKey()) {
+                    member.sendRoomKey(groupKey);
+                }
+            }
+            // Only published once every member got it
+            roomKey = groupKey;
+        } catch (GeneralSecurityException e) {
+            ServerLog.error("Error generating room key");
+            roomKey = null;
+        }
+    }
+}
@@ -0,0 +1,251 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The last messages of a room, kept in memory to replay them to the clients that join it.
+ * <p>
+ * The messages are stored as UTF-8 bytes in one circular byte array per room (no object per message): an index of
+ * offsets and lengths gives the position of each message. The oldest messages are evicted when the room holds
+ * --history-messages messages or its array is full. The array grows by doubling up to --history-room-bytes, and every
+ * byte is reserved from a budget shared by all the rooms (--history-memory): when the budget is spent, the rooms keep
+ * the size they have and evict sooner. The bytes go back to the budget when the room is deleted.
+ */
+public class RoomHistory {
+
+    private static final int INITIAL_BYTES = 4 * 1024;
+
+    private final int maxMessages;
+    private final int maxBytes;
+    private final AtomicLong budget;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // Guarded by lock
+    private byte[] data = new byte[0];
+    private final int[] offsets;
+    private final int[] lengths;
+    // Index of the oldest message, number of messages, first free byte and number of bytes used
+    private int first;
+    private int count;
+    private int tail;
+    private int used;
+    private boolean released;
+    // True once a message was evicted or not kept (older messages are only in the journal)
+    private boolean truncated;
+
+    /**
+     * Constructor (nothing is allocated for the messages before the first one)
+     *
+     * @param maxMessages the maximum number of messages
+     * @param maxBytes    the maximum size of the messages in bytes
+     * @param budget      the bytes left to all the rooms, decreased when the array grows
+     */
+    public RoomHistory(int maxMessages, int maxBytes, AtomicLong budget) {
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.budget = budget;
+        offsets = new int[maxMessages];
+        lengths = new int[maxMessages];
+    }
+
+    /**
+     * Add a message (evicting the oldest ones if needed)
+     *
+     * @param message the message
+     */
+    public void add(String message) {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        lock.lock();
+        try {
+            if (released) {
+                return;
+            }
+            if (maxMessages == 0) {
+                // No history in memory: the messages are only in the journal
+                truncated = true;
+                return;
+            }
+            if (bytes.length > data.length - used) {
+                grow(used + bytes.length);
+            }
+            if (bytes.length > data.length || data.length == 0) {
+                // Larger than the whole array (or no memory left): not kept
+                truncated = true;
+                return;
+            }
+            while (count == maxMessages || bytes.length > data.length - used) {
+                evictOldest();
+            }
+            // Copy the message at the tail, in two parts if it wraps around the end of the array
+            int firstPart = Math.min(bytes.length, data.length - tail);
+            System.arraycopy(bytes, 0, data, tail, firstPart);
+            System.arraycopy(bytes, firstPart, data, 0, bytes.length - firstPart);
+            int index = (first + count) % maxMessages;
+            offsets[index] = tail;
+            lengths[index] = bytes.length;
+            tail = (tail + bytes.length) % data.length;
+            used += bytes.length;
+            count++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove the oldest message
+     */
+    private void evictOldest() {
+        truncated = true;
+        used -= lengths[first];
+        first = (first + 1) % maxMessages;
+        count--;
+        if (count == 0) {
+            tail = 0;
+            used = 0;
+        }
+    }
+
+    /**
+     * Make the array larger (doubling, up to maxBytes and within the budget), keeping the messages in order
+     *
+     * @param needed the number of bytes wanted
+     */
+    private void grow(int needed) {
+        int size = Math.max(data.length, INITIAL_BYTES);
+        while (size < needed && size < maxBytes) {
+            size = Math.min(maxBytes, size * 2);
+        }
+        size = Math.min(size, maxBytes);
+        long extra = size - data.length;
+        if (extra <= 0 || !reserve(extra)) {
+            return;
+        }
+        byte[] larger = new byte[size];
+        // Move the messages to the start of the new array
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            int index = (first + i) % maxMessages;
+            copyOut(offsets[index], lengths[index], larger, position);
+            offsets[index] = position;
+            position += lengths[index];
+        }
+        data = larger;
+        tail = position % size;
+    }
+
+    /**
+     * Take bytes from the budget
+     *
+     * @param bytes the number of bytes
+     * @return false if the budget doesn't have them
+     */
+    private boolean reserve(long bytes) {
+        long left = budget.get();
+        while (left >= bytes) {
+            if (budget.compareAndSet(left, left - bytes)) {
+                return true;
+            }
+            left = budget.get();
+        }
+        return false;
+    }
+
+    /**
+     * Copy a stored message
+     *
+     * @param offset      the offset of the message in the array
+     * @param length      the length of the message
+     * @param destination the destination
+     * @param position    the position in the destination
+     */
+    private void copyOut(int offset, int length, byte[] destination, int position) {
+        int firstPart = Math.min(length, data.length - offset);
+        System.arraycopy(data, offset, destination, position, firstPart);
+        System.arraycopy(data, 0, destination, position + firstPart, length - firstPart);
+    }
+
+    /**
+     * Get the last messages
+     *
+     * @param limit the maximum number of messages
+     * @return the messages, oldest first
+     */
+    public List<String> recent(int limit) {
+        List<byte[]> copies;
+        lock.lock();
+        try {
+            int n = Math.max(0, Math.min(limit, count));
+            copies = new ArrayList<>(n);
+            for (int i = count - n; i < count; i++) {
+                int index = (first + i) % maxMessages;
+                byte[] copy = new byte[lengths[index]];
+                copyOut(offsets[index], lengths[index], copy, 0);
+                copies.add(copy);
+            }
+        } finally {
+            lock.unlock();
+        }
+        // Decode outside the lock
+        List<String> messages = new ArrayList<>(copies.size());
+        for (byte[] copy : copies) {
+            messages.add(new String(copy, StandardCharsets.UTF_8));
+        }
+        return messages;
+    }
+
+    /**
+     * @return the number of messages kept
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if every message added is still kept
+     */
+    public boolean isComplete() {
+        lock.lock();
+        try {
+            return !truncated;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the size of the array of the messages in bytes
+     */
+    public int capacity() {
+        lock.lock();
+        try {
+            return data.length;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Free the messages and give their bytes back to the budget (the room was deleted)
+     */
+    public void release() {
+        lock.lock();
+        try {
+            released = true;
+            budget.addAndGet(data.length);
+            data = new byte[0];
+            first = 0;
+            count = 0;
+            tail = 0;
+            used = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
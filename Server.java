@@ -3,369 +3,2031 @@ import javax.crypto.KeyGenerator;
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.security.*;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Vector;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A simple chat server
  */
 public class Server implements Runnable {
 
-    private final Vector<ConnectionHandler> connections;
+    private final ConnectionRegistry<ConnectionHandler> connections;
+    private final ServerConfig config;
     private ServerSocket server;
+    private NioServerEngine engine;
     private boolean done;
     private ExecutorService pool;
+    private ExecutorService handshakePool;
+    private final Semaphore handshakePermits;
+    private final ScheduledExecutorService handshakeTimer;
+    // The periodic tasks (metrics, timer wheel) and the deferred shutdowns, apart so they never delay a handshake timeout
+    private final ScheduledExecutorService scheduler;
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private final CommandDispatcher<ConnectionHandler> commands = new CommandDispatcher<>();
+    private MessageJournal journal;
+    // The links with the other nodes (null for a single node)
+    private ClusterBus cluster;
+    // Bytes left for the in-memory history of the rooms
+    private final AtomicLong historyMemory;
+    // Maximum number of messages of /history
+    private static final int MAX_HISTORY = 1000;
+    // Maximum length of a nickname or a room name, in characters (the journal stores a room name in at most 65535 bytes)
+    static final int MAX_NAME_LENGTH = 64;
+    // A client above its rate is told (and logged) at most this often
+    private static final long RATE_NOTICE_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+    private final ServerMetrics metrics = new ServerMetrics(this);
+    private final FrameCodec.WriteBatching writeBatching;
+    private final LongAdder droppedFrames = new LongAdder();
+    private final LongAdder slowConsumers = new LongAdder();
+    // The idle timeouts and the rate limit pauses of all the connections (one periodic task on the scheduler, not
+    // one task per connection)
+    private final TimerWheel timers = new TimerWheel(100, TimeUnit.MILLISECONDS, 512);
+    private final LongAdder idleDisconnects = new LongAdder();
+    // The inbound budget shared by all the clients (null if unlimited)
+    private final TokenBucket globalRate;
+    private final LongAdder rateLimited = new LongAdder();
+    private final LongAdder floodDisconnects = new LongAdder();
+    // The resumption tickets (null if resumption is disabled)
+    private SessionTickets tickets;
+    private final LongAdder resumedSessions = new LongAdder();
+    // Files relayed from a client to another one (completed), and the bytes of their chunks
+    private final LongAdder filesRelayed = new LongAdder();
+    private final LongAdder fileBytesRelayed = new LongAdder();
+    // Set by drain(): no new clients, the connected ones are told to reconnect
+    private volatile boolean draining;
 
     /**
      * Constructor
      */
     public Server(int port) {
-        connections = new Vector<>();
+        this(configForPort(port));
+    }
+
+    /**
+     * Constructor
+     *
+     * @param config the startup options
+     */
+    public Server(ServerConfig config) {
+        this.config = config;
+        ServerLog.configure(config.logLevel, config.logContent);
+        connections = new ConnectionRegistry<>();
+        if (config.journalDirectory != null) {
+            try {
+                journal = new MessageJournal(Paths.get(config.journalDirectory), config.journalSegmentSize,
+                        config.journalSegments, config.journalSyncMillis);
+            } catch (IOException e) {
+                ServerLog.error("Error opening the journal, the history is disabled");
+            }
+        }
+        historyMemory = new AtomicLong(config.historyMemory);
+        globalRate = config.globalRateMessages > 0
+                ? new TokenBucket(config.globalRateMessages, config.rateBurstMillis, TimeUnit.MILLISECONDS) : null;
+        writeBatching = new FrameCodec.WriteBatching(config.writeBatch,
+                TimeUnit.MICROSECONDS.toNanos(config.writeDelayMicros), metrics.socketWrites.counter());
+        rooms.put(Room.DEFAULT, newRoom(Room.DEFAULT));
+        registerCommands();
         done = false;
+
+        // At most maxHandshakes clients can be in the key exchange, the others wait in the backlog of the OS
+        handshakePermits = new Semaphore(config.maxHandshakes);
+        handshakeTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "chat-handshake-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "chat-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // The scheduler computes the rates of the metrics every second
+        scheduler.scheduleAtFixedRate(metrics::sample, 1, 1, TimeUnit.SECONDS);
+        // And turns the timer wheel of the connections
+        scheduler.scheduleAtFixedRate(timers::tick, timers.tickNanos(), timers.tickNanos(), TimeUnit.NANOSECONDS);
+        if (config.jmx) {
+            metrics.registerMBean();
+        }
+        if (config.metricsPort >= 0) {
+            try {
+                metrics.startEndpoint(config.metricsPort);
+            } catch (IOException e) {
+                ServerLog.error("Error opening the metrics endpoint");
+            }
+        }
+        if (config.ticketLifetimeMillis > 0) {
+            try {
+                tickets = SessionTickets.open(config.ticketKeyFile, config.ticketLifetimeMillis);
+            } catch (IOException e) {
+                ServerLog.error("Error opening the ticket key, resumption is disabled");
+            }
+        }
+        if (config.clusterPort >= 0 && config.clusterSecretFile == null) {
+            ServerLog.error("Error: a cluster needs --cluster-secret, running as a single node");
+        } else if (config.clusterPort >= 0) {
+            try {
+                cluster = new ClusterBus(this, config);
+                cluster.start();
+            } catch (IOException e) {
+                ServerLog.error("Error opening the cluster port, running as a single node");
+            }
+        }
         try {
-            // Create a server socket on port: port
-            server = new ServerSocket(port);
+            if (config.mode == ServerConfig.Mode.NIO) {
+                // Create the selector event loops on port: port
+                engine = new NioServerEngine(this, config.port, config.acceptBacklog, config.eventLoops);
+            } else {
+                // Create a server socket on port: port
+                server = new ServerSocket(config.port, config.acceptBacklog);
+            }
         } catch (IOException e) {
-            System.out.println("Error creating server socket");
+            ServerLog.error("Error creating server socket");
+            shutdown();
+        }
+
+        // Create a thread pool to handle the connections with the clients (not needed by the event loops)
+        if (config.mode == ServerConfig.Mode.VIRTUAL) {
+            pool = newVirtualThreadExecutor();
+            if (pool == null) {
+                ServerLog.warn("Virtual threads are not available on this JVM, using a cached thread pool");
+                config.mode = ServerConfig.Mode.BLOCKING;
+            }
+        }
+        if (config.mode == ServerConfig.Mode.BLOCKING) {
+            pool = Executors.newCachedThreadPool();
+
+            // The key exchanges run on a bounded pool, not on the accept loop
+            handshakePool = new ThreadPoolExecutor(config.handshakeThreads, config.handshakeThreads,
+                    0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(config.maxHandshakes));
+        }
+        ServerLog.info("Server started (" + config.mode.name().toLowerCase() + " mode)");
+        ServerLog.info("Waiting for clients...");
+    }
+
+    /**
+     * Register the chat commands (a new command is one more line here, it costs nothing to the other messages)
+     */
+    private void registerCommands() {
+        commands.register("nick", ConnectionHandler::onNick);
+        commands.register("mp", ConnectionHandler::onPrivateMessage);
+        commands.register("join", ConnectionHandler::onJoin);
+        commands.register("leave", ConnectionHandler::onLeave);
+        commands.register("rooms", ConnectionHandler::onRooms);
+        commands.register("bye", ConnectionHandler::onBye);
+        commands.register("history", ConnectionHandler::onHistory);
+    }
+
+    /**
+     * Create the default config listening on a port
+     *
+     * @param port the port
+     * @return the config
+     */
+    private static ServerConfig configForPort(int port) {
+        ServerConfig config = new ServerConfig();
+        config.port = port;
+        return config;
+    }
+
+    /**
+     * Create an executor starting one virtual thread per task (looked up by reflection so the server still runs on
+     * JVMs without virtual threads)
+     *
+     * @return the executor, or null if virtual threads are not available
+     */
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Choose the version and the features of a session from the preamble sent by a client
+     *
+     * @param requested the preamble of the client
+     * @return the preamble to answer (legacy clients get the legacy preamble back)
+     */
+    FrameCodec.Preamble answerPreamble(FrameCodec.Preamble requested) {
+        if (!requested.isBinary()) {
+            return requested;
+        }
+        int supported = FrameCodec.FEATURE_GCM;
+        if (config.ecdh) {
+            supported |= FrameCodec.FEATURE_ECDH;
+        }
+        if (config.roomKey) {
+            supported |= FrameCodec.FEATURE_ROOM_KEY;
+        }
+        if (config.heartbeatIntervalMillis > 0 || config.idleTimeoutMillis > 0) {
+            supported |= FrameCodec.FEATURE_HEARTBEAT;
+        }
+        if (config.compressThreshold > 0) {
+            supported |= FrameCodec.FEATURE_COMPRESSION;
+        }
+        if (tickets != null) {
+            supported |= FrameCodec.FEATURE_RESUMPTION;
+        }
+        if (config.fileTransfer) {
+            supported |= FrameCodec.FEATURE_FILE_TRANSFER;
+        }
+        // The clients that ask learn the limit of --max-frame-size, and refuse larger messages themselves
+        supported |= FrameCodec.FEATURE_MAX_FRAME_SIZE;
+        return new FrameCodec.Preamble((byte) Math.min(requested.version, FrameCodec.VERSION), requested.features & supported,
+                config.maxFrameSize);
+    }
+
+    /**
+     * Open the ticket presented by a client that asks for resumption
+     *
+     * @param ticket   the ticket
+     * @param features the features negotiated with the client (resumed sessions use AES-GCM)
+     * @return the content of the ticket, or null to do the key exchange instead (invalid or expired ticket)
+     */
+    SessionTickets.Ticket openTicket(byte[] ticket, int features) {
+        if (tickets == null || (features & FrameCodec.FEATURE_GCM) == 0) {
+            return null;
+        }
+        return tickets.open(ticket);
+    }
+
+    /**
+     * Create a session key using AES
+     *
+     * @return the session key
+     * @throws NoSuchAlgorithmException if AES is not available
+     */
+    static Key generateSessionKey() throws NoSuchAlgorithmException {
+        return KeyGenerator.getInstance("AES").generateKey();
+    }
+
+    /**
+     * Encrypt the session key using the client's public key
+     *
+     * @param sessionKey      the session key
+     * @param clientPublicKey the client's public key
+     * @return the encrypted session key
+     * @throws GeneralSecurityException if the key cannot be encrypted
+     */
+    static byte[] encryptSessionKey(Key sessionKey, PublicKey clientPublicKey) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("RSA");
+        cipher.init(Cipher.ENCRYPT_MODE, clientPublicKey);
+        return cipher.doFinal(sessionKey.getEncoded());
+    }
+
+    /**
+     * Create a connection handler for a client that completed the key exchange and add it to the connections
+     *
+     * @param client     the client socket
+     * @param codec      the wire format negotiated with the client
+     * @param sessionKey the session key
+     * @param features   the features negotiated with the client
+     * @return the connection handler
+     * @throws GeneralSecurityException if the ciphers of the session cannot be created
+     */
+    ConnectionHandler register(Socket client, FrameCodec codec, Key sessionKey, int features) throws GeneralSecurityException {
+        return register(client, codec, codec, sessionKey, features);
+    }
+
+    /**
+     * Create a connection handler for a client that completed the key exchange and add it to the connections
+     *
+     * @param client     the client socket
+     * @param reader     the codec reading the frames of the client (null if an event loop reads them)
+     * @param writer     the writer of the frames sent to the client
+     * @param sessionKey the session key
+     * @param features   the features negotiated with the client
+     * @return the connection handler
+     * @throws GeneralSecurityException if the ciphers of the session cannot be created
+     */
+    ConnectionHandler register(Socket client, FrameCodec reader, FrameWriter writer, Key sessionKey, int features)
+            throws GeneralSecurityException {
+        MessageCipher messageCipher = MessageCipher.forServer(sessionKey, (features & FrameCodec.FEATURE_GCM) != 0);
+        ConnectionHandler handler = new ConnectionHandler(client, reader, writer, messageCipher, features);
+        connections.add(handler);
+        metrics.handshakes.add(1);
+        handler.startHeartbeat();
+        return handler;
+    }
+
+    /**
+     * Create the outbound queue of a client (bounded by --outbound-queue, full queues follow --overflow)
+     *
+     * @param <T> the type of the queued messages
+     * @return the queue
+     */
+    <T> OutboundQueue<T> newOutboundQueue() {
+        return new OutboundQueue<>(config.outboundQueueSize, config.overflowPolicy, droppedFrames);
+    }
+
+    /**
+     * @return the number of connected clients (with or without a nickname)
+     */
+    public int connectedClients() {
+        return connections.size();
+    }
+
+    /**
+     * @return the metrics of the server
+     */
+    public ServerMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the largest frame a client can send (--max-frame-size)
+     */
+    int maxFrameSize() {
+        return config.maxFrameSize;
+    }
+
+    /**
+     * @return how the frames to a client are grouped into writes (--write-batch, --write-delay)
+     */
+    FrameCodec.WriteBatching writeBatching() {
+        return writeBatching;
+    }
+
+    /**
+     * @return the number of messages waiting in the outbound queues of all the clients
+     */
+    public int queuedFrames() {
+        int queued = 0;
+        for (ConnectionHandler connection : connections.all()) {
+            queued += connection.codec.pendingWrites();
+        }
+        return queued;
+    }
+
+    /**
+     * @return the number of messages waiting in the fullest outbound queue
+     */
+    public int maxQueuedFrames() {
+        int max = 0;
+        for (ConnectionHandler connection : connections.all()) {
+            max = Math.max(max, connection.codec.pendingWrites());
+        }
+        return max;
+    }
+
+    /**
+     * @return the number of messages dropped because an outbound queue was full (--overflow=drop-oldest)
+     */
+    public long droppedFrames() {
+        return droppedFrames.sum();
+    }
+
+    /**
+     * @return the number of clients disconnected because their outbound queue was full (--overflow=disconnect)
+     */
+    public long slowConsumerDisconnects() {
+        return slowConsumers.sum();
+    }
+
+    /**
+     * @return the number of clients disconnected because they stopped answering the heartbeat (--idle-timeout)
+     */
+    public long idleDisconnects() {
+        return idleDisconnects.sum();
+    }
+
+    /**
+     * @return the number of messages delayed, dropped or warned because a client sent too fast (--rate-action)
+     */
+    public long rateLimitedMessages() {
+        return rateLimited.sum();
+    }
+
+    /**
+     * @return the number of clients disconnected because they sent too fast (--rate-action=kick)
+     */
+    public long floodDisconnects() {
+        return floodDisconnects.sum();
+    }
+
+    /**
+     * @return the number of sessions resumed with a ticket (no key exchange)
+     */
+    public long resumedSessions() {
+        return resumedSessions.sum();
+    }
+
+    /**
+     * @return the number of files relayed completely from a client to another one
+     */
+    public long filesRelayed() {
+        return filesRelayed.sum();
+    }
+
+    /**
+     * @return the number of bytes of file data relayed
+     */
+    public long fileBytesRelayed() {
+        return fileBytesRelayed.sum();
+    }
+
+    /**
+     * Run a task after a delay on the timer wheel of the connections (the task must be short)
+     *
+     * @param task       the task
+     * @param delayNanos the delay in nanoseconds
+     * @return the timeout, to cancel the task
+     */
+    TimerWheel.Timeout schedule(Runnable task, long delayNanos) {
+        return timers.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Broadcast a message to all the rooms (it will be encrypted with the session key or the room key of each client)
+     *
+     * @param message the message to broadcast
+     */
+    public void broadcast(String message) {
+        for (Room room : rooms.values()) {
+            room.broadcast(message, null);
+        }
+    }
+
+    /**
+     * @return the links with the other nodes, or null for a single node
+     */
+    public ClusterBus cluster() {
+        return cluster;
+    }
+
+    /**
+     * Broadcast a message to the members of a room, on this node and on the other nodes of the cluster
+     *
+     * @param room    the room
+     * @param message the message
+     * @param exclude the local member to exclude (or null)
+     * @param record  true to keep the message in the history of the room (chat messages, not notifications)
+     */
+    void publish(Room room, String message, ConnectionHandler exclude, boolean record) {
+        room.broadcast(message, exclude);
+        if (record) {
+            record(room, message);
+        }
+        if (cluster != null) {
+            cluster.publishRoomMessage(room.name, message, record);
+        }
+    }
+
+    /**
+     * Deliver a room message of another node to the members of the room on this node
+     *
+     * @param name    the name of the room
+     * @param message the message
+     * @param record  true to keep the message in the history of the room
+     */
+    void onClusterRoomMessage(String name, String message, boolean record) {
+        Room room = rooms.get(name);
+        if (room != null) {
+            room.broadcast(message, null);
+            if (record) {
+                room.history.add(message);
+            }
+        }
+        // Every node journals the whole room, so the history survives the node of the sender
+        if (record && journal != null) {
+            journal.append(name, message);
+        }
+    }
+
+    /**
+     * Deliver a private message of another node (if the receiver is a client of this node)
+     *
+     * @param receiver the nickname of the receiver
+     * @param sender   the nickname of the sender
+     * @param message  the message
+     */
+    void onClusterPrivateMessage(String receiver, String sender, String message) {
+        ConnectionHandler connection = connections.find(receiver);
+        if (connection != null) {
+            connection.sendMessage(sender + " (private): " + message);
+        }
+    }
+
+    /**
+     * Rename a client whose nickname was taken on another node at the same time (the other client keeps it)
+     *
+     * @param nickname the nickname
+     */
+    void onClusterNicknameConflict(String nickname) {
+        ConnectionHandler connection = connections.find(nickname);
+        if (connection != null) {
+            connection.onNicknameConflict();
+        }
+    }
+
+    /**
+     * Get a room
+     *
+     * @param name the name of the room
+     * @return the room, or null if nobody is in this room
+     */
+    Room room(String name) {
+        return rooms.get(name);
+    }
+
+    /**
+     * Add a client to a room (the room is created if needed)
+     *
+     * @param name   the name of the room
+     * @param member the client
+     * @return the room
+     */
+    Room joinRoom(String name, ConnectionHandler member) {
+        Room existing = rooms.computeIfPresent(name, (key, room) -> {
+            room.add(member);
+            return room;
+        });
+        if (existing != null) {
+            return existing;
+        }
+        // The history is loaded before taking the lock of the map: the journal may read the disk
+        Room created = newRoom(name);
+        return rooms.compute(name, (key, room) -> {
+            if (room == null) {
+                room = created;
+            } else {
+                // Created by another client meanwhile
+                created.history.release();
+            }
+            room.add(member);
+            return room;
+        });
+    }
+
+    /**
+     * Remove a client from a room (the room is deleted when it is empty, except the default room)
+     *
+     * @param room   the room
+     * @param member the client
+     */
+    void leaveRoom(Room room, ConnectionHandler member) {
+        rooms.computeIfPresent(room.name, (key, current) -> {
+            current.remove(member);
+            if (current.isEmpty() && !key.equals(Room.DEFAULT)) {
+                // Give the memory of its history back to the other rooms
+                current.history.release();
+                return null;
+            }
+            return current;
+        });
+    }
+
+    /**
+     * Create a room, its history loaded from the journal (if enabled)
+     *
+     * @param name the name of the room
+     * @return the room
+     */
+    private Room newRoom(String name) {
+        RoomHistory history = new RoomHistory(config.historyMessages, config.historyRoomBytes, historyMemory);
+        if (journal != null && config.historyMessages > 0) {
+            // One more than the history can hold, so it knows when the journal has older messages
+            try {
+                for (String message : journal.recent(name, config.historyMessages + 1)) {
+                    history.add(message);
+                }
+            } catch (IOException e) {
+                ServerLog.error("Error reading the journal");
+            }
+        }
+        return new Room(name, config.roomKey, config.compressThreshold, history, metrics);
+    }
+
+    /**
+     * Keep a chat message in the history of the room and in the journal (if enabled)
+     *
+     * @param room    the room of the message
+     * @param message the message
+     */
+    void record(Room room, String message) {
+        room.history.add(message);
+        if (journal != null) {
+            journal.append(room.name, message);
+        }
+    }
+
+    /**
+     * Get the last messages of a room from memory, or from the journal when older messages were evicted from memory
+     *
+     * @param room  the room
+     * @param count the number of messages
+     * @return the messages, oldest first
+     */
+    List<String> history(Room room, int count) {
+        List<String> messages = room.history.recent(count);
+        if (messages.size() >= count || journal == null || room.history.isComplete()) {
+            return messages;
+        }
+        try {
+            return journal.recent(room.name, count);
+        } catch (IOException e) {
+            ServerLog.error("Error reading the journal");
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * @return the rooms and their number of members, e.g. "general (3), java (2)"
+     */
+    String describeRooms() {
+        StringBuilder description = new StringBuilder();
+        for (Room room : new TreeMap<>(rooms).values()) {
+            if (description.length() > 0) {
+                description.append(", ");
+            }
+            description.append(room.name).append(" (").append(room.size()).append(")");
+        }
+        return description.toString();
+    }
+
+    /**
+     * Drain the server before a restart: stop accepting clients, tell the connected ones to reconnect (at a random time
+     * within --reconnect-window, so they don't all come back at once), wait up to --drain-timeout for their queued
+     * messages to be written, then shut down
+     */
+    public synchronized void drain() {
+        if (draining || done) {
+            // Already drained or shut down
+            return;
+        }
+        draining = true;
+        stopAccepting();
+        ServerLog.info("Draining: " + connections.size() + " clients told to reconnect");
+        for (ConnectionHandler connection : connections.all()) {
+            connection.sendGoAway();
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.drainTimeoutMillis);
+        while (queuedFrames() > 0 && System.nanoTime() < deadline) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (queuedFrames() > 0) {
+            ServerLog.warn("Drain timed out: " + queuedFrames() + " messages not written");
+        }
+        shutdown();
+    }
+
+    /**
+     * Stop accepting clients (the key exchanges in progress go on)
+     */
+    private void stopAccepting() {
+        done = true;
+        try {
+            if (engine != null) {
+                engine.stopAccepting();
+            }
+            if (server != null && !server.isClosed()) {
+                server.close();
+            }
+        } catch (IOException e) {
+            ServerLog.error("Error closing server socket");
+        }
+    }
+
+    /**
+     * Shutdown the server and close all the connections with the clients
+     */
+    public void shutdown() {
+        done = true;
+        if (handshakePool != null) {
+            handshakePool.shutdownNow();
+        }
+        handshakeTimer.shutdownNow();
+        scheduler.shutdownNow();
+        metrics.close();
+        // Close all the connections (on a snapshot, the handlers remove themselves from the registry)
+        for (ConnectionHandler connection : connections.all()) {
+            if (connection != null) {
+                if (!draining) {
+                    connection.sendMessage("Server shutting down");
+                }
+                connection.shutdown();
+            }
+        }
+        // After the connections: the writer tasks finish sending the queued messages
+        if (pool != null) {
+            pool.shutdown();
+        }
+        // After the connections too: the other nodes learn that their nicknames are free
+        if (cluster != null) {
+            cluster.close();
+        }
+        try {
+            if (engine != null) {
+                engine.shutdown();
+            }
+            if (server != null && !server.isClosed()) {
+                server.close();
+            }
+        } catch (IOException e) {
+            ServerLog.error("Error shutting down server");
+        }
+        if (journal != null) {
+            journal.close();
+        }
+        // Write the last entries before the JVM stops
+        ServerLog.flush(1000);
+    }
+
+    /**
+     * Run the server
+     */
+    @Override
+    public void run() {
+        if (engine != null) {
+            // The event loops accept and drive all the connections
+            engine.run();
+            return;
+        }
+
+        // Wait for clients to connect
+        while (!done) {
+            try {
+                // Backpressure: don't accept more clients while too many key exchanges are in flight
+                awaitHandshakeSlot();
+
+                // Accept a client
+                Socket client;
+                try {
+                    client = server.accept();
+                } catch (IOException e) {
+                    releaseHandshakeSlot();
+                    throw e;
+                }
+
+                // The key exchange runs on the virtual thread of the client or on the handshake pool
+                ExecutorService executor = config.mode == ServerConfig.Mode.VIRTUAL ? pool : handshakePool;
+                try {
+                    executor.execute(() -> runHandshake(client));
+                } catch (RuntimeException e) {
+                    // Rejected (the pool is shutting down): the key exchange never starts
+                    releaseHandshakeSlot();
+                    client.close();
+                    throw e;
+                }
+            } catch (Exception e) {
+                if (!done) {
+                    ServerLog.error("Error accepting client");
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait until a new key exchange can start
+     *
+     * @throws InterruptedException if the server is shutting down
+     */
+    void awaitHandshakeSlot() throws InterruptedException {
+        handshakePermits.acquire();
+    }
+
+    /**
+     * Give back the slot of a key exchange that never started (the client could not be accepted)
+     */
+    void releaseHandshakeSlot() {
+        handshakePermits.release();
+    }
+
+    /**
+     * Start the timer of a key exchange (the connection is closed if the client is too slow)
+     *
+     * @param connection the connection of the client
+     * @return the timer (to give to endHandshake)
+     */
+    ScheduledFuture<?> startHandshakeTimer(Closeable connection) {
+        return handshakeTimer.schedule(() -> {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }, config.handshakeTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * End a key exchange (successful or not) and free its slot
+     *
+     * @param timer the timer returned by startHandshakeTimer
+     * @return false if the key exchange timed out
+     */
+    boolean endHandshake(ScheduledFuture<?> timer) {
+        boolean inTime = timer.cancel(false);
+        handshakePermits.release();
+        if (inTime) {
+            // The time left on the timer gives the duration of the key exchange
+            metrics.handshakeLatency.record(TimeUnit.MILLISECONDS.toNanos(config.handshakeTimeoutMillis)
+                    - timer.getDelay(TimeUnit.NANOSECONDS));
+        }
+        return inTime;
+    }
+
+    /**
+     * Run the key exchange with a client, then its connection handler
+     *
+     * @param client the client socket
+     */
+    private void runHandshake(Socket client) {
+        ScheduledFuture<?> timer = startHandshakeTimer(client);
+        ConnectionHandler handler;
+        try {
+            handler = handshake(client);
+        } catch (Exception e) {
+            if (endHandshake(timer)) {
+                ServerLog.error("Error accepting client");
+            } else {
+                ServerLog.warn("Handshake timed out");
+            }
+            closeQuietly(client);
+            return;
+        }
+        if (!endHandshake(timer)) {
+            ServerLog.warn("Handshake timed out");
+            handler.shutdown();
+            return;
+        }
+
+        if (config.mode == ServerConfig.Mode.VIRTUAL) {
+            // Keep going on the same virtual thread
+            handler.run();
+        } else {
+            // Add the connection handler to the thread pool (it will run in a separate thread)
+            pool.execute(handler);
+        }
+    }
+
+    /**
+     * Negotiate the wire format and exchange the session key with a client that just connected
+     *
+     * @param client the client socket
+     * @return the connection handler of the client (already added to the connections)
+     * @throws Exception if the handshake fails
+     */
+    private ConnectionHandler handshake(Socket client) throws Exception {
+        InputStream clientIn = new BufferedInputStream(client.getInputStream());
+        OutputStream clientOut = client.getOutputStream();
+
+        // Negotiate the wire format (old clients don't send a preamble and keep the text format)
+        FrameCodec.Preamble requested = FrameCodec.readPreamble(clientIn);
+        FrameCodec.Preamble preamble = answerPreamble(requested);
+        boolean resumption = requested.isBinary() && (requested.features & FrameCodec.FEATURE_RESUMPTION) != 0;
+        SessionTickets.Ticket ticket = null;
+        byte[] clientNonce = null;
+        if (resumption) {
+            // The ticket of the last session follows the preamble
+            DataInputStream data = new DataInputStream(clientIn);
+            int length = data.readUnsignedShort();
+            if (length > SessionTickets.MAX_TICKET_SIZE) {
+                throw new IOException("Ticket too large: " + length);
+            }
+            if (length > 0) {
+                byte[] presented = new byte[length];
+                data.readFully(presented);
+                clientNonce = new byte[SessionTickets.NONCE_SIZE];
+                data.readFully(clientNonce);
+                ticket = openTicket(presented, preamble.features);
+            }
+        }
+        if (preamble.isBinary()) {
+            FrameCodec.writePreambleAnswer(clientOut, preamble);
+        }
+        if (resumption) {
+            if (ticket != null) {
+                // No key exchange: the key is derived from the secret of the ticket and a nonce of each side
+                byte[] serverNonce = SessionTickets.randomBytes();
+                clientOut.write(SessionTickets.RESUMED);
+                clientOut.write(serverNonce);
+                clientOut.flush();
+                Key sessionKey = SessionTickets.resumedKey(ticket.secret, clientNonce, serverNonce);
+                ConnectionHandler handler = register(client, FrameCodec.forPreamble(preamble, clientIn, clientOut, config.maxFrameSize), sessionKey, preamble.features);
+                handler.resumeFrom(ticket);
+                return handler;
+            }
+            clientOut.write(SessionTickets.NOT_RESUMED);
+            clientOut.flush();
+        }
+
+        if ((preamble.features & FrameCodec.FEATURE_ECDH) != 0) {
+            // Compact X25519 exchange, no Java serialization
+            Key sessionKey = KeyExchange.serverExchange(clientIn, clientOut);
+            return register(client, FrameCodec.forPreamble(preamble, clientIn, clientOut, config.maxFrameSize), sessionKey, preamble.features);
+        }
+
+        // Create the output stream
+        ObjectOutputStream objectOutputStream = new ObjectOutputStream(clientOut);
+
+        // Receive the public key from the client
+        ObjectInputStream objectInputStream = new ObjectInputStream(clientIn);
+        PublicKey clientPublicKey = (PublicKey) objectInputStream.readObject();
+
+        // Create a session key using AES
+        Key sessionKey = generateSessionKey();
+
+        // Encrypt the session key using the client's public key
+        byte[] encryptedSessionKey = encryptSessionKey(sessionKey, clientPublicKey);
+
+        // Send the encrypted session key to the client
+        objectOutputStream.writeObject(encryptedSessionKey);
+        objectOutputStream.flush();
+
+        // Create a connection handler for the client (with the session key)
+        return register(client, FrameCodec.forPreamble(preamble, clientIn, clientOut, config.maxFrameSize), sessionKey, preamble.features);
+    }
+
+    /**
+     * Close a socket and ignore the errors
+     *
+     * @param socket the socket
+     */
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    /**
+     * A class to handle the connection with a client
+     */
+    class ConnectionHandler implements Runnable {
+
+        private final Socket client;
+        // Reads the frames of the client in the blocking modes (null when an event loop reads them)
+        private final FrameCodec reader;
+        private final FrameWriter codec;
+        private final MessageCipher messageCipher;
+        private final int features;
+        // Changed by the reader of the connection, or by the cluster when another node wins the nickname
+        private volatile String nickname;
+        private volatile boolean closed;
+        // Id of the last room key sent to the client (0 if none)
+        private volatile int roomKeyId;
+        // The room of the client (null until it chose a nickname)
+        private volatile Room room;
+        // When the last frame was received (System.nanoTime), and the next check of the heartbeat
+        private volatile long lastActivity = System.nanoTime();
+        private volatile TimerWheel.Timeout idleTimeout;
+        // The rate limits of the client (null if unlimited), used by its reader only
+        private final TokenBucket messageRate;
+        private final TokenBucket byteRate;
+        // When the client was last told that it sends too fast (not for every message)
+        private long lastRateNotice;
+        // The ticket of a resumed session until the client proves it has the secret (reader only)
+        private SessionTickets.Ticket resumption;
+        // The files sent and received by the client, by their id on this connection
+        private final Map<Integer, FileTransfer> uploads = new ConcurrentHashMap<>();
+        private final Map<Integer, FileTransfer> downloads = new ConcurrentHashMap<>();
+        private final AtomicInteger lastDownloadId = new AtomicInteger();
+        // Held from the encryption to the write of a frame, so the nonces reach the client in order (several threads
+        // send to the same client)
+        private final ReentrantLock sendLock = new ReentrantLock();
+
+        /**
+         * Constructor
+         *
+         * @param client        the client socket
+         * @param reader        the codec reading the frames of the client (null if an event loop reads them)
+         * @param codec         the writer of the frames sent to the client, in the wire format negotiated with it
+         * @param messageCipher the ciphers of the session (reused for every message)
+         * @param features      the features negotiated with the client
+         */
+        public ConnectionHandler(Socket client, FrameCodec reader, FrameWriter codec, MessageCipher messageCipher, int features) {
+            this.client = client;
+            this.reader = reader;
+            if (config.mode != ServerConfig.Mode.NIO && config.outboundQueueSize > 0) {
+                // A slow client must not block the threads that send it messages
+                this.codec = FrameCodec.queued(codec, newOutboundQueue(), pool, this::onSlowConsumer, writeBatching);
+            } else {
+                // The event loops queue the frames themselves
+                this.codec = codec;
+            }
+            this.messageCipher = messageCipher;
+            this.features = features;
+            messageRate = config.rateMessages > 0
+                    ? new TokenBucket(config.rateMessages, config.rateBurstMillis, TimeUnit.MILLISECONDS) : null;
+            byteRate = config.rateBytes > 0
+                    ? new TokenBucket(config.rateBytes, config.rateBurstMillis, TimeUnit.MILLISECONDS) : null;
+        }
+
+        /**
+         * @return the id of the last room key sent to the client (0 if none)
+         */
+        int roomKeyId() {
+            return roomKeyId;
+        }
+
+        /**
+         * @return true if the client accepts compressed messages
+         */
+        boolean acceptsCompression() {
+            return (features & FrameCodec.FEATURE_COMPRESSION) != 0;
+        }
+
+        /**
+         * @return true if the client joined the chat and accepts room keys
+         */
+        boolean usesRoomKey() {
+            return (features & FrameCodec.FEATURE_ROOM_KEY) != 0 && nickname != null && !closed;
+        }
+
+
+        /**
+         * Send a message to the client (it will be encrypted with the session key)
+         *
+         * @param message the message to send
+         */
+        public void sendMessage(String message) {
+            try {
+                byte[] clearMessage = message.getBytes(StandardCharsets.UTF_8);
+                byte type = FrameCodec.TYPE_MESSAGE;
+                // Compress the large messages first (encrypted data doesn't compress)
+                if (acceptsCompression()) {
+                    long start = System.nanoTime();
+                    byte[] compressed = MessageCompressor.compress(clearMessage, config.compressThreshold);
+                    if (compressed != null) {
+                        metrics.compressTime.recordSince(start);
+                        metrics.onCompressed(1, clearMessage.length - compressed.length);
+                        clearMessage = compressed;
+                        type = FrameCodec.TYPE_COMPRESSED_MESSAGE;
+                    }
+                }
+
+                // Encrypt the message with the session key and send it
+                metrics.onOutbound(writeEncrypted(type, clearMessage));
+            } catch (Exception e) {
+                ServerLog.error("Error encrypting message");
+            }
+        }
+
+        /**
+         * Encrypt a payload with the session key and write it
+         *
+         * @param type  the frame type
+         * @param clear the clear payload
+         * @return the size of the encrypted payload
+         * @throws Exception if the payload cannot be encrypted or written
+         */
+        private int writeEncrypted(byte type, byte[] clear) throws Exception {
+            sendLock.lock();
+            try {
+                long start = System.nanoTime();
+                byte[] encrypted = messageCipher.encrypt(clear);
+                metrics.encryptTime.recordSince(start);
+                codec.writeFrame(type, encrypted);
+                return encrypted.length;
+            } finally {
+                sendLock.unlock();
+            }
+        }
+
+        /**
+         * Tell the client that the server is draining: it reconnects at a random time within the window once the
+         * connection is closed (old clients only get the message)
+         */
+        void sendGoAway() {
+            sendMessage("The server is restarting, you will be reconnected");
+            int window = (int) Math.min(Integer.MAX_VALUE, config.reconnectWindowMillis);
+            try {
+                codec.writeFrame(FrameCodec.TYPE_GOAWAY, new byte[]{(byte) (window >>> 24), (byte) (window >>> 16), (byte) (window >>> 8), (byte) window});
+            } catch (IOException e) {
+                // The reader of the connection sees the broken socket
+            }
+        }
+
+        /**
+         * Send a new resumption ticket with the nickname and the room of the client (they change with /nick and
+         * /join, the last ticket received is the one used)
+         */
+        void issueTicket() {
+            Room current = room;
+            if (tickets == null || (features & FrameCodec.FEATURE_RESUMPTION) == 0 || nickname == null || current == null) {
+                return;
+            }
+            try {
+                byte[] secret = SessionTickets.randomBytes();
+                byte[] ticket = tickets.issue(secret, nickname, current.name);
+                writeEncrypted(FrameCodec.TYPE_TICKET, SessionTickets.ticketPayload(ticket, secret));
+            } catch (Exception e) {
+                ServerLog.error("Error sending resumption ticket");
+            }
+        }
+
+        /**
+         * Resume the session of a ticket: the nickname and the room are given back when the first frame of the client
+         * proves that it has the secret of the ticket
+         *
+         * @param ticket the content of the ticket
+         */
+        void resumeFrom(SessionTickets.Ticket ticket) {
+            resumption = ticket;
+        }
+
+        /**
+         * Handle the first frame of a resumed session
+         *
+         * @param frame the frame (TYPE_RESUME encrypted with the new key)
+         */
+        private void onResume(FrameCodec.Frame frame) {
+            SessionTickets.Ticket ticket = resumption;
+            resumption = null;
+            if (frame.type != FrameCodec.TYPE_RESUME || decryptMessage(frame.payload, false) == null) {
+                ServerLog.warn("A client failed to resume its session");
+                shutdown();
+                return;
+            }
+            resumedSessions.increment();
+            if (!claimNickname(ticket.nickname)) {
+                // Taken since the ticket was issued: back to the usual first step
+                sendMessage("The nickname " + ticket.nickname + " is already taken, please enter another nickname: ");
+                return;
+            }
+            ServerLog.info(nickname + " resumed their session");
+
+            // Back in the room without the join notice and the history (the client was only away during a restart)
+            room = joinRoom(ticket.room, this);
+            sendMessage("Welcome back " + nickname + ", you are in the room " + room.name);
+            issueTicket();
+        }
+
+        /**
+         * Send a room key to the client (encrypted with the session key)
+         *
+         * @param groupKey the room key
+         */
+        void sendRoomKey(GroupKey groupKey) {
+            try {
+                writeEncrypted(FrameCodec.TYPE_ROOM_KEY, groupKey.keyPayload());
+                roomKeyId = groupKey.id;
+            } catch (Exception e) {
+                ServerLog.error("Error sending room key");
+            }
+        }
+
+        /**
+         * Send a frame encrypted with the room key (shared with the other members)
+         *
+         * @param frame the encoded frame
+         */
+        void sendEncodedFrame(byte[] frame) {
+            try {
+                codec.writeEncodedFrame(frame);
+            } catch (Exception e) {
+                ServerLog.error("Error sending message");
+            }
+        }
+
+        /**
+         * Decrypt a message with the session key
+         *
+         * @param message    the ciphertext to decrypt
+         * @param compressed true if the clear message is compressed (TYPE_COMPRESSED_MESSAGE)
+         * @return the decrypted message
+         */
+        public String decryptMessage(byte[] message, boolean compressed) {
+            try {
+                // Decrypt the message
+                long start = System.nanoTime();
+                byte[] clearMessage = messageCipher.decrypt(message);
+                metrics.decryptTime.recordSince(start);
+                if (compressed) {
+                    // No larger than the largest frame of a client that doesn't compress
+                    clearMessage = MessageCompressor.decompress(clearMessage, config.maxFrameSize);
+                }
+                return new String(clearMessage, StandardCharsets.UTF_8);
+            } catch (Exception e) {
+                ServerLog.error("Error decrypting message");
+                return null;
+            }
+        }
+
+        /**
+         * Start watching the activity of the client: clients that accept the heartbeat are pinged when they are silent
+         * and disconnected when they don't answer, the others only get TCP keep-alive
+         */
+        void startHeartbeat() {
+            if ((features & FrameCodec.FEATURE_HEARTBEAT) == 0) {
+                try {
+                    client.setKeepAlive(true);
+                } catch (IOException e) {
+                    // Ignore
+                }
+                return;
+            }
+            long delay = heartbeatDelayMillis();
+            if (delay > 0) {
+                idleTimeout = timers.schedule(this::checkIdle, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * @return the shortest of the heartbeat interval and the idle timeout (0 if both are disabled)
+         */
+        private long heartbeatDelayMillis() {
+            if (config.heartbeatIntervalMillis == 0 || config.idleTimeoutMillis == 0) {
+                return Math.max(config.heartbeatIntervalMillis, config.idleTimeoutMillis);
+            }
+            return Math.min(config.heartbeatIntervalMillis, config.idleTimeoutMillis);
+        }
+
+        /**
+         * Check the activity of the client (on the timer wheel): ping it after --heartbeat of silence, disconnect it
+         * after --idle-timeout. Reading a frame only updates lastActivity, the next check is computed from it.
+         */
+        private void checkIdle() {
+            if (closed) {
+                return;
+            }
+            long idle = System.nanoTime() - lastActivity;
+            long timeout = TimeUnit.MILLISECONDS.toNanos(config.idleTimeoutMillis);
+            long interval = TimeUnit.MILLISECONDS.toNanos(config.heartbeatIntervalMillis);
+            if (timeout > 0 && idle >= timeout) {
+                // No frame and no pong: the client is gone (e.g. half-open connection)
+                offTimer(this::onIdleTimeout);
+                return;
+            }
+            long next;
+            if (interval > 0 && idle >= interval) {
+                offTimer(() -> {
+                    try {
+                        codec.writeFrame(FrameCodec.TYPE_PING, new byte[0]);
+                    } catch (IOException e) {
+                        // The reader of the connection sees the broken socket
+                    }
+                });
+                next = interval;
+            } else {
+                // Active meanwhile: check again one interval after the last frame
+                next = (interval > 0 ? interval : timeout) - idle;
+            }
+            if (timeout > 0) {
+                next = Math.min(next, timeout - idle);
+            }
+            idleTimeout = schedule(this::checkIdle, next);
+        }
+
+        /**
+         * Run a task of the timer wheel that writes to clients: at once when the writes are queued, on the pool when a
+         * write can block until the client reads (--outbound-queue=0), so a dead client never stalls the scheduler
+         *
+         * @param task the task
+         */
+        private void offTimer(Runnable task) {
+            if (config.mode == ServerConfig.Mode.NIO || config.outboundQueueSize > 0) {
+                task.run();
+                return;
+            }
+            try {
+                pool.execute(task);
+            } catch (RejectedExecutionException e) {
+                // The server is shutting down
+            }
+        }
+
+        /**
+         * Disconnect the client because it stopped answering the heartbeat
+         */
+        private void onIdleTimeout() {
+            idleDisconnects.increment();
+            if (nickname != null) {
+                ServerLog.info(nickname + " disconnected (timed out)");
+                broadcastToRoom(nickname + " has been disconnected (timed out)", this);
+            } else {
+                ServerLog.info("A client disconnected (timed out)");
+            }
             shutdown();
+            // The queued messages will never be read: don't wait for a writer blocked on the dead socket
+            closeQuietly(client);
         }
 
-        // Create a thread pool to handle the connections with the clients
-        pool = Executors.newCachedThreadPool();
-        System.out.println("Server started");
-        System.out.println("Waiting for clients...");
-    }
+        /**
+         * Shutdown the client connection
+         */
+        public void shutdown() {
+            closed = true;
+            TimerWheel.Timeout timeout = idleTimeout;
+            if (timeout != null) {
+                timeout.cancel();
+            }
+            // Remove the connection handler from the registry (and free its nickname) and from its room
+            connections.remove(this, nickname);
+            if (cluster != null && nickname != null) {
+                cluster.released(nickname);
+            }
+            Room current = room;
+            if (current != null) {
+                leaveRoom(current, this);
+            }
+            // The other side of the transfers of the client learns that they stop
+            for (FileTransfer transfer : uploads.values()) {
+                cancelTransfer(transfer, nickname + " disconnected");
+            }
+            for (FileTransfer transfer : downloads.values()) {
+                cancelTransfer(transfer, nickname + " disconnected");
+            }
 
-    /**
-     * Broadcast a message to all the clients (it will be encrypted with the session key of each client)
-     *
-     * @param message the message to broadcast
-     */
-    public void broadcast(String message) {
-        for (ConnectionHandler connection : connections) {
-            if (connection != null) {
-                connection.sendMessage(message);
+            try {
+                // Close the input and output streams, and the client socket with them (once the queued messages are
+                // written)
+                codec.close();
+            } catch (IOException e) {
+                ServerLog.error("Error closing connection with client");
             }
         }
-    }
 
-    /**
-     * Broadcast a message to all the clients except one (it will be encrypted with the session key of each client)
-     *
-     * @param message the message to broadcast
-     * @param exclude the client to exclude
-     */
-    public void broadcast(String message, ConnectionHandler exclude) {
-        for (ConnectionHandler connection : connections) {
-            if (connection != null && connection != exclude) {
-                connection.sendMessage(message);
+        /**
+         * Broadcast a message to the members of the room of the client
+         *
+         * @param message the message
+         * @param exclude the member to exclude (or null)
+         */
+        private void broadcastToRoom(String message, ConnectionHandler exclude) {
+            Room current = room;
+            if (current != null) {
+                publish(current, message, exclude, false);
             }
         }
-    }
 
-    /**
-     * Shutdown the server and close all the connections with the clients
-     */
-    public void shutdown() {
-        done = true;
-        if (pool != null) {
-            pool.shutdown();
+        /**
+         * Move the client to another room
+         *
+         * @param name the name of the room
+         */
+        private void changeRoom(String name) {
+            Room current = room;
+            if (current.name.equals(name)) {
+                sendMessage("You are already in the room " + name);
+                return;
+            }
+            publish(current, nickname + " left the room", this, false);
+            leaveRoom(current, this);
+            room = joinRoom(name, this);
+            if (closed) {
+                // Shut down meanwhile: don't stay in the room
+                leaveRoom(room, this);
+                return;
+            }
+            ServerLog.info(nickname + " joined the room " + name);
+            replayHistory(config.historyReplay);
+            publish(room, nickname + " joined the room " + name, null, false);
+            issueTicket();
         }
-        // Close all the connections
-        for (ConnectionHandler connection : connections) {
-            if (connection != null) {
-                connection.sendMessage("Server shutting down");
-                connection.shutdown();
+
+        /**
+         * Take a nickname in the registry (and free the current one), and make it the nickname of the client
+         *
+         * @param newNickname the nickname
+         * @return false if another client uses this nickname, or if the client was shut down meanwhile
+         */
+        private boolean claimNickname(String newNickname) {
+            String oldNickname = nickname;
+            // Keep the current nickname until the cluster accepts the new one
+            if (!connections.claimNickname(this, newNickname, null)) {
+                return false;
             }
+            if (cluster != null && !cluster.claimed(newNickname, oldNickname)) {
+                // A client of another node has it
+                if (!newNickname.equals(oldNickname)) {
+                    connections.releaseNickname(this, newNickname);
+                }
+                return false;
+            }
+            if (oldNickname != null && !oldNickname.equals(newNickname)) {
+                connections.releaseNickname(this, oldNickname);
+            }
+            // Set the nickname before checking closed (both volatile): either shutdown() sees the new nickname and
+            // frees it, or this thread sees the shutdown and frees it itself (freeing it twice is harmless)
+            nickname = newNickname;
+            if (closed) {
+                // Shut down meanwhile (e.g. slow consumer): don't keep the nickname
+                connections.releaseNickname(this, newNickname);
+                if (cluster != null) {
+                    cluster.released(newNickname);
+                }
+                return false;
+            }
+            return true;
         }
-        try {
-            if (server != null && !server.isClosed()) {
-                server.close();
+
+        /**
+         * Another node gave the nickname of the client to one of its clients at the same time: take the first free
+         * variant (e.g. alice2)
+         */
+        void onNicknameConflict() {
+            String lost = nickname;
+            for (int i = 2; !closed; i++) {
+                String candidate = lost + i;
+                if (claimNickname(candidate)) {
+                    ServerLog.info(lost + " renamed to " + candidate + " (nickname taken on another node)");
+                    sendMessage("The nickname " + lost + " was taken on another server at the same time, you are now "
+                            + candidate);
+                    broadcastToRoom(lost + " changed their nickname to " + candidate, this);
+                    issueTicket();
+                    return;
+                }
             }
-        } catch (IOException e) {
-            System.out.println("Error shutting down server");
         }
-    }
 
-    /**
-     * Run the server
-     */
-    @Override
-    public void run() {
-        // Wait for clients to connect
-        while (!done) {
-            try {
-                // Accept a client
-                Socket client = server.accept();
+        /**
+         * Disconnect the client because its outbound queue is full (it reads slower than the others write)
+         */
+        void onSlowConsumer() {
+            slowConsumers.increment();
+            ServerLog.warn((nickname != null ? nickname : "A client") + " disconnected (slow consumer)");
+            if (sendLock.isHeldByCurrentThread()) {
+                // Called by a write to the client: the shutdown cancels its transfers and so writes to the other side
+                // of each one, which must not wait for its lock while this one is held (two slow consumers sending
+                // files to each other would wait for each other forever)
+                closed = true;
+                try {
+                    scheduler.execute(this::shutdown);
+                } catch (RejectedExecutionException e) {
+                    // The server is stopping and closes the connection
+                }
+                return;
+            }
+            shutdown();
+        }
+
+        /**
+         * Apply the rate limits to a frame received from the client, before it is decrypted (called by the reader of
+         * the connection, then onFrame if the frame is accepted)
+         *
+         * @param frame the frame
+         * @return 0 to handle the frame now, the time to wait in nanoseconds before handling it (--rate-action=delay),
+         * or -1 if the frame is dropped (or the client disconnected)
+         */
+        long admit(FrameCodec.Frame frame) {
+            if (frame.type == FrameCodec.TYPE_PONG) {
+                // Answers to our pings
+                return 0;
+            }
+            if (FrameCodec.isFileFrame(frame.type)) {
+                // Files only count in bytes and are always delayed, never dropped: a lost chunk would break the file
+                long wait = byteRate != null ? byteRate.reserve(frame.payload.length) : 0;
+                if (wait > 0) {
+                    rateLimited.increment();
+                }
+                return wait;
+            }
+            if (config.rateAction == ServerConfig.RateAction.DELAY) {
+                // Take the tokens now and wait for them: the next frames queue up behind this one
+                long wait = 0;
+                if (messageRate != null) {
+                    wait = messageRate.reserve(1);
+                }
+                if (byteRate != null) {
+                    wait = Math.max(wait, byteRate.reserve(frame.payload.length));
+                }
+                if (globalRate != null) {
+                    wait = Math.max(wait, globalRate.reserve(1));
+                }
+                if (wait > 0) {
+                    rateLimited.increment();
+                }
+                return wait;
+            }
+
+            // The tokens already taken are not given back when another limit refuses the frame: a client above the
+            // rate only waits longer
+            boolean overRate = (messageRate != null && !messageRate.tryAcquire(1))
+                    || (byteRate != null && !byteRate.tryAcquire(frame.payload.length));
+            boolean overBudget = !overRate && globalRate != null && !globalRate.tryAcquire(1);
+            if (!overRate && !overBudget) {
+                return 0;
+            }
+            rateLimited.increment();
+            long now = System.nanoTime();
+            boolean first = lastRateNotice == 0 || now - lastRateNotice >= RATE_NOTICE_INTERVAL;
+            if (first) {
+                lastRateNotice = now;
+            }
+            if (config.rateAction == ServerConfig.RateAction.KICK && overRate) {
+                onFlood();
+                return -1;
+            }
+            if (config.rateAction == ServerConfig.RateAction.WARN) {
+                if (first) {
+                    ServerLog.warn((nickname != null ? nickname : "A client") + " is sending too fast");
+                    sendMessage("You are sending messages too fast");
+                }
+                return 0;
+            }
+            // Dropped (--rate-action=drop, or kick above the global budget: the client is not the only one to blame)
+            if (first) {
+                sendMessage(overRate ? "You are sending messages too fast, they are dropped"
+                        : "The server is busy, your messages are dropped");
+            }
+            return -1;
+        }
+
+        /**
+         * Disconnect the client because it sent too fast (--rate-action=kick)
+         */
+        private void onFlood() {
+            floodDisconnects.increment();
+            if (nickname != null) {
+                ServerLog.warn(nickname + " disconnected (flooding)");
+                broadcastToRoom(nickname + " has been disconnected (flooding)", this);
+            } else {
+                ServerLog.warn("A client disconnected (flooding)");
+            }
+            sendMessage("You have been disconnected: you are sending messages too fast");
+            shutdown();
+        }
+
+        /**
+         * Ask the client for a nickname (first step of the session)
+         */
+        public void start() {
+            if (resumption == null) {
+                sendMessage("Please enter a nickname: ");
+            }
+            if (draining) {
+                // Connected while the server drains
+                sendGoAway();
+            }
+        }
+
+        /**
+         * Handle a frame received from the client
+         *
+         * @param frame the frame
+         */
+        public void onFrame(FrameCodec.Frame frame) {
+            // Any frame (a pong too) shows that the client is alive
+            lastActivity = System.nanoTime();
+            if (frame.type == FrameCodec.TYPE_PING) {
+                try {
+                    codec.writeFrame(FrameCodec.TYPE_PONG, new byte[0]);
+                } catch (IOException e) {
+                    // The reader of the connection sees the broken socket
+                }
+                return;
+            }
+            if (resumption != null) {
+                onResume(frame);
+                return;
+            }
+            if (FrameCodec.isFileFrame(frame.type)) {
+                onFileFrame(frame);
+                return;
+            }
+            boolean compressed = frame.type == FrameCodec.TYPE_COMPRESSED_MESSAGE && acceptsCompression();
+            if (frame.type != FrameCodec.TYPE_MESSAGE && !compressed) {
+                return;
+            }
+            metrics.onInbound(frame.payload.length);
+            // Decrypt the message
+            String clearMessage = decryptMessage(frame.payload, compressed);
+            if (clearMessage == null) {
+                return;
+            }
 
-                // Create the output stream
-                ObjectOutputStream objectOutputStream = new ObjectOutputStream(client.getOutputStream());
+            // The first message is the nickname
+            if (nickname == null) {
+                if (clearMessage.length() > MAX_NAME_LENGTH) {
+                    sendMessage("The nickname is too long (" + MAX_NAME_LENGTH + " characters at most), please enter another nickname: ");
+                    return;
+                }
+                if (!claimNickname(clearMessage)) {
+                    sendMessage("The nickname " + clearMessage + " is already taken, please enter another nickname: ");
+                    return;
+                }
+                ServerLog.content("", frame.payload, nickname);
+                ServerLog.info(nickname + " connected");
 
-                // Receive the public key from the client
-                ObjectInputStream objectInputStream = new ObjectInputStream(client.getInputStream());
-                PublicKey clientPublicKey = (PublicKey) objectInputStream.readObject();
+                // Enter the default room, catch up on its last messages and broadcast the nickname to its members
+                room = joinRoom(Room.DEFAULT, this);
+                replayHistory(config.historyReplay);
+                broadcastToRoom(nickname + " joined the chat!", null);
+                issueTicket();
+                return;
+            }
 
-                // Create a session key using AES
-                Key sessionKey = KeyGenerator.getInstance("AES").generateKey();
+            // Console of the server
+            ServerLog.content(nickname + ": ", frame.payload, clearMessage);
 
-                // Encrypt the session key using the client's public key
-                Cipher cipher = Cipher.getInstance("RSA");
-                cipher.init(Cipher.ENCRYPT_MODE, clientPublicKey);
-                byte[] encryptedSessionKey = cipher.doFinal(sessionKey.getEncoded());
+            handleMessage(clearMessage);
+        }
 
-                // Send the encrypted session key to the client
-                objectOutputStream.writeObject(encryptedSessionKey);
-                objectOutputStream.flush();
+        /**
+         * Handle a decrypted message (commands or chat message)
+         *
+         * @param clearMessage the decrypted message
+         */
+        private void handleMessage(String clearMessage) {
+            // Commands
+            if (!commands.dispatch(this, clearMessage)) {
+                // If the message is not a command, broadcast it to the members of the room (and keep it)
+                Room current = room;
+                publish(current, nickname + ": " + clearMessage, null, true);
+            }
+        }
 
-                // Create a connection handler for the client (with the session key) and add it to the thread pool (it will run in a separate thread)
-                ConnectionHandler handler = new ConnectionHandler(client, sessionKey);
-                connections.add(handler);
-                pool.execute(handler);
+        /**
+         * Handle a file transfer frame (relayed to the other side of the transfer)
+         *
+         * @param frame the frame
+         */
+        private void onFileFrame(FrameCodec.Frame frame) {
+            if ((features & FrameCodec.FEATURE_FILE_TRANSFER) == 0 || nickname == null) {
+                return;
+            }
+            metrics.onInbound(frame.payload.length);
+            byte[] clear;
+            try {
+                long start = System.nanoTime();
+                clear = messageCipher.decrypt(frame.payload);
+                metrics.decryptTime.recordSince(start);
             } catch (Exception e) {
-                System.out.println("Error accepting client");
+                ServerLog.error("Error decrypting file transfer");
+                return;
+            }
+            try {
+                switch (frame.type) {
+                    case FrameCodec.TYPE_FILE_OFFER -> onFileOffer(FileTransfer.readOffer(clear));
+                    case FrameCodec.TYPE_FILE_CHUNK -> onFileChunk(clear);
+                    case FrameCodec.TYPE_FILE_ACK -> onFileAck(clear);
+                    case FrameCodec.TYPE_FILE_CANCEL -> onFileCancel(FileTransfer.readCancel(clear));
+                    default -> {
+                    }
+                }
+            } catch (IOException e) {
+                ServerLog.warn(nickname + " sent a malformed file transfer frame");
             }
         }
-    }
 
-    /**
-     * A class to handle the connection with a client
-     */
-    class ConnectionHandler implements Runnable {
+        /**
+         * A file offered by the client to another user: forward the offer, or refuse it
+         *
+         * @param offer the offer (the nickname is the receiver)
+         */
+        private void onFileOffer(FileTransfer.Offer offer) {
+            String refusal = null;
+            ConnectionHandler receiver = connections.find(offer.nickname);
+            if (uploads.size() >= FileTransfer.MAX_TRANSFERS || uploads.containsKey(offer.id)) {
+                refusal = "too many files at the same time";
+            } else if (receiver == this) {
+                refusal = "you cannot send a file to yourself";
+            } else if (receiver == null) {
+                // Chunks are relayed within a node only (the cluster bus carries chat messages)
+                refusal = cluster != null && cluster.isTakenRemotely(offer.nickname)
+                        ? "files can only be sent to users of the same server" : "user not found";
+            } else if ((receiver.features & FrameCodec.FEATURE_FILE_TRANSFER) == 0) {
+                refusal = offer.nickname + " cannot receive files";
+            } else if (receiver.downloads.size() >= FileTransfer.MAX_TRANSFERS) {
+                refusal = offer.nickname + " is receiving too many files";
+            }
+            if (refusal != null) {
+                sendFileFrame(FrameCodec.TYPE_FILE_CANCEL, FileTransfer.cancel(offer.id, true, refusal));
+                return;
+            }
 
-        private final Socket client;
-        private BufferedReader in;
-        private PrintWriter out;
-        private final Key sessionKey;
-        private Cipher cipher;
-        private String nickname;
+            FileTransfer transfer = new FileTransfer(this, offer.id, receiver, receiver.lastDownloadId.incrementAndGet(),
+                    offer.size, offer.name);
+            uploads.put(transfer.senderId, transfer);
+            receiver.downloads.put(transfer.receiverId, transfer);
+            ServerLog.info(nickname + " is sending " + FileTransfer.describeSize(offer.size) + " to " + receiver.nickname);
+            receiver.sendFileFrame(FrameCodec.TYPE_FILE_OFFER,
+                    FileTransfer.offer(transfer.receiverId, offer.size, nickname, offer.name));
+            if (receiver.closed) {
+                // Disconnected before the transfer was registered: its shutdown didn't see it
+                cancelTransfer(transfer, receiver.nickname + " disconnected");
+            }
+        }
 
         /**
-         * Constructor
+         * A chunk of a file sent by the client: relay it to the receiver (under its id)
          *
-         * @param client     the client socket
-         * @param sessionKey the session key
+         * @param clear the decrypted payload
+         * @throws IOException if the payload is malformed
          */
-        public ConnectionHandler(Socket client, Key sessionKey) {
-            this.client = client;
-            this.sessionKey = sessionKey;
+        private void onFileChunk(byte[] clear) throws IOException {
+            FileTransfer transfer = uploads.get(FileTransfer.readId(clear));
+            if (transfer == null) {
+                // Cancelled while the chunk was on its way
+                return;
+            }
+            int length = FileTransfer.chunkLength(clear);
+            if (!transfer.onChunk(length) || length == 0 && !transfer.isComplete()) {
+                cancelTransfer(transfer, "protocol error");
+                return;
+            }
+            FileTransfer.writeId(clear, transfer.receiverId);
+            transfer.receiver.sendFileFrame(FrameCodec.TYPE_FILE_CHUNK, clear);
+            fileBytesRelayed.add(length);
+            if (length == 0 && transfer.finish()) {
+                // The end of the file
+                uploads.remove(transfer.senderId);
+                transfer.receiver.downloads.remove(transfer.receiverId);
+                filesRelayed.increment();
+                ServerLog.info(nickname + " sent " + transfer.name + " to " + transfer.receiver.nickname);
+            }
+        }
+
+        /**
+         * Chunks written by the client: give the sender room for as many more
+         *
+         * @param clear the decrypted payload
+         * @throws IOException if the payload is malformed
+         */
+        private void onFileAck(byte[] clear) throws IOException {
+            FileTransfer transfer = downloads.get(FileTransfer.readId(clear));
+            if (transfer == null) {
+                return;
+            }
+            int chunks = FileTransfer.ackChunks(clear);
+            transfer.onAck(chunks);
+            transfer.sender.sendFileFrame(FrameCodec.TYPE_FILE_ACK, FileTransfer.ack(transfer.senderId, chunks));
+        }
+
+        /**
+         * A transfer cancelled by the client (sender or receiver)
+         *
+         * @param cancel the cancellation
+         */
+        private void onFileCancel(FileTransfer.Cancel cancel) {
+            FileTransfer transfer = cancel.upload ? uploads.get(cancel.id) : downloads.get(cancel.id);
+            if (transfer != null) {
+                cancelTransfer(transfer, nickname + (cancel.upload ? " cancelled it" : " refused it"));
+            }
+        }
+
+        /**
+         * Cancel a transfer on both sides
+         *
+         * @param transfer the transfer
+         * @param reason   why it is cancelled (shown to the users)
+         */
+        private void cancelTransfer(FileTransfer transfer, String reason) {
+            if (!transfer.finish()) {
+                return;
+            }
+            transfer.sender.uploads.remove(transfer.senderId);
+            transfer.receiver.downloads.remove(transfer.receiverId);
+            transfer.sender.sendFileFrame(FrameCodec.TYPE_FILE_CANCEL, FileTransfer.cancel(transfer.senderId, true, reason));
+            transfer.receiver.sendFileFrame(FrameCodec.TYPE_FILE_CANCEL, FileTransfer.cancel(transfer.receiverId, false, reason));
+        }
+
+        /**
+         * Send a file transfer frame to the client (encrypted with the session key)
+         *
+         * @param type  the frame type
+         * @param clear the clear payload
+         */
+        void sendFileFrame(byte type, byte[] clear) {
+            if (closed) {
+                return;
+            }
             try {
-                cipher = Cipher.getInstance("AES");
-                cipher.init(Cipher.DECRYPT_MODE, sessionKey);
+                metrics.onOutbound(writeEncrypted(type, clear));
             } catch (Exception e) {
-                System.out.println("Error creating cipher");
-                shutdown();
+                ServerLog.error("Error sending file transfer");
             }
         }
 
+        /**
+         * /nick name: change the nickname
+         *
+         * @param arguments the arguments of the command
+         */
+        private void onNick(CommandDispatcher.Arguments arguments) {
+            String newNickname = arguments.rest();
+            if (newNickname == null) {
+                sendMessage("The nickname cannot be empty");
+                return;
+            }
+            if (newNickname.length() > MAX_NAME_LENGTH) {
+                sendMessage("The nickname is too long (" + MAX_NAME_LENGTH + " characters at most)");
+                return;
+            }
+            // Change the nickname (in the registry and on the client at once)
+            String oldNickname = nickname;
+            if (!claimNickname(newNickname)) {
+                sendMessage("The nickname " + newNickname + " is already taken");
+                return;
+            }
+
+            // Broadcast the nickname change to the other clients (except the client that changed the nickname)
+            broadcastToRoom(oldNickname + " changed their nickname to " + newNickname, this);
+            ServerLog.info(oldNickname + " changed their nickname to " + newNickname);
+
+            // Alert the client
+            sendMessage("Nickname changed to " + nickname);
+            issueTicket();
+        }
 
         /**
-         * Convert a string array to a string (with the spaces)
+         * /mp name message: send a private message
          *
-         * @param msg   the string array
-         * @param start the start index
-         * @param end   the end index
-         * @return the string
+         * @param arguments the arguments of the command
          */
-        private String stringArrayToString(String[] msg, int start, int end) {
-            StringBuilder message = new StringBuilder();
-            for (int i = start; i < end; i++) {
-                message.append(msg[i]).append(" ");
+        private void onPrivateMessage(CommandDispatcher.Arguments arguments) {
+            // Get the receiver and the message
+            String receiver = arguments.next();
+            String msg = arguments.rest();
+            if (msg == null) {
+                sendMessage("You must specify a receiver and a message");
+                return;
+            }
+
+            // Find the receiver by its nickname (unique in the cluster)
+            ConnectionHandler connection = connections.find(receiver);
+            if (connection == this) {
+                sendMessage("User not found");
+                return;
+            }
+            if (connection != null) {
+                // Send the private message to the receiver
+                connection.sendMessage(nickname + " (private): " + msg);
+            } else if (cluster == null || !cluster.sendPrivateMessage(receiver, nickname, msg)) {
+                // Not on this node, nor on another one
+                sendMessage("User not found");
+                return;
             }
-            return message.toString();
+            ServerLog.content(nickname + " (private) to " + receiver + ": ", null, msg);
+            sendMessage("Private message sent to " + receiver);
         }
 
         /**
-         * Convert a string (which looks like this: [1, 2, 3, 4]) to a string array
+         * /join room: move to a room
          *
-         * @param msg the string array
-         * @return the string
+         * @param arguments the arguments of the command
          */
-        public String[] stringToStringArray(String msg) {
-            return Arrays.stream(msg.substring(1, msg.length() - 1).split(", "))
-                    .toArray(String[]::new);
+        private void onJoin(CommandDispatcher.Arguments arguments) {
+            String name = arguments.next();
+            if (name == null) {
+                sendMessage("You must specify a room");
+                return;
+            }
+            if (name.length() > MAX_NAME_LENGTH) {
+                sendMessage("The name of the room is too long (" + MAX_NAME_LENGTH + " characters at most)");
+                return;
+            }
+            changeRoom(name);
         }
 
         /**
-         * Convert a string array to a byte array (with the same values)
+         * /leave: go back to the default room
          *
-         * @param msg the string array
-         * @return the byte array
+         * @param arguments the arguments of the command (ignored)
          */
-        public byte[] stringArrayToByteArray(String[] msg) {
-            byte[] messageBytes = new byte[msg.length];
-            for (int i = 0; i < msg.length; i++) {
-                messageBytes[i] = Byte.parseByte(msg[i]);
+        private void onLeave(CommandDispatcher.Arguments arguments) {
+            if (room.name.equals(Room.DEFAULT)) {
+                sendMessage("You are already in the room " + Room.DEFAULT);
+            } else {
+                changeRoom(Room.DEFAULT);
             }
-            return messageBytes;
         }
 
         /**
-         * Send a message to the client (it will be encrypted with the session key)
+         * /rooms: list the rooms
          *
-         * @param message the message to send
+         * @param arguments the arguments of the command (ignored)
          */
-        public void sendMessage(String message) {
-            try {
-                // Encrypt the message with the session key
-                Cipher cipher = Cipher.getInstance("AES");
-                cipher.init(Cipher.ENCRYPT_MODE, sessionKey);
-                byte[] encryptedMessage = cipher.doFinal(message.getBytes());
+        private void onRooms(CommandDispatcher.Arguments arguments) {
+            sendMessage("Rooms: " + describeRooms());
+        }
 
-                // Send the encrypted message
-                out.println(Arrays.toString(encryptedMessage));
-            } catch (Exception e) {
-                System.out.println("Error encrypting message");
+        /**
+         * /history [N]: show the last messages of the room
+         *
+         * @param arguments the arguments of the command
+         */
+        private void onHistory(CommandDispatcher.Arguments arguments) {
+            if (journal == null && config.historyMessages == 0) {
+                sendMessage("The history is not enabled on this server");
+                return;
+            }
+            int count = config.historyReplay;
+            String value = arguments.next();
+            if (value != null) {
+                try {
+                    count = Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    sendMessage("Usage: /history [number of messages]");
+                    return;
+                }
+            }
+            if (replayHistory(Math.max(1, Math.min(count, MAX_HISTORY))) == 0) {
+                sendMessage("No history in the room " + room.name);
             }
         }
 
         /**
-         * Decrypt a message with the session key
+         * Send the last messages of the room to the client
          *
-         * @param message the message to decrypt
-         * @return the decrypted message
+         * @param count the number of messages
+         * @return the number of messages sent
          */
-        public String decryptMessage(String message) {
-            try {
-                // Decrypt the message
-                return new String(cipher.doFinal(stringArrayToByteArray(stringToStringArray(message))));
-            } catch (Exception e) {
-                System.out.println("Error decrypting message");
-                return null;
+        private int replayHistory(int count) {
+            List<String> messages = history(room, count);
+            for (String message : messages) {
+                sendMessage(message);
             }
+            return messages.size();
         }
 
         /**
-         * Shutdown the client connection
+         * /bye: leave the chat
+         *
+         * @param arguments the arguments of the command (ignored)
          */
-        public void shutdown() {
-            // Remove the connection handler from the list of connections
-            connections.remove(this);
+        private void onBye(CommandDispatcher.Arguments arguments) {
+            // Broadcast the disconnection to the other clients
+            broadcastToRoom(nickname + " left the chat", null);
+            ServerLog.info(nickname + " left the chat (/bye)");
 
-            try {
-                // Close the input and output streams
-                in.close();
-                out.close();
+            // Shutdown the connection
+            shutdown();
+        }
 
-                // Close the client socket
-                if (!client.isClosed()) {
-                    client.close();
+        /**
+         * Handle the end of the connection
+         *
+         * @param e the error that closed the connection (null if the client closed it cleanly)
+         */
+        public void onDisconnect(IOException e) {
+            // User disconnected (e.g. /bye)
+            if (closed) {
+                // Ignore
+            }
+            // User disconnected (e.g. close window), seen by a read ("Connection reset") or a write ("Connection reset by peer")
+            else if (e == null || e.getMessage() != null && e.getMessage().startsWith("Connection reset")) {
+                if (nickname != null) {
+                    ServerLog.info(nickname + " disconnected (close window)");
+                    broadcastToRoom(nickname + " has been disconnected (closed the window)", null);
                 }
-            } catch (IOException e) {
-                System.out.println("Error closing connection with client");
+                shutdown();
+            }
+            // User disconnected (e.g. error)
+            else {
+                ServerLog.error("Error running connection handler");
+                shutdown();
             }
         }
 
         /**
-         * Run the connection handler
+         * Run the connection handler (blocking mode: read the frames until the connection is closed)
          */
         @Override
         public void run() {
             try {
-                // Create the input and output streams
-                out = new PrintWriter(client.getOutputStream(), true);
-                in = new BufferedReader(new InputStreamReader(client.getInputStream()));
-
-                // Ask the client for a nickname
-                sendMessage("Please enter a nickname: ");
+                start();
 
-                // Receive the nickname from the client
-                String nickCrypt = in.readLine();
-                nickname = decryptMessage(nickCrypt);
-                System.out.println(nickCrypt + " connected");
-                System.out.println(nickname + " connected");
-
-                // Broadcast the nickname to the other clients
-                broadcast(nickname + " joined the chat!");
-
-                String message;
+                FrameCodec.Frame frame;
                 // Read from the client until the connection is closed
-                while ((message = in.readLine()) != null) {
-                    // Decrypt the message
-                    String clearMessage = decryptMessage(message);
-
-                    // Console of the server
-                    System.out.println(nickname + ": " + message);
-                    System.out.println(nickname + ": " + clearMessage);
-
-                    // Commands
-                    if (clearMessage.startsWith("/nick")) {
-                        String[] messageSplit = clearMessage.split(" ", 2);
-                        if (messageSplit.length >= 2) {
-                            String newNickname = stringArrayToString(messageSplit, 1, messageSplit.length);
-
-                            // Broadcast the nickname change to the other clients (except the client that changed the nickname)
-                            broadcast(nickname + " changed their nickname to " + newNickname, this);
-                            System.out.println(nickname + " changed their nickname to " + newNickname);
-
-                            // Change the nickname
-                            nickname = messageSplit[1];
-                            // Alert the client
-                            sendMessage("Nickname changed to " + nickname);
-                        } else {
-                            sendMessage("The nickname cannot be empty");
+                while (!closed && (frame = reader.readFrame()) != null) {
+                    long wait = admit(frame);
+                    if (wait > 0) {
+                        // Above the rate: stop reading, the socket buffers fill up and TCP slows the client down
+                        long end = System.nanoTime() + wait;
+                        long left;
+                        while ((left = end - System.nanoTime()) > 0 && !closed) {
+                            LockSupport.parkNanos(left);
                         }
-                    } else if (clearMessage.startsWith("/mp")) {
-                        String[] messageSplit = clearMessage.split(" ");
-                        if (messageSplit.length >= 3) {
-                            // Get the receiver and the message
-                            String receiver = messageSplit[1];
-                            String msg = stringArrayToString(messageSplit, 2, messageSplit.length);
-
-                            boolean userFound = false;
-                            for (ConnectionHandler connection : connections) {
-                                if (connection != null && connection != this && connection.nickname.equals(receiver)) {
-                                    // Send the private message to the receiver
-                                    connection.sendMessage(nickname + " (private): " + msg);
-                                    System.out.println(nickname + " (private): " + msg);
-                                    userFound = true;
-                                }
-                            }
-                            if (!userFound) {
-                                this.sendMessage("User not found");
-                            } else {
-                                this.sendMessage("Private message sent to " + receiver);
-                            }
-                        } else {
-                            sendMessage("You must specify a receiver and a message");
-                        }
-                    } else if (clearMessage.equals("/bye")) {
-                        // Broadcast the disconnection to the other clients
-                        broadcast(nickname + " left the chat");
-                        System.out.println(nickname + " left the chat (/bye)");
-
-                        // Shutdown the connection
-                        shutdown();
-                    } else {
-                        // If the message is not a command, broadcast it to the other clients
-                        broadcast(nickname + ": " + clearMessage);
+                    }
+                    if (wait >= 0 && !closed) {
+                        onFrame(frame);
                     }
                 }
+                onDisconnect(null);
             } catch (IOException e) {
-                // User disconnected (e.g. /bye)
-                if (e.getMessage().equals("Stream closed")) {
-                    // Ignore
-                }
-                // User disconnected (e.g. close window)
-                else if (e.getMessage().equals("Connection reset")) {
-                    System.out.println(nickname + " disconnected (close window)");
-                    broadcast(nickname + " has been disconnected (closed the window)");
-                    shutdown();
-                }
-                // User disconnected (e.g. error)
-                else {
-                    System.out.println("Error running connection handler");
-                    shutdown();
-                }
+                onDisconnect(e);
+            } catch (RuntimeException e) {
+                // Not only the socket: a frame that broke its handler closes the connection too, so the nickname and
+                // the registry entry of the client don't outlive the thread
+                onDisconnect(new IOException(e));
             }
         }
     }
 
     public static void main(String[] args) {
-        Server server = new Server(9999);
+        Server server = new Server(ServerConfig.fromArgs(args));
+        // SIGTERM (e.g. a deploy): drain instead of dropping the clients
+        Runtime.getRuntime().addShutdownHook(new Thread(server::drain, "chat-drain"));
         server.run();
     }
 }
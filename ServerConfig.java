@@ -0,0 +1,178 @@
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Startup options of the server (parsed from the command line, e.g. --port=9999 --mode=virtual --loops=4)
+ */
+public class ServerConfig {
+
+    /**
+     * How the server drives the client connections
+     */
+    public enum Mode {
+        // One thread per connection blocked in readFrame()
+        BLOCKING,
+        // One virtual thread per connection (Java 21+, falls back to BLOCKING)
+        VIRTUAL,
+        // A few selector event loops shared by all the connections
+        NIO
+    }
+
+    /**
+     * What to do when the outbound queue of a client is full (the client reads slower than the others write)
+     */
+    public enum OverflowPolicy {
+        // Drop the oldest queued chat message and keep the client (room keys and control frames are never dropped)
+        DROP_OLDEST,
+        // Disconnect the client
+        DISCONNECT
+    }
+
+    /**
+     * What to do with a message sent above the rate limits
+     */
+    public enum RateAction {
+        // Stop reading from the client until the message fits (TCP pushes back on the client)
+        DELAY,
+        // Drop the message and tell the client
+        DROP,
+        // Handle the message, but tell the client and log it
+        WARN,
+        // Disconnect the client (above the global budget, the message is dropped instead)
+        KICK
+    }
+
+    public int port = 9999;
+    public Mode mode = Mode.BLOCKING;
+    public int eventLoops = Runtime.getRuntime().availableProcessors();
+    public int handshakeThreads = Runtime.getRuntime().availableProcessors();
+    public int maxHandshakes = 256;
+    // Connections waiting to be accepted (the clients of a restarted server all come back within the reconnect window)
+    public int acceptBacklog = 1024;
+    // Largest frame a client can send (a file chunk must fit): a larger frame closes the connection before it is read
+    public int maxFrameSize = FrameCodec.DEFAULT_MAX_FRAME_SIZE;
+    public long handshakeTimeoutMillis = 5000;
+    public boolean ecdh = true;
+    public boolean roomKey = false;
+    // Let the clients send files to each other (relayed in chunks, see FileTransfer)
+    public boolean fileTransfer = true;
+    // Messages queued per client before the overflow policy applies (0 for no queue in blocking and virtual modes)
+    public int outboundQueueSize = 1024;
+    public OverflowPolicy overflowPolicy = OverflowPolicy.DISCONNECT;
+    public ServerLog.Level logLevel = ServerLog.Level.INFO;
+    // False to never log the ciphertext and the cleartext of the messages
+    public boolean logContent = true;
+    // Directory of the message journal (null to keep no history)
+    public String journalDirectory = null;
+    public long journalSegmentSize = 4 * 1024 * 1024;
+    public int journalSegments = 16;
+    public long journalSyncMillis = 0;
+    // Messages of the room replayed to a client when it joins
+    public int historyReplay = 20;
+    // Messages kept in memory per room, bytes of these messages per room and for all the rooms
+    public int historyMessages = 100;
+    public int historyRoomBytes = 64 * 1024;
+    public long historyMemory = 16 * 1024 * 1024;
+    // Frames written to a client with one write, and how long its writer waits for more frames (0 to write at once)
+    public int writeBatch = 64;
+    public long writeDelayMicros = 0;
+    // Silence after which a client is pinged, and after which it is disconnected (0 for no heartbeat)
+    public long heartbeatIntervalMillis = 30_000;
+    public long idleTimeoutMillis = 90_000;
+    // Messages and bytes per second a client can send, for how long it can send faster, and what happens above (0 for
+    // no limit)
+    public long rateMessages = 50;
+    public long rateBytes = 256 * 1024;
+    public long rateBurstMillis = 1000;
+    public RateAction rateAction = RateAction.DELAY;
+    // Messages per second received from all the clients together (0 for no limit)
+    public long globalRateMessages = 0;
+    // Messages to the clients that accept compression are compressed from this size (0 to never compress)
+    public int compressThreshold = MessageCompressor.DEFAULT_THRESHOLD;
+    // How long the resumption tickets can be used (0 to disable resumption), and the file of their key (null for a key
+    // that doesn't survive a restart; share the file between the nodes so a client can resume on any of them)
+    public long ticketLifetimeMillis = TimeUnit.HOURS.toMillis(1);
+    public String ticketKeyFile = null;
+    // On shutdown (SIGTERM): how long to wait for the queued messages to be written, and the window over which the
+    // clients spread their reconnections
+    public long drainTimeoutMillis = 10_000;
+    public long reconnectWindowMillis = 5_000;
+    // Port of the links with the other nodes of the cluster (-1 for a single node), the address it listens on (null for
+    // the loopback interface), the file of the secret of the cluster (created if missing, the same file on every node,
+    // required), their addresses (host:port of their cluster port) and the id of this node (null for host:cluster port)
+    public int clusterPort = -1;
+    public String clusterBind = null;
+    public String clusterSecretFile = null;
+    public String[] peers = new String[0];
+    public String nodeId = null;
+    // Publish the metrics with JMX, and serve them as text on this local port (-1 for no endpoint)
+    public boolean jmx = true;
+    public int metricsPort = -1;
+
+    /**
+     * Parse the command line arguments (unknown options are reported and ignored)
+     *
+     * @param args the arguments (--name=value)
+     * @return the config
+     */
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            String[] option = arg.replaceFirst("^--", "").split("=", 2);
+            String value = option.length == 2 ? option[1] : "";
+            try {
+                switch (option[0]) {
+                    case "port" -> config.port = Integer.parseInt(value);
+                    case "mode" -> config.mode = Mode.valueOf(value.toUpperCase());
+                    case "loops" -> config.eventLoops = Math.max(1, Integer.parseInt(value));
+                    case "handshake-threads" -> config.handshakeThreads = Math.max(1, Integer.parseInt(value));
+                    case "max-handshakes" -> config.maxHandshakes = Math.max(1, Integer.parseInt(value));
+                    case "backlog" -> config.acceptBacklog = Math.max(1, Integer.parseInt(value));
+                    case "max-frame-size" -> config.maxFrameSize = Math.min(FrameCodec.MAX_FRAME_SIZE,
+                            Math.max(2 * FileTransfer.CHUNK_SIZE, Integer.parseInt(value)));
+                    case "handshake-timeout" -> config.handshakeTimeoutMillis = Long.parseLong(value);
+                    case "ecdh" -> config.ecdh = Boolean.parseBoolean(value);
+                    case "room-key" -> config.roomKey = Boolean.parseBoolean(value);
+                    case "file-transfer" -> config.fileTransfer = Boolean.parseBoolean(value);
+                    case "outbound-queue" -> config.outboundQueueSize = Math.max(0, Integer.parseInt(value));
+                    case "log-level" -> config.logLevel = ServerLog.Level.valueOf(value.toUpperCase());
+                    case "log-content" -> config.logContent = Boolean.parseBoolean(value);
+                    case "journal" -> config.journalDirectory = value.isEmpty() ? null : value;
+                    case "journal-segment-size" -> config.journalSegmentSize = Math.min(MessageJournal.MAX_SEGMENT_SIZE,
+                            Math.max(1024, Long.parseLong(value)));
+                    case "journal-segments" -> config.journalSegments = Math.max(1, Integer.parseInt(value));
+                    case "journal-sync" -> config.journalSyncMillis = Math.max(0, Long.parseLong(value));
+                    case "history-replay" -> config.historyReplay = Math.max(0, Integer.parseInt(value));
+                    case "history-messages" -> config.historyMessages = Math.max(0, Integer.parseInt(value));
+                    case "history-room-bytes" -> config.historyRoomBytes = Math.max(0, Integer.parseInt(value));
+                    case "history-memory" -> config.historyMemory = Math.max(0, Long.parseLong(value));
+                    case "write-batch" -> config.writeBatch = Math.max(1, Integer.parseInt(value));
+                    case "write-delay" -> config.writeDelayMicros = Math.max(0, Long.parseLong(value));
+                    case "heartbeat" -> config.heartbeatIntervalMillis = Math.max(0, Long.parseLong(value));
+                    case "idle-timeout" -> config.idleTimeoutMillis = Math.max(0, Long.parseLong(value));
+                    case "rate" -> config.rateMessages = Math.max(0, Long.parseLong(value));
+                    case "rate-bytes" -> config.rateBytes = Math.max(0, Long.parseLong(value));
+                    case "rate-burst" -> config.rateBurstMillis = Math.max(1, Long.parseLong(value));
+                    case "rate-action" -> config.rateAction = RateAction.valueOf(value.toUpperCase());
+                    case "global-rate" -> config.globalRateMessages = Math.max(0, Long.parseLong(value));
+                    case "compress-threshold" -> config.compressThreshold = Math.max(0, Integer.parseInt(value));
+                    case "ticket-lifetime" -> config.ticketLifetimeMillis = Math.max(0, Long.parseLong(value));
+                    case "ticket-key" -> config.ticketKeyFile = value.isEmpty() ? null : value;
+                    case "drain-timeout" -> config.drainTimeoutMillis = Math.max(0, Long.parseLong(value));
+                    case "reconnect-window" -> config.reconnectWindowMillis = Math.max(0, Long.parseLong(value));
+                    case "cluster-port" -> config.clusterPort = Integer.parseInt(value);
+                    case "cluster-bind" -> config.clusterBind = value.isEmpty() ? null : value;
+                    case "cluster-secret" -> config.clusterSecretFile = value.isEmpty() ? null : value;
+                    case "peers" -> config.peers = value.isEmpty() ? new String[0] : value.split(",");
+                    case "node-id" -> config.nodeId = value.isEmpty() ? null : value;
+                    case "jmx" -> config.jmx = Boolean.parseBoolean(value);
+                    case "metrics-port" -> config.metricsPort = Integer.parseInt(value);
+                    case "overflow" -> config.overflowPolicy = OverflowPolicy.valueOf(value.toUpperCase().replace('-', '_'));
+                    default -> System.out.println("Unknown option: " + arg);
+                }
+            } catch (IllegalArgumentException e) {
+                System.out.println("Invalid value for option: " + arg);
+            }
+        }
+        return config;
+    }
+}
@@ -0,0 +1,245 @@
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The log of the server, written asynchronously.
+ * <p>
+ * The connection threads only put entries (level, time, thread, text) in a bounded ring buffer, they never wait for
+ * the console: one writer thread takes the entries by batches, formats them and prints each batch with a single call.
+ * When the buffer is full the entries are dropped and counted. The contents of the messages (ciphertext and cleartext)
+ * are only formatted by the writer, and can be left out entirely (--log-content=false).
+ */
+public final class ServerLog {
+
+    /**
+     * The levels of the entries
+     */
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    private static final int CAPACITY = 8192;
+    private static final int BATCH_SIZE = 256;
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private static final ArrayBlockingQueue<Entry> buffer = new ArrayBlockingQueue<>(CAPACITY);
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final AtomicLong enqueued = new AtomicLong();
+    private static final AtomicLong written = new AtomicLong();
+    private static volatile Level level = Level.INFO;
+    private static volatile boolean content = true;
+
+    static {
+        Thread writer = new Thread(ServerLog::write, "chat-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * An entry of the log (formatted by the writer)
+     */
+    private static class Entry {
+        final long time = System.currentTimeMillis();
+        final String thread = Thread.currentThread().getName();
+        final Level level;
+        final String text;
+        final byte[] ciphertext;
+
+        /**
+         * Constructor
+         *
+         * @param level      the level
+         * @param text       the text
+         * @param ciphertext the ciphertext to print after the text (or null)
+         */
+        Entry(Level level, String text, byte[] ciphertext) {
+            this.level = level;
+            this.text = text;
+            this.ciphertext = ciphertext;
+        }
+    }
+
+    private ServerLog() {
+    }
+
+    /**
+     * Set the options of the log
+     *
+     * @param minimumLevel the entries below this level are ignored
+     * @param logContent   false to never log the contents of the messages
+     */
+    public static void configure(Level minimumLevel, boolean logContent) {
+        level = minimumLevel;
+        content = logContent;
+    }
+
+    /**
+     * @param entryLevel the level of an entry
+     * @return true if the entries of this level are logged
+     */
+    public static boolean isEnabled(Level entryLevel) {
+        return entryLevel.compareTo(level) >= 0 && entryLevel != Level.OFF;
+    }
+
+    /**
+     * Log a debug entry
+     *
+     * @param text the text
+     */
+    public static void debug(String text) {
+        log(Level.DEBUG, text, null);
+    }
+
+    /**
+     * Log an info entry
+     *
+     * @param text the text
+     */
+    public static void info(String text) {
+        log(Level.INFO, text, null);
+    }
+
+    /**
+     * Log a warning
+     *
+     * @param text the text
+     */
+    public static void warn(String text) {
+        log(Level.WARN, text, null);
+    }
+
+    /**
+     * Log an error
+     *
+     * @param text the text
+     */
+    public static void error(String text) {
+        log(Level.ERROR, text, null);
+    }
+
+    /**
+     * Log the contents of a message (nothing if --log-content=false)
+     *
+     * @param prefix     the text before the contents (e.g. the nickname)
+     * @param ciphertext the payload received, printed as in the legacy format (or null)
+     * @param cleartext  the decrypted message
+     */
+    public static void content(String prefix, byte[] ciphertext, String cleartext) {
+        if (!content || !isEnabled(Level.INFO)) {
+            return;
+        }
+        if (ciphertext != null) {
+            log(Level.INFO, prefix, ciphertext);
+        }
+        log(Level.INFO, prefix + cleartext, null);
+    }
+
+    /**
+     * Put an entry in the buffer (dropped if the buffer is full)
+     *
+     * @param entryLevel the level
+     * @param text       the text
+     * @param ciphertext the ciphertext to print after the text (or null)
+     */
+    private static void log(Level entryLevel, String text, byte[] ciphertext) {
+        if (!isEnabled(entryLevel)) {
+            return;
+        }
+        if (buffer.offer(new Entry(entryLevel, text, ciphertext))) {
+            enqueued.incrementAndGet();
+        } else {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Wait until the entries logged so far are written (e.g. before the server stops)
+     *
+     * @param timeoutMillis the maximum time to wait
+     */
+    public static void flush(long timeoutMillis) {
+        long target = enqueued.get();
+        long end = System.currentTimeMillis() + timeoutMillis;
+        while (written.get() < target && System.currentTimeMillis() < end) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the number of entries dropped because the buffer was full
+     */
+    public static long droppedEntries() {
+        return dropped.get();
+    }
+
+    /**
+     * The writer thread: take the entries by batches and print them
+     */
+    private static void write() {
+        List<Entry> batch = new ArrayList<>(BATCH_SIZE);
+        StringBuilder text = new StringBuilder();
+        long reportedDrops = 0;
+        while (true) {
+            try {
+                // Wait for an entry, then take the ones already there
+                Entry first = buffer.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                buffer.drainTo(batch, BATCH_SIZE - 1);
+
+                for (Entry entry : batch) {
+                    format(entry, text);
+                }
+                long drops = dropped.get();
+                if (drops > reportedDrops) {
+                    format(new Entry(Level.WARN, (drops - reportedDrops) + " log entries dropped (buffer full)", null), text);
+                    reportedDrops = drops;
+                }
+
+                // One call (one lock of the console) per batch
+                PrintStream out = System.out;
+                out.print(text);
+                out.flush();
+                written.addAndGet(batch.size());
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                // Never let a bad entry stop the writer
+                written.addAndGet(batch.size());
+            } finally {
+                batch.clear();
+                text.setLength(0);
+            }
+        }
+    }
+
+    /**
+     * Format an entry: time, level, thread, text
+     *
+     * @param entry the entry
+     * @param text  the text of the batch
+     */
+    private static void format(Entry entry, StringBuilder text) {
+        TIME_FORMAT.formatTo(Instant.ofEpochMilli(entry.time), text);
+        text.append(' ').append(String.format("%-5s", entry.level)).append(" [").append(entry.thread).append("] ")
+                .append(entry.text);
+        if (entry.ciphertext != null) {
+            text.append(FrameCodec.toLegacyString(entry.ciphertext));
+        }
+        text.append(System.lineSeparator());
+    }
+}
@@ -0,0 +1,426 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The metrics of the server: counters, rates and latency histograms.
+ * <p>
+ * The connection threads only add to LongAdders and histogram buckets (no lock, no allocation). The rates are computed
+ * once per second by sample(), and everything is read through JMX (chat:type=Server) or as plain text on
+ * http://127.0.0.1:--metrics-port/metrics, one "name value" line per metric.
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+
+    /**
+     * A counter and its rate over the last sample
+     */
+    public static class Rate {
+        private final LongAdder total = new LongAdder();
+        private long lastTotal;
+        private volatile double perSecond;
+
+        /**
+         * Add to the counter
+         *
+         * @param value the value to add
+         */
+        public void add(long value) {
+            total.add(value);
+        }
+
+        /**
+         * @return the counter itself (for the code that counts without knowing the metrics)
+         */
+        public LongAdder counter() {
+            return total;
+        }
+
+        /**
+         * @return the total since the server started
+         */
+        public long total() {
+            return total.sum();
+        }
+
+        /**
+         * @return the rate per second over the last sample
+         */
+        public double perSecond() {
+            return perSecond;
+        }
+
+        /**
+         * Compute the rate since the last sample
+         *
+         * @param elapsedNanos the time since the last sample
+         */
+        void sample(long elapsedNanos) {
+            long current = total.sum();
+            perSecond = (current - lastTotal) * 1e9 / Math.max(1, elapsedNanos);
+            lastTotal = current;
+        }
+    }
+
+    private static final String OBJECT_NAME = "chat:type=Server";
+
+    private final Server server;
+    public final Rate handshakes = new Rate();
+    public final Rate inboundMessages = new Rate();
+    public final Rate inboundBytes = new Rate();
+    public final Rate outboundMessages = new Rate();
+    public final Rate outboundBytes = new Rate();
+    // The writes to the sockets of the clients (several frames per write when they are batched)
+    public final Rate socketWrites = new Rate();
+    public final LatencyHistogram handshakeLatency = new LatencyHistogram();
+    public final LatencyHistogram encryptTime = new LatencyHistogram();
+    public final LatencyHistogram decryptTime = new LatencyHistogram();
+    public final LatencyHistogram broadcastTime = new LatencyHistogram();
+    // Messages sent compressed (one per frame written), the bytes compression saved on the wire, and its cost
+    public final LongAdder compressedMessages = new LongAdder();
+    public final LongAdder compressionSavedBytes = new LongAdder();
+    public final LatencyHistogram compressTime = new LatencyHistogram();
+    private long lastSample = System.nanoTime();
+    private ObjectName objectName;
+    private HttpServer endpoint;
+
+    /**
+     * Constructor
+     *
+     * @param server the server (for the number of clients and the outbound queues)
+     */
+    public ServerMetrics(Server server) {
+        this.server = server;
+    }
+
+    /**
+     * Compute the rates (called once per second)
+     */
+    public synchronized void sample() {
+        long now = System.nanoTime();
+        long elapsed = now - lastSample;
+        lastSample = now;
+        handshakes.sample(elapsed);
+        inboundMessages.sample(elapsed);
+        inboundBytes.sample(elapsed);
+        outboundMessages.sample(elapsed);
+        outboundBytes.sample(elapsed);
+        socketWrites.sample(elapsed);
+    }
+
+    /**
+     * Record a message received
+     *
+     * @param bytes the size of its payload
+     */
+    public void onInbound(int bytes) {
+        inboundMessages.add(1);
+        inboundBytes.add(bytes);
+    }
+
+    /**
+     * Record a message sent
+     *
+     * @param bytes the size of its payload
+     */
+    public void onOutbound(int bytes) {
+        outboundMessages.add(1);
+        outboundBytes.add(bytes);
+    }
+
+    /**
+     * Record compressed messages sent
+     *
+     * @param frames     the number of frames written (a broadcast shares one compressed frame)
+     * @param savedBytes the bytes saved by each frame
+     */
+    public void onCompressed(int frames, int savedBytes) {
+        compressedMessages.add(frames);
+        compressionSavedBytes.add((long) frames * savedBytes);
+    }
+
+    /**
+     * Publish the metrics with JMX (a warning is logged if they cannot be, e.g. a second server in the same JVM)
+     */
+    public void registerMBean() {
+        try {
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            mbeanServer.registerMBean(this, name);
+            objectName = name;
+        } catch (JMException e) {
+            ServerLog.warn("Metrics not published with JMX: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Serve the metrics as plain text on the loopback interface
+     *
+     * @param port the port
+     * @throws IOException if the port cannot be opened
+     */
+    public void startEndpoint(int port) throws IOException {
+        endpoint = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        endpoint.createContext("/metrics", exchange -> {
+            byte[] body = format().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        endpoint.start();
+        ServerLog.info("Metrics on http://127.0.0.1:" + endpoint.getAddress().getPort() + "/metrics");
+    }
+
+    /**
+     * Stop the endpoint and remove the metrics from JMX
+     */
+    public void close() {
+        if (endpoint != null) {
+            endpoint.stop(0);
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                // Already removed
+            }
+        }
+    }
+
+    /**
+     * @return the metrics as text, one "name value" line per metric
+     */
+    public String format() {
+        StringBuilder text = new StringBuilder();
+        line(text, "chat_connected_clients", getConnectedClients());
+        line(text, "chat_handshakes_total", handshakes.total());
+        line(text, "chat_handshakes_per_second", handshakes.perSecond());
+        histogram(text, "chat_handshake_latency_micros", handshakeLatency, 1000);
+        line(text, "chat_inbound_messages_total", inboundMessages.total());
+        line(text, "chat_inbound_messages_per_second", inboundMessages.perSecond());
+        line(text, "chat_inbound_bytes_total", inboundBytes.total());
+        line(text, "chat_inbound_bytes_per_second", inboundBytes.perSecond());
+        line(text, "chat_outbound_messages_total", outboundMessages.total());
+        line(text, "chat_outbound_messages_per_second", outboundMessages.perSecond());
+        line(text, "chat_outbound_bytes_total", outboundBytes.total());
+        line(text, "chat_outbound_bytes_per_second", outboundBytes.perSecond());
+        line(text, "chat_socket_writes_total", socketWrites.total());
+        line(text, "chat_socket_writes_per_second", socketWrites.perSecond());
+        histogram(text, "chat_encrypt_nanos", encryptTime, 1);
+        histogram(text, "chat_decrypt_nanos", decryptTime, 1);
+        histogram(text, "chat_broadcast_micros", broadcastTime, 1000);
+        line(text, "chat_compressed_messages_total", compressedMessages.sum());
+        line(text, "chat_compression_saved_bytes_total", getCompressionSavedBytes());
+        histogram(text, "chat_compress_nanos", compressTime, 1);
+        line(text, "chat_queued_frames", getQueuedFrames());
+        line(text, "chat_max_queued_frames", getMaxQueuedFrames());
+        line(text, "chat_dropped_frames_total", getDroppedFrames());
+        line(text, "chat_slow_consumer_disconnects_total", getSlowConsumerDisconnects());
+        line(text, "chat_idle_disconnects_total", getIdleDisconnects());
+        line(text, "chat_rate_limited_messages_total", getRateLimitedMessages());
+        line(text, "chat_flood_disconnects_total", getFloodDisconnects());
+        line(text, "chat_resumed_sessions_total", getResumedSessions());
+        line(text, "chat_files_total", getFilesRelayed());
+        line(text, "chat_file_bytes_total", getFileBytesRelayed());
+        ClusterBus cluster = server.cluster();
+        if (cluster != null) {
+            line(text, "chat_cluster_peers", cluster.connectedPeers());
+            line(text, "chat_cluster_frames_out_total", cluster.framesOut.sum());
+            line(text, "chat_cluster_frames_in_total", cluster.framesIn.sum());
+            line(text, "chat_cluster_dropped_frames_total", cluster.droppedFrames());
+        }
+        return text.toString();
+    }
+
+    /**
+     * Add a metric to the text
+     *
+     * @param text  the text
+     * @param name  the name of the metric
+     * @param value its value
+     */
+    private static void line(StringBuilder text, String name, Object value) {
+        if (value instanceof Double) {
+            value = String.format(Locale.ROOT, "%.1f", (Double) value);
+        }
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Add the count, the mean and the percentiles of a histogram to the text
+     *
+     * @param text      the text
+     * @param name      the name of the metric
+     * @param histogram the histogram (in nanoseconds)
+     * @param unit      the nanoseconds per unit of the metric
+     */
+    private static void histogram(StringBuilder text, String name, LatencyHistogram histogram, long unit) {
+        line(text, name + "_count", histogram.count());
+        line(text, name + "_mean", histogram.mean() / unit);
+        line(text, name + "{quantile=\"0.5\"}", histogram.percentile(50) / unit);
+        line(text, name + "{quantile=\"0.99\"}", histogram.percentile(99) / unit);
+        line(text, name + "{quantile=\"0.999\"}", histogram.percentile(99.9) / unit);
+    }
+
+    @Override
+    public int getConnectedClients() {
+        return server.connectedClients();
+    }
+
+    @Override
+    public long getHandshakes() {
+        return handshakes.total();
+    }
+
+    @Override
+    public double getHandshakesPerSecond() {
+        return handshakes.perSecond();
+    }
+
+    @Override
+    public long getHandshakeP50Micros() {
+        return handshakeLatency.percentile(50) / 1000;
+    }
+
+    @Override
+    public long getHandshakeP99Micros() {
+        return handshakeLatency.percentile(99) / 1000;
+    }
+
+    @Override
+    public long getInboundMessages() {
+        return inboundMessages.total();
+    }
+
+    @Override
+    public double getInboundMessagesPerSecond() {
+        return inboundMessages.perSecond();
+    }
+
+    @Override
+    public double getInboundBytesPerSecond() {
+        return inboundBytes.perSecond();
+    }
+
+    @Override
+    public long getOutboundMessages() {
+        return outboundMessages.total();
+    }
+
+    @Override
+    public double getOutboundMessagesPerSecond() {
+        return outboundMessages.perSecond();
+    }
+
+    @Override
+    public double getOutboundBytesPerSecond() {
+        return outboundBytes.perSecond();
+    }
+
+    @Override
+    public double getSocketWritesPerSecond() {
+        return socketWrites.perSecond();
+    }
+
+    @Override
+    public long getEncryptP50Nanos() {
+        return encryptTime.percentile(50);
+    }
+
+    @Override
+    public long getEncryptP99Nanos() {
+        return encryptTime.percentile(99);
+    }
+
+    @Override
+    public long getDecryptP50Nanos() {
+        return decryptTime.percentile(50);
+    }
+
+    @Override
+    public long getDecryptP99Nanos() {
+        return decryptTime.percentile(99);
+    }
+
+    @Override
+    public long getBroadcastP50Micros() {
+        return broadcastTime.percentile(50) / 1000;
+    }
+
+    @Override
+    public long getBroadcastP99Micros() {
+        return broadcastTime.percentile(99) / 1000;
+    }
+
+    @Override
+    public int getQueuedFrames() {
+        return server.queuedFrames();
+    }
+
+    @Override
+    public int getMaxQueuedFrames() {
+        return server.maxQueuedFrames();
+    }
+
+    @Override
+    public long getDroppedFrames() {
+        return server.droppedFrames();
+    }
+
+    @Override
+    public long getSlowConsumerDisconnects() {
+        return server.slowConsumerDisconnects();
+    }
+
+    @Override
+    public long getIdleDisconnects() {
+        return server.idleDisconnects();
+    }
+
+    @Override
+    public int getClusterPeers() {
+        ClusterBus cluster = server.cluster();
+        return cluster != null ? cluster.connectedPeers() : 0;
+    }
+
+    @Override
+    public long getRateLimitedMessages() {
+        return server.rateLimitedMessages();
+    }
+
+    @Override
+    public long getFloodDisconnects() {
+        return server.floodDisconnects();
+    }
+
+    @Override
+    public long getResumedSessions() {
+        return server.resumedSessions();
+    }
+
+    @Override
+    public long getFilesRelayed() {
+        return server.filesRelayed();
+    }
+
+    @Override
+    public long getFileBytesRelayed() {
+        return server.fileBytesRelayed();
+    }
+
+    @Override
+    public long getCompressionSavedBytes() {
+        return compressionSavedBytes.sum();
+    }
+}
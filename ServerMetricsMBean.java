@@ -0,0 +1,156 @@
+/**
+ * The metrics of the server published with JMX (e.g. in JConsole under chat:type=Server). The rates are per second
+ * over the last second, the latencies are percentiles since the server started.
+ */
+public interface ServerMetricsMBean {
+
+    /**
+     * @return the number of connected clients
+     */
+    int getConnectedClients();
+
+    /**
+     * @return the number of key exchanges completed
+     */
+    long getHandshakes();
+
+    /**
+     * @return the key exchanges completed per second
+     */
+    double getHandshakesPerSecond();
+
+    /**
+     * @return the median duration of a key exchange in microseconds
+     */
+    long getHandshakeP50Micros();
+
+    /**
+     * @return the 99th percentile of the duration of a key exchange in microseconds
+     */
+    long getHandshakeP99Micros();
+
+    /**
+     * @return the number of messages received
+     */
+    long getInboundMessages();
+
+    /**
+     * @return the messages received per second
+     */
+    double getInboundMessagesPerSecond();
+
+    /**
+     * @return the bytes of the messages received per second
+     */
+    double getInboundBytesPerSecond();
+
+    /**
+     * @return the number of messages sent
+     */
+    long getOutboundMessages();
+
+    /**
+     * @return the messages sent per second
+     */
+    double getOutboundMessagesPerSecond();
+
+    /**
+     * @return the bytes of the messages sent per second
+     */
+    double getOutboundBytesPerSecond();
+
+    /**
+     * @return the writes to the sockets per second (several messages per write when they are batched)
+     */
+    double getSocketWritesPerSecond();
+
+    /**
+     * @return the median time to encrypt a message in nanoseconds
+     */
+    long getEncryptP50Nanos();
+
+    /**
+     * @return the 99th percentile of the time to encrypt a message in nanoseconds
+     */
+    long getEncryptP99Nanos();
+
+    /**
+     * @return the median time to decrypt a message in nanoseconds
+     */
+    long getDecryptP50Nanos();
+
+    /**
+     * @return the 99th percentile of the time to decrypt a message in nanoseconds
+     */
+    long getDecryptP99Nanos();
+
+    /**
+     * @return the median time to fan out a message to the members of a room in microseconds
+     */
+    long getBroadcastP50Micros();
+
+    /**
+     * @return the 99th percentile of the time to fan out a message to the members of a room in microseconds
+     */
+    long getBroadcastP99Micros();
+
+    /**
+     * @return the number of messages waiting in the outbound queues of all the clients
+     */
+    int getQueuedFrames();
+
+    /**
+     * @return the number of messages waiting in the fullest outbound queue
+     */
+    int getMaxQueuedFrames();
+
+    /**
+     * @return the number of messages dropped because an outbound queue was full
+     */
+    long getDroppedFrames();
+
+    /**
+     * @return the number of clients disconnected because their outbound queue was full
+     */
+    long getSlowConsumerDisconnects();
+
+    /**
+     * @return the number of clients disconnected because they stopped answering the heartbeat
+     */
+    long getIdleDisconnects();
+
+    /**
+     * @return the number of other nodes of the cluster this node is connected to (0 for a single node)
+     */
+    int getClusterPeers();
+
+    /**
+     * @return the number of messages delayed, dropped or warned because a client sent too fast
+     */
+    long getRateLimitedMessages();
+
+    /**
+     * @return the number of clients disconnected because they sent too fast
+     */
+    long getFloodDisconnects();
+
+    /**
+     * @return the number of sessions resumed with a ticket instead of a key exchange
+     */
+    long getResumedSessions();
+
+    /**
+     * @return the number of files relayed completely from a client to another one
+     */
+    long getFilesRelayed();
+
+    /**
+     * @return the number of bytes of file data relayed
+     */
+    long getFileBytesRelayed();
+
+    /**
+     * @return the bytes saved on the wire by compressing the large messages
+     */
+    long getCompressionSavedBytes();
+}
@@ -0,0 +1,278 @@
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Resumption tickets (negotiated with FrameCodec.FEATURE_RESUMPTION): a client that reconnects after a restart
+ * presents the ticket of its last session instead of doing the key exchange again, and gets its nickname and its room
+ * back.
+ * <p>
+ * A ticket is opaque to the client: [nonce (12 bytes)][AES-GCM of (expiry, resumption secret, nickname, room)] with the
+ * ticket key of the server, which can be kept in a file (--ticket-key) so the tickets survive a restart. The client
+ * also gets the resumption secret, wrapped with its session key. The key of a resumed session is derived from the
+ * secret and a fresh nonce of each side, so it is never the key of a previous session (no GCM nonce reuse) and a
+ * stolen ticket is useless without the secret.
+ * <p>
+ * After the preamble, a client that asks for resumption sends [ticket length (short)][ticket][client nonce (32 bytes)]
+ * (a length of 0 without a ticket) and the server answers one byte: 1 followed by its nonce if the session is resumed,
+ * 0 if the key exchange goes on as usual.
+ */
+public class SessionTickets {
+
+    public static final int SECRET_SIZE = 32;
+    public static final int NONCE_SIZE = 32;
+    public static final int MAX_TICKET_SIZE = 1024;
+    public static final byte RESUMED = 1;
+    public static final byte NOT_RESUMED = 0;
+    private static final int KEY_SIZE = 32;
+    private static final int GCM_NONCE_SIZE = 12;
+    private static final byte[] INFO = "chat resumed session key".getBytes(StandardCharsets.US_ASCII);
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final Key ticketKey;
+    private final long lifetimeMillis;
+
+    /**
+     * The content of a valid ticket
+     */
+    public static final class Ticket {
+        public final byte[] secret;
+        public final String nickname;
+        public final String room;
+
+        /**
+         * Constructor
+         *
+         * @param secret   the resumption secret
+         * @param nickname the nickname of the session
+         * @param room     the room of the session
+         */
+        Ticket(byte[] secret, String nickname, String room) {
+            this.secret = secret;
+            this.nickname = nickname;
+            this.room = room;
+        }
+    }
+
+    /**
+     * A ticket kept by a client for its next connection
+     */
+    public static final class ClientTicket {
+        public final byte[] ticket;
+        public final byte[] secret;
+
+        /**
+         * Constructor
+         *
+         * @param ticket the ticket (opaque)
+         * @param secret the resumption secret
+         */
+        ClientTicket(byte[] ticket, byte[] secret) {
+            this.ticket = ticket;
+            this.secret = secret;
+        }
+
+        /**
+         * Decode the decrypted payload of a TYPE_TICKET frame
+         *
+         * @param payload the payload
+         * @return the ticket, or null if the payload is malformed
+         */
+        public static ClientTicket fromPayload(byte[] payload) {
+            if (payload.length < 2) {
+                return null;
+            }
+            int length = ((payload[0] & 0xff) << 8) | (payload[1] & 0xff);
+            if (payload.length != 2 + length + SECRET_SIZE) {
+                return null;
+            }
+            return new ClientTicket(Arrays.copyOfRange(payload, 2, 2 + length), Arrays.copyOfRange(payload, 2 + length, payload.length));
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param ticketKey      the AES key of the tickets
+     * @param lifetimeMillis how long a ticket can be used
+     */
+    public SessionTickets(Key ticketKey, long lifetimeMillis) {
+        this.ticketKey = ticketKey;
+        this.lifetimeMillis = lifetimeMillis;
+    }
+
+    /**
+     * Create the tickets of a server with the key of a file (created if it doesn't exist), or with a key of its own
+     *
+     * @param keyFile        the file of the ticket key (null for a key that doesn't survive a restart)
+     * @param lifetimeMillis how long a ticket can be used
+     * @return the tickets
+     * @throws IOException if the file cannot be read or created
+     */
+    public static SessionTickets open(String keyFile, long lifetimeMillis) throws IOException {
+        byte[] key = new byte[KEY_SIZE];
+        if (keyFile == null) {
+            RANDOM.nextBytes(key);
+        } else {
+            key = readKeyFile(keyFile, KEY_SIZE);
+        }
+        return new SessionTickets(new SecretKeySpec(key, "AES"), lifetimeMillis);
+    }
+
+    /**
+     * Read a key shared through a file, or create the file with a random key if it doesn't exist (the ticket key, the
+     * cluster secret)
+     *
+     * @param keyFile the file
+     * @param size    the size of the key
+     * @return the key
+     * @throws IOException if the file cannot be read or created, or does not hold a key of this size
+     */
+    static byte[] readKeyFile(String keyFile, int size) throws IOException {
+        Path path = Path.of(keyFile);
+        if (Files.exists(path)) {
+            byte[] key = Files.readAllBytes(path);
+            if (key.length != size) {
+                throw new IOException("Invalid key file: " + keyFile);
+            }
+            return key;
+        }
+        byte[] key = new byte[size];
+        RANDOM.nextBytes(key);
+        Files.write(path, key);
+        try {
+            // Readable by the server only
+            Files.setPosixFilePermissions(path, PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system
+        }
+        return key;
+    }
+
+    /**
+     * @return a new random resumption secret (or nonce)
+     */
+    public static byte[] randomBytes() {
+        byte[] bytes = new byte[SECRET_SIZE];
+        RANDOM.nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Create a ticket
+     *
+     * @param secret   the resumption secret (also sent to the client)
+     * @param nickname the nickname of the session
+     * @param room     the room of the session
+     * @return the ticket
+     * @throws GeneralSecurityException if the ticket cannot be encrypted
+     */
+    public byte[] issue(byte[] secret, String nickname, String room) throws GeneralSecurityException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream content = new DataOutputStream(bytes)) {
+            content.writeLong(System.currentTimeMillis() + lifetimeMillis);
+            content.write(secret);
+            content.writeUTF(nickname);
+            content.writeUTF(room);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        byte[] nonce = new byte[GCM_NONCE_SIZE];
+        RANDOM.nextBytes(nonce);
+        // A new Cipher per ticket: tickets are issued and opened by many threads, and only once per session
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, ticketKey, new GCMParameterSpec(MessageCipher.TAG_BITS, nonce));
+        byte[] ciphertext = cipher.doFinal(bytes.toByteArray());
+        byte[] ticket = new byte[GCM_NONCE_SIZE + ciphertext.length];
+        System.arraycopy(nonce, 0, ticket, 0, GCM_NONCE_SIZE);
+        System.arraycopy(ciphertext, 0, ticket, GCM_NONCE_SIZE, ciphertext.length);
+        return ticket;
+    }
+
+    /**
+     * Open a ticket presented by a client
+     *
+     * @param ticket the ticket
+     * @return its content, or null if it is invalid (another key, modified) or expired
+     */
+    public Ticket open(byte[] ticket) {
+        if (ticket.length <= GCM_NONCE_SIZE) {
+            return null;
+        }
+        try {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, ticketKey, new GCMParameterSpec(MessageCipher.TAG_BITS, ticket, 0, GCM_NONCE_SIZE));
+            byte[] clear = cipher.doFinal(ticket, GCM_NONCE_SIZE, ticket.length - GCM_NONCE_SIZE);
+            DataInputStream content = new DataInputStream(new ByteArrayInputStream(clear));
+            if (content.readLong() < System.currentTimeMillis()) {
+                return null;
+            }
+            byte[] secret = new byte[SECRET_SIZE];
+            content.readFully(secret);
+            return new Ticket(secret, content.readUTF(), content.readUTF());
+        } catch (GeneralSecurityException | IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Derive the key of a resumed session (same on both sides)
+     *
+     * @param secret      the resumption secret
+     * @param clientNonce the nonce of the client
+     * @param serverNonce the nonce of the server
+     * @return the AES session key
+     * @throws GeneralSecurityException if HmacSHA256 is not available
+     */
+    public static Key resumedKey(byte[] secret, byte[] clientNonce, byte[] serverNonce) throws GeneralSecurityException {
+        byte[] salt = new byte[2 * NONCE_SIZE];
+        System.arraycopy(clientNonce, 0, salt, 0, NONCE_SIZE);
+        System.arraycopy(serverNonce, 0, salt, NONCE_SIZE, NONCE_SIZE);
+        return new SecretKeySpec(KeyExchange.hkdf(secret, salt, INFO, KeyExchange.SESSION_KEY_SIZE), "AES");
+    }
+
+    /**
+     * Write the resumption request of a client (right after its preamble)
+     *
+     * @param out         the output stream of the server
+     * @param ticket      the ticket of the last session (null if none)
+     * @param clientNonce the nonce of the client
+     * @throws IOException if the stream is broken
+     */
+    public static void writeRequest(OutputStream out, byte[] ticket, byte[] clientNonce) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        if (ticket == null) {
+            data.writeShort(0);
+        } else {
+            data.writeShort(ticket.length);
+            data.write(ticket);
+            data.write(clientNonce);
+        }
+        data.flush();
+    }
+
+    /**
+     * Encode the payload of a TYPE_TICKET frame (before it is encrypted with the session key)
+     *
+     * @param ticket the ticket
+     * @param secret the resumption secret
+     * @return the payload
+     */
+    public static byte[] ticketPayload(byte[] ticket, byte[] secret) {
+        byte[] payload = new byte[2 + ticket.length + secret.length];
+        payload[0] = (byte) (ticket.length >>> 8);
+        payload[1] = (byte) ticket.length;
+        System.arraycopy(ticket, 0, payload, 2, ticket.length);
+        System.arraycopy(secret, 0, payload, 2 + ticket.length, secret.length);
+        return payload;
+    }
+}
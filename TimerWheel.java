@@ -0,0 +1,156 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timer wheel: the timeouts of all the connections hang from one array of slots turned by a single thread, so
+ * thousands of idle timers cost one periodic task instead of one scheduled task (or one thread) each.
+ * <p>
+ * A timeout goes into the slot of its deadline (modulo the number of slots) with the number of turns left before it
+ * expires. Scheduling and cancelling are O(1) from any thread; the expired tasks run on the thread calling tick(), so
+ * they must be short. The precision is one tick.
+ */
+public class TimerWheel {
+
+    private final long tickNanos;
+    private final long startNanos;
+    private final Timeout[] slots;
+    private final int mask;
+    // Scheduled by any thread, moved into the slots by the tick thread
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    // The next tick to process (tick thread only)
+    private long tick;
+
+    /**
+     * A task waiting on the wheel
+     */
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadlineTick;
+        // Tick thread only
+        private long rounds;
+        private Timeout next;
+        private volatile boolean cancelled;
+
+        /**
+         * Constructor
+         *
+         * @param task         the task
+         * @param deadlineTick the tick at which the task runs
+         */
+        private Timeout(Runnable task, long deadlineTick) {
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+
+        /**
+         * Cancel the task (it is removed from its slot the next time the wheel goes over it)
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * @return true if the task was cancelled
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param tick      the duration of a tick
+     * @param unit      the unit of the tick
+     * @param slotCount the number of slots (rounded up to a power of 2)
+     */
+    public TimerWheel(long tick, TimeUnit unit, int slotCount) {
+        tickNanos = Math.max(1, unit.toNanos(tick));
+        slots = new Timeout[Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1];
+        mask = slots.length - 1;
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * @return the duration of a tick in nanoseconds
+     */
+    public long tickNanos() {
+        return tickNanos;
+    }
+
+    /**
+     * Run a task after a delay (can be called from any thread)
+     *
+     * @param task  the task (runs on the thread of tick())
+     * @param delay the delay
+     * @param unit  the unit of the delay
+     * @return the timeout, to cancel the task
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        // Rounded up: a task never runs early
+        long deadline = System.nanoTime() - startNanos + unit.toNanos(Math.max(0, delay));
+        Timeout timeout = new Timeout(task, (deadline + tickNanos - 1) / tickNanos);
+        pending.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Run the tasks that expired since the last call (called every tick by a single thread, it catches up when late)
+     */
+    public void tick() {
+        long now = (System.nanoTime() - startNanos) / tickNanos;
+        while (tick <= now) {
+            transferPending();
+            expire(slots[(int) (tick & mask)], (int) (tick & mask));
+            tick++;
+        }
+    }
+
+    /**
+     * Move the timeouts scheduled since the last tick into their slots
+     */
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            // Already late: expires with the current tick
+            long deadline = Math.max(timeout.deadlineTick, tick);
+            timeout.rounds = (deadline - tick) / slots.length;
+            int index = (int) (deadline & mask);
+            timeout.next = slots[index];
+            slots[index] = timeout;
+        }
+    }
+
+    /**
+     * Run the expired tasks of a slot, keep the ones due in a later turn and drop the cancelled ones
+     *
+     * @param head  the first timeout of the slot
+     * @param index the index of the slot
+     */
+    private void expire(Timeout head, int index) {
+        slots[index] = null;
+        Timeout timeout = head;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            timeout.next = null;
+            if (timeout.cancelled) {
+                // Dropped
+            } else if (timeout.rounds > 0) {
+                timeout.rounds--;
+                timeout.next = slots[index];
+                slots[index] = timeout;
+            } else {
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    ServerLog.error("Error running a timer task");
+                }
+            }
+            timeout = next;
+        }
+    }
+}
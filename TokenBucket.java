@@ -0,0 +1,83 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket: the rate and the burst of the messages (or bytes) a client can send.
+ * <p>
+ * Instead of a token count refilled by a timer, the bucket keeps the time at which it will be full again (the
+ * "theoretical arrival time"). Taking n tokens pushes this time n intervals into the future; the bucket is empty when it
+ * is more than one burst ahead of now. Taking tokens is one compare-and-set, so the bucket can be shared by all the
+ * connections (global budget) without a lock.
+ * <p>
+ * Every token costs its full interval, even in a request larger than the burst: such a request is only granted when
+ * the bucket is full, and the bucket then stays empty until the debt is paid (the rate holds for large frames too).
+ */
+public class TokenBucket {
+
+    // Time for one token to come back, and the time the bucket can be ahead of now (its capacity)
+    private final long nanosPerToken;
+    private final long burstNanos;
+    private final AtomicLong fullAt = new AtomicLong(System.nanoTime());
+
+    /**
+     * Constructor
+     *
+     * @param tokensPerSecond the rate (at least 1)
+     * @param burst           how long a client can send above the rate before the bucket is empty
+     * @param unit            the unit of the burst
+     */
+    public TokenBucket(long tokensPerSecond, long burst, TimeUnit unit) {
+        nanosPerToken = Math.max(1, TimeUnit.SECONDS.toNanos(1) / Math.max(1, tokensPerSecond));
+        burstNanos = Math.max(nanosPerToken, unit.toNanos(burst));
+    }
+
+    /**
+     * Take tokens if the bucket has enough (or if it is full, for a request larger than the burst)
+     *
+     * @param tokens the number of tokens (e.g. 1 message, or its size in bytes)
+     * @return true if the tokens were taken, false if the bucket does not have enough (nothing is taken)
+     */
+    public boolean tryAcquire(long tokens) {
+        long now = System.nanoTime();
+        long cost = cost(tokens);
+        while (true) {
+            long current = fullAt.get();
+            long next = Math.max(current, now) + cost;
+            if (next - now > burstNanos && current - now > 0) {
+                return false;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Take tokens even if the bucket does not have enough, and tell how long to wait before using them
+     *
+     * @param tokens the number of tokens
+     * @return the time to wait in nanoseconds (0 if the bucket had enough tokens)
+     */
+    public long reserve(long tokens) {
+        long now = System.nanoTime();
+        long cost = cost(tokens);
+        while (true) {
+            long current = fullAt.get();
+            long next = Math.max(current, now) + cost;
+            if (fullAt.compareAndSet(current, next)) {
+                return Math.max(0, next - now - burstNanos);
+            }
+        }
+    }
+
+    /**
+     * The time taken by tokens
+     *
+     * @param tokens the number of tokens
+     * @return the time in nanoseconds (capped far beyond any burst, so it never overflows)
+     */
+    private long cost(long tokens) {
+        long max = Long.MAX_VALUE / 4;
+        return tokens >= max / nanosPerToken ? max : tokens * nanosPerToken;
+    }
+}
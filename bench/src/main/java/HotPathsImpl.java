@@ -0,0 +1,110 @@
+import chat.bench.HotPaths;
+
+import javax.crypto.Cipher;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.Key;
+import java.util.Arrays;
+
+/**
+ * The hot paths of the server called by the benchmarks (in the default package, like the server)
+ */
+public class HotPathsImpl implements HotPaths {
+
+    @Override
+    public String toLegacyString(byte[] payload) {
+        return FrameCodec.toLegacyString(payload);
+    }
+
+    @Override
+    public byte[] parseLegacyStringSplit(String line) {
+        // stringToStringArray
+        String[] values = Arrays.stream(line.substring(1, line.length() - 1).split(", ")).toArray(String[]::new);
+        // stringArrayToByteArray
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = Byte.parseByte(values[i]);
+        }
+        return bytes;
+    }
+
+    @Override
+    public byte[] parseLegacyString(String line) throws Exception {
+        return FrameCodec.parseLegacyString(line);
+    }
+
+    @Override
+    public byte[] encodeFrame(byte[] payload) {
+        return FrameCodec.encodeFrame(FrameCodec.TYPE_MESSAGE, payload);
+    }
+
+    @Override
+    public byte[] decodeFrame(byte[] frame) throws Exception {
+        FrameCodec codec = FrameCodec.binary(new ByteArrayInputStream(frame), OutputStream.nullOutputStream());
+        FrameCodec.Frame decoded = codec.readFrame();
+        if (decoded == null) {
+            throw new IOException("Truncated frame");
+        }
+        return decoded.payload;
+    }
+
+    @Override
+    public Crypto crypto(String kind) throws Exception {
+        Key key = Server.generateSessionKey();
+        switch (kind) {
+            case "new-cipher":
+                // sendMessage and decryptMessage of the first version of the server
+                return new Crypto() {
+                    @Override
+                    public byte[] encrypt(byte[] message) throws Exception {
+                        Cipher cipher = Cipher.getInstance("AES");
+                        cipher.init(Cipher.ENCRYPT_MODE, key);
+                        return cipher.doFinal(message);
+                    }
+
+                    @Override
+                    public byte[] encryptAndDecrypt(byte[] message) throws Exception {
+                        Cipher cipher = Cipher.getInstance("AES");
+                        cipher.init(Cipher.DECRYPT_MODE, key);
+                        return cipher.doFinal(encrypt(message));
+                    }
+                };
+            case "aes":
+            case "gcm":
+                boolean gcm = kind.equals("gcm");
+                MessageCipher server = MessageCipher.forServer(key, gcm);
+                MessageCipher client = MessageCipher.forClient(key, gcm);
+                return new Crypto() {
+                    @Override
+                    public byte[] encrypt(byte[] message) throws Exception {
+                        return server.encrypt(message);
+                    }
+
+                    @Override
+                    public byte[] encryptAndDecrypt(byte[] message) throws Exception {
+                        return server.decrypt(client.encrypt(message));
+                    }
+                };
+            default:
+                throw new IllegalArgumentException("Unknown cipher: " + kind);
+        }
+    }
+
+    @Override
+    public Broadcast server(int members, boolean roomKey) throws Exception {
+        int features = FrameCodec.FEATURE_GCM | (roomKey ? FrameCodec.FEATURE_ROOM_KEY : 0);
+        Server server = MicroBench.serverWithMembers(members, features, 0);
+        return new Broadcast() {
+            @Override
+            public void broadcast(String message) {
+                server.broadcast(message);
+            }
+
+            @Override
+            public void close() {
+                server.shutdown();
+            }
+        };
+    }
+}
@@ -0,0 +1,965 @@
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import com.sun.management.OperatingSystemMXBean;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Headless load tests against a running server.
+ * <p>
+ * ceiling: open idle sessions (key exchange done, nickname not sent yet) until the server stops accepting them, to
+ * compare the connection ceiling of the server modes, e.g.
+ * java LoadTest ceiling --port=9999 --connections=20000 --workers=16
+ * <p>
+ * handshake: compare the latency and the CPU time of the RSA and X25519 key exchanges, e.g.
+ * java LoadTest handshake --connections=500 --embedded (the embedded server makes the CPU time cover both sides)
+ * <p>
+ * slow: one client stops reading while another one sends messages, measure how long the other clients take to
+ * receive them, e.g. java LoadTest slow --connections=10 --messages=20000
+ * <p>
+ * throughput: simulated users do the real key exchange, join rooms and send messages at a fixed total rate; every
+ * message carries its scheduled send time, so the receivers measure the end-to-end latency of the broadcasts, e.g.
+ * java LoadTest throughput --connections=2000 --room-size=20 --rate=5000 --duration=30 --key-exchange=rsa
+ * <p>
+ * restart: connected users go through a drain and a restart of the (always embedded) server, first with the full key
+ * exchange then with resumption tickets, and measure how fast they are all back, e.g.
+ * java LoadTest restart --connections=2000 --reconnect-window=1000 --mode=nio
+ */
+public class LoadTest {
+
+    /**
+     * A connection that completed the key exchange
+     */
+    static class Session {
+        final Socket socket;
+        final FrameCodec codec;
+        final Key sessionKey;
+
+        /**
+         * Constructor
+         *
+         * @param socket     the socket
+         * @param codec      the negotiated wire format
+         * @param sessionKey the session key
+         */
+        Session(Socket socket, FrameCodec codec, Key sessionKey) {
+            this.socket = socket;
+            this.codec = codec;
+            this.sessionKey = sessionKey;
+        }
+
+        /**
+         * Close the session and ignore the errors
+         */
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    /**
+     * A session opened with a resumption request (GCM, like the Client)
+     */
+    static class ResumableSession extends Session {
+        // The cipher of the session (also used for the key confirmation, so its nonces are never reused)
+        final MessageCipher cipher;
+        final boolean resumed;
+
+        /**
+         * Constructor
+         *
+         * @param socket     the socket
+         * @param codec      the negotiated wire format
+         * @param sessionKey the session key
+         * @param resumed    true if the server accepted the ticket
+         * @throws GeneralSecurityException if the cipher cannot be created
+         */
+        ResumableSession(Socket socket, FrameCodec codec, Key sessionKey, boolean resumed) throws GeneralSecurityException {
+            super(socket, codec, sessionKey);
+            this.cipher = MessageCipher.forClient(sessionKey, true);
+            this.resumed = resumed;
+        }
+    }
+
+    /**
+     * Connect to the server and do the same key exchange as the Client (binary wire format)
+     *
+     * @param host    the server host
+     * @param port    the server port
+     * @param keyPair the RSA key pair (shared by the simulated users, generating one per session is too slow), or null
+     *                to use the X25519 exchange
+     * @return the session
+     * @throws Exception if the connection or the key exchange fails
+     */
+    static Session openSession(String host, int port, KeyPair keyPair) throws Exception {
+        Socket socket = new Socket(host, port);
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+
+            // Announce the binary wire format
+            FrameCodec.writePreamble(out, FrameCodec.VERSION, keyPair == null ? FrameCodec.FEATURE_ECDH : 0);
+            FrameCodec.Preamble preamble = FrameCodec.readPreambleAnswer(in);
+
+            if ((preamble.features & FrameCodec.FEATURE_ECDH) != 0) {
+                Key sessionKey = KeyExchange.clientExchange(in, out);
+                return new Session(socket, FrameCodec.forPreamble(preamble, in, out), sessionKey);
+            }
+            if (keyPair == null) {
+                throw new IOException("The server refused the X25519 key exchange");
+            }
+
+            // Send the public key and receive the encrypted session key
+            ObjectOutputStream objectOutputStream = new ObjectOutputStream(out);
+            objectOutputStream.writeObject(keyPair.getPublic());
+            objectOutputStream.flush();
+            byte[] encryptedSessionKey = (byte[]) new ObjectInputStream(in).readObject();
+
+            Cipher cipherRSA = Cipher.getInstance("RSA");
+            cipherRSA.init(Cipher.DECRYPT_MODE, keyPair.getPrivate());
+            byte[] sessionKeyBytes = cipherRSA.doFinal(encryptedSessionKey);
+
+            return new Session(socket, FrameCodec.forPreamble(preamble, in, out), new SecretKeySpec(sessionKeyBytes, "AES"));
+        } catch (Exception e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Connect to the server with a resumption request, like the Client: resume the session of the ticket, or do the
+     * X25519 key exchange if the server refuses it (or without a ticket)
+     *
+     * @param host   the server host
+     * @param port   the server port
+     * @param ticket the ticket of the last session, or null
+     * @return the session
+     * @throws Exception if the connection or the handshake fails
+     */
+    static ResumableSession openResumableSession(String host, int port, SessionTickets.ClientTicket ticket) throws Exception {
+        Socket socket = new Socket(host, port);
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+
+            // The ticket goes right behind the preamble
+            FrameCodec.writePreamble(out, FrameCodec.VERSION, FrameCodec.FEATURE_ECDH | FrameCodec.FEATURE_GCM | FrameCodec.FEATURE_RESUMPTION);
+            byte[] clientNonce = SessionTickets.randomBytes();
+            SessionTickets.writeRequest(out, ticket == null ? null : ticket.ticket, clientNonce);
+            FrameCodec.Preamble preamble = FrameCodec.readPreambleAnswer(in);
+            DataInputStream data = new DataInputStream(in);
+
+            if (data.readByte() == SessionTickets.RESUMED) {
+                byte[] serverNonce = new byte[SessionTickets.NONCE_SIZE];
+                data.readFully(serverNonce);
+                Key sessionKey = SessionTickets.resumedKey(ticket.secret, clientNonce, serverNonce);
+                ResumableSession session = new ResumableSession(socket, FrameCodec.forPreamble(preamble, in, out), sessionKey, true);
+                // Key confirmation: the server gives the nickname and the room back
+                session.codec.writeFrame(FrameCodec.TYPE_RESUME, session.cipher.encrypt(new byte[0]));
+                return session;
+            }
+            if ((preamble.features & FrameCodec.FEATURE_ECDH) == 0) {
+                throw new IOException("The server refused the X25519 key exchange");
+            }
+            Key sessionKey = KeyExchange.clientExchange(in, out);
+            return new ResumableSession(socket, FrameCodec.forPreamble(preamble, in, out), sessionKey, false);
+        } catch (Exception e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Send the nickname of a session (the first message) and return its cipher
+     *
+     * @param session  the session
+     * @param nickname the nickname
+     * @return the cipher of the session
+     * @throws Exception if the nickname cannot be sent
+     */
+    static MessageCipher join(Session session, String nickname) throws Exception {
+        MessageCipher cipher = MessageCipher.forClient(session.sessionKey, false);
+        session.codec.writeFrame(FrameCodec.TYPE_MESSAGE, cipher.encrypt(nickname.getBytes(StandardCharsets.UTF_8)));
+        return cipher;
+    }
+
+    /**
+     * Open idle sessions until the target is reached or the server refuses them
+     *
+     * @param host        the server host
+     * @param port        the server port
+     * @param connections the number of sessions to open
+     * @param workers     the number of threads opening the sessions
+     * @throws Exception if the key pair cannot be generated
+     */
+    static void ceiling(String host, int port, int connections, int workers) throws Exception {
+        KeyPair keyPair = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+        List<Session> sessions = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger failures = new AtomicInteger();
+        AtomicInteger remaining = new AtomicInteger(connections);
+        long start = System.nanoTime();
+
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        for (int i = 0; i < workers; i++) {
+            executor.execute(() -> {
+                // Stop at the first refused connection, the ceiling is reached
+                while (failures.get() == 0 && remaining.getAndDecrement() > 0) {
+                    try {
+                        sessions.add(openSession(host, port, keyPair));
+                        int opened = sessions.size();
+                        if (opened % 1000 == 0) {
+                            System.out.printf("%d sessions (%.1f s)%n", opened, (System.nanoTime() - start) / 1e9);
+                        }
+                    } catch (Exception e) {
+                        if (failures.getAndIncrement() == 0) {
+                            System.out.println("First failure after " + sessions.size() + " sessions: " + e);
+                        }
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.DAYS);
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Idle sessions held: %d, failures: %d, %.1f s (%.0f handshakes/s)%n",
+                sessions.size(), failures.get(), seconds, sessions.size() / seconds);
+
+        // Check that the server still answers on the held sessions
+        int alive = 0;
+        for (Session session : sessions) {
+            if (!session.socket.isClosed() && session.socket.isConnected()) {
+                alive++;
+            }
+            session.close();
+        }
+        System.out.println("Sessions still open before closing: " + alive);
+    }
+
+    /**
+     * Measure the latency and the CPU time of sequential key exchanges, RSA (a new key pair per session, like the
+     * Client) then X25519
+     *
+     * @param host        the server host
+     * @param port        the server port
+     * @param connections the number of key exchanges per mode
+     * @throws Exception if a key exchange fails
+     */
+    static void handshake(String host, int port, int connections) throws Exception {
+        OperatingSystemMXBean os = (OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        for (String mode : new String[]{"rsa", "ecdh"}) {
+            // Warm up the JIT before measuring
+            for (int i = 0; i < Math.min(50, connections); i++) {
+                openSession(host, port, mode.equals("rsa") ? KeyPairGenerator.getInstance("RSA").generateKeyPair() : null).close();
+            }
+
+            long[] latencies = new long[connections];
+            long cpuStart = os.getProcessCpuTime();
+            long start = System.nanoTime();
+            for (int i = 0; i < connections; i++) {
+                long handshakeStart = System.nanoTime();
+                KeyPair keyPair = mode.equals("rsa") ? KeyPairGenerator.getInstance("RSA").generateKeyPair() : null;
+                openSession(host, port, keyPair).close();
+                latencies[i] = System.nanoTime() - handshakeStart;
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            double cpuMillis = (os.getProcessCpuTime() - cpuStart) / 1e6;
+
+            Arrays.sort(latencies);
+            System.out.printf("%-4s: %d handshakes in %.1f s, latency p50 %.2f ms, p99 %.2f ms, CPU %.2f ms per handshake%n",
+                    mode, connections, seconds, latencies[connections / 2] / 1e6,
+                    latencies[(int) (connections * 0.99)] / 1e6, cpuMillis / connections);
+        }
+    }
+
+    /**
+     * Broadcast messages while one client never reads: without outbound queues the sender blocks as soon as the socket
+     * buffers of the slow client are full, and the other clients stop receiving
+     *
+     * @param host     the server host
+     * @param port     the server port
+     * @param readers  the number of clients reading the messages
+     * @param messages the number of messages to send
+     * @throws Exception if a session cannot be opened
+     */
+    static void slowConsumer(String host, int port, int readers, int messages) throws Exception {
+        Session slow = openSession(host, port, null);
+        join(slow, "slow");
+
+        CountDownLatch delivered = new CountDownLatch(readers);
+        List<Session> sessions = new ArrayList<>();
+        for (int i = 0; i < readers; i++) {
+            Session session = openSession(host, port, null);
+            MessageCipher cipher = join(session, "reader" + i);
+            sessions.add(session);
+            Thread reader = new Thread(() -> {
+                try {
+                    int received = 0;
+                    FrameCodec.Frame frame;
+                    while (received < messages && (frame = session.codec.readFrame()) != null) {
+                        if (new String(cipher.decrypt(frame.payload), StandardCharsets.UTF_8).startsWith("sender: ")) {
+                            received++;
+                        }
+                    }
+                    if (received == messages) {
+                        delivered.countDown();
+                    }
+                } catch (Exception e) {
+                    // The session is closed at the end of the test
+                }
+            });
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        Session sender = openSession(host, port, null);
+        MessageCipher cipher = join(sender, "sender");
+        // The sender gets its own messages back, it must read them too
+        Thread senderReader = new Thread(() -> {
+            try {
+                while (sender.codec.readFrame() != null) {
+                    // Ignore
+                }
+            } catch (IOException e) {
+                // The session is closed at the end of the test
+            }
+        });
+        senderReader.setDaemon(true);
+        senderReader.start();
+        // Let the joins go through before measuring
+        Thread.sleep(500);
+
+        byte[] padding = new byte[1024];
+        Arrays.fill(padding, (byte) 'x');
+        String message = new String(padding, StandardCharsets.UTF_8);
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            sender.codec.writeFrame(FrameCodec.TYPE_MESSAGE, cipher.encrypt(message.getBytes(StandardCharsets.UTF_8)));
+        }
+        double sendSeconds = (System.nanoTime() - start) / 1e9;
+        boolean complete = delivered.await(60, TimeUnit.SECONDS);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%d messages sent in %.2f s, %s to %d readers in %.2f s%n", messages, sendSeconds,
+                complete ? "delivered" : "NOT delivered (" + delivered.getCount() + " readers incomplete)",
+                readers, seconds);
+        slow.close();
+        sender.close();
+        for (Session session : sessions) {
+            session.close();
+        }
+    }
+
+    /**
+     * One client sends messages as fast as it can while another one chats normally: with the rate limits of the server
+     * (--rate, --rate-action), the flood reaches the room at the allowed rate and the normal client keeps its latency
+     *
+     * @param host    the server host
+     * @param port    the server port
+     * @param seconds how long the flood lasts
+     * @throws Exception if a session cannot be opened
+     */
+    static void flood(String host, int port, int seconds) throws Exception {
+        Session flooder = openSession(host, port, null);
+        MessageCipher flooderCipher = join(flooder, "flooder");
+        Session probe = openSession(host, port, null);
+        MessageCipher probeCipher = join(probe, "probe");
+
+        // The flooder reads what it gets back: its own messages and the notices of the server
+        Thread flooderReader = new Thread(() -> {
+            String lastNotice = null;
+            try {
+                FrameCodec.Frame frame;
+                while ((frame = flooder.codec.readFrame()) != null) {
+                    String message = new String(flooderCipher.decrypt(frame.payload), StandardCharsets.UTF_8);
+                    if (!message.startsWith("flooder: ") && !message.startsWith("probe: ")
+                            && !message.equals(lastNotice)) {
+                        System.out.println("Flooder notice: " + message);
+                        lastNotice = message;
+                    }
+                }
+            } catch (Exception e) {
+                // The session is closed at the end of the test (or by the server)
+            }
+        });
+        flooderReader.setDaemon(true);
+        flooderReader.start();
+
+        // The probe measures the flood it receives and the latency of its own messages
+        LongAdder floodReceived = new LongAdder();
+        LatencyHistogram latencies = new LatencyHistogram();
+        Thread probeReader = new Thread(() -> {
+            try {
+                FrameCodec.Frame frame;
+                while ((frame = probe.codec.readFrame()) != null) {
+                    String message = new String(probeCipher.decrypt(frame.payload), StandardCharsets.UTF_8);
+                    if (message.startsWith("flooder: ")) {
+                        floodReceived.increment();
+                    } else if (message.startsWith("probe: ")) {
+                        latencies.recordSince(Long.parseLong(message.substring("probe: ".length())));
+                    }
+                }
+            } catch (Exception e) {
+                // The session is closed at the end of the test
+            }
+        });
+        probeReader.setDaemon(true);
+        probeReader.start();
+        // Let the joins go through before measuring
+        Thread.sleep(500);
+
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        LongAdder floodSent = new LongAdder();
+        boolean[] kicked = {false};
+        Thread sender = new Thread(() -> {
+            try {
+                byte[] message = "flooder: spam spam spam spam spam spam spam spam".getBytes(StandardCharsets.UTF_8);
+                while (System.nanoTime() < end) {
+                    flooder.codec.writeFrame(FrameCodec.TYPE_MESSAGE, flooderCipher.encrypt(message));
+                    floodSent.increment();
+                }
+            } catch (Exception e) {
+                // Closed by the server before the end of the flood
+                kicked[0] = System.nanoTime() < end;
+            }
+        });
+        sender.setDaemon(true);
+        sender.start();
+        while (System.nanoTime() < end) {
+            // Broadcast back as "probe: <send time>"
+            probe.codec.writeFrame(FrameCodec.TYPE_MESSAGE, probeCipher.encrypt(Long.toString(System.nanoTime()).getBytes(StandardCharsets.UTF_8)));
+            Thread.sleep(100);
+        }
+        double floodSeconds = (System.nanoTime() - start) / 1e9;
+        // A blocked sender (--rate-action=delay) stays blocked: close it to stop the flood
+        flooder.close();
+        sender.join(1000);
+        Thread.sleep(1000);
+
+        System.out.printf("Flooder wrote %d messages (%.0f/s)%s, the room received %d (%.0f/s)%n", floodSent.sum(),
+                floodSent.sum() / floodSeconds, kicked[0] ? " and was disconnected" : "", floodReceived.sum(),
+                floodReceived.sum() / floodSeconds);
+        System.out.printf("Probe latency during the flood: p50 %.2f ms, p99 %.2f ms, max %.2f ms (%d messages)%n",
+                latencies.percentile(50) / 1e6, latencies.percentile(99) / 1e6, latencies.percentile(100) / 1e6,
+                latencies.count());
+        probe.close();
+    }
+
+    /**
+     * The options of the throughput scenario
+     */
+    static class ThroughputOptions {
+        int users = 1000;
+        // Users per room ("load0", "load1"...), 0 to keep them all in the default room
+        int roomSize = 20;
+        // Messages per second sent by all the users together
+        int rate = 1000;
+        int durationSeconds = 30;
+        int warmupSeconds = 5;
+        int messageSize = 100;
+        boolean rsa = true;
+        // Cluster nodes listening on port, port + 1... (the users are spread over them)
+        int nodes = 1;
+    }
+
+    /**
+     * Simulated users send messages at a fixed total rate while every user reads its room, and the receivers record
+     * the end-to-end latency of each delivery (from the time the message was scheduled to be sent, so a stalled
+     * sender doesn't hide the messages it should have sent meanwhile)
+     *
+     * @param host    the server host
+     * @param port    the server port
+     * @param workers the number of threads opening the sessions
+     * @param options the options
+     * @throws Exception if a session cannot be opened
+     */
+    static void throughput(String host, int port, int workers, ThroughputOptions options) throws Exception {
+        KeyPair keyPair = options.rsa ? KeyPairGenerator.getInstance("RSA").generateKeyPair() : null;
+        int users = options.users;
+        Session[] sessions = new Session[users];
+        MessageCipher[] ciphers = new MessageCipher[users];
+
+        // Connect the users (real key exchange), name them and put them in their room
+        long start = System.nanoTime();
+        AtomicInteger next = new AtomicInteger();
+        ExecutorService connector = Executors.newFixedThreadPool(workers);
+        for (int w = 0; w < workers; w++) {
+            connector.execute(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < users) {
+                    try {
+                        sessions[i] = openSession(host, port + i % options.nodes, keyPair);
+                        ciphers[i] = join(sessions[i], "user" + i);
+                        if (options.roomSize > 0) {
+                            String command = "/join load" + i / options.roomSize;
+                            sessions[i].codec.writeFrame(FrameCodec.TYPE_MESSAGE, ciphers[i].encrypt(command.getBytes(StandardCharsets.UTF_8)));
+                        }
+                    } catch (Exception e) {
+                        System.out.println("Session " + i + " failed: " + e);
+                    }
+                }
+            });
+        }
+        connector.shutdown();
+        connector.awaitTermination(1, TimeUnit.DAYS);
+        double connectSeconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d sessions in %.1f s (%.0f handshakes/s, %s)%n", users, connectSeconds,
+                users / connectSeconds, options.rsa ? "RSA" : "X25519");
+
+        // One reader per user (virtual threads when available)
+        LatencyHistogram latencies = new LatencyHistogram();
+        LongAdder delivered = new LongAdder();
+        long measureStart = System.nanoTime() + TimeUnit.SECONDS.toNanos(options.warmupSeconds);
+        ExecutorService readers = Server.newVirtualThreadExecutor();
+        if (readers == null) {
+            readers = Executors.newCachedThreadPool();
+        }
+        for (int i = 0; i < users; i++) {
+            Session session = sessions[i];
+            MessageCipher cipher = ciphers[i];
+            if (session == null) {
+                continue;
+            }
+            readers.execute(() -> {
+                try {
+                    FrameCodec.Frame frame;
+                    while ((frame = session.codec.readFrame()) != null) {
+                        String message = new String(cipher.decrypt(frame.payload), StandardCharsets.UTF_8);
+                        // "userN: t=<scheduled send time> xxx..."
+                        int time = message.indexOf(": t=");
+                        if (time < 0) {
+                            continue;
+                        }
+                        int end = message.indexOf(' ', time + 4);
+                        long scheduled = Long.parseLong(message, time + 4, end < 0 ? message.length() : end, 10);
+                        if (scheduled >= measureStart) {
+                            latencies.recordSince(scheduled);
+                            delivered.increment();
+                        }
+                    }
+                } catch (Exception e) {
+                    // The session is closed at the end of the test
+                }
+            });
+        }
+
+        long segmentsStart = tcpSegmentsSent();
+        // Each user sends in turn: one sender thread per worker, each with its share of the users and of the rate
+        int senderCount = Math.min(workers, users);
+        char[] padding = new char[Math.max(0, options.messageSize - 24)];
+        Arrays.fill(padding, 'x');
+        String suffix = " " + new String(padding);
+        long end = measureStart + TimeUnit.SECONDS.toNanos(options.durationSeconds);
+        long interval = TimeUnit.SECONDS.toNanos(senderCount) / Math.max(1, options.rate);
+        LongAdder sent = new LongAdder();
+        Thread[] senders = new Thread[senderCount];
+        for (int w = 0; w < senderCount; w++) {
+            int worker = w;
+            senders[w] = new Thread(() -> {
+                long scheduled = System.nanoTime() + interval * worker / senderCount;
+                int user = worker;
+                while (scheduled < end) {
+                    long wait = scheduled - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                    if (sessions[user] != null) {
+                        try {
+                            String message = "t=" + scheduled + suffix;
+                            sessions[user].codec.writeFrame(FrameCodec.TYPE_MESSAGE, ciphers[user].encrypt(message.getBytes(StandardCharsets.UTF_8)));
+                            if (scheduled >= measureStart) {
+                                sent.increment();
+                            }
+                        } catch (Exception e) {
+                            sessions[user] = null;
+                        }
+                    }
+                    user += senderCount;
+                    if (user >= users) {
+                        user = worker;
+                    }
+                    scheduled += interval;
+                }
+            }, "load-sender-" + w);
+            senders[w].start();
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+
+        // Wait for the last deliveries (until nothing arrives for a second)
+        long previous = -1;
+        while (delivered.sum() != previous) {
+            previous = delivered.sum();
+            Thread.sleep(1000);
+        }
+
+        long segments = tcpSegmentsSent() - segmentsStart;
+        int roomSize = options.roomSize > 0 ? Math.min(options.roomSize, users) : users;
+        double seconds = options.durationSeconds;
+        System.out.printf("Sent %d messages (%.0f/s), delivered %d of about %d (%.0f/s)%n", sent.sum(), sent.sum() / seconds,
+                delivered.sum(), sent.sum() * roomSize, delivered.sum() / seconds);
+        System.out.printf("End-to-end latency: p50 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, mean %.2f ms%n",
+                latencies.percentile(50) / 1e6, latencies.percentile(99) / 1e6, latencies.percentile(99.9) / 1e6,
+                latencies.mean() / 1e6);
+        if (segmentsStart >= 0) {
+            // Both directions and the ACKs on this host (the server is usually local): compare runs, not absolute values
+            System.out.printf("TCP segments sent on this host: %d (%.2f per delivered message)%n", segments,
+                    (double) segments / Math.max(1, delivered.sum()));
+        }
+
+        for (Session session : sessions) {
+            if (session != null) {
+                session.close();
+            }
+        }
+        readers.shutdownNow();
+    }
+
+    /**
+     * Drain the server under connected users and start a new one on the same port with the same ticket key: the users
+     * reconnect within the window announced by the server, first with the full key exchange (no ticket), then with
+     * their resumption tickets, and the test measures how long it takes until they are all back in their room
+     *
+     * @param port   the server port
+     * @param users  the number of users
+     * @param config the configuration of the servers
+     * @throws Exception if the ticket key file or a server cannot be created
+     */
+    static void restart(int port, int users, ServerConfig config) throws Exception {
+        OperatingSystemMXBean os = (OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        // The new server must open the tickets of the old one
+        Path keyFile = Files.createTempFile("chat-ticket", ".key");
+        Files.delete(keyFile);
+        config.ticketKeyFile = keyFile.toString();
+        config.port = port;
+        try {
+            for (boolean resume : new boolean[]{false, true}) {
+                Server old = startServer(config);
+                CountDownLatch ready = new CountDownLatch(users);
+                CountDownLatch back = new CountDownLatch(users);
+                LatencyHistogram latencies = new LatencyHistogram();
+                AtomicLong lastBack = new AtomicLong();
+                AtomicInteger failures = new AtomicInteger();
+                List<Session> sessions = Collections.synchronizedList(new ArrayList<>());
+
+                // One virtual thread per user (when available): join, wait for the restart, reconnect
+                ExecutorService executor = Server.newVirtualThreadExecutor();
+                if (executor == null) {
+                    executor = Executors.newCachedThreadPool();
+                }
+                for (int i = 0; i < users; i++) {
+                    int user = i;
+                    executor.execute(() -> {
+                        try {
+                            reconnectUser(port, "user" + user, resume, ready, latencies, sessions);
+                            lastBack.accumulateAndGet(System.nanoTime(), Math::max);
+                            back.countDown();
+                        } catch (Exception e) {
+                            if (failures.getAndIncrement() == 0) {
+                                System.out.println("First failure: " + e);
+                            }
+                            ready.countDown();
+                            back.countDown();
+                        }
+                    });
+                }
+                ready.await(5, TimeUnit.MINUTES);
+
+                // Restart: the old server tells the users to come back, writes what it has queued and closes
+                long cpuStart = os.getProcessCpuTime();
+                long start = System.nanoTime();
+                old.drain();
+                Server server = startServer(config);
+                boolean complete = back.await(5, TimeUnit.MINUTES);
+                double seconds = (lastBack.get() - start) / 1e9;
+                double cpuMillis = (os.getProcessCpuTime() - cpuStart) / 1e6;
+
+                System.out.printf("%s: %s users back in %.2f s after the drain (window %d ms), reconnect p50 %.2f ms, p99 %.2f ms, CPU %.2f ms per user, %d sessions resumed, %d failures%n",
+                        resume ? "resumption" : "full key exchange", complete ? Integer.toString(users) : "NOT all",
+                        seconds, config.reconnectWindowMillis, latencies.percentile(50) / 1e6,
+                        latencies.percentile(99) / 1e6, cpuMillis / users, server.resumedSessions(), failures.get());
+
+                server.shutdown();
+                for (Session session : sessions) {
+                    session.close();
+                }
+                executor.shutdownNow();
+            }
+        } finally {
+            Files.deleteIfExists(keyFile);
+        }
+    }
+
+    /**
+     * Start an embedded server
+     *
+     * @param config the configuration
+     * @return the server (listening)
+     * @throws IOException if the port cannot be bound
+     */
+    static Server startServer(ServerConfig config) throws IOException {
+        Server server = new Server(config);
+        Thread serverThread = new Thread(server, "embedded-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        return server;
+    }
+
+    /**
+     * One user of the restart scenario: join, keep the ticket, and reconnect when the server goes away (after a random
+     * wait within the reconnect window, retrying while the new server is not listening yet)
+     *
+     * @param port      the server port
+     * @param nickname  the nickname
+     * @param resume    true to present the ticket when reconnecting
+     * @param ready     counted down once the user has its ticket
+     * @param latencies the time from the first reconnect attempt until the user is back in its room
+     * @param sessions  the new sessions (closed at the end of the round)
+     * @throws Exception if the user cannot reconnect
+     */
+    static void reconnectUser(int port, String nickname, boolean resume, CountDownLatch ready,
+                              LatencyHistogram latencies, List<Session> sessions) throws Exception {
+        ResumableSession session = openResumableSession("localhost", port, null);
+        session.codec.writeFrame(FrameCodec.TYPE_MESSAGE, session.cipher.encrypt(nickname.getBytes(StandardCharsets.UTF_8)));
+        SessionTickets.ClientTicket ticket = null;
+        long window = -1;
+        try {
+            FrameCodec.Frame frame;
+            while ((frame = session.codec.readFrame()) != null) {
+                if (frame.type == FrameCodec.TYPE_TICKET && ticket == null) {
+                    // The server issues the ticket once the user is in its room
+                    ticket = SessionTickets.ClientTicket.fromPayload(session.cipher.decrypt(frame.payload));
+                    ready.countDown();
+                } else if (frame.type == FrameCodec.TYPE_GOAWAY) {
+                    window = new DataInputStream(new ByteArrayInputStream(frame.payload)).readInt();
+                }
+            }
+        } catch (IOException e) {
+            // Closed by the server
+        }
+        session.close();
+        if (window < 0) {
+            throw new IOException("Closed without a reconnect window");
+        }
+
+        // Spread over the window, like the Client
+        Thread.sleep(ThreadLocalRandom.current().nextLong(window + 1));
+        long start = System.nanoTime();
+        long delay = 50;
+        ResumableSession next = null;
+        while (next == null) {
+            try {
+                next = openResumableSession("localhost", port, resume ? ticket : null);
+            } catch (IOException e) {
+                if (System.nanoTime() - start > TimeUnit.SECONDS.toNanos(30)) {
+                    throw e;
+                }
+                Thread.sleep(delay);
+                delay = Math.min(1000, delay * 2);
+            }
+        }
+        sessions.add(next);
+        if (!next.resumed) {
+            next.codec.writeFrame(FrameCodec.TYPE_MESSAGE, next.cipher.encrypt(nickname.getBytes(StandardCharsets.UTF_8)));
+        }
+        // Back in the room when the server issues the ticket of the new session (after the join or the resume)
+        FrameCodec.Frame frame;
+        while ((frame = next.codec.readFrame()) != null && frame.type != FrameCodec.TYPE_TICKET) {
+            // Notices and the messages of the room
+        }
+        if (frame == null) {
+            throw new IOException("Closed before the user was back");
+        }
+        latencies.recordSince(start);
+    }
+
+    /**
+     * @return the number of TCP segments sent by this host (Linux /proc/net/snmp), or -1 if not available
+     */
+    static long tcpSegmentsSent() {
+        try {
+            List<String> lines = java.nio.file.Files.readAllLines(java.nio.file.Paths.get("/proc/net/snmp"));
+            for (int i = 0; i + 1 < lines.size(); i++) {
+                if (lines.get(i).startsWith("Tcp:") && lines.get(i + 1).startsWith("Tcp:")) {
+                    List<String> names = Arrays.asList(lines.get(i).split(" "));
+                    return Long.parseLong(lines.get(i + 1).split(" ")[names.indexOf("OutSegs")]);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // Not Linux
+        }
+        return -1;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.out.println("Usage: java LoadTest ceiling|handshake|slow|throughput|flood|restart [--host=localhost] [--port=9999] [--connections=N] [--workers=N] [--messages=N] [--embedded] [--mode=blocking|virtual|nio]");
+            System.out.println("       throughput: [--room-size=N] [--rate=messages/s] [--duration=s] [--warmup=s] [--message-size=bytes] [--key-exchange=rsa|ecdh] [--nodes=N]");
+            System.out.println("       flood: [--duration=s]");
+            System.out.println("       restart (always embedded): [--reconnect-window=ms]");
+            System.out.println("       --embedded: [--write-batch=N] [--write-delay=micros] [--user-rate=messages/s] [--global-rate=messages/s] [--rate-action=delay|drop|warn|kick]");
+            return;
+        }
+        String host = "localhost";
+        int port = 9999;
+        int connections = 10000;
+        int workers = 16;
+        int messages = 20000;
+        boolean embedded = false;
+        ServerConfig.Mode mode = ServerConfig.Mode.BLOCKING;
+        int writeBatch = new ServerConfig().writeBatch;
+        long writeDelay = 0;
+        // The other scenarios measure the server, not its rate limits: unlimited unless --user-rate is given
+        long userRate = args[0].equals("flood") ? new ServerConfig().rateMessages : 0;
+        ServerConfig.RateAction rateAction = new ServerConfig().rateAction;
+        long globalRate = 0;
+        ThroughputOptions throughput = new ThroughputOptions();
+        long reconnectWindow = new ServerConfig().reconnectWindowMillis;
+        for (int i = 1; i < args.length; i++) {
+            String[] option = args[i].replaceFirst("^--", "").split("=", 2);
+            String value = option.length == 2 ? option[1] : "";
+            switch (option[0]) {
+                case "host" -> host = value;
+                case "port" -> port = Integer.parseInt(value);
+                case "connections" -> connections = throughput.users = Integer.parseInt(value);
+                case "workers" -> workers = Integer.parseInt(value);
+                case "messages" -> messages = Integer.parseInt(value);
+                case "embedded" -> embedded = true;
+                case "mode" -> mode = ServerConfig.Mode.valueOf(value.toUpperCase());
+                case "write-batch" -> writeBatch = Integer.parseInt(value);
+                case "write-delay" -> writeDelay = Long.parseLong(value);
+                case "user-rate" -> userRate = Long.parseLong(value);
+                case "global-rate" -> globalRate = Long.parseLong(value);
+                case "rate-action" -> rateAction = ServerConfig.RateAction.valueOf(value.toUpperCase());
+                case "room-size" -> throughput.roomSize = Integer.parseInt(value);
+                case "rate" -> throughput.rate = Integer.parseInt(value);
+                case "duration" -> throughput.durationSeconds = Integer.parseInt(value);
+                case "warmup" -> throughput.warmupSeconds = Integer.parseInt(value);
+                case "message-size" -> throughput.messageSize = Integer.parseInt(value);
+                case "key-exchange" -> throughput.rsa = value.equalsIgnoreCase("rsa");
+                case "nodes" -> throughput.nodes = Math.max(1, Integer.parseInt(value));
+                case "reconnect-window" -> reconnectWindow = Long.parseLong(value);
+                default -> System.out.println("Unknown option: " + args[i]);
+            }
+        }
+
+        List<Server> servers = new ArrayList<>();
+        int nodes = throughput.nodes;
+        // The secret of the cluster: created by the first node, read by the others
+        Path secretFile = Files.createTempFile("chat-cluster", ".key");
+        Files.delete(secretFile);
+        secretFile.toFile().deleteOnExit();
+        for (int node = 0; embedded && node < nodes; node++) {
+            // Run the server in this JVM so the measured CPU time covers both sides
+            ServerConfig config = new ServerConfig();
+            config.port = port + node;
+            if (nodes > 1) {
+                // A cluster on this machine: the cluster ports follow the client ports by 1000
+                config.clusterPort = port + 1000 + node;
+                config.clusterSecretFile = secretFile.toString();
+                config.nodeId = "node" + node;
+                List<String> peers = new ArrayList<>();
+                for (int peer = 0; peer < nodes; peer++) {
+                    if (peer != node) {
+                        peers.add("localhost:" + (port + 1000 + peer));
+                    }
+                }
+                config.peers = peers.toArray(new String[0]);
+                // One MBean name per JVM
+                config.jmx = node == 0;
+            }
+            config.mode = mode;
+            config.writeBatch = writeBatch;
+            config.writeDelayMicros = writeDelay;
+            config.rateMessages = userRate;
+            config.rateBytes = userRate > 0 ? config.rateBytes : 0;
+            config.rateAction = rateAction;
+            config.globalRateMessages = globalRate;
+            // One line per join and per message would slow the server down more than the load
+            config.logLevel = ServerLog.Level.WARN;
+            Server server = new Server(config);
+            Thread serverThread = new Thread(server, "embedded-server");
+            serverThread.setDaemon(true);
+            serverThread.start();
+            servers.add(server);
+        }
+        // Wait until the nodes are connected to each other
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        for (Server server : servers) {
+            while (server.cluster() != null && server.cluster().connectedPeers() < nodes - 1 && System.nanoTime() < deadline) {
+                Thread.sleep(50);
+            }
+        }
+
+        if (args[0].equals("ceiling")) {
+            ceiling(host, port, connections, workers);
+        } else if (args[0].equals("handshake")) {
+            handshake(host, port, connections);
+        } else if (args[0].equals("slow")) {
+            slowConsumer(host, port, connections, messages);
+        } else if (args[0].equals("throughput")) {
+            throughput(host, port, workers, throughput);
+        } else if (args[0].equals("flood")) {
+            flood(host, port, throughput.durationSeconds);
+        } else if (args[0].equals("restart")) {
+            // The test drains and starts its own servers
+            ServerConfig config = new ServerConfig();
+            config.mode = mode;
+            config.reconnectWindowMillis = reconnectWindow;
+            config.rateMessages = 0;
+            config.rateBytes = 0;
+            // The old and the new server are in this JVM: no MBean (registered once per JVM)
+            config.jmx = false;
+            config.logLevel = ServerLog.Level.WARN;
+            restart(port, connections, config);
+        } else {
+            System.out.println("Unknown scenario: " + args[0]);
+        }
+        for (int node = 0; node < servers.size(); node++) {
+            Server server = servers.get(node);
+            if (nodes > 1) {
+                ClusterBus cluster = server.cluster();
+                System.out.printf("Node %d: %d frames relayed to the other nodes, %d received, %d dropped%n", node,
+                        cluster.framesOut.sum(), cluster.framesIn.sum(), cluster.droppedFrames());
+            }
+            System.out.printf("Server outbound queues: %d messages queued (max %d per client), %d dropped, %d slow clients disconnected%n",
+                    server.queuedFrames(), server.maxQueuedFrames(), server.droppedFrames(), server.slowConsumerDisconnects());
+            ServerMetrics metrics = server.metrics();
+            System.out.printf("Server rate limits: %d messages limited, %d clients disconnected for flooding%n",
+                    server.rateLimitedMessages(), server.floodDisconnects());
+            System.out.printf("Server writes: %d frames in %d socket writes (%.1f frames per write)%n",
+                    metrics.outboundMessages.total(), metrics.socketWrites.total(),
+                    (double) metrics.outboundMessages.total() / Math.max(1, metrics.socketWrites.total()));
+        }
+        for (Server server : servers) {
+            server.shutdown();
+        }
+    }
+}
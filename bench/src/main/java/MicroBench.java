@@ -0,0 +1,488 @@
+import javax.crypto.Cipher;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.Key;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Single-threaded micro benchmarks of the hot paths (messages per second on one core), e.g. java MicroBench cipher or
+ * java MicroBench broadcast, java MicroBench rooms, java MicroBench commands, java MicroBench log,
+ * java MicroBench journal, java MicroBench history, java MicroBench timers or java MicroBench compression
+ */
+public class MicroBench {
+
+    private static final long WARMUP_NANOS = 2_000_000_000L;
+    private static final long MEASURE_NANOS = 3_000_000_000L;
+
+    // Keeps the JIT from removing the benchmarked code
+    private static volatile Object sink;
+
+    /**
+     * Run an operation for a fixed time (after a warmup) and print its throughput
+     *
+     * @param name      the name of the benchmark
+     * @param operation the operation
+     * @throws Exception if the operation fails
+     */
+    static void measure(String name, Callable<?> operation) throws Exception {
+        measure(System.out, name, operation);
+    }
+
+    /**
+     * Run an operation for a fixed time (after a warmup) and print its throughput
+     *
+     * @param results   where to print the throughput
+     * @param name      the name of the benchmark
+     * @param operation the operation
+     * @throws Exception if the operation fails
+     */
+    static void measure(PrintStream results, String name, Callable<?> operation) throws Exception {
+        long end = System.nanoTime() + WARMUP_NANOS;
+        while (System.nanoTime() < end) {
+            sink = operation.call();
+        }
+
+        long operations = 0;
+        long start = System.nanoTime();
+        end = start + MEASURE_NANOS;
+        while (System.nanoTime() < end) {
+            for (int i = 0; i < 100; i++) {
+                sink = operation.call();
+            }
+            operations += 100;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        results.printf("%-40s %12.0f ops/s%n", name, operations / seconds);
+    }
+
+    /**
+     * Encryption and decryption of a chat message: a new Cipher per message (first version of the server) versus the
+     * reused ciphers of MessageCipher (AES and AES-GCM)
+     *
+     * @throws Exception if a cipher is not available
+     */
+    static void cipher() throws Exception {
+        Key key = Server.generateSessionKey();
+        byte[] message = "alice: a typical chat message of about sixty bytes, more or less".getBytes(StandardCharsets.UTF_8);
+
+        measure("encrypt, new Cipher per message", () -> {
+            Cipher cipher = Cipher.getInstance("AES");
+            cipher.init(Cipher.ENCRYPT_MODE, key);
+            return cipher.doFinal(message);
+        });
+
+        MessageCipher ecb = MessageCipher.forServer(key, false);
+        measure("encrypt, reused AES cipher", () -> ecb.encrypt(message));
+
+        MessageCipher gcm = MessageCipher.forServer(key, true);
+        measure("encrypt, reused AES-GCM cipher", () -> gcm.encrypt(message));
+
+        // Decryption needs a fresh payload per call with GCM (the counter must increase)
+        MessageCipher gcmClient = MessageCipher.forClient(key, true);
+        measure("encrypt + decrypt, AES-GCM", () -> gcmClient.decrypt(gcm.encrypt(message)));
+    }
+
+    /**
+     * Create a server on a free port with in-process clients that joined the chat (their frames are discarded)
+     *
+     * @param members  the number of clients
+     * @param features the features negotiated by the clients
+     * @param roomSize the number of clients per room ("room0", "room1"...), or 0 to keep them all in the default room
+     * @return the server
+     * @throws Exception if a client cannot be registered
+     */
+    static Server serverWithMembers(int members, int features, int roomSize) throws Exception {
+        ServerConfig config = new ServerConfig();
+        config.port = 0;
+        config.roomKey = true;
+        // Measure the encryption and the write, not the outbound queues
+        config.outboundQueueSize = 0;
+        // The server logs a line per join, keep the results readable
+        config.logLevel = ServerLog.Level.WARN;
+        config.jmx = false;
+
+        Server server = new Server(config);
+        for (int i = 0; i < members; i++) {
+            Key key = Server.generateSessionKey();
+            FrameCodec codec = FrameCodec.binary(InputStream.nullInputStream(), OutputStream.nullOutputStream());
+            Server.ConnectionHandler handler = server.register(new Socket(), codec, key, features);
+
+            // Send the nickname (and join a room) like a client would
+            MessageCipher clientCipher = MessageCipher.forClient(key, true);
+            handler.onFrame(new FrameCodec.Frame(FrameCodec.TYPE_MESSAGE, clientCipher.encrypt(("user" + i).getBytes(StandardCharsets.UTF_8))));
+            if (roomSize > 0) {
+                String join = "/join room" + i / roomSize;
+                handler.onFrame(new FrameCodec.Frame(FrameCodec.TYPE_MESSAGE, clientCipher.encrypt(join.getBytes(StandardCharsets.UTF_8))));
+            }
+        }
+        return server;
+    }
+
+    /**
+     * Cost of a broadcast versus the number of clients: one encryption per client (session keys) versus one encryption
+     * for all the clients (room key)
+     *
+     * @throws Exception if the server cannot be created
+     */
+    static void broadcast() throws Exception {
+        for (int members : new int[]{10, 100, 1000}) {
+            for (boolean roomKey : new boolean[]{false, true}) {
+                int features = FrameCodec.FEATURE_GCM | (roomKey ? FrameCodec.FEATURE_ROOM_KEY : 0);
+                Server server = serverWithMembers(members, features, 0);
+                measure("broadcast to " + members + (roomKey ? ", room key" : ", session keys"), () -> {
+                    server.broadcast("alice: a typical chat message of about sixty bytes, more or less");
+                    return server;
+                });
+                server.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Cost of a message in a room of 10 clients while the number of other rooms grows (the fan-out only depends on the
+     * size of the room)
+     *
+     * @throws Exception if the server cannot be created
+     */
+    static void rooms() throws Exception {
+        int roomSize = 10;
+        for (int otherRooms : new int[]{0, 100, 1000}) {
+            Server server = serverWithMembers(roomSize * (otherRooms + 1), FrameCodec.FEATURE_GCM, roomSize);
+            Room room = server.room("room0");
+            measure("room of " + roomSize + ", " + otherRooms + " other rooms", () -> {
+                room.broadcast("alice: a typical chat message of about sixty bytes, more or less", null);
+                return room;
+            });
+            server.shutdown();
+        }
+    }
+
+    /**
+     * Parse a message like the first version of the server: a chain of startsWith, then split and a StringBuilder to
+     * rebuild the text
+     *
+     * @param message the message
+     * @return the parsed arguments (or the message if it is not a command)
+     */
+    static Object parseWithChain(String message) {
+        if (message.startsWith("/nick")) {
+            String[] messageSplit = message.split(" ", 2);
+            return messageSplit.length >= 2 ? messageSplit[1] : null;
+        } else if (message.startsWith("/mp")) {
+            String[] messageSplit = message.split(" ");
+            StringBuilder msg = new StringBuilder();
+            for (int i = 2; i < messageSplit.length; i++) {
+                msg.append(messageSplit[i]).append(" ");
+            }
+            return new String[]{messageSplit[1], msg.toString()};
+        } else if (message.startsWith("/join")) {
+            return message.split(" ")[1];
+        } else if (message.equals("/leave") || message.equals("/rooms") || message.equals("/bye")) {
+            return message;
+        }
+        return message;
+    }
+
+    /**
+     * Per-message parsing cost: the startsWith chain of the first version versus the CommandDispatcher, for a chat
+     * message and a private message
+     *
+     * @throws Exception never
+     */
+    static void commands() throws Exception {
+        // Commands that only read their arguments, like the real ones
+        Object[] parsed = new Object[1];
+        CommandDispatcher<Object[]> dispatcher = new CommandDispatcher<>();
+        dispatcher.register("nick", (result, arguments) -> result[0] = arguments.rest());
+        dispatcher.register("mp", (result, arguments) -> result[0] = new String[]{arguments.next(), arguments.rest()});
+        dispatcher.register("join", (result, arguments) -> result[0] = arguments.next());
+        for (String name : new String[]{"leave", "rooms", "bye", "who", "history"}) {
+            dispatcher.register(name, (result, arguments) -> result[0] = name);
+        }
+
+        for (String message : new String[]{"a typical chat message of about forty bytes", "/mp bob a private message for bob"}) {
+            measure("chain: " + message.substring(0, 10), () -> parseWithChain(message));
+            measure("dispatcher: " + message.substring(0, 10), () -> {
+                if (!dispatcher.dispatch(parsed, message)) {
+                    parsed[0] = message;
+                }
+                return parsed[0];
+            });
+        }
+    }
+
+    /**
+     * Cost of logging a received message on the connection thread: two System.out.println (first version of the
+     * server) versus ServerLog (asynchronous) versus no content logging. Run with the output redirected, e.g.
+     * java MicroBench log > /dev/null 2> results.txt
+     *
+     * @throws Exception never
+     */
+    static void log() throws Exception {
+        byte[] ciphertext = new byte[80];
+        String message = "a typical chat message of about forty bytes";
+        PrintStream results = System.err;
+
+        measure(results, "System.out.println", () -> {
+            System.out.println("alice: " + FrameCodec.toLegacyString(ciphertext));
+            System.out.println("alice: " + message);
+            return message;
+        });
+
+        ServerLog.configure(ServerLog.Level.INFO, true);
+        long dropped = ServerLog.droppedEntries();
+        measure(results, "ServerLog.content", () -> {
+            ServerLog.content("alice: ", ciphertext, message);
+            return message;
+        });
+        ServerLog.flush(10_000);
+        results.println("  entries dropped (buffer full): " + (ServerLog.droppedEntries() - dropped));
+
+        ServerLog.configure(ServerLog.Level.INFO, false);
+        measure(results, "ServerLog.content, --log-content=false", () -> {
+            ServerLog.content("alice: ", ciphertext, message);
+            return message;
+        });
+    }
+
+    /**
+     * Cost of journaling a chat message on the connection thread (the writer thread appends and syncs by batches),
+     * and latency of reading the last 20 messages of a room among 10 rooms
+     *
+     * @throws Exception if the temporary journal cannot be created
+     */
+    static void journal() throws Exception {
+        Path directory = Files.createTempDirectory("chat-journal");
+        String message = "alice: a typical chat message of about forty bytes";
+        try (MessageJournal journal = new MessageJournal(directory, 4 * 1024 * 1024, 16, 0)) {
+            int[] counter = {0};
+            measure("MessageJournal.append", () -> {
+                journal.append("room" + (counter[0]++ % 10), message);
+                return message;
+            });
+            System.out.println("  messages dropped (writer behind): " + journal.droppedMessages());
+            measure("MessageJournal.recent(20)", () -> journal.recent("room3", 20));
+        } finally {
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
+    /**
+     * Memory footprint of 10k recent messages across 100 rooms (100 per room): one ArrayDeque of Strings per room
+     * versus one RoomHistory (circular byte array) per room, and the cost of reading the last 20 messages of a room
+     *
+     * @throws Exception never
+     */
+    static void history() throws Exception {
+        int roomCount = 100;
+        int perRoom = 100;
+        String text = "a typical chat message of about forty bytes #";
+
+        long before = usedMemory();
+        List<ArrayDeque<String>> deques = new ArrayList<>();
+        for (int r = 0; r < roomCount; r++) {
+            ArrayDeque<String> deque = new ArrayDeque<>();
+            for (int i = 0; i < perRoom; i++) {
+                deque.addLast("alice" + r + ": " + text + i);
+            }
+            deques.add(deque);
+        }
+        long dequeBytes = usedMemory() - before;
+        System.out.printf("%-40s %10d bytes%n", "ArrayDeque<String>, 10k messages", dequeBytes);
+        sink = deques;
+        deques = null;
+        sink = null;
+
+        before = usedMemory();
+        AtomicLong budget = new AtomicLong(Long.MAX_VALUE);
+        List<RoomHistory> histories = new ArrayList<>();
+        for (int r = 0; r < roomCount; r++) {
+            RoomHistory history = new RoomHistory(perRoom, 64 * 1024, budget);
+            for (int i = 0; i < perRoom; i++) {
+                history.add("alice" + r + ": " + text + i);
+            }
+            histories.add(history);
+        }
+        long historyBytes = usedMemory() - before;
+        System.out.printf("%-40s %10d bytes (arrays %d bytes)%n", "RoomHistory, 10k messages", historyBytes,
+                Long.MAX_VALUE - budget.get());
+
+        RoomHistory room = histories.get(42);
+        measure("RoomHistory.recent(20)", () -> room.recent(20));
+        measure("RoomHistory.add (evicting)", () -> {
+            room.add(text);
+            return room;
+        });
+        sink = histories;
+    }
+
+    /**
+     * Rescheduling the idle timeout of one of 100k connections: a ScheduledThreadPoolExecutor (a heap, O(log n) per
+     * timer) versus the TimerWheel of the heartbeat (O(1), turned by one periodic task)
+     *
+     * @throws Exception never
+     */
+    static void timers() throws Exception {
+        int connections = 100_000;
+        Runnable noop = () -> {
+        };
+
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        executor.setRemoveOnCancelPolicy(true);
+        ScheduledFuture<?>[] futures = new ScheduledFuture<?>[connections];
+        for (int i = 0; i < connections; i++) {
+            futures[i] = executor.schedule(noop, 30 + i % 60, TimeUnit.SECONDS);
+        }
+        int[] next = {0};
+        measure("ScheduledThreadPoolExecutor reschedule", () -> {
+            int i = next[0]++ % connections;
+            futures[i].cancel(false);
+            futures[i] = executor.schedule(noop, 30, TimeUnit.SECONDS);
+            return futures[i];
+        });
+        executor.shutdownNow();
+
+        TimerWheel wheel = new TimerWheel(100, TimeUnit.MILLISECONDS, 512);
+        TimerWheel.Timeout[] timeouts = new TimerWheel.Timeout[connections];
+        for (int i = 0; i < connections; i++) {
+            timeouts[i] = wheel.schedule(noop, 30 + i % 60, TimeUnit.SECONDS);
+        }
+        measure("TimerWheel reschedule", () -> {
+            int i = next[0]++ % connections;
+            timeouts[i].cancel();
+            timeouts[i] = wheel.schedule(noop, 30, TimeUnit.SECONDS);
+            if ((i & 1023) == 0) {
+                // The timer thread of the server does this every tick
+                wheel.tick();
+            }
+            return timeouts[i];
+        });
+    }
+
+    /**
+     * Bytes on the wire and CPU of the compression of typical messages (a chat line, a pasted stack trace, a code block
+     * and log lines), with and without the preset dictionary of MessageCompressor, and for a room where 80% of the
+     * messages are chat lines
+     *
+     * @throws Exception if a message cannot be compressed
+     */
+    static void compression() throws Exception {
+        String chat = "alice: did anyone look at the build failure on the release branch this morning?";
+        StringBuilder trace = new StringBuilder("bob: java.lang.IllegalStateException: Connection pool shut down\n");
+        for (int i = 0; i < 12; i++) {
+            trace.append("\tat com.example.db.ConnectionPool.acquire(ConnectionPool.java:").append(100 + i * 7).append(")\n");
+        }
+        trace.append("\tat java.base/java.util.concurrent.ThreadPoolExecutor.runWorker(ThreadPoolExecutor.java:1144)\n")
+                .append("\tat java.base/java.lang.Thread.run(Thread.java:1583)\n");
+        String code = "carol: ```java\n"
+                + "public class RetryPolicy {\n"
+                + "    private final int maxAttempts;\n"
+                + "    private final long backoffMillis;\n\n"
+                + "    public RetryPolicy(int maxAttempts, long backoffMillis) {\n"
+                + "        this.maxAttempts = maxAttempts;\n"
+                + "        this.backoffMillis = backoffMillis;\n"
+                + "    }\n\n"
+                + "    @Override\n"
+                + "    public String toString() {\n"
+                + "        return \"RetryPolicy{maxAttempts=\" + maxAttempts + \", backoffMillis=\" + backoffMillis + \"}\";\n"
+                + "    }\n"
+                + "}\n```";
+        StringBuilder logs = new StringBuilder("dave: ");
+        for (int i = 0; i < 8; i++) {
+            logs.append("2024-05-14T09:12:").append(10 + i).append(".").append(100 + i * 37)
+                    .append("Z INFO [pool-1-thread-").append(i % 3 + 1).append("] OrderService - processed order ")
+                    .append(48_213 + i).append(" in ").append(12 + i * 3).append(" ms\n");
+        }
+        String[] names = {"chat line", "stack trace", "code block", "log lines"};
+        String[] messages = {chat, trace.toString(), code, logs.toString()};
+
+        // A frame around a GCM message: header, nonce and tag
+        int envelope = FrameCodec.HEADER_SIZE + MessageCipher.NONCE_SIZE + MessageCipher.TAG_BITS / 8;
+        long[] wire = new long[messages.length];
+        for (int m = 0; m < messages.length; m++) {
+            byte[] clear = messages[m].getBytes(StandardCharsets.UTF_8);
+            byte[] compressed = MessageCompressor.compress(clear, MessageCompressor.DEFAULT_THRESHOLD);
+            // The same message without the dictionary
+            java.util.zip.Deflater deflater = new java.util.zip.Deflater(java.util.zip.Deflater.DEFAULT_COMPRESSION, true);
+            deflater.setInput(clear);
+            deflater.finish();
+            int plain = deflater.deflate(new byte[clear.length * 2]) + 4;
+            deflater.end();
+            wire[m] = envelope + (compressed != null ? compressed.length : clear.length);
+            System.out.printf("%-40s %6d bytes, deflate %6d, with dictionary %6s, on the wire %6d%n", names[m], clear.length,
+                    plain, compressed != null ? compressed.length : "-", wire[m]);
+        }
+        // 80% chat lines, the rest split between the large messages
+        double mixed = 0.8 * wire[0] + 0.2 * (wire[1] + wire[2] + wire[3]) / 3;
+        double mixedClear = 0.8 * messages[0].getBytes(StandardCharsets.UTF_8).length
+                + 0.2 * (messages[1].getBytes(StandardCharsets.UTF_8).length + messages[2].getBytes(StandardCharsets.UTF_8).length
+                + messages[3].getBytes(StandardCharsets.UTF_8).length) / 3;
+        System.out.printf("%-40s %6.0f bytes on the wire per message (%.0f without compression)%n", "room mix (80% chat)",
+                mixed, mixedClear + envelope);
+
+        for (int m = 1; m < messages.length; m++) {
+            byte[] clear = messages[m].getBytes(StandardCharsets.UTF_8);
+            byte[] compressed = MessageCompressor.compress(clear, MessageCompressor.DEFAULT_THRESHOLD);
+            measure("compress " + names[m], () -> MessageCompressor.compress(clear, MessageCompressor.DEFAULT_THRESHOLD));
+            measure("decompress " + names[m], () -> MessageCompressor.decompress(compressed, FrameCodec.MAX_FRAME_SIZE));
+        }
+        Key key = Server.generateSessionKey();
+        MessageCipher gcm = MessageCipher.forServer(key, true);
+        byte[] trace2 = messages[1].getBytes(StandardCharsets.UTF_8);
+        measure("encrypt stack trace (for comparison)", () -> gcm.encrypt(trace2));
+    }
+
+    /**
+     * @return the heap used after a garbage collection
+     */
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    public static void main(String[] args) throws Exception {
+        String benchmark = args.length > 0 ? args[0] : "cipher";
+        if (benchmark.equals("cipher")) {
+            cipher();
+        } else if (benchmark.equals("broadcast")) {
+            broadcast();
+        } else if (benchmark.equals("rooms")) {
+            rooms();
+        } else if (benchmark.equals("commands")) {
+            commands();
+        } else if (benchmark.equals("log")) {
+            log();
+        } else if (benchmark.equals("journal")) {
+            journal();
+        } else if (benchmark.equals("history")) {
+            history();
+        } else if (benchmark.equals("timers")) {
+            timers();
+        } else if (benchmark.equals("compression")) {
+            compression();
+        } else {
+            System.out.println("Unknown benchmark: " + benchmark);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package chat.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server.broadcast to N in-process clients: one encryption per client (session keys) versus one encryption for all the
+ * clients (room key). The frames are written to null streams, so this measures the fan-out, not the network.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BroadcastBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int members;
+
+    @Param({"false", "true"})
+    public boolean roomKey;
+
+    private HotPaths.Broadcast server;
+
+    /**
+     * Create the server and its clients
+     *
+     * @throws Exception if the server cannot be created
+     */
+    @Setup
+    public void setUp() throws Exception {
+        server = HotPaths.load().server(members, roomKey);
+    }
+
+    /**
+     * Shut the server down
+     */
+    @TearDown
+    public void tearDown() {
+        server.close();
+    }
+
+    /**
+     * Broadcast a message
+     */
+    @Benchmark
+    public void broadcast() {
+        server.broadcast("alice: a typical chat message of about forty bytes");
+    }
+}
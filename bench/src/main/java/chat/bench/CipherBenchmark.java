@@ -0,0 +1,52 @@
+package chat.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encryption and decryption of a chat message: a Cipher created per message (sendMessage and decryptMessage of the
+ * first version of the server) versus the reused ciphers of MessageCipher
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CipherBenchmark {
+
+    @Param({"new-cipher", "aes", "gcm"})
+    public String cipher;
+
+    private HotPaths.Crypto crypto;
+    private final byte[] message = "alice: a typical chat message of about sixty bytes, more or less".getBytes();
+
+    /**
+     * Create the ciphers of a session
+     *
+     * @throws Exception if the cipher is not available
+     */
+    @Setup
+    public void setUp() throws Exception {
+        crypto = HotPaths.load().crypto(cipher);
+    }
+
+    /**
+     * @return the encrypted message
+     * @throws Exception never
+     */
+    @Benchmark
+    public byte[] encrypt() throws Exception {
+        return crypto.encrypt(message);
+    }
+
+    /**
+     * @return the message encrypted by the client and decrypted by the server
+     * @throws Exception never
+     */
+    @Benchmark
+    public byte[] encryptAndDecrypt() throws Exception {
+        return crypto.encryptAndDecrypt(message);
+    }
+}
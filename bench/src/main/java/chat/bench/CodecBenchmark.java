@@ -0,0 +1,82 @@
+package chat.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and formatting of a frame: the legacy text format ([1, 2, 3]) with the split-based parser of the first
+ * version of the server and with the single-pass parser, versus the binary frames
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CodecBenchmark {
+
+    // The size of the ciphertext of a chat message
+    @Param({"64", "1024"})
+    public int payloadSize;
+
+    private HotPaths hotPaths;
+    private byte[] payload;
+    private String legacyLine;
+    private byte[] frame;
+
+    /**
+     * Create the payload and its encodings
+     */
+    @Setup
+    public void setUp() {
+        hotPaths = HotPaths.load();
+        payload = new byte[payloadSize];
+        ThreadLocalRandom.current().nextBytes(payload);
+        legacyLine = hotPaths.toLegacyString(payload);
+        frame = hotPaths.encodeFrame(payload);
+    }
+
+    /**
+     * @return the payload in the legacy text format
+     */
+    @Benchmark
+    public String legacyFormat() {
+        return hotPaths.toLegacyString(payload);
+    }
+
+    /**
+     * @return the payload parsed with split and Byte.parseByte
+     */
+    @Benchmark
+    public byte[] legacyParseSplit() {
+        return hotPaths.parseLegacyStringSplit(legacyLine);
+    }
+
+    /**
+     * @return the payload parsed in a single pass
+     * @throws Exception never
+     */
+    @Benchmark
+    public byte[] legacyParse() throws Exception {
+        return hotPaths.parseLegacyString(legacyLine);
+    }
+
+    /**
+     * @return the binary frame of the payload
+     */
+    @Benchmark
+    public byte[] binaryEncode() {
+        return hotPaths.encodeFrame(payload);
+    }
+
+    /**
+     * @return the payload of the binary frame
+     * @throws Exception never
+     */
+    @Benchmark
+    public byte[] binaryDecode() throws Exception {
+        return hotPaths.decodeFrame(frame);
+    }
+}
@@ -0,0 +1,126 @@
+package chat.bench;
+
+/**
+ * The hot paths of the server seen by the benchmarks.
+ * <p>
+ * The classes of the server are in the default package, which a named package cannot import (and JMH needs a named
+ * package). The benchmarks call this interface, implemented by HotPathsImpl in the default package: the call has a
+ * single implementation, so the JIT inlines it.
+ */
+public interface HotPaths {
+
+    /**
+     * The encryption of the messages of a session
+     */
+    interface Crypto {
+        /**
+         * Encrypt a message as the server does before sending it
+         *
+         * @param message the message
+         * @return the payload
+         * @throws Exception if the message cannot be encrypted
+         */
+        byte[] encrypt(byte[] message) throws Exception;
+
+        /**
+         * Encrypt a message as the client does, then decrypt it as the server does (with AES-GCM a payload can only be
+         * decrypted once, so decryption alone cannot be repeated)
+         *
+         * @param message the message
+         * @return the decrypted message
+         * @throws Exception if the message cannot be encrypted or decrypted
+         */
+        byte[] encryptAndDecrypt(byte[] message) throws Exception;
+    }
+
+    /**
+     * A server with in-process clients
+     */
+    interface Broadcast extends AutoCloseable {
+        /**
+         * Broadcast a message to all the clients
+         *
+         * @param message the message
+         */
+        void broadcast(String message);
+
+        /**
+         * Shut the server down
+         */
+        @Override
+        void close();
+    }
+
+    /**
+     * Format a payload in the legacy text format ([1, 2, 3])
+     *
+     * @param payload the payload
+     * @return the text line
+     */
+    String toLegacyString(byte[] payload);
+
+    /**
+     * Parse a legacy text line with split and Byte.parseByte (stringToStringArray and stringArrayToByteArray of the
+     * first version of the server)
+     *
+     * @param line the text line
+     * @return the payload
+     */
+    byte[] parseLegacyStringSplit(String line);
+
+    /**
+     * Parse a legacy text line in a single pass (FrameCodec.parseLegacyString)
+     *
+     * @param line the text line
+     * @return the payload
+     * @throws Exception if the line is malformed
+     */
+    byte[] parseLegacyString(String line) throws Exception;
+
+    /**
+     * Encode a binary frame
+     *
+     * @param payload the payload
+     * @return the frame
+     */
+    byte[] encodeFrame(byte[] payload);
+
+    /**
+     * Decode a binary frame
+     *
+     * @param frame the frame
+     * @return the payload
+     * @throws Exception if the frame is malformed
+     */
+    byte[] decodeFrame(byte[] frame) throws Exception;
+
+    /**
+     * Create the encryption of a session
+     *
+     * @param kind "new-cipher" (a Cipher created per message, first version of the server), "aes" or "gcm" (MessageCipher)
+     * @return the encryption
+     * @throws Exception if the cipher is not available
+     */
+    Crypto crypto(String kind) throws Exception;
+
+    /**
+     * Create a server with in-process clients in the default room (their frames are discarded)
+     *
+     * @param members the number of clients
+     * @param roomKey true if the clients use the room key, false for one encryption per client
+     * @return the server
+     * @throws Exception if the server cannot be created
+     */
+    Broadcast server(int members, boolean roomKey) throws Exception;
+
+    /**
+     * @return the implementation (in the default package)
+     */
+    static HotPaths load() {
+        try {
+            return (HotPaths) Class.forName("HotPathsImpl").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("HotPathsImpl not found", e);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The authentication of the cluster links and the replicated nickname directory
+ */
+class ClusterBusTest {
+
+    @TempDir
+    Path directory;
+
+    @RegisterExtension
+    final TestServers servers = new TestServers();
+
+    /**
+     * @param secret the secret
+     * @return a MAC keyed with the secret
+     * @throws GeneralSecurityException if HMAC-SHA256 is not available
+     */
+    private static Mac mac(byte[] secret) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+        return mac;
+    }
+
+    /**
+     * Start a node of a cluster
+     *
+     * @param secretFile the name of the file of its secret
+     * @param peers      the cluster ports of its peers
+     * @return the server of the node
+     * @throws Exception if the node cannot start
+     */
+    private Server startNode(String secretFile, int... peers) throws Exception {
+        ServerConfig config = TestServers.config();
+        config.clusterPort = 0;
+        config.clusterSecretFile = directory.resolve(secretFile).toString();
+        config.peers = new String[peers.length];
+        for (int i = 0; i < peers.length; i++) {
+            config.peers[i] = "localhost:" + peers[i];
+        }
+        Server server = servers.start(config);
+        assertNotNull(server.cluster());
+        return server;
+    }
+
+    /**
+     * Connect a client to a node and send its nickname
+     *
+     * @param server   the server of the node
+     * @param nickname the nickname
+     * @return the client
+     * @throws GeneralSecurityException if the session cannot be created
+     */
+    private static TestServers.Client connect(Server server, String nickname) throws GeneralSecurityException {
+        TestServers.Client client = new TestServers.Client(server);
+        client.send(nickname);
+        return client;
+    }
+
+    /**
+     * Wait until a condition holds (10 seconds at most)
+     *
+     * @param condition the condition
+     * @return true if it holds
+     * @throws InterruptedException if interrupted
+     */
+    private static boolean await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        return condition.getAsBoolean();
+    }
+
+    @Test
+    void aSignedFrameOnlyVerifiesOnItsLinkWithTheSecret() throws Exception {
+        byte[] secret = new byte[ClusterBus.SECRET_SIZE];
+        new SecureRandom().nextBytes(secret);
+        byte[] challenge = new byte[ClusterBus.CHALLENGE_SIZE];
+        new SecureRandom().nextBytes(challenge);
+        byte[] fields = ClusterBus.encode("alice", "node1", "42");
+        FrameCodec.Frame frame = new FrameCodec.Frame(ClusterBus.CLAIM, ClusterBus.sign(mac(secret), challenge, ClusterBus.CLAIM, 7, fields));
+        assertEquals(7, ClusterBus.verify(mac(secret), challenge, frame, 6));
+
+        // Another secret, another link, an old sequence number, another type, a changed field
+        assertThrows(GeneralSecurityException.class, () -> ClusterBus.verify(mac(new byte[ClusterBus.SECRET_SIZE]), challenge, frame, 0));
+        assertThrows(GeneralSecurityException.class, () -> ClusterBus.verify(mac(secret), new byte[ClusterBus.CHALLENGE_SIZE], frame, 0));
+        assertThrows(GeneralSecurityException.class, () -> ClusterBus.verify(mac(secret), challenge, frame, 7));
+        assertThrows(GeneralSecurityException.class,
+                () -> ClusterBus.verify(mac(secret), challenge, new FrameCodec.Frame(ClusterBus.RELEASE, frame.payload), 0));
+        byte[] tampered = frame.payload.clone();
+        tampered[ClusterBus.SEQUENCE_SIZE + 5]++;
+        assertThrows(GeneralSecurityException.class,
+                () -> ClusterBus.verify(mac(secret), challenge, new FrameCodec.Frame(ClusterBus.CLAIM, tampered), 0));
+        assertThrows(GeneralSecurityException.class,
+                () -> ClusterBus.verify(mac(secret), challenge, new FrameCodec.Frame(ClusterBus.HELLO, new byte[8]), 0));
+    }
+
+    @Test
+    void aNicknameOfAnotherNodeIsRefused() throws Exception {
+        Server first = startNode("cluster.key");
+        Server second = startNode("cluster.key", first.cluster().port());
+        assertTrue(await(() -> second.cluster().connectedPeers() == 1));
+
+        connect(second, "alice");
+        assertTrue(await(() -> first.cluster().isTakenRemotely("alice")));
+        TestServers.Client other = connect(first, "alice");
+        assertTrue(other.received().contains("The nickname alice is already taken, please enter another nickname: "),
+                other.received().toString());
+        assertFalse(first.cluster().claimed("alice", null));
+    }
+
+    @Test
+    void aNodeWithoutTheSecretIsIgnored() throws Exception {
+        Server first = startNode("cluster.key");
+        Server member = startNode("cluster.key", first.cluster().port());
+        Server intruder = startNode("other.key", first.cluster().port());
+        // The link of the intruder is closed as soon as its HELLO is refused: wait for its frames, not for the link
+        assertTrue(await(() -> member.cluster().connectedPeers() == 1 && intruder.cluster().framesOut.sum() > 0));
+
+        connect(intruder, "mallory");
+        connect(member, "bob");
+        // The frames of a link are read in order: once bob is known, the frames of the intruder were read too
+        assertTrue(await(() -> first.cluster().isTakenRemotely("bob")));
+        Thread.sleep(200);
+        assertFalse(first.cluster().isTakenRemotely("mallory"));
+    }
+}
@@ -0,0 +1,111 @@
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The commands are found by their exact name, followed by a space or the end of the message, and read their arguments
+ * in place
+ */
+class CommandDispatcherTest {
+
+    @RegisterExtension
+    final TestServers servers = new TestServers();
+
+    private CommandDispatcher<List<String>> commands;
+
+    @BeforeEach
+    void registerCommands() {
+        commands = new CommandDispatcher<>();
+        // Each command writes its name and its arguments to the context
+        commands.register("nick", (context, arguments) -> {
+            context.add("nick");
+            context.add(arguments.next());
+        });
+        commands.register("nickname", (context, arguments) -> context.add("nickname"));
+        commands.register("mp", (context, arguments) -> {
+            context.add("mp");
+            context.add(arguments.next());
+            context.add(arguments.rest());
+        });
+        commands.register("bye", (context, arguments) -> context.add("bye"));
+    }
+
+    @Test
+    void aCommandIsFoundByItsExactName() {
+        List<String> calls = new ArrayList<>();
+        assertTrue(commands.dispatch(calls, "/bye"));
+        assertTrue(commands.dispatch(calls, "/nickname"));
+        assertEquals(List.of("bye", "nickname"), calls);
+    }
+
+    @Test
+    void aPrefixOfAnotherNameIsNotACommand() {
+        List<String> calls = new ArrayList<>();
+        // "/nicky" starts with "/nick" but is not "/nick"
+        assertFalse(commands.dispatch(calls, "/nicky alice"));
+        assertFalse(commands.dispatch(calls, "/byebye"));
+        assertFalse(commands.dispatch(calls, "/ni"));
+        assertTrue(calls.isEmpty());
+    }
+
+    @Test
+    void anUnknownCommandOrAChatMessageIsNotDispatched() {
+        List<String> calls = new ArrayList<>();
+        assertFalse(commands.dispatch(calls, "/quit"));
+        assertFalse(commands.dispatch(calls, "/"));
+        assertFalse(commands.dispatch(calls, ""));
+        assertFalse(commands.dispatch(calls, "hello /bye"));
+        assertFalse(commands.dispatch(calls, "/été"));
+        assertTrue(calls.isEmpty());
+    }
+
+    @Test
+    void theNamesAreCaseSensitive() {
+        List<String> calls = new ArrayList<>();
+        assertFalse(commands.dispatch(calls, "/BYE"));
+        assertFalse(commands.dispatch(calls, "/Nick alice"));
+        assertTrue(calls.isEmpty());
+    }
+
+    @Test
+    void theArgumentsAreReadAfterTheName() {
+        List<String> calls = new ArrayList<>();
+        assertTrue(commands.dispatch(calls, "/mp   bob  hello   bob "));
+        assertEquals(List.of("mp", "bob", "hello   bob "), calls);
+
+        calls.clear();
+        assertTrue(commands.dispatch(calls, "/nick"));
+        assertTrue(commands.dispatch(calls, "/mp bob "));
+        // The missing arguments are null
+        assertEquals(Arrays.asList("nick", null, "mp", "bob", null), calls);
+    }
+
+    @Test
+    void anInvalidNameIsRefused() {
+        assertThrows(IllegalArgumentException.class, () -> commands.register("", (context, arguments) -> { }));
+        assertThrows(IllegalArgumentException.class, () -> commands.register("two words", (context, arguments) -> { }));
+        assertThrows(IllegalArgumentException.class, () -> commands.register("été", (context, arguments) -> { }));
+    }
+
+    @Test
+    void byeWithArgumentsEndsTheSession() throws Exception {
+        Server server = servers.start(TestServers.config());
+        TestServers.Client alice = new TestServers.Client(server);
+        alice.send("alice");
+        TestServers.Client bob = new TestServers.Client(server);
+        bob.send("bob");
+
+        alice.send("/bye see you");
+        assertTrue(bob.received().contains("alice left the chat"), bob.received().toString());
+        // The nickname is free again
+        TestServers.Client other = new TestServers.Client(server);
+        other.send("alice");
+        assertFalse(other.received().contains("The nickname alice is already taken, please enter another nickname: "));
+    }
+}
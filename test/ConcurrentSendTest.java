@@ -0,0 +1,103 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.Key;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Several threads send to the same session: the client must be able to decrypt every frame in the order of the wire
+ * (GCM refuses a nonce lower than the last one)
+ */
+class ConcurrentSendTest {
+
+    private static final int THREADS = 8;
+    private static final int MESSAGES = 500;
+
+    @RegisterExtension
+    final TestServers servers = new TestServers();
+
+    /**
+     * Send messages to a session from several threads at once and decrypt them as the client does
+     *
+     * @param queued true to go through the outbound queue of the session, false to write to the socket directly
+     * @throws Exception if the session cannot be created
+     */
+    private void sendConcurrently(boolean queued) throws Exception {
+        ServerConfig config = TestServers.config();
+        // Large enough for every message, so the queue never overflows
+        config.outboundQueueSize = queued ? THREADS * MESSAGES : 0;
+        Server server = servers.start(config);
+        // The handler puts its writer behind its outbound queue itself when there is one
+        TestServers.Client client = new TestServers.Client(server);
+
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            int sender = t;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < MESSAGES; i++) {
+                    client.handler.sendMessage(sender + ":" + i);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // The writer task of a queued session may still be writing
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        List<FrameCodec.Frame> frames;
+        while ((frames = TestServers.readFrames(client.wire)).size() < THREADS * MESSAGES && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(THREADS * MESSAGES, frames.size());
+
+        // The client decrypts the frames in the order they were written
+        MessageCipher session = MessageCipher.forClient(client.key, true);
+        Set<String> received = new HashSet<>();
+        for (FrameCodec.Frame frame : frames) {
+            assertEquals(FrameCodec.TYPE_MESSAGE, frame.type);
+            received.add(new String(session.decrypt(frame.payload), StandardCharsets.UTF_8));
+        }
+        assertEquals(THREADS * MESSAGES, received.size());
+    }
+
+    @Test
+    void directWritesKeepTheNoncesInOrder() throws Exception {
+        sendConcurrently(false);
+    }
+
+    @Test
+    void queuedWritesKeepTheNoncesInOrder() throws Exception {
+        sendConcurrently(true);
+    }
+
+    @Test
+    void decryptRefusesAReplayedNonce() throws Exception {
+        Key key = new SecretKeySpec(new byte[KeyExchange.SESSION_KEY_SIZE], "AES");
+        MessageCipher serverCipher = MessageCipher.forServer(key, true);
+        MessageCipher client = MessageCipher.forClient(key, true);
+        byte[] first = serverCipher.encrypt("first".getBytes(StandardCharsets.UTF_8));
+        byte[] second = serverCipher.encrypt("second".getBytes(StandardCharsets.UTF_8));
+        assertEquals("second", new String(client.decrypt(second), StandardCharsets.UTF_8));
+        // Out of order: exactly what the send lock prevents
+        assertThrows(Exception.class, () -> client.decrypt(first));
+    }
+}
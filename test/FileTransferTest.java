@@ -0,0 +1,109 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The server holds at most WINDOW chunks of a transfer and never relays more than the announced size
+ */
+class FileTransferTest {
+
+    /**
+     * @param size the size of the file
+     * @return a transfer between two clients (their connections are not needed to count the chunks)
+     */
+    private static FileTransfer transfer(long size) {
+        return new FileTransfer(null, 1, null, 2, size, "notes.txt");
+    }
+
+    @Test
+    void theSenderCannotExceedTheWindow() {
+        FileTransfer transfer = transfer(100L * FileTransfer.CHUNK_SIZE);
+        for (int i = 0; i < FileTransfer.WINDOW; i++) {
+            assertTrue(transfer.onChunk(FileTransfer.CHUNK_SIZE));
+        }
+        assertFalse(transfer.onChunk(FileTransfer.CHUNK_SIZE));
+    }
+
+    @Test
+    void theAcknowledgementsOpenTheWindow() {
+        FileTransfer transfer = transfer(100L * FileTransfer.CHUNK_SIZE);
+        for (int i = 0; i < FileTransfer.WINDOW; i++) {
+            assertTrue(transfer.onChunk(FileTransfer.CHUNK_SIZE));
+        }
+        transfer.onAck(2);
+        assertTrue(transfer.onChunk(FileTransfer.CHUNK_SIZE));
+        assertTrue(transfer.onChunk(FileTransfer.CHUNK_SIZE));
+        assertFalse(transfer.onChunk(FileTransfer.CHUNK_SIZE));
+    }
+
+    @Test
+    void acknowledgingChunksNotSentGivesNoRoom() {
+        FileTransfer transfer = transfer(100L * FileTransfer.CHUNK_SIZE);
+        assertTrue(transfer.onChunk(FileTransfer.CHUNK_SIZE));
+        transfer.onAck(1000);
+        for (int i = 0; i < FileTransfer.WINDOW; i++) {
+            assertTrue(transfer.onChunk(FileTransfer.CHUNK_SIZE));
+        }
+        assertFalse(transfer.onChunk(FileTransfer.CHUNK_SIZE));
+    }
+
+    @Test
+    void aChunkLargerThanTheLimitIsRefused() {
+        FileTransfer transfer = transfer(100L * FileTransfer.CHUNK_SIZE);
+        assertFalse(transfer.onChunk(FileTransfer.CHUNK_SIZE + 1));
+    }
+
+    @Test
+    void theSenderCannotSendMoreThanTheSize() {
+        FileTransfer transfer = transfer(FileTransfer.CHUNK_SIZE + 10);
+        assertTrue(transfer.onChunk(FileTransfer.CHUNK_SIZE));
+        assertFalse(transfer.isComplete());
+        assertTrue(transfer.onChunk(10));
+        assertTrue(transfer.isComplete());
+        // The empty chunk that ends the file, then one byte too many
+        assertTrue(transfer.onChunk(0));
+        assertFalse(transfer.onChunk(1));
+        assertFalse(transfer.isComplete());
+    }
+
+    @Test
+    void aTransferIsFinishedOnce() {
+        FileTransfer transfer = transfer(10);
+        assertTrue(transfer.finish());
+        assertFalse(transfer.finish());
+    }
+
+    @Test
+    void theFramesAreDecodedAsEncoded() throws IOException {
+        FileTransfer.Offer offer = FileTransfer.readOffer(FileTransfer.offer(7, 123456789L, "bob", "rapport été.pdf"));
+        assertEquals(7, offer.id);
+        assertEquals(123456789L, offer.size);
+        assertEquals("bob", offer.nickname);
+        assertEquals("rapport été.pdf", offer.name);
+        assertThrows(StreamCorruptedException.class, () -> FileTransfer.readOffer(FileTransfer.offer(7, -1, "bob", "a")));
+        assertThrows(StreamCorruptedException.class, () -> FileTransfer.readOffer(FileTransfer.offer(7, 1, "bob", "")));
+
+        byte[] chunk = FileTransfer.chunk(9, new byte[]{1, 2, 3}, 3);
+        assertEquals(9, FileTransfer.readId(chunk));
+        assertEquals(3, FileTransfer.chunkLength(chunk));
+        assertEquals(5, FileTransfer.ackChunks(FileTransfer.ack(9, 5)));
+        assertThrows(StreamCorruptedException.class, () -> FileTransfer.ackChunks(new byte[7]));
+        assertThrows(StreamCorruptedException.class, () -> FileTransfer.readId(new byte[3]));
+
+        FileTransfer.Cancel cancel = FileTransfer.readCancel(FileTransfer.cancel(9, true, "declined"));
+        assertEquals(9, cancel.id);
+        assertTrue(cancel.upload);
+        assertEquals("declined", cancel.reason);
+    }
+
+    @Test
+    void aReceivedFileNameStaysInTheDownloadDirectory() {
+        assertEquals(".._.._etc_passwd", FileTransfer.safeName("../../etc/passwd"));
+        assertEquals("file", FileTransfer.safeName(".."));
+        assertEquals("file", FileTransfer.safeName("  "));
+        assertEquals("notes.txt", FileTransfer.safeName("notes.txt"));
+    }
+}
@@ -0,0 +1,185 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Round trips of the binary and legacy wire formats, and the malformed input they must refuse
+ */
+class FrameCodecTest {
+
+    /**
+     * Write frames with a codec and read them back with another one
+     *
+     * @param binary true for the binary format, false for the legacy one
+     * @param frames the frames to write
+     * @return the frames read
+     * @throws IOException if the codec fails
+     */
+    private static FrameCodec.Frame[] roundTrip(boolean binary, FrameCodec.Frame... frames) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameCodec writer = binary ? FrameCodec.binary(new ByteArrayInputStream(new byte[0]), out)
+                : FrameCodec.legacy(new ByteArrayInputStream(new byte[0]), out);
+        for (FrameCodec.Frame frame : frames) {
+            writer.writeFrame(frame.type, frame.payload);
+        }
+        FrameCodec reader = binary ? FrameCodec.binary(new ByteArrayInputStream(out.toByteArray()), new ByteArrayOutputStream())
+                : FrameCodec.legacy(new ByteArrayInputStream(out.toByteArray()), new ByteArrayOutputStream());
+        FrameCodec.Frame[] read = new FrameCodec.Frame[frames.length];
+        for (int i = 0; i < frames.length; i++) {
+            read[i] = reader.readFrame();
+            assertNotNull(read[i], "frame " + i);
+        }
+        assertNull(reader.readFrame(), "end of the stream");
+        return read;
+    }
+
+    /**
+     * @return every byte value once
+     */
+    private static byte[] allBytes() {
+        byte[] bytes = new byte[256];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (i - 128);
+        }
+        return bytes;
+    }
+
+    @Test
+    void binaryRoundTripKeepsTypesAndPayloads() throws IOException {
+        byte[] large = new byte[100_000];
+        new Random(1).nextBytes(large);
+        FrameCodec.Frame[] frames = {
+                new FrameCodec.Frame(FrameCodec.TYPE_MESSAGE, allBytes()),
+                new FrameCodec.Frame(FrameCodec.TYPE_PING, new byte[0]),
+                new FrameCodec.Frame(FrameCodec.TYPE_ROOM_MESSAGE, large),
+                new FrameCodec.Frame(FrameCodec.TYPE_FILE_CHUNK, new byte[]{1}),
+        };
+        FrameCodec.Frame[] read = roundTrip(true, frames);
+        for (int i = 0; i < frames.length; i++) {
+            assertEquals(frames[i].type, read[i].type);
+            assertArrayEquals(frames[i].payload, read[i].payload);
+        }
+    }
+
+    @Test
+    void encodeFrameMatchesTheWriter() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameCodec.binary(new ByteArrayInputStream(new byte[0]), out).writeFrame(FrameCodec.TYPE_MESSAGE, allBytes());
+        assertArrayEquals(out.toByteArray(), FrameCodec.encodeFrame(FrameCodec.TYPE_MESSAGE, allBytes()));
+    }
+
+    @Test
+    void legacyRoundTripKeepsPayloads() throws IOException {
+        FrameCodec.Frame[] frames = {
+                new FrameCodec.Frame(FrameCodec.TYPE_MESSAGE, allBytes()),
+                new FrameCodec.Frame(FrameCodec.TYPE_MESSAGE, new byte[0]),
+                new FrameCodec.Frame(FrameCodec.TYPE_MESSAGE, new byte[]{Byte.MIN_VALUE, 0, Byte.MAX_VALUE}),
+        };
+        FrameCodec.Frame[] read = roundTrip(false, frames);
+        for (int i = 0; i < frames.length; i++) {
+            assertEquals(FrameCodec.TYPE_MESSAGE, read[i].type);
+            assertArrayEquals(frames[i].payload, read[i].payload);
+        }
+    }
+
+    @Test
+    void legacyStringMatchesArraysToString() throws IOException {
+        byte[] bytes = allBytes();
+        assertEquals(Arrays.toString(bytes), FrameCodec.toLegacyString(bytes));
+        assertArrayEquals(bytes, FrameCodec.parseLegacyString(Arrays.toString(bytes)));
+        assertArrayEquals(new byte[0], FrameCodec.parseLegacyString("[]"));
+    }
+
+    @Test
+    void legacyStringRefusesMalformedLines() {
+        String[] malformed = {
+                "", "[", "]", "1, 2", "[1, 2", "1, 2]",
+                // Text after the closing bracket (used to overflow the array)
+                "[1]2]", "[1]]", "[1], [2]",
+                // Out of the range of a byte, or so long it overflows an int
+                "[128]", "[-129]", "[4294967297]", "[99999999999999999999]",
+                // Missing or misplaced values and signs
+                "[,]", "[1,]", "[,1]", "[1,,2]", "[-]", "[--1]", "[1-]", "[1-2]", "[ ]", "[1 2]", "[- 1]",
+                "[a]", "[1, 2, x]",
+        };
+        for (String line : malformed) {
+            assertThrows(StreamCorruptedException.class, () -> FrameCodec.parseLegacyString(line), line);
+        }
+    }
+
+    @Test
+    void legacyCodecRefusesMalformedLines() throws IOException {
+        byte[] input = "[1, 2]\n[1]2]\n".getBytes(StandardCharsets.ISO_8859_1);
+        FrameCodec reader = FrameCodec.legacy(new ByteArrayInputStream(input), new ByteArrayOutputStream());
+        assertArrayEquals(new byte[]{1, 2}, reader.readFrame().payload);
+        assertThrows(StreamCorruptedException.class, reader::readFrame);
+    }
+
+    @Test
+    void binaryCodecRefusesFramesAboveTheLimit() throws IOException {
+        byte[] frame = FrameCodec.encodeFrame(FrameCodec.TYPE_MESSAGE, new byte[2048]);
+        FrameCodec small = FrameCodec.binary(new ByteArrayInputStream(frame), new ByteArrayOutputStream(), 1024);
+        assertThrows(StreamCorruptedException.class, small::readFrame);
+        FrameCodec large = FrameCodec.binary(new ByteArrayInputStream(frame), new ByteArrayOutputStream(), 4096);
+        assertEquals(2048, large.readFrame().payload.length);
+    }
+
+    @Test
+    void binaryCodecRefusesEmptyFrames() {
+        // A length of 0 has no room for the type byte
+        byte[] frame = {0, 0, 0, 0};
+        FrameCodec reader = FrameCodec.binary(new ByteArrayInputStream(frame), new ByteArrayOutputStream());
+        assertThrows(StreamCorruptedException.class, reader::readFrame);
+    }
+
+    @Test
+    void legacyCodecRefusesLinesAboveTheLimit() throws IOException {
+        byte[] line = (FrameCodec.toLegacyString(new byte[200]) + "\n").getBytes(StandardCharsets.ISO_8859_1);
+        FrameCodec reader = FrameCodec.legacy(new ByteArrayInputStream(line), new ByteArrayOutputStream(), 16);
+        assertThrows(StreamCorruptedException.class, reader::readFrame);
+    }
+
+    @Test
+    void preambleSelectsTheFormat() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameCodec.writePreamble(out, FrameCodec.VERSION, FrameCodec.FEATURE_GCM | FrameCodec.FEATURE_ECDH);
+        FrameCodec.Preamble preamble = FrameCodec.readPreamble(new ByteArrayInputStream(out.toByteArray()));
+        assertTrue(preamble.isBinary());
+        assertEquals(FrameCodec.FEATURE_GCM | FrameCodec.FEATURE_ECDH, preamble.features);
+
+        // An old client starts with its Java serialization stream: nothing is consumed
+        ByteArrayInputStream legacy = new ByteArrayInputStream(new byte[]{(byte) 0xac, (byte) 0xed, 0, 5});
+        assertFalse(FrameCodec.readPreamble(legacy).isBinary());
+        assertEquals(4, legacy.available());
+    }
+
+    @Test
+    void theAnswerCarriesTheLimitOfTheServerWhenAsked() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameCodec.writePreambleAnswer(out, new FrameCodec.Preamble(FrameCodec.VERSION,
+                FrameCodec.FEATURE_GCM | FrameCodec.FEATURE_MAX_FRAME_SIZE, 40_000));
+        FrameCodec.Preamble answer = FrameCodec.readPreambleAnswer(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(40_000, answer.maxFrameSize);
+
+        // A server (or a client) without the feature: nothing more on the wire, the default limit applies
+        out.reset();
+        FrameCodec.writePreambleAnswer(out, new FrameCodec.Preamble(FrameCodec.VERSION, FrameCodec.FEATURE_GCM, 40_000));
+        assertEquals(FrameCodec.MAGIC.length + 5, out.size());
+        assertEquals(FrameCodec.DEFAULT_MAX_FRAME_SIZE,
+                FrameCodec.readPreambleAnswer(new ByteArrayInputStream(out.toByteArray())).maxFrameSize);
+
+        // A limit beyond the protocol is refused
+        out.reset();
+        FrameCodec.writePreambleAnswer(out, new FrameCodec.Preamble(FrameCodec.VERSION, FrameCodec.FEATURE_MAX_FRAME_SIZE,
+                FrameCodec.MAX_FRAME_SIZE + 1));
+        assertThrows(StreamCorruptedException.class, () -> FrameCodec.readPreambleAnswer(new ByteArrayInputStream(out.toByteArray())));
+    }
+}
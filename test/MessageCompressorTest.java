@@ -0,0 +1,87 @@
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * A compressed message decompresses to exactly the announced length, within the limit of the receiver
+ */
+class MessageCompressorTest {
+
+    /**
+     * @return a large message that compresses well (a stack trace)
+     */
+    private static byte[] stackTrace() {
+        StringBuilder message = new StringBuilder("java.lang.IllegalStateException: état inattendu\n");
+        for (int i = 0; i < 40; i++) {
+            message.append("\tat java.base/java.util.concurrent.ThreadPoolExecutor.runWorker(ThreadPoolExecutor.java:").append(i).append(")\n");
+        }
+        return message.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void aMessageComesBackAsItWas() throws DataFormatException {
+        byte[] message = stackTrace();
+        byte[] payload = MessageCompressor.compress(message, MessageCompressor.DEFAULT_THRESHOLD);
+        assertNotNull(payload);
+        assertTrue(payload.length < message.length / 4, Integer.toString(payload.length));
+        assertArrayEquals(message, MessageCompressor.decompress(payload, message.length));
+    }
+
+    @Test
+    void smallOrIncompressibleMessagesAreNotCompressed() {
+        byte[] message = stackTrace();
+        assertNull(MessageCompressor.compress(message, 0));
+        assertNull(MessageCompressor.compress(message, message.length + 1));
+        byte[] random = new byte[4096];
+        new SecureRandom().nextBytes(random);
+        assertNull(MessageCompressor.compress(random, MessageCompressor.DEFAULT_THRESHOLD));
+    }
+
+    @Test
+    void aMessageLargerThanTheLimitIsRefused() {
+        byte[] message = stackTrace();
+        byte[] payload = MessageCompressor.compress(message, MessageCompressor.DEFAULT_THRESHOLD);
+        DataFormatException e = assertThrows(DataFormatException.class, () -> MessageCompressor.decompress(payload, message.length - 1));
+        assertEquals("Compressed message too large: " + message.length, e.getMessage());
+        // A negative length
+        byte[] negative = payload.clone();
+        negative[0] = (byte) 0x80;
+        assertThrows(DataFormatException.class, () -> MessageCompressor.decompress(negative, Integer.MAX_VALUE));
+    }
+
+    @Test
+    void theAnnouncedLengthMustBeExact() {
+        byte[] message = stackTrace();
+        byte[] payload = MessageCompressor.compress(message, MessageCompressor.DEFAULT_THRESHOLD);
+        byte[] longer = payload.clone();
+        longer[3]++;
+        assertThrows(DataFormatException.class, () -> MessageCompressor.decompress(longer, 1 << 20));
+        byte[] shorter = payload.clone();
+        shorter[3]--;
+        assertThrows(DataFormatException.class, () -> MessageCompressor.decompress(shorter, 1 << 20));
+    }
+
+    @Test
+    void dataAfterTheMessageIsRefused() {
+        byte[] message = stackTrace();
+        byte[] payload = MessageCompressor.compress(message, MessageCompressor.DEFAULT_THRESHOLD);
+        byte[] trailing = Arrays.copyOf(payload, payload.length + 3);
+        assertThrows(DataFormatException.class, () -> MessageCompressor.decompress(trailing, 1 << 20));
+    }
+
+    @Test
+    void aTruncatedOrCorruptedPayloadIsRefused() {
+        byte[] message = stackTrace();
+        byte[] payload = MessageCompressor.compress(message, MessageCompressor.DEFAULT_THRESHOLD);
+        assertThrows(DataFormatException.class, () -> MessageCompressor.decompress(new byte[3], 1 << 20));
+        assertThrows(DataFormatException.class, () -> MessageCompressor.decompress(Arrays.copyOf(payload, payload.length - 2), 1 << 20));
+        byte[] corrupted = payload.clone();
+        corrupted[4] ^= (byte) 0xff;
+        assertThrows(DataFormatException.class, () -> MessageCompressor.decompress(corrupted, 1 << 20));
+    }
+}
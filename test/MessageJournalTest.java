@@ -0,0 +1,147 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The records of the journal survive a restart, a torn or corrupted record ends the journal, and the segments roll
+ * and are deleted beyond the retention
+ */
+class MessageJournalTest {
+
+    @TempDir
+    Path directory;
+
+    /**
+     * @param segmentSize the size of a segment
+     * @param maxSegments the number of segments kept
+     * @return a journal in the temporary directory, syncing every batch
+     * @throws IOException if the journal cannot be opened
+     */
+    private MessageJournal open(long segmentSize, int maxSegments) throws IOException {
+        return new MessageJournal(directory, segmentSize, maxSegments, 0);
+    }
+
+    /**
+     * @return the segments of the journal, oldest first
+     * @throws IOException if the directory cannot be read
+     */
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.sorted().toList();
+        }
+    }
+
+    @Test
+    void theMessagesOfARoomAreReadAfterARestart() throws IOException {
+        MessageJournal journal = open(1 << 20, 4);
+        journal.append("general", "one");
+        journal.append("other", "elsewhere");
+        journal.append("general", "two");
+        journal.append("general", "three");
+        journal.close();
+
+        journal = open(1 << 20, 4);
+        assertEquals(List.of("two", "three"), journal.recent("general", 2));
+        assertEquals(List.of("one", "two", "three"), journal.recent("general", 10));
+        assertEquals(List.of("elsewhere"), journal.recent("other", 10));
+        assertTrue(journal.recent("new room", 10).isEmpty());
+        assertTrue(journal.recent("general", 0).isEmpty());
+        journal.close();
+    }
+
+    @Test
+    void aTornRecordIsCutOffOnReopen() throws IOException {
+        MessageJournal journal = open(1 << 20, 4);
+        journal.append("general", "one");
+        journal.append("general", "two");
+        journal.close();
+        Path segment = segments().get(0);
+        long size = Files.size(segment);
+
+        // A crash in the middle of a record: its length is written, not the rest
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.allocate(6).putInt(40).flip());
+        }
+
+        journal = open(1 << 20, 4);
+        assertEquals(size, Files.size(segment));
+        assertEquals(List.of("one", "two"), journal.recent("general", 10));
+        // The next records follow the last complete one
+        journal.append("general", "three");
+        journal.close();
+        journal = open(1 << 20, 4);
+        assertEquals(List.of("one", "two", "three"), journal.recent("general", 10));
+        journal.close();
+    }
+
+    @Test
+    void aRecordFailingItsChecksumEndsTheJournal() throws IOException {
+        MessageJournal journal = open(1 << 20, 4);
+        journal.append("general", "one");
+        journal.append("general", "two");
+        journal.append("general", "three");
+        journal.close();
+        Path segment = segments().get(0);
+        byte[] data = Files.readAllBytes(segment);
+        // The last byte of the message of the second record (each record is as long as the first one)
+        int recordSize = data.length / 3;
+        data[2 * recordSize - 1] ^= 1;
+        Files.write(segment, data);
+
+        journal = open(1 << 20, 4);
+        assertEquals(List.of("one"), journal.recent("general", 10));
+        assertEquals(recordSize, Files.size(segment));
+        journal.close();
+    }
+
+    @Test
+    void theSegmentsRollAndTheOldestAreDeleted() throws IOException {
+        MessageJournal journal = open(1024, 3);
+        List<String> messages = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            String message = String.format("message %03d of the journal", i);
+            messages.add(message);
+            journal.append("general", message);
+        }
+        journal.close();
+
+        List<Path> segments = segments();
+        assertEquals(3, segments.size());
+        for (Path segment : segments) {
+            assertTrue(Files.size(segment) <= 1024);
+        }
+
+        // The messages are read from the newest segment to the oldest, and given oldest first
+        journal = open(1024, 3);
+        List<String> kept = journal.recent("general", 1000);
+        assertTrue(kept.size() > 2 * 1024 / 50 && kept.size() < messages.size(), Integer.toString(kept.size()));
+        assertEquals(messages.subList(messages.size() - kept.size(), messages.size()), kept);
+        int count = kept.size() - 3;
+        assertEquals(messages.subList(messages.size() - count, messages.size()), journal.recent("general", count));
+        journal.close();
+    }
+
+    @Test
+    void aRoomNameTooLongToBeStoredIsDropped() throws IOException {
+        MessageJournal journal = open(1 << 20, 4);
+        journal.append("x".repeat(0x10000), "lost");
+        journal.append("general", "kept");
+        journal.close();
+        assertEquals(1, journal.droppedMessages());
+
+        journal = open(1 << 20, 4);
+        assertEquals(List.of("kept"), journal.recent("general", 10));
+        journal.close();
+    }
+}
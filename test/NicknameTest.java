@@ -0,0 +1,91 @@
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The nicknames of a client are freed when it disconnects, even while it is changing its nickname
+ */
+class NicknameTest {
+
+    @RegisterExtension
+    final TestServers servers = new TestServers();
+
+    private Server server;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = servers.start(TestServers.config());
+    }
+
+    @Test
+    void aNicknameIsFreedOnDisconnect() throws Exception {
+        TestServers.Client alice = new TestServers.Client(server);
+        alice.send("alice");
+        alice.send("/nick alice2");
+        alice.handler.shutdown();
+
+        TestServers.Client other = new TestServers.Client(server);
+        other.send("alice");
+        other.send("/nick alice2");
+        assertTrue(other.received().contains("Nickname changed to alice2"), other.received().toString());
+    }
+
+    @Test
+    void aNicknameIsNotTakenTwice() throws Exception {
+        TestServers.Client alice = new TestServers.Client(server);
+        alice.send("alice");
+        TestServers.Client other = new TestServers.Client(server);
+        other.send("alice");
+        assertTrue(other.received().contains("The nickname alice is already taken, please enter another nickname: "));
+        other.send("bob");
+        other.send("/nick alice");
+        assertTrue(other.received().contains("The nickname alice is already taken"));
+    }
+
+    @Test
+    void aNameLongerThanTheLimitIsRefused() throws Exception {
+        String tooLong = "a".repeat(Server.MAX_NAME_LENGTH + 1);
+        TestServers.Client client = new TestServers.Client(server);
+        client.send(tooLong);
+        assertTrue(client.received().contains("The nickname is too long (" + Server.MAX_NAME_LENGTH
+                + " characters at most), please enter another nickname: "), client.received().toString());
+        client.send("alice");
+        client.send("/nick " + tooLong);
+        client.send("/join " + tooLong);
+        assertTrue(client.received().contains("The nickname is too long (" + Server.MAX_NAME_LENGTH + " characters at most)"));
+        assertTrue(client.received().contains("The name of the room is too long (" + Server.MAX_NAME_LENGTH + " characters at most)"));
+        assertNull(server.room(tooLong));
+    }
+
+    @Test
+    void aShutdownDuringANicknameChangeFreesTheNickname() throws Exception {
+        TestServers.Client alice = new TestServers.Client(server);
+        alice.send("alice");
+        // Another member of the room: alice is shut down while the rename notice is written to it
+        AtomicBoolean armed = new AtomicBoolean();
+        ByteArrayOutputStream wire = new ByteArrayOutputStream() {
+            @Override
+            public synchronized void write(byte[] bytes, int offset, int length) {
+                super.write(bytes, offset, length);
+                if (armed.compareAndSet(true, false)) {
+                    alice.handler.shutdown();
+                }
+            }
+        };
+        new TestServers.Client(server, wire, FrameCodec.FEATURE_GCM).send("bob");
+        armed.set(true);
+        alice.send("/nick alice2");
+
+        // Neither nickname is still taken
+        TestServers.Client other = new TestServers.Client(server);
+        other.send("alice");
+        other.send("/nick alice2");
+        assertTrue(other.received().contains("Nickname changed to alice2"), other.received().toString());
+    }
+}
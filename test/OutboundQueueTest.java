@@ -0,0 +1,103 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The overflow policies of the outbound queue: only chat messages are dropped, the frames a client needs to go on
+ * (room keys, control frames, file chunks) are kept
+ */
+class OutboundQueueTest {
+
+    private final LongAdder serverDrops = new LongAdder();
+
+    /**
+     * @param capacity the capacity of the queue
+     * @return a queue dropping the oldest messages
+     */
+    private OutboundQueue<String> dropOldest(int capacity) {
+        return new OutboundQueue<>(capacity, ServerConfig.OverflowPolicy.DROP_OLDEST, serverDrops);
+    }
+
+    /**
+     * @param queue the queue
+     * @return the queued messages, oldest first
+     */
+    private static List<String> contents(OutboundQueue<String> queue) {
+        List<String> batch = new ArrayList<>();
+        queue.peekBatch(batch, Integer.MAX_VALUE);
+        return batch;
+    }
+
+    @Test
+    void dropsTheOldestChatMessageAndKeepsTheKeys() {
+        OutboundQueue<String> queue = dropOldest(3);
+        assertEquals(OutboundQueue.Result.QUEUED, queue.offer("key 1", false));
+        assertEquals(OutboundQueue.Result.QUEUED, queue.offer("chat 1", true));
+        assertEquals(OutboundQueue.Result.QUEUED, queue.offer("chat 2", true));
+        assertEquals(OutboundQueue.Result.DROPPED_OLDEST, queue.offer("key 2", false));
+        assertEquals(List.of("key 1", "chat 2", "key 2"), contents(queue));
+        assertEquals(1, serverDrops.sum());
+    }
+
+    @Test
+    void keepsTheMessageBeingWritten() {
+        OutboundQueue<String> queue = dropOldest(3);
+        queue.offer("chat 1", true);
+        queue.offer("chat 2", true);
+        queue.offer("chat 3", true);
+        // The writer took the head: it may be partly written
+        List<String> batch = new ArrayList<>();
+        assertEquals(1, queue.peekBatch(batch, 1));
+        assertEquals(List.of("chat 1"), batch);
+        assertEquals(OutboundQueue.Result.DROPPED_OLDEST, queue.offer("chat 4", true));
+        assertEquals(List.of("chat 1", "chat 3", "chat 4"), contents(queue));
+    }
+
+    @Test
+    void dropsTheNewChatMessageWhenNothingElseCanGo() {
+        OutboundQueue<String> queue = dropOldest(2);
+        queue.offer("key", false);
+        queue.offer("ping", false);
+        assertEquals(OutboundQueue.Result.DROPPED_OLDEST, queue.offer("chat", true));
+        assertEquals(List.of("key", "ping"), contents(queue));
+        assertEquals(1, serverDrops.sum());
+    }
+
+    @Test
+    void overflowsWhenANeededFrameCannotBeQueued() {
+        OutboundQueue<String> queue = dropOldest(2);
+        queue.offer("key 1", false);
+        queue.offer("chunk", false);
+        assertEquals(OutboundQueue.Result.OVERFLOW, queue.offer("key 2", false));
+        assertEquals(List.of("key 1", "chunk"), contents(queue));
+        assertEquals(0, serverDrops.sum());
+    }
+
+    @Test
+    void disconnectPolicyNeverDrops() {
+        OutboundQueue<String> queue = new OutboundQueue<>(1, ServerConfig.OverflowPolicy.DISCONNECT, serverDrops);
+        queue.offer("chat 1", true);
+        assertEquals(OutboundQueue.Result.OVERFLOW, queue.offer("chat 2", true));
+        assertEquals(List.of("chat 1"), contents(queue));
+        assertEquals(0, serverDrops.sum());
+    }
+
+    @Test
+    void onlyChatFramesAreDroppable() {
+        byte[] empty = new byte[0];
+        assertTrue(FrameCodec.isChatFrame(FrameCodec.encodeFrame(FrameCodec.TYPE_MESSAGE, empty)));
+        assertTrue(FrameCodec.isChatFrame(FrameCodec.encodeFrame(FrameCodec.TYPE_ROOM_MESSAGE, empty)));
+        assertTrue(FrameCodec.isChatFrame(FrameCodec.encodeFrame(FrameCodec.TYPE_COMPRESSED_MESSAGE, empty)));
+        assertTrue(FrameCodec.isChatFrame(FrameCodec.encodeFrame(FrameCodec.TYPE_COMPRESSED_ROOM_MESSAGE, empty)));
+        byte[] kept = {FrameCodec.TYPE_ROOM_KEY, FrameCodec.TYPE_PING, FrameCodec.TYPE_PONG, FrameCodec.TYPE_GOAWAY,
+                FrameCodec.TYPE_TICKET, FrameCodec.TYPE_RESUME, FrameCodec.TYPE_FILE_OFFER, FrameCodec.TYPE_FILE_CHUNK,
+                FrameCodec.TYPE_FILE_ACK, FrameCodec.TYPE_FILE_CANCEL};
+        for (byte type : kept) {
+            assertFalse(FrameCodec.isChatFrame(FrameCodec.encodeFrame(type, empty)), "type " + type);
+        }
+    }
+}
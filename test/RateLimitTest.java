@@ -0,0 +1,159 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The rate limits of the clients (--rate, --rate-bytes, --rate-action) and the global budget (--global-rate), as
+ * applied by ConnectionHandler.admit() before a frame is handled
+ */
+class RateLimitTest {
+
+    // 1 message per second for 10 seconds: a client can send 10 messages at once, then 1 per second
+    private static final int BURST = 10;
+
+    @RegisterExtension
+    final TestServers servers = new TestServers();
+
+    private Server server;
+
+    /**
+     * Start a server with a message rate
+     *
+     * @param action     what happens above the rate
+     * @param globalRate the global budget (0 for none)
+     * @param rateBytes  the byte rate (0 for none)
+     */
+    private void startServer(ServerConfig.RateAction action, long globalRate, long rateBytes) throws Exception {
+        ServerConfig config = TestServers.config();
+        config.rateMessages = globalRate > 0 ? 0 : 1;
+        config.rateBytes = rateBytes;
+        config.rateBurstMillis = TimeUnit.SECONDS.toMillis(BURST);
+        config.rateAction = action;
+        config.globalRateMessages = globalRate;
+        server = servers.start(config);
+    }
+
+    /**
+     * Apply the rate limits to a message, as the reader of the connection does
+     *
+     * @param client the client
+     * @return what admit() answered
+     */
+    private static long admitMessage(TestServers.Client client) {
+        return client.handler.admit(new FrameCodec.Frame(FrameCodec.TYPE_MESSAGE, new byte[32]));
+    }
+
+    /**
+     * Send the burst of a client: all of it must be accepted
+     *
+     * @param client the client
+     * @param count  the number of messages
+     */
+    private static void sendBurst(TestServers.Client client, int count) {
+        for (int i = 0; i < count; i++) {
+            assertEquals(0, admitMessage(client), "message " + i);
+        }
+    }
+
+    @Test
+    void delayWaitsForTheNextToken() throws Exception {
+        startServer(ServerConfig.RateAction.DELAY, 0, 0);
+        TestServers.Client client = new TestServers.Client(server);
+        sendBurst(client, BURST);
+        long wait = admitMessage(client);
+        assertTrue(wait > TimeUnit.MILLISECONDS.toNanos(900) && wait <= TimeUnit.SECONDS.toNanos(1), Long.toString(wait));
+        // The frames queue up behind the delayed one
+        assertTrue(admitMessage(client) > wait);
+        assertEquals(2, server.rateLimitedMessages());
+        assertEquals(1, server.connectedClients());
+    }
+
+    @Test
+    void dropRefusesTheMessagesAboveTheRateAndTellsTheClientOnce() throws Exception {
+        startServer(ServerConfig.RateAction.DROP, 0, 0);
+        TestServers.Client client = new TestServers.Client(server);
+        sendBurst(client, BURST);
+        assertEquals(-1, admitMessage(client));
+        assertEquals(-1, admitMessage(client));
+        assertEquals(2, server.rateLimitedMessages());
+        assertEquals(1, client.received().stream().filter(m -> m.equals("You are sending messages too fast, they are dropped")).count());
+        assertEquals(1, server.connectedClients());
+    }
+
+    @Test
+    void warnHandlesTheMessagesAboveTheRate() throws Exception {
+        startServer(ServerConfig.RateAction.WARN, 0, 0);
+        TestServers.Client client = new TestServers.Client(server);
+        sendBurst(client, BURST);
+        assertEquals(0, admitMessage(client));
+        assertEquals(0, admitMessage(client));
+        assertEquals(2, server.rateLimitedMessages());
+        assertEquals(1, client.received().stream().filter(m -> m.equals("You are sending messages too fast")).count());
+    }
+
+    @Test
+    void kickDisconnectsAFloodingClient() throws Exception {
+        startServer(ServerConfig.RateAction.KICK, 0, 0);
+        TestServers.Client flooder = new TestServers.Client(server);
+        TestServers.Client other = new TestServers.Client(server);
+        sendBurst(flooder, BURST);
+        assertEquals(-1, admitMessage(flooder));
+        assertEquals(1, server.floodDisconnects());
+        assertTrue(flooder.received().contains("You have been disconnected: you are sending messages too fast"));
+        // Only the flooder is disconnected
+        assertEquals(1, server.connectedClients());
+        assertEquals(0, admitMessage(other));
+    }
+
+    @Test
+    void theGlobalBudgetIsSharedByTheClients() throws Exception {
+        startServer(ServerConfig.RateAction.KICK, 1, 0);
+        TestServers.Client first = new TestServers.Client(server);
+        TestServers.Client second = new TestServers.Client(server);
+        sendBurst(first, BURST / 2);
+        sendBurst(second, BURST / 2);
+        // Above the global budget the message is dropped, the client is not kicked (it is not the only one to blame)
+        assertEquals(-1, admitMessage(first));
+        assertEquals(-1, admitMessage(second));
+        assertEquals(0, server.floodDisconnects());
+        assertEquals(2, server.connectedClients());
+        assertTrue(first.received().contains("The server is busy, your messages are dropped"));
+    }
+
+    @Test
+    void pongsAreNeverLimited() throws Exception {
+        startServer(ServerConfig.RateAction.DROP, 0, 0);
+        TestServers.Client client = new TestServers.Client(server);
+        sendBurst(client, BURST);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, client.handler.admit(new FrameCodec.Frame(FrameCodec.TYPE_PONG, new byte[0])));
+        }
+        assertEquals(0, server.rateLimitedMessages());
+    }
+
+    @Test
+    void fileChunksAreDelayedNeverDropped() throws Exception {
+        // 1000 bytes per second for 10 seconds
+        startServer(ServerConfig.RateAction.DROP, 0, 1000);
+        TestServers.Client client = new TestServers.Client(server);
+        FrameCodec.Frame chunk = new FrameCodec.Frame(FrameCodec.TYPE_FILE_CHUNK, new byte[BURST * 1000]);
+        assertEquals(0, client.handler.admit(chunk));
+        long wait = client.handler.admit(chunk);
+        assertTrue(wait > TimeUnit.SECONDS.toNanos(BURST - 1), Long.toString(wait));
+        assertEquals(1, server.rateLimitedMessages());
+    }
+
+    @Test
+    void framesLargerThanTheBurstPayForEveryByte() throws Exception {
+        // 1000 bytes per second for 10 seconds, frames of 50 seconds
+        startServer(ServerConfig.RateAction.DELAY, 0, 1000);
+        TestServers.Client client = new TestServers.Client(server);
+        FrameCodec.Frame large = new FrameCodec.Frame(FrameCodec.TYPE_MESSAGE, new byte[5 * BURST * 1000]);
+        client.handler.admit(large);
+        long wait = client.handler.admit(large);
+        assertTrue(wait > TimeUnit.SECONDS.toNanos(5 * BURST + 4 * BURST - 1), Long.toString(wait));
+    }
+}
@@ -0,0 +1,150 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.Key;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The members of a room chat at the same time with a room key: every member must be able to decrypt its frames in the
+ * order of the wire, like the client does
+ */
+class RoomBroadcastTest {
+
+    private static final int MEMBERS = 4;
+    private static final int MESSAGES = 300;
+
+    @RegisterExtension
+    final TestServers servers = new TestServers();
+
+    /**
+     * A member of the room: its nickname and its client
+     */
+    private static final class Member {
+        private final String nickname;
+        private final TestServers.Client client;
+
+        /**
+         * Constructor
+         *
+         * @param nickname the nickname of the member
+         * @param client   the client of the member
+         */
+        Member(String nickname, TestServers.Client client) {
+            this.nickname = nickname;
+            this.client = client;
+        }
+
+        /**
+         * Decrypt everything written to the member so far, like Client.decrypt (in the order of the wire)
+         *
+         * @return the chat messages received
+         * @throws Exception if a frame cannot be decrypted (a nonce out of order)
+         */
+        List<String> decode() throws Exception {
+            MessageCipher session = MessageCipher.forClient(client.key, true);
+            Map<Integer, MessageCipher> roomCiphers = new HashMap<>();
+            List<String> messages = new ArrayList<>();
+            for (FrameCodec.Frame frame : TestServers.readFrames(client.wire)) {
+                if (frame.type == FrameCodec.TYPE_ROOM_KEY) {
+                    byte[] payload = session.decrypt(frame.payload);
+                    Key roomKey = new SecretKeySpec(payload, GroupKey.ID_SIZE, payload.length - GroupKey.ID_SIZE, "AES");
+                    roomCiphers.put(GroupKey.readId(payload), MessageCipher.forClient(roomKey, true));
+                } else if (frame.type == FrameCodec.TYPE_ROOM_MESSAGE) {
+                    MessageCipher roomCipher = roomCiphers.get(GroupKey.readId(frame.payload));
+                    assertNotNull(roomCipher, "room key sent before its messages");
+                    byte[] ciphertext = Arrays.copyOfRange(frame.payload, GroupKey.ID_SIZE, frame.payload.length);
+                    messages.add(new String(roomCipher.decrypt(ciphertext), StandardCharsets.UTF_8));
+                } else if (frame.type == FrameCodec.TYPE_MESSAGE) {
+                    messages.add(new String(session.decrypt(frame.payload), StandardCharsets.UTF_8));
+                }
+            }
+            return messages;
+        }
+    }
+
+    /**
+     * Let every member of the default room chat at once, then decrypt what each one received
+     *
+     * @param queued true to go through the outbound queues, false to write to the sockets directly
+     * @throws Exception if a member cannot decrypt its frames
+     */
+    private void chatConcurrently(boolean queued) throws Exception {
+        ServerConfig config = TestServers.config();
+        config.roomKey = true;
+        config.outboundQueueSize = queued ? 4 * MEMBERS * MESSAGES : 0;
+        Server server = servers.start(config);
+
+        List<Member> members = new ArrayList<>();
+        for (int i = 0; i < MEMBERS; i++) {
+            Member member = new Member("m" + i, new TestServers.Client(server, new ByteArrayOutputStream(),
+                    FrameCodec.FEATURE_GCM | FrameCodec.FEATURE_ROOM_KEY));
+            // The first message is the nickname: the member joins the default room
+            member.client.send(member.nickname);
+            members.add(member);
+        }
+
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        List<Throwable> errors = new ArrayList<>();
+        for (Member member : members) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < MESSAGES; i++) {
+                        member.client.send(Integer.toString(i));
+                    }
+                } catch (Exception e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(errors.isEmpty(), errors.toString());
+
+        // Each member gets every chat message (its own ones too)
+        for (Member member : members) {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            long chat;
+            while ((chat = countChat(member.decode())) < (long) MEMBERS * MESSAGES && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals((long) MEMBERS * MESSAGES, chat, member.nickname);
+        }
+    }
+
+    /**
+     * @param messages the messages received by a member
+     * @return the number of chat messages ("m1: 42") among them
+     */
+    private static long countChat(List<String> messages) {
+        return messages.stream().filter(message -> message.matches("m\\d+: \\d+")).count();
+    }
+
+    @Test
+    void directWritesKeepTheRoomNoncesInOrder() throws Exception {
+        chatConcurrently(false);
+    }
+
+    @Test
+    void queuedWritesKeepTheRoomNoncesInOrder() throws Exception {
+        chatConcurrently(true);
+    }
+}
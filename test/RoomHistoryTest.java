@@ -0,0 +1,130 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The ring of the messages of a room: eviction by count and by size, growth within the shared budget, and whether
+ * every message is still kept
+ */
+class RoomHistoryTest {
+
+    /**
+     * @param index  the index of the message
+     * @param length its length in bytes
+     * @return a message of this length, different for each index
+     */
+    private static String message(int index, int length) {
+        String prefix = index + ":";
+        return prefix + Character.toString('a' + index % 26).repeat(length - prefix.length());
+    }
+
+    @Test
+    void theOldestMessagesAreEvictedBeyondTheCount() {
+        RoomHistory history = new RoomHistory(3, 1 << 20, new AtomicLong(Long.MAX_VALUE));
+        history.add("one");
+        history.add("two");
+        assertTrue(history.isComplete());
+        assertEquals(List.of("one", "two"), history.recent(10));
+
+        // The index wraps around several times
+        for (int i = 0; i < 10; i++) {
+            history.add(Integer.toString(i));
+        }
+        assertFalse(history.isComplete());
+        assertEquals(3, history.size());
+        assertEquals(List.of("7", "8", "9"), history.recent(10));
+        assertEquals(List.of("9"), history.recent(1));
+        assertTrue(history.recent(0).isEmpty());
+    }
+
+    @Test
+    void theOldestMessagesAreEvictedWhenTheArrayIsFull() {
+        RoomHistory history = new RoomHistory(100, 4096, new AtomicLong(Long.MAX_VALUE));
+        List<String> added = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            added.add(message(i, 1000));
+            history.add(added.get(i));
+        }
+        // Four messages fit, the last ones wrap around the end of the array
+        assertEquals(4096, history.capacity());
+        assertEquals(added.subList(6, 10), history.recent(100));
+        assertFalse(history.isComplete());
+    }
+
+    @Test
+    void theArrayGrowsKeepingTheMessagesInOrder() {
+        AtomicLong budget = new AtomicLong(4096);
+        RoomHistory history = new RoomHistory(100, 16384, budget);
+        List<String> added = new ArrayList<>();
+        // No budget to grow: the fifth message evicts the first one and wraps around the end of the array
+        for (int i = 0; i < 5; i++) {
+            added.add(message(i, 1000));
+            history.add(added.get(i));
+        }
+        assertEquals(4096, history.capacity());
+        assertEquals(added.subList(1, 5), history.recent(100));
+
+        // With budget, the array doubles and the wrapped messages move to its start
+        budget.addAndGet(12288);
+        for (int i = 5; i < 12; i++) {
+            added.add(message(i, 1000));
+            history.add(added.get(i));
+        }
+        // 4096 then 8192 more bytes from the budget
+        assertEquals(16384, history.capacity());
+        assertEquals(0, budget.get());
+        assertEquals(added.subList(1, 12), history.recent(100));
+    }
+
+    @Test
+    void theBudgetIsSharedAndGivenBackOnRelease() {
+        AtomicLong budget = new AtomicLong(8192);
+        RoomHistory first = new RoomHistory(100, 8192, budget);
+        RoomHistory second = new RoomHistory(100, 8192, budget);
+        first.add(message(0, 5000));
+        assertEquals(8192, first.capacity());
+        assertEquals(0, budget.get());
+
+        // Nothing left for the second room: its message is not kept
+        second.add("hello");
+        assertEquals(0, second.capacity());
+        assertTrue(second.recent(10).isEmpty());
+        assertFalse(second.isComplete());
+
+        first.release();
+        assertEquals(8192, budget.get());
+        assertTrue(first.recent(10).isEmpty());
+        // A released room keeps nothing more
+        first.add("late");
+        assertEquals(0, first.size());
+        assertEquals(8192, budget.get());
+
+        second.add("again");
+        assertEquals(List.of("again"), second.recent(10));
+        assertEquals(8192 - 4096, budget.get());
+    }
+
+    @Test
+    void aMessageLargerThanTheRoomIsNotKept() {
+        RoomHistory history = new RoomHistory(100, 4096, new AtomicLong(Long.MAX_VALUE));
+        history.add("before");
+        history.add(message(0, 5000));
+        assertEquals(List.of("before"), history.recent(10));
+        assertFalse(history.isComplete());
+    }
+
+    @Test
+    void withoutHistoryNoMessageIsKept() {
+        RoomHistory history = new RoomHistory(0, 4096, new AtomicLong(Long.MAX_VALUE));
+        assertTrue(history.isComplete());
+        history.add("hello");
+        assertTrue(history.recent(10).isEmpty());
+        // The journal has the message
+        assertFalse(history.isComplete());
+        assertEquals(0, history.capacity());
+    }
+}
@@ -0,0 +1,114 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * A ticket only opens with the key of the server that issued it, unmodified and before it expires; the client and the
+ * server derive the same key for the resumed session
+ */
+class SessionTicketsTest {
+
+    @TempDir
+    Path directory;
+
+    /**
+     * @return a random ticket key
+     */
+    private static Key ticketKey() {
+        return new SecretKeySpec(SessionTickets.randomBytes(), "AES");
+    }
+
+    @Test
+    void aTicketOpensWithItsContent() throws GeneralSecurityException {
+        SessionTickets tickets = new SessionTickets(ticketKey(), 60_000);
+        byte[] secret = SessionTickets.randomBytes();
+        SessionTickets.Ticket ticket = tickets.open(tickets.issue(secret, "alice", "général"));
+        assertNotNull(ticket);
+        assertArrayEquals(secret, ticket.secret);
+        assertEquals("alice", ticket.nickname);
+        assertEquals("général", ticket.room);
+    }
+
+    @Test
+    void anExpiredTicketIsRefused() throws GeneralSecurityException {
+        SessionTickets tickets = new SessionTickets(ticketKey(), -1000);
+        assertNull(tickets.open(tickets.issue(SessionTickets.randomBytes(), "alice", "general")));
+    }
+
+    @Test
+    void aModifiedTicketIsRefused() throws GeneralSecurityException {
+        SessionTickets tickets = new SessionTickets(ticketKey(), 60_000);
+        byte[] ticket = tickets.issue(SessionTickets.randomBytes(), "alice", "general");
+        // The nonce, the content and the tag
+        for (int index : new int[]{0, 20, ticket.length - 1}) {
+            byte[] modified = ticket.clone();
+            modified[index] ^= 1;
+            assertNull(tickets.open(modified), Integer.toString(index));
+        }
+        assertNull(tickets.open(Arrays.copyOf(ticket, ticket.length - 1)));
+        assertNull(tickets.open(Arrays.copyOf(ticket, 12)));
+        assertNull(tickets.open(new byte[0]));
+    }
+
+    @Test
+    void aTicketOfAnotherKeyIsRefused() throws GeneralSecurityException {
+        byte[] ticket = new SessionTickets(ticketKey(), 60_000).issue(SessionTickets.randomBytes(), "alice", "general");
+        assertNull(new SessionTickets(ticketKey(), 60_000).open(ticket));
+    }
+
+    @Test
+    void theKeyFileKeepsTheTicketsAcrossARestart() throws IOException, GeneralSecurityException {
+        String keyFile = directory.resolve("ticket.key").toString();
+        byte[] ticket = SessionTickets.open(keyFile, 60_000).issue(SessionTickets.randomBytes(), "alice", "general");
+        assertNotNull(SessionTickets.open(keyFile, 60_000).open(ticket));
+
+        Files.write(directory.resolve("short.key"), new byte[5]);
+        assertThrows(IOException.class, () -> SessionTickets.open(directory.resolve("short.key").toString(), 60_000));
+    }
+
+    @Test
+    void theClientReadsOnlyAWellFormedTicketPayload() {
+        byte[] ticket = new byte[100];
+        Arrays.fill(ticket, (byte) 7);
+        byte[] secret = SessionTickets.randomBytes();
+        byte[] payload = SessionTickets.ticketPayload(ticket, secret);
+        SessionTickets.ClientTicket clientTicket = SessionTickets.ClientTicket.fromPayload(payload);
+        assertNotNull(clientTicket);
+        assertArrayEquals(ticket, clientTicket.ticket);
+        assertArrayEquals(secret, clientTicket.secret);
+
+        assertNull(SessionTickets.ClientTicket.fromPayload(new byte[0]));
+        assertNull(SessionTickets.ClientTicket.fromPayload(new byte[1]));
+        assertNull(SessionTickets.ClientTicket.fromPayload(Arrays.copyOf(payload, payload.length - 1)));
+        assertNull(SessionTickets.ClientTicket.fromPayload(Arrays.copyOf(payload, payload.length + 1)));
+        // A ticket length larger than the payload
+        byte[] overlong = payload.clone();
+        overlong[0] = (byte) 0xff;
+        assertNull(SessionTickets.ClientTicket.fromPayload(overlong));
+    }
+
+    @Test
+    void bothSidesDeriveTheSameResumedKey() throws GeneralSecurityException {
+        byte[] secret = SessionTickets.randomBytes();
+        byte[] clientNonce = SessionTickets.randomBytes();
+        byte[] serverNonce = SessionTickets.randomBytes();
+        Key key = SessionTickets.resumedKey(secret, clientNonce, serverNonce);
+        assertEquals(KeyExchange.SESSION_KEY_SIZE, key.getEncoded().length);
+        assertArrayEquals(key.getEncoded(), SessionTickets.resumedKey(secret.clone(), clientNonce.clone(), serverNonce.clone()).getEncoded());
+
+        // A new key for each nonce and each secret, and the nonces are not interchangeable
+        assertFalse(Arrays.equals(key.getEncoded(), SessionTickets.resumedKey(secret, SessionTickets.randomBytes(), serverNonce).getEncoded()));
+        assertFalse(Arrays.equals(key.getEncoded(), SessionTickets.resumedKey(secret, clientNonce, SessionTickets.randomBytes()).getEncoded()));
+        assertFalse(Arrays.equals(key.getEncoded(), SessionTickets.resumedKey(SessionTickets.randomBytes(), clientNonce, serverNonce).getEncoded()));
+        assertFalse(Arrays.equals(key.getEncoded(), SessionTickets.resumedKey(secret, serverNonce, clientNonce).getEncoded()));
+    }
+}
@@ -0,0 +1,144 @@
+import org.junit.jupiter.api.extension.AfterEachCallback;
+import org.junit.jupiter.api.extension.ExtensionContext;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The servers started by a test (shut down after each test) and the clients the tests connect to them, without
+ * sockets: a client is a handler registered with the server, and what the server wrote to it.
+ * <p>
+ * Registered in a test class with {@code @RegisterExtension final TestServers servers = new TestServers();}
+ */
+class TestServers implements AfterEachCallback {
+
+    private final List<Server> servers = new ArrayList<>();
+
+    /**
+     * @return the configuration of a test server: any free port, nothing else opened, no logs, and the frames written
+     * to the clients directly (so they are on the wire when a call returns)
+     */
+    static ServerConfig config() {
+        ServerConfig config = new ServerConfig();
+        config.port = 0;
+        config.jmx = false;
+        config.ticketLifetimeMillis = 0;
+        config.logLevel = ServerLog.Level.OFF;
+        config.outboundQueueSize = 0;
+        return config;
+    }
+
+    /**
+     * Start a server, shut down after the test
+     *
+     * @param config the configuration
+     * @return the server
+     * @throws IOException if the server cannot start
+     */
+    Server start(ServerConfig config) throws IOException {
+        Server server = new Server(config);
+        servers.add(server);
+        return server;
+    }
+
+    @Override
+    public void afterEach(ExtensionContext context) {
+        for (Server server : servers) {
+            server.shutdown();
+        }
+        servers.clear();
+    }
+
+    /**
+     * Read the complete frames written so far
+     *
+     * @param wire what the server wrote
+     * @return the frames
+     * @throws IOException if a frame is malformed
+     */
+    static List<FrameCodec.Frame> readFrames(ByteArrayOutputStream wire) throws IOException {
+        FrameCodec reader = FrameCodec.binary(new ByteArrayInputStream(wire.toByteArray()), new ByteArrayOutputStream());
+        List<FrameCodec.Frame> frames = new ArrayList<>();
+        try {
+            FrameCodec.Frame frame;
+            while ((frame = reader.readFrame()) != null) {
+                frames.add(frame);
+            }
+        } catch (EOFException e) {
+            // A frame being written
+        }
+        return frames;
+    }
+
+    /**
+     * A client of a test server: its session key, its handler, what the server wrote to it and its client side cipher
+     */
+    static final class Client {
+        final Key key;
+        final ByteArrayOutputStream wire;
+        final Server.ConnectionHandler handler;
+        private final MessageCipher clientCipher;
+
+        /**
+         * Register a client that negotiated AES-GCM
+         *
+         * @param server the server
+         * @throws GeneralSecurityException if the session cannot be created
+         */
+        Client(Server server) throws GeneralSecurityException {
+            this(server, new ByteArrayOutputStream(), FrameCodec.FEATURE_GCM);
+        }
+
+        /**
+         * Register a client
+         *
+         * @param server   the server
+         * @param wire     where the server writes to the client
+         * @param features the negotiated features (FEATURE_GCM at least)
+         * @throws GeneralSecurityException if the session cannot be created
+         */
+        Client(Server server, ByteArrayOutputStream wire, int features) throws GeneralSecurityException {
+            byte[] keyBytes = new byte[KeyExchange.SESSION_KEY_SIZE];
+            new SecureRandom().nextBytes(keyBytes);
+            key = new SecretKeySpec(keyBytes, "AES");
+            this.wire = wire;
+            handler = server.register(new Socket(), FrameCodec.binary(new ByteArrayInputStream(new byte[0]), wire), key, features);
+            clientCipher = MessageCipher.forClient(key, true);
+        }
+
+        /**
+         * Send a message to the server as the reader of the connection would
+         *
+         * @param message the message
+         * @throws GeneralSecurityException if the message cannot be encrypted
+         */
+        void send(String message) throws GeneralSecurityException {
+            handler.onFrame(new FrameCodec.Frame(FrameCodec.TYPE_MESSAGE, clientCipher.encrypt(message.getBytes(StandardCharsets.UTF_8))));
+        }
+
+        /**
+         * @return the messages the server sent so far with the session key
+         * @throws Exception if a frame cannot be read or decrypted
+         */
+        List<String> received() throws Exception {
+            MessageCipher session = MessageCipher.forClient(key, true);
+            List<String> messages = new ArrayList<>();
+            for (FrameCodec.Frame frame : readFrames(wire)) {
+                if (frame.type == FrameCodec.TYPE_MESSAGE) {
+                    messages.add(new String(session.decrypt(frame.payload), StandardCharsets.UTF_8));
+                }
+            }
+            return messages;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The rate and the burst of the token bucket (the rates are slow enough that no token comes back during a test unless
+ * it waits for it)
+ */
+class TokenBucketTest {
+
+    @Test
+    void aFullBucketHoldsOneBurst() {
+        // 1 token per second for 10 seconds: 10 tokens
+        TokenBucket bucket = new TokenBucket(1, 10, TimeUnit.SECONDS);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(bucket.tryAcquire(1), "token " + i);
+        }
+        assertFalse(bucket.tryAcquire(1));
+    }
+
+    @Test
+    void aRefusedAcquireTakesNothing() {
+        TokenBucket bucket = new TokenBucket(1, 10, TimeUnit.SECONDS);
+        assertTrue(bucket.tryAcquire(8));
+        assertFalse(bucket.tryAcquire(5));
+        assertTrue(bucket.tryAcquire(2));
+        assertFalse(bucket.tryAcquire(1));
+    }
+
+    @Test
+    void aRequestLargerThanTheBurstEmptiesAFullBucket() {
+        TokenBucket bucket = new TokenBucket(1, 10, TimeUnit.SECONDS);
+        assertTrue(bucket.tryAcquire(100));
+        assertFalse(bucket.tryAcquire(1));
+    }
+
+    @Test
+    void aRequestLargerThanTheBurstPaysEveryToken() {
+        TokenBucket bucket = new TokenBucket(1, 10, TimeUnit.SECONDS);
+        assertTrue(bucket.tryAcquire(30));
+        // 30 tokens taken from a bucket of 10: the bucket is full again in 30 seconds, a token is back in 21
+        long wait = bucket.reserve(1);
+        assertTrue(wait > TimeUnit.SECONDS.toNanos(20) && wait <= TimeUnit.SECONDS.toNanos(21), Long.toString(wait));
+    }
+
+    @Test
+    void aRequestLargerThanTheBurstNeedsAFullBucket() {
+        TokenBucket bucket = new TokenBucket(1, 10, TimeUnit.SECONDS);
+        assertTrue(bucket.tryAcquire(1));
+        assertFalse(bucket.tryAcquire(30));
+        assertTrue(bucket.tryAcquire(9));
+    }
+
+    @Test
+    void theTokensComeBackAtTheRate() throws InterruptedException {
+        // 1000 tokens per second for 10 ms: 10 tokens, one more every millisecond
+        TokenBucket bucket = new TokenBucket(1000, 10, TimeUnit.MILLISECONDS);
+        assertTrue(bucket.tryAcquire(10));
+        assertFalse(bucket.tryAcquire(10));
+        Thread.sleep(50);
+        assertTrue(bucket.tryAcquire(10));
+    }
+
+    @Test
+    void reserveTellsHowLongToWait() {
+        TokenBucket bucket = new TokenBucket(1, 10, TimeUnit.SECONDS);
+        assertEquals(0, bucket.reserve(10));
+        // The next tokens come back one second apart
+        long first = bucket.reserve(1);
+        assertTrue(first > TimeUnit.MILLISECONDS.toNanos(900) && first <= TimeUnit.SECONDS.toNanos(1), Long.toString(first));
+        long second = bucket.reserve(1);
+        assertTrue(second > TimeUnit.MILLISECONDS.toNanos(1900) && second <= TimeUnit.SECONDS.toNanos(2), Long.toString(second));
+        // Reserved tokens are taken: nothing is left
+        assertFalse(bucket.tryAcquire(1));
+    }
+
+    @Test
+    void concurrentAcquiresNeverTakeMoreThanTheBurst() throws InterruptedException {
+        // 100 tokens shared by 8 threads (like the global budget shared by the connections)
+        TokenBucket bucket = new TokenBucket(1, 100, TimeUnit.SECONDS);
+        AtomicInteger taken = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < 1000; i++) {
+                    if (bucket.tryAcquire(1)) {
+                        taken.incrementAndGet();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(100, taken.get());
+    }
+}